@@ -90,6 +90,7 @@ public class Event {
 
     private int    type;       // type of event
     private Object arg;        // must be serializable if used for inter-stack communication
+    private long   timestamp;  // time (System.nanoTime()) at which the event was queued, used for instrumentation
 
 
     public Event(int type) {
@@ -117,6 +118,15 @@ public class Event {
         this.arg=arg;
     }
 
+    /** Returns the time (System.nanoTime()) at which an instrumented protocol added the event to a queue, or 0 */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp=timestamp;
+    }
+
 
 
     public static String type2String(int t) {
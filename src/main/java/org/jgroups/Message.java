@@ -8,6 +8,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.AddressTable;
 import org.jgroups.util.Marshaller;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
@@ -52,14 +53,14 @@ public class Message implements Externalizable, Streamable {
     static final byte SRC_SET=2;
     static final byte BUF_SET=4;
     // static final byte HDRS_SET=8; // bela July 15 2005: not needed, we always create headers
+    static final byte SRC_INDEXED=8; // src is written as index into an AddressTable
     static final byte IPADDR_DEST=16;
     static final byte IPADDR_SRC=32;
     static final byte SRC_HOST_NULL=64;
 
     static final HashSet nonStreamableHeaders=new HashSet(); // todo: remove when all headers are streamable
 
-    /** Map<Address,Address>. Maintains mappings to canonical addresses */
-    private static final Map canonicalAddresses=new ConcurrentReaderHashMap();
+    /** Addresses are canonicalized against the members of the current views ({@link AddressTable}) */
     private static final boolean DISABLE_CANONICALIZATION;
 
     static {
@@ -526,7 +527,19 @@ public class Message implements Externalizable, Streamable {
      * @throws IOException
      */
     public void writeTo(DataOutputStream out) throws IOException {
+        writeTo(out, null);
+    }
+
+    /**
+     * Streams all members to the output stream. If src is a member of table, it is written as the member's index
+     * (2 bytes) rather than as an address
+     * @param table The members of the current view, which the receiver has to know. May be null
+     */
+    public void writeTo(DataOutputStream out, AddressTable table) throws IOException {
         byte leading=0;
+        int src_index=table != null? table.indexOf(src_addr) : -1;
+        if(src_index > Short.MAX_VALUE)
+            src_index=-1;
 
 //        if(dest_addr != null) {
 //            leading+=DEST_SET;
@@ -534,7 +547,11 @@ public class Message implements Externalizable, Streamable {
 //                leading+=IPADDR_DEST;
 //        }
 
-        if(src_addr != null) {
+        if(src_index >= 0) {
+            leading+=SRC_SET;
+            leading+=SRC_INDEXED;
+        }
+        else if(src_addr != null) {
             leading+=SRC_SET;
             if(src_addr instanceof IpAddress) {
                 leading+=IPADDR_SRC;
@@ -558,7 +575,10 @@ public class Message implements Externalizable, Streamable {
 //        }
 
         // 3. src_addr
-        if(src_addr != null) {
+        if(src_index >= 0) {
+            out.writeShort(src_index);
+        }
+        else if(src_addr != null) {
             if(src_addr instanceof IpAddress) {
                 src_addr.writeTo(out);
             }
@@ -586,6 +606,22 @@ public class Message implements Externalizable, Streamable {
 
 
     public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+        readFrom(in, null);
+    }
+
+    /** Returns true if the sender of a message starting with the given leading byte was written as member index */
+    public static boolean isSrcIndexed(byte leading) {
+        return (leading & SRC_INDEXED) == SRC_INDEXED;
+    }
+
+    /**
+     * Reads a message written by {@link #writeTo(java.io.DataOutputStream, org.jgroups.util.AddressTable)}. The
+     * sender is resolved against table: a member index is looked up, and a member's address is replaced with the
+     * member's instance
+     * @param table The members of the view the sender used, or null
+     * @throws IOException Thrown if the sender is a member index, but table is null or doesn't contain the index
+     */
+    public void readFrom(DataInputStream in, AddressTable table) throws IOException, IllegalAccessException, InstantiationException {
         int len, leading;
         String hdr_name;
         Header hdr;
@@ -606,15 +642,21 @@ public class Message implements Externalizable, Streamable {
 //        }
 
         // 2. src_addr
-        if((leading & SRC_SET) == SRC_SET) {
+        if((leading & SRC_INDEXED) == SRC_INDEXED) {
+            int index=in.readShort();
+            src_addr=table != null? table.get(index) : null;
+            if(src_addr == null)
+                throw new IOException("sender is member #" + index + ", but the member table " + table +
+                        " doesn't have this member");
+        }
+        else if((leading & SRC_SET) == SRC_SET) {
             if((leading & IPADDR_SRC) == IPADDR_SRC) {
-                src_addr=new IpAddress();
-                src_addr.readFrom(in);
+                src_addr=IpAddress.readFrom(in, table);
             }
             else {
                 src_addr=Util.readAddress(in);
             }
-            if(!DISABLE_CANONICALIZATION)
+            if(!DISABLE_CANONICALIZATION && table == null)
                 src_addr=canonicalAddress(src_addr);
         }
 
@@ -732,29 +774,9 @@ public class Message implements Externalizable, Streamable {
         return new ConcurrentReaderHashMap(m);
     }
 
-    /** canonicalize addresses to some extent.  There are race conditions
-     * allowed in this method, so it may not fully canonicalize an address
-     * @param nonCanonicalAddress
-     * @return canonical representation of the address
-     */
+    /** Returns the instance of the address held by the member table of a view, or the address itself */
     private static Address canonicalAddress(Address nonCanonicalAddress) {
-        Address result=null;
-        if(nonCanonicalAddress == null) {
-            return null;
-        }
-        // do not synchronize between get/put on the canonical map to avoid cost of contention
-        // this can allow multiple equivalent addresses to leak out, but it's worth the cost savings
-        try {
-            result=(Address)canonicalAddresses.get(nonCanonicalAddress);
-        }
-        catch(NullPointerException npe) {
-            // no action needed
-        }
-        if(result == null) {
-            result=nonCanonicalAddress;
-            canonicalAddresses.put(nonCanonicalAddress, result);
-        }
-        return result;
+        return AddressTable.canonicalAddress(nonCanonicalAddress);
     }
 
     /* ------------------------------- End of Private methods ---------------------------- */
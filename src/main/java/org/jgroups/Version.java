@@ -18,9 +18,9 @@ package org.jgroups;
  */
 public class Version {
     public static final short major = 2;
-    public static final short minor = 4;
-    public static final short micro = 1;
-    public static final String description="2.4.1 SP-4";
+    public static final short minor = 5;
+    public static final short micro = 0;
+    public static final String description="2.5.0";
 
     public static final short version=encode(major, minor, micro);
     public static final String string_version=print(version);
@@ -2,6 +2,9 @@
 
 package org.jgroups.blocks;
 
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.QueuedExecutor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.*;
@@ -10,6 +13,7 @@ import org.jgroups.persistence.CannotRemoveException;
 import org.jgroups.persistence.PersistenceFactory;
 import org.jgroups.persistence.PersistenceManager;
 import org.jgroups.util.Promise;
+import org.jgroups.util.RspList;
 import org.jgroups.util.Util;
 
 import java.io.Serializable;
@@ -32,7 +36,17 @@ import java.util.*;
  * regardless of one's onw location. A <code>DistributedHashtable</code> thus allows to
  * implement a distributed naming service in just a couple of lines.<p>
  * An instance of this class will contact an existing member of the group to fetch its
- * initial state (using the state exchange funclet <code>StateExchangeFunclet</code>.
+ * initial state (using the state exchange funclet <code>StateExchangeFunclet</code>.<p>
+ * Modifications wait for the responses of all members for at most call_timeout ms (0 waits forever). They can
+ * also be invoked asynchronously ({@link #putAsync(Object, Object)}, {@link #removeAsync(Object)}), which returns
+ * a future; asynchronous modifications of the same key are executed in the order in which they were invoked.<p>
+ * In partitioned mode ({@link #setPartitioned(boolean)}), keys are hashed into num_buckets buckets, and every
+ * bucket is stored by num_owners members, chosen by consistent hashing. Modifications are only sent to the owners
+ * of a key, and get() fetches the value from an owner if the local member is not one. All other read-only methods
+ * of Hashtable (size(), keys(), contains() etc) only see the entries stored locally. Keys must therefore have a
+ * hashCode() which is the same in all members (e.g. Strings or Numbers). No state is transferred on joining:
+ * when the membership changes, the first previous owner of a bucket sends its entries to the new owners, and
+ * members drop the buckets they don't own any longer.
  * @author Bela Ban
  * @author <a href="mailto:aolias@yahoo.com">Alfonso Olias-Sanz</a>
  * @version $Id: DistributedHashtable.java,v 1.26.2.2 2007/04/26 16:43:00 vlada Exp $
@@ -59,6 +73,8 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
     private transient Class[]               putAll_signature=null;
     private transient Class[]               clear_signature=null;
     private transient Class[]               remove_signature=null;
+    private transient Class[]               get_signature=null;
+    private transient Class[]               add_entries_signature=null;
     private transient boolean               persistent=false; // whether to use PersistenceManager to save state
     private transient PersistenceManager    persistence_mgr=null;
 
@@ -68,6 +84,37 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 
     protected final transient Promise          state_promise=new Promise();
 
+    /** Max time (ms) to wait for the responses to a modification. 0 waits until all responses have been received */
+    private transient long                  call_timeout=0;
+
+    /** Number of threads executing asynchronous modifications */
+    private transient int                   num_async_threads=4;
+    private transient QueuedExecutor[]      async_executors=null;
+
+    /** Whether each key is only stored by num_owners members */
+    private transient boolean               partitioned=false;
+    private transient int                   num_owners=2;
+    private transient int                   num_buckets=1024;
+
+    /** Maps buckets to members, recomputed on every view change (partitioned mode only) */
+    private transient volatile ConsistentHash hash=null;
+
+    /** Transfers buckets to their new owners after a view change (partitioned mode only) */
+    private transient QueuedExecutor        rebalancer=null;
+
+    /** The hash of the previous view (partitioned mode only) */
+    private transient ConsistentHash        prev_hash=null;
+
+    /**
+     * Keys of buckets we acquired with the current view which were removed since the view change (partitioned mode
+     * only). The previous owners may still transfer these entries, so _addEntries() skips them. Cleared on the next
+     * view change
+     */
+    private final transient Set             tombstones=new HashSet();
+
+    /** Set when _clear() was called since the last view change: _addEntries() then skips all entries */
+    private transient boolean               cleared_since_view=false;
+
     protected final Log log=LogFactory.getLog(this.getClass());
 
 
@@ -196,6 +243,14 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
             }
         }
 
+        if(partitioned) {
+            // the entries are transferred by their previous owners on the view change (see rebalance())
+            if(log.isInfoEnabled()) log.info("partitioned mode: not fetching state");
+            if(persistent && members.size() <= 1)
+                loadFromDatabase();
+            return;
+        }
+
         state_promise.reset();
         rc=channel.getState(null, state_timeout);
         if(rc) {
@@ -210,29 +265,33 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
         }
         else {
             if(log.isInfoEnabled()) log.info("state could not be retrieved (first member)");
-            if(persistent) {
-                if(log.isInfoEnabled()) log.info("fetching state from database");
-                try {
-                    Map m=persistence_mgr.retrieveAll();
-                    if(m != null) {
-                        Map.Entry entry;
-                        Object key, val;
-                        for(Iterator it=m.entrySet().iterator(); it.hasNext();) {
-                            entry=(Map.Entry)it.next();
-                            key=entry.getKey();
-                            val=entry.getValue();
-                            if(log.isInfoEnabled()) log.info("inserting " + key + " --> " + val);
-                            put(key, val);  // will replicate key and value
-                        }
-                    }
-                }
-                catch(Throwable ex) {
-                    if(log.isErrorEnabled()) log.error("failed creating PersistenceManager, " +
-                                "turning persistency off. Exception: " + Util.printStackTrace(ex));
-                    persistent=false;
+            if(persistent)
+                loadFromDatabase();
+        }
+    }
+
+
+    private void loadFromDatabase() {
+        if(log.isInfoEnabled()) log.info("fetching state from database");
+        try {
+            Map m=persistence_mgr.retrieveAll();
+            if(m != null) {
+                Map.Entry entry;
+                Object key, val;
+                for(Iterator it=m.entrySet().iterator(); it.hasNext();) {
+                    entry=(Map.Entry)it.next();
+                    key=entry.getKey();
+                    val=entry.getValue();
+                    if(log.isInfoEnabled()) log.info("inserting " + key + " --> " + val);
+                    put(key, val);  // will replicate key and value
                 }
             }
         }
+        catch(Throwable ex) {
+            if(log.isErrorEnabled()) log.error("failed creating PersistenceManager, " +
+                        "turning persistency off. Exception: " + Util.printStackTrace(ex));
+            persistent=false;
+        }
     }
 
 
@@ -241,6 +300,37 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
     public Channel getChannel()             {return channel;}
     public boolean getPersistent()          {return persistent;}
     public void    setPersistent(boolean p) {persistent=p;}
+    public long    getCallTimeout()         {return call_timeout;}
+    public void    setCallTimeout(long t)   {call_timeout=t;}
+    public int     getNumAsyncThreads()     {return num_async_threads;}
+    /** Sets the number of threads executing asynchronous modifications. Has to be set before the first one */
+    public void    setNumAsyncThreads(int n) {num_async_threads=Math.max(1, n);}
+    public boolean isPartitioned()          {return partitioned;}
+    public int     getNumOwners()           {return num_owners;}
+    public void    setNumOwners(int n)      {num_owners=Math.max(1, n);}
+    public int     getNumBuckets()          {return num_buckets;}
+    /** Sets the number of buckets. Has to be the same in all members, and set before connecting */
+    public void    setNumBuckets(int n)     {num_buckets=Math.max(1, n);}
+
+    /**
+     * Enables or disables partitioned mode (see class comment). Has to be the same in all members, and set before
+     * connecting the channel or calling start()
+     */
+    public void setPartitioned(boolean partitioned) {
+        this.partitioned=partitioned;
+        if(partitioned && !members.isEmpty())
+            hash=new ConsistentHash(members, num_buckets, num_owners);
+    }
+
+    /**
+     * Returns the members which store the given key, or null if not in partitioned mode
+     */
+    public Vector getOwners(Object key) {
+        ConsistentHash tmp=hash;
+        if(!partitioned || tmp == null)
+            return null;
+        return new Vector(Arrays.asList(tmp.getOwners(getBucket(key))));
+    }
 
 
     public void setDeadlockDetection(boolean flag) {
@@ -259,6 +349,17 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
     }
 
     public void stop() {
+        synchronized(this) {
+            if(async_executors != null) {
+                for(int i=0; i < async_executors.length; i++)
+                    async_executors[i].shutdownAfterProcessingCurrentlyQueuedTasks();
+                async_executors=null;
+            }
+            if(rebalancer != null) {
+                rebalancer.shutdownNow();
+                rebalancer=null;
+            }
+        }
         if(disp != null) {
             disp.stop();
             disp=null;
@@ -277,6 +378,9 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 	 * @return the previous value of the specified key in this hashtable, or null if it did not have one
 	 */
     public Object put(Object key, Object value) {
+        if(partitioned && hash != null)
+            return callOwners(key, "_put", new Object[]{key,value}, put_signature);
+
         Object prev_val=get(key);
 
         //Changes done by <aos>
@@ -287,7 +391,7 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
                         null, "_put", new Object[]{key,value},
                         put_signature,
                         GroupRequest.GET_ALL,
-                        0);
+                        call_timeout);
             }
             catch(Exception e) {
                 //return null;
@@ -305,6 +409,10 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 	 * @param m - Mappings to be stored in this map
 	 */
 	public void putAll(Map m) {
+        if(partitioned && hash != null) {
+            putAllOnOwners(m);
+            return;
+        }
 		//Changes done by <aos>
 		//if true, propagate action to the group
         if(send_message == true) {
@@ -313,7 +421,7 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
                         null, "_putAll", new Object[]{m},
                         putAll_signature,
                         GroupRequest.GET_ALL,
-                        0);
+                        call_timeout);
             }
             catch(Throwable t) {
             }
@@ -335,7 +443,7 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
                         null, "_clear", null,
                         clear_signature,
                         GroupRequest.GET_ALL,
-                        0);
+                        call_timeout);
             }
             catch(Exception e) {
                 if(log.isErrorEnabled()) log.error("exception=" + e);
@@ -352,6 +460,9 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 	 * @return the value to which the key had been mapped in this hashtable, or null if the key did not have a mapping.
 	 */
 	public Object remove(Object key) {
+        if(partitioned && hash != null)
+            return callOwners(key, "_remove", new Object[]{key}, remove_signature);
+
 		Object retval = get(key);
 
 		//Changes done by <aos>
@@ -362,7 +473,7 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
                         null, "_remove", new Object[]{key},
                         remove_signature,
                         GroupRequest.GET_ALL,
-                        0);
+                        call_timeout);
                 //return retval;
             }
             catch(Exception e) {
@@ -378,8 +489,304 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 
 
 
+    /**
+     * Returns the value of key. In partitioned mode, the value is fetched from an owner of the key unless we are
+     * one of them
+     */
+    public Object get(Object key) {
+        ConsistentHash tmp=hash;
+        if(!partitioned || tmp == null || disp == null)
+            return super.get(key);
+
+        Address[] owners=tmp.getOwners(getBucket(key));
+        Address local_addr=getLocalAddress();
+        for(int i=0; i < owners.length; i++) {
+            if(owners[i].equals(local_addr))
+                return super.get(key);
+        }
+        for(int i=0; i < owners.length; i++) {
+            try {
+                return disp.callRemoteMethod(owners[i], "_get", new Object[]{key}, get_signature,
+                                             GroupRequest.GET_FIRST, call_timeout);
+            }
+            catch(TimeoutException e) {
+                if(log.isWarnEnabled()) log.warn("owner " + owners[i] + " didn't return " + key + " within " + call_timeout + " ms");
+            }
+            catch(SuspectedException e) {
+                if(log.isWarnEnabled()) log.warn("owner " + owners[i] + " of " + key + " was suspected");
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failed fetching " + key + " from " + owners[i], t);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(Object key) {
+        if(!partitioned || hash == null)
+            return super.containsKey(key);
+        return get(key) != null;
+    }
+
+
+    /**
+     * Like {@link #put(Object, Object)}, but returns immediately. The returned future provides the previous value
+     * of key when the modification has completed
+     */
+    public FutureResult putAsync(final Object key, final Object value) {
+        return executeAsync(key, new Callable() {
+            public Object call() throws Exception {
+                return put(key, value);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #remove(Object)}, but returns immediately. The returned future provides the previous value
+     * of key when the modification has completed
+     */
+    public FutureResult removeAsync(final Object key) {
+        return executeAsync(key, new Callable() {
+            public Object call() throws Exception {
+                return remove(key);
+            }
+        });
+    }
+
+
+    /** Executes task on the thread for key, so modifications of the same key are executed in order */
+    private FutureResult executeAsync(Object key, Callable task) {
+        FutureResult future=new FutureResult();
+        QueuedExecutor executor;
+        synchronized(this) {
+            if(async_executors == null) {
+                async_executors=new QueuedExecutor[num_async_threads];
+                for(int i=0; i < async_executors.length; i++)
+                    async_executors[i]=new QueuedExecutor();
+            }
+            executor=async_executors[(hash(key.hashCode()) & Integer.MAX_VALUE) % async_executors.length];
+        }
+        try {
+            executor.execute(future.setter(task));
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.setException(e);
+        }
+        return future;
+    }
+
+
+    /** Invokes method on the owners of key and returns the response of the first one */
+    private Object callOwners(Object key, String method, Object[] args, Class[] types) {
+        try {
+            RspList rsps=disp.callRemoteMethods(getOwners(key), method, args, types, GroupRequest.GET_ALL, call_timeout);
+            return rsps.getFirst();
+        }
+        catch(Exception e) {
+            if(log.isErrorEnabled()) log.error("failed invoking " + method + "(" + key + ") on the owners: " + e);
+            return null;
+        }
+    }
+
+
+    /** Sends each member the entries it owns */
+    private void putAllOnOwners(Map m) {
+        Map per_member=new HashMap();
+        Map.Entry entry;
+        Address[] owners;
+        Map tmp;
+        ConsistentHash tmp_hash=hash;
+        for(Iterator it=m.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            owners=tmp_hash.getOwners(getBucket(entry.getKey()));
+            for(int i=0; i < owners.length; i++) {
+                tmp=(Map)per_member.get(owners[i]);
+                if(tmp == null) {
+                    tmp=new HashMap();
+                    per_member.put(owners[i], tmp);
+                }
+                tmp.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for(Iterator it=per_member.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            Vector dest=new Vector(1);
+            dest.add(entry.getKey());
+            try {
+                disp.callRemoteMethods(dest, "_putAll", new Object[]{entry.getValue()}, putAll_signature,
+                                       GroupRequest.GET_ALL, call_timeout);
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failed sending " + ((Map)entry.getValue()).size() +
+                        " entries to " + entry.getKey() + ": " + t);
+            }
+        }
+    }
+
+
+    private int getBucket(Object key) {
+        return (hash(key.hashCode()) & Integer.MAX_VALUE) % num_buckets;
+    }
+
+    /** Spreads the bits of h (MurmurHash3 finalizer), so that similar hash codes (e.g. of "key1" and "key2", or of
+     * addresses differing only in the port) end up far apart */
+    static int hash(int h) {
+        h^=h >>> 16;
+        h*=0x85ebca6b;
+        h^=h >>> 13;
+        h*=0xc2b2ae35;
+        h^=h >>> 16;
+        return h;
+    }
+
+
+    /**
+     * Sends the entries of the buckets whose first owner in the old view was us to the members which became owners
+     * in the new view, and drops the entries of buckets we don't own any longer
+     */
+    private void rebalance(ConsistentHash old_hash, ConsistentHash new_hash) {
+        Address local_addr=getLocalAddress();
+        if(local_addr == null)
+            return;
+        Map transfers=new HashMap(); // keys: members, values: maps of entries to send
+        List to_drop=new ArrayList();
+        Map.Entry entry;
+        Map tmp;
+        synchronized(this) {
+            for(Iterator it=super.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                int bucket=getBucket(entry.getKey());
+                Address[] old_owners=old_hash.getOwners(bucket), new_owners=new_hash.getOwners(bucket);
+                if(local_addr.equals(getPrimaryOwner(old_owners, new_hash.members))) {
+                    for(int i=0; i < new_owners.length; i++) {
+                        if(!contains(old_owners, new_owners[i])) {
+                            tmp=(Map)transfers.get(new_owners[i]);
+                            if(tmp == null) {
+                                tmp=new HashMap();
+                                transfers.put(new_owners[i], tmp);
+                            }
+                            tmp.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                if(!contains(new_owners, local_addr))
+                    to_drop.add(entry.getKey());
+            }
+        }
+
+        // keys whose transfer wasn't confirmed by all new owners: we keep our copies of them
+        Set failed=new HashSet();
+        for(Iterator it=transfers.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            Address mbr=(Address)entry.getKey();
+            tmp=(Map)entry.getValue();
+            if(log.isTraceEnabled()) log.trace("transferring " + tmp.size() + " entries to " + mbr);
+            Vector dest=new Vector(1);
+            dest.add(mbr);
+            try {
+                RspList rsps=disp.callRemoteMethods(dest, "_addEntries", new Object[]{tmp}, add_entries_signature,
+                                                    GroupRequest.GET_ALL, call_timeout);
+                if(!rsps.isReceived(mbr) || rsps.isSuspected(mbr) || rsps.getValue(mbr) instanceof Throwable) {
+                    if(log.isWarnEnabled()) log.warn("transfer of " + tmp.size() + " entries to " + mbr + " was not confirmed");
+                    failed.addAll(tmp.keySet());
+                }
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failed transferring " + tmp.size() + " entries to " + mbr + ": " + t);
+                failed.addAll(tmp.keySet());
+            }
+        }
+        to_drop.removeAll(failed);
+
+        if(!to_drop.isEmpty()) {
+            if(log.isTraceEnabled()) log.trace("dropping " + to_drop.size() + " entries we don't own any longer");
+            for(Iterator it=to_drop.iterator(); it.hasNext();) {
+                Object key=it.next();
+                super.remove(key);
+                if(persistent) {
+                    try {
+                        persistence_mgr.remove((Serializable)key);
+                    }
+                    catch(Throwable t) {
+                        if(log.isErrorEnabled()) log.error("failed removing " + key + " from the database: " + t);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the first of the owners which is still a member */
+    private static Address getPrimaryOwner(Address[] owners, Vector mbrs) {
+        for(int i=0; i < owners.length; i++) {
+            if(mbrs.contains(owners[i]))
+                return owners[i];
+        }
+        return null;
+    }
+
+    private static boolean contains(Address[] list, Address mbr) {
+        for(int i=0; i < list.length; i++) {
+            if(list[i].equals(mbr))
+                return true;
+        }
+        return false;
+    }
+
+
+
+    /** Records the removal of key if its bucket was acquired with the current view. Called with the lock held */
+    private void addTombstone(Object key) {
+        ConsistentHash old_hash=prev_hash;
+        Address local_addr=getLocalAddress();
+        if(old_hash != null && local_addr != null && !contains(old_hash.getOwners(getBucket(key)), local_addr))
+            tombstones.add(key);
+    }
+
+
+
     /*------------------------ Callbacks -----------------------*/
 
+    public Object _get(Object key) {
+        return super.get(key);
+    }
+
+
+    /**
+     * Adds the entries whose keys are not yet present (used to transfer buckets to new owners in partitioned mode;
+     * existing entries were set by a more recent modification). Entries removed since the view change are skipped
+     */
+    public void _addEntries(Map m) {
+        if(m == null)
+            return;
+        Map added=new HashMap();
+        Map.Entry entry;
+        synchronized(this) {
+            if(cleared_since_view)
+                return;
+            for(Iterator it=m.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                if(!super.containsKey(entry.getKey()) && !tombstones.contains(entry.getKey())) {
+                    super.put(entry.getKey(), entry.getValue());
+                    added.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if(added.isEmpty())
+            return;
+        if(persistent) {
+            try {
+                persistence_mgr.saveAll(added);
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failed persisting contents: " + t);
+            }
+        }
+        for(int i=0; i < notifs.size(); i++)
+            ((Notification)notifs.elementAt(i)).contentsSet(added);
+    }
+
     public Object _put(Object key, Object value) {
         Object retval=super.put(key, value);
         if(persistent) {
@@ -438,7 +845,11 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 
 
     public void _clear() {
-        super.clear();
+        synchronized(this) {
+            super.clear();
+            if(partitioned)
+                cleared_since_view=true;
+        }
         if(persistent) {
             try {
                 persistence_mgr.clear();
@@ -456,7 +867,12 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
 
 
     public Object _remove(Object key) {
-        Object retval=super.remove(key);
+        Object retval;
+        synchronized(this) {
+            retval=super.remove(key);
+            if(partitioned)
+                addTombstone(key);
+        }
         if(persistent) {
             try {
                 persistence_mgr.remove((Serializable)key);
@@ -483,13 +899,15 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
     public void receive(Message msg) { }
 
     public byte[] getState() {
-        Object    key, val;
-        Hashtable copy=new Hashtable();
-
-        for(Enumeration e=keys(); e.hasMoreElements();) {
-            key=e.nextElement();
-            val=get(key);
-            copy.put(key, val);
+        Hashtable copy;
+
+        synchronized(this) {
+            copy=new Hashtable(size() * 2 + 1);
+            Map.Entry entry;
+            for(Iterator it=super.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                copy.put(entry.getKey(), entry.getValue());
+            }
         }
         try {
             return Util.objectToByteBuffer(copy);
@@ -529,6 +947,18 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
             members.removeAllElements();
             for(int i=0; i < new_mbrs.size(); i++)
                 members.addElement(new_mbrs.elementAt(i));
+
+            if(partitioned) {
+                final ConsistentHash old_hash=hash, new_hash=new ConsistentHash(new_mbrs, num_buckets, num_owners);
+                synchronized(this) {
+                    prev_hash=old_hash;
+                    hash=new_hash;
+                    tombstones.clear();
+                    cleared_since_view=false;
+                }
+                if(old_hash != null)
+                    scheduleRebalance(old_hash, new_hash);
+            }
         }
         //if size is bigger than one, there are more peers in the group
         //otherwise there is only one server.
@@ -536,6 +966,28 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
     }
 
 
+    /** Rebalancing sends messages, so it must not be done on the thread delivering the view */
+    private synchronized void scheduleRebalance(final ConsistentHash old_hash, final ConsistentHash new_hash) {
+        if(rebalancer == null)
+            rebalancer=new QueuedExecutor();
+        try {
+            rebalancer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        rebalance(old_hash, new_hash);
+                    }
+                    catch(Throwable t) {
+                        if(log.isErrorEnabled()) log.error("failed rebalancing", t);
+                    }
+                }
+            });
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
     /** Called when a member is suspected */
     public void suspect(Address suspected_mbr) {
         ;
@@ -598,12 +1050,84 @@ public class DistributedHashtable extends Hashtable implements MessageListener,
             if(remove_signature == null) {
                 remove_signature=new Class[] {Object.class};
             }
+
+            if(get_signature == null)
+                get_signature=new Class[] {Object.class};
+
+            if(add_entries_signature == null)
+                add_entries_signature=new Class[] {Map.class};
         }
         catch(Throwable ex) {
             if(log.isErrorEnabled()) log.error("exception=" + ex);
         }
     }
 
+    /**
+     * Maps buckets to their owners. Every member is placed on a hash ring at VIRTUAL_NODES positions (derived from
+     * the serialized form of its address, which is the same on all members), and the owners of a bucket are the first num_owners distinct members at or after the position
+     * of the bucket. Adding or removing a member therefore only moves the buckets next to its positions
+     */
+    static class ConsistentHash {
+        static final int VIRTUAL_NODES=32;
+
+        final Vector      members;
+        final Address[][] owners;
+
+        ConsistentHash(Vector mbrs, int num_buckets, int num_owners) {
+            members=new Vector(mbrs);
+            TreeMap ring=new TreeMap();
+            Address mbr;
+            int base;
+            for(int i=0; i < members.size(); i++) {
+                mbr=(Address)members.elementAt(i);
+                base=addressHash(mbr);
+                for(int j=0; j < VIRTUAL_NODES; j++)
+                    ring.put(new Integer(hash(base + j * 0x9E3779B9)), mbr);
+            }
+
+            int num=Math.min(num_owners, members.size());
+            owners=new Address[num_buckets][];
+            List tmp=new ArrayList(num);
+            for(int bucket=0; bucket < num_buckets; bucket++) {
+                tmp.clear();
+                Integer pos=new Integer(hash(bucket * 0x9E3779B9));
+                addOwners(ring.tailMap(pos).values(), tmp, num);
+                addOwners(ring.values(), tmp, num); // wrap around
+                owners[bucket]=(Address[])tmp.toArray(new Address[tmp.size()]);
+            }
+        }
+
+        Address[] getOwners(int bucket) {
+            return owners[bucket];
+        }
+
+        /** Hashes the wire encoding (e.g. IP address bytes and port) of mbr. Unlike toString(), this doesn't depend
+         * on whether or how a member resolves host names */
+        static int addressHash(Address mbr) {
+            byte[] buf;
+            try {
+                buf=Util.streamableToByteBuffer(mbr);
+            }
+            catch(Exception e) {
+                return mbr.hashCode();
+            }
+            int h=1;
+            for(int i=0; i < buf.length; i++)
+                h=31 * h + buf[i];
+            return h;
+        }
+
+        private static void addOwners(Collection candidates, List list, int num) {
+            Object mbr;
+            for(Iterator it=candidates.iterator(); it.hasNext() && list.size() < num;) {
+                mbr=it.next();
+                if(!list.contains(mbr))
+                    list.add(mbr);
+            }
+        }
+    }
+
+
     public static void main(String[] args) {
         try {
             // The setup here is kind of weird:
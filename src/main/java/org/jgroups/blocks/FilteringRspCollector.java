@@ -0,0 +1,17 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * A {@link RspCollector} which can tell the {@link RequestCorrelator} that it doesn't need a response, so the
+ * response is dropped without being unmarshalled.
+ * @version $Id$
+ */
+public interface FilteringRspCollector extends RspCollector {
+
+    /**
+     * Returns true if a response from sender would be used. If false, the RequestCorrelator drops the response
+     * without unmarshalling it, e.g. when the request is already done or sender's response was already received.
+     */
+    boolean wantsResponse(Address sender);
+}
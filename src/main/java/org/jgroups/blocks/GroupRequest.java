@@ -7,11 +7,13 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.Address;
 import org.jgroups.Message;
+import org.jgroups.TimeoutException;
 import org.jgroups.Transport;
 import org.jgroups.View;
 import org.jgroups.util.Command;
 import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
+import org.jgroups.util.TimeScheduler;
 
 import java.util.*;
 
@@ -39,11 +41,14 @@ import java.util.*;
  * channel. A mechanism outside this class has to do this; it has to determine what the responses
  * are for the message sent by the <code>execute()</code> method and call <code>receiveResponse()</code>
  * to do so.<p>
+ * Alternatively, <code>executeAsync()</code> sends the message and returns right away. The request then completes
+ * in the thread which delivers the last required response (or in the timer thread, on a timeout), and can be
+ * accessed as a {@link RspFuture}.<p>
  * <b>Requirements</b>: lossless delivery, e.g. acknowledgment-based message confirmation.
  * @author Bela Ban
  * @version $Revision: 1.21.2.3 $
  */
-public class GroupRequest implements RspCollector, Command {
+public class GroupRequest implements FilteringRspCollector, Command, RspFuture {
     /** return only first response */
     public static final int GET_FIRST=1;
 
@@ -81,10 +86,27 @@ public class GroupRequest implements RspCollector, Command {
     protected Transport transport;    // Transport (one of them has to be non-null)
 
     protected int rsp_mode=GET_ALL;
-    protected boolean done=false;
+    protected volatile boolean done=false;
     protected long timeout=0;
     protected int expected_mbrs=0;
 
+    /** True if the request was started by executeAsync(): it then completes itself when enough responses are in */
+    protected boolean async=false;
+    protected boolean timed_out=false;
+    protected boolean cancelled=false;
+
+    /** Fires the timeout of an asynchronous request, null if no timeout is set */
+    private TimerTask timeout_task=null;
+
+    /** List<RspListener>, notified when an asynchronous request is done */
+    private final List listeners=new ArrayList(2);
+
+    /** Decides which responses are accepted, and may complete the request early. Null accepts all responses */
+    protected RspFilter rsp_filter=null;
+
+    /** Set<Address> of members whose responses were rejected by rsp_filter. They are not waited for any longer */
+    private final Set rejected=new HashSet();
+
     private static final Log log=LogFactory.getLog(GroupRequest.class);
 
     /** to generate unique request IDs (see getRequestId()) */
@@ -173,6 +195,15 @@ public class GroupRequest implements RspCollector, Command {
         this.caller=caller;
     }
 
+    public RspFilter getResponseFilter() {
+        return rsp_filter;
+    }
+
+    /** Sets the filter used by the next execution. Has to be set before the request is executed */
+    public void setResponseFilter(RspFilter rsp_filter) {
+        this.rsp_filter=rsp_filter;
+    }
+
      public boolean execute() throws Exception {
          return execute(false);
      }
@@ -201,6 +232,66 @@ public class GroupRequest implements RspCollector, Command {
     }
 
 
+    /**
+     * Sends the message and returns immediately. The request is done when the responses required by rsp_mode have
+     * been received, or when the timeout elapses (if timeout > 0 and a timer is given); listeners are notified then.
+     * Requires a RequestCorrelator, which dispatches the responses to this request.
+     * @param use_anycasting Send a unicast to each member rather than a multicast
+     * @param timer Used to time out the request. May be null if the timeout is 0
+     * @return This request
+     */
+    public RspFuture executeAsync(boolean use_anycasting, TimeScheduler timer) throws Exception {
+        if(corr == null)
+            throw new IllegalStateException("asynchronous requests require a RequestCorrelator");
+
+        done=false;
+        async=true;
+        req_id=getRequestId();
+        reset(null);
+        markSuspects();
+
+        if(rsp_mode == GET_NONE || members.isEmpty()) {
+            if(!members.isEmpty())
+                corr.sendRequest(req_id, new Vector(members), request_msg, null, use_anycasting);
+            synchronized(requests) {
+                done=true;
+                requests.notifyAll();
+            }
+            notifyListeners();
+            return this;
+        }
+
+        if(timeout > 0 && timer != null) {
+            timeout_task=new TimeoutTask(this);
+            timer.schedule(timeout_task, timeout);
+        }
+
+        try {
+            if(log.isTraceEnabled()) log.trace(new StringBuffer("sending async request (id=").append(req_id).append(')'));
+            corr.sendRequest(req_id, new Vector(members), request_msg, this, use_anycasting);
+        }
+        catch(Exception ex) {
+            corr.done(req_id);
+            if(timeout_task != null)
+                timeout_task.cancel();
+            synchronized(requests) {
+                done=true;
+                requests.notifyAll();
+            }
+            notifyListeners();
+            throw ex;
+        }
+
+        boolean completed;
+        synchronized(requests) {
+            adjustMembership(); // all members might have been suspected before the request was sent
+            completed=checkCompleted();
+        }
+        if(completed)
+            requestDone();
+        return this;
+    }
+
 
     /**
      * This method sets the <code>membership</code> variable to the value of
@@ -213,6 +304,7 @@ public class GroupRequest implements RspCollector, Command {
             Address mbr;
             synchronized(requests) {
                 requests.clear();
+                rejected.clear();
                 for(int i=0; i < mbrs.size(); i++) {
                     mbr=(Address)mbrs.elementAt(i);
                     requests.put(mbr, new Rsp(mbr));
@@ -227,6 +319,7 @@ public class GroupRequest implements RspCollector, Command {
         else {
             synchronized(requests) {
                 Rsp rsp;
+                rejected.clear();
                 for(Iterator it=requests.values().iterator(); it.hasNext();) {
                     rsp=(Rsp)it.next();
                     rsp.setReceived(false);
@@ -240,12 +333,12 @@ public class GroupRequest implements RspCollector, Command {
     /* ---------------------- Interface RspCollector -------------------------- */
     /**
      * <b>Callback</b> (called by RequestCorrelator or Transport).
-     * Adds a response to the response table. When all responses have been received,
-     * <code>execute()</code> returns.
+     * Adds a response to the response table, unless it is rejected by the response filter. When all responses have
+     * been received (or the filter needs no more responses), <code>execute()</code> returns.
      */
     public void receiveResponse(Object response_value, Address sender) {
         if(done) {
-            if(log.isWarnEnabled()) log.warn("command is done; cannot add response !");
+            if(log.isTraceEnabled()) log.trace("command is done; dropping response from " + sender);
             return;
         }
         if(suspects != null && suspects.size() > 0 && suspects.contains(sender)) {
@@ -253,19 +346,29 @@ public class GroupRequest implements RspCollector, Command {
             return;
         }
 
+        boolean completed=false;
         synchronized(requests) {
             Rsp rsp=(Rsp)requests.get(sender);
-            if(rsp != null) {
-                if(rsp.wasReceived() == false) {
+            if(rsp != null && wantsResponse(rsp)) {
+                if(rsp_filter != null && !rsp_filter.isAcceptable(response_value, sender)) {
+                    rejected.add(sender);
+                    if(log.isTraceEnabled())
+                        log.trace(new StringBuffer("rejected response for request ").append(req_id).append(", sender=").
+                                  append(sender).append(", val=").append(response_value));
+                }
+                else {
                     rsp.setValue(response_value);
                     rsp.setReceived(true);
                     if(log.isTraceEnabled())
                         log.trace(new StringBuffer("received response for request ").append(req_id).append(", sender=").
                                   append(sender).append(", val=").append(response_value));
-                    requests.notifyAll(); // wakes up execute()
                 }
+                requests.notifyAll(); // wakes up execute()
+                completed=checkCompleted();
             }
         }
+        if(completed)
+            requestDone();
     }
 
 
@@ -277,6 +380,7 @@ public class GroupRequest implements RspCollector, Command {
      */
     public void suspect(Address suspected_member) {
         Rsp rsp;
+        boolean completed=false;
 
         if(suspected_member == null)
             return;
@@ -289,8 +393,11 @@ public class GroupRequest implements RspCollector, Command {
                 rsp.setSuspected(true);
                 rsp.setValue(null);
                 requests.notifyAll();
+                completed=checkCompleted();
             }
         }
+        if(completed)
+            requestDone();
     }
 
 
@@ -324,7 +431,7 @@ public class GroupRequest implements RspCollector, Command {
 
         Map.Entry entry;
         Rsp rsp;
-        boolean modified=false;
+        boolean modified=false, completed=false;
         synchronized(requests) {
             for(Iterator it=requests.entrySet().iterator(); it.hasNext();) {
                 entry=(Map.Entry)it.next();
@@ -337,8 +444,27 @@ public class GroupRequest implements RspCollector, Command {
                     modified=true;
                 }
             }
-            if(modified)
+            if(modified) {
                 requests.notifyAll();
+                completed=checkCompleted();
+            }
+        }
+        if(completed)
+            requestDone();
+    }
+
+
+    /**
+     * <b>Callback</b> (called by RequestCorrelator before unmarshalling a response).
+     * Returns false if the request is done, or if the response from sender has already been received (or rejected),
+     * or sender is suspected or not part of the request.
+     */
+    public boolean wantsResponse(Address sender) {
+        if(done)
+            return false;
+        synchronized(requests) {
+            Rsp rsp=(Rsp)requests.get(sender);
+            return rsp != null && wantsResponse(rsp);
         }
     }
 
@@ -381,6 +507,10 @@ public class GroupRequest implements RspCollector, Command {
         ret.append("\ndone: ").append(done);
         ret.append("\ntimeout: ").append(timeout);
         ret.append("\nexpected_mbrs: ").append(expected_mbrs);
+        if(rsp_filter != null)
+            ret.append("\nrsp_filter: ").append(rsp_filter);
+        if(!rejected.isEmpty())
+            ret.append("\nrejected: ").append(rejected);
         ret.append("\n]");
         return ret.toString();
     }
@@ -401,6 +531,81 @@ public class GroupRequest implements RspCollector, Command {
     }
 
 
+    /* ---------------------------- Interface RspFuture ------------------------------- */
+
+    public RspList get() {
+        synchronized(requests) {
+            while(!done) {
+                try {
+                    requests.wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break; // return the responses received so far
+                }
+            }
+        }
+        return getResults();
+    }
+
+    public RspList get(long timeout) throws TimeoutException {
+        if(timeout <= 0)
+            return get();
+        long timeout_time=System.currentTimeMillis() + timeout;
+        synchronized(requests) {
+            while(!done && timeout > 0) {
+                try {
+                    requests.wait(timeout);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if(!done)
+                        throw new TimeoutException("interrupted while waiting for request " + req_id);
+                    break;
+                }
+                timeout=timeout_time - System.currentTimeMillis();
+            }
+            if(!done)
+                throw new TimeoutException("request " + req_id + " is not done");
+        }
+        return getResults();
+    }
+
+    public boolean isTimedOut() {
+        return timed_out;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean cancel() {
+        synchronized(requests) {
+            if(done)
+                return false;
+            cancelled=true;
+            done=true;
+            requests.notifyAll();
+        }
+        requestDone();
+        return true;
+    }
+
+    public void addListener(RspListener l) {
+        if(l == null)
+            return;
+        synchronized(listeners) {
+            if(!done || !async) {
+                listeners.add(l);
+                return;
+            }
+        }
+        l.requestDone(this); // already done
+    }
+
+    /* -------------------------- End of Interface RspFuture -------------------------- */
+
+
 
     /* --------------------------------- Private Methods -------------------------------------*/
 
@@ -422,20 +627,9 @@ public class GroupRequest implements RspCollector, Command {
     /** This method runs with rsp_mutex locked (called by <code>execute()</code>). */
     private boolean doExecute(boolean use_anycasting, long timeout) throws Exception {
         long start_time=0;
-        Address suspect;
         req_id=getRequestId();
         reset(null); // clear 'responses' array
-
-        synchronized(requests) {
-            for(int i=0; i < suspects.size(); i++) {  // mark all suspects in 'received' array
-                suspect=(Address)suspects.elementAt(i);
-                Rsp rsp=(Rsp)requests.get(suspect);
-                if(rsp != null) {
-                    rsp.setSuspected(true);
-                    break; // we can break here because we ensure there are no duplicate members
-                }
-            }
-        }
+        markSuspects();
 
         try {
             if(log.isTraceEnabled()) log.trace(new StringBuffer("sending request (id=").append(req_id).append(')'));
@@ -513,10 +707,90 @@ public class GroupRequest implements RspCollector, Command {
         }
     }
 
+    /** Called with the requests lock held */
+    private boolean wantsResponse(Rsp rsp) {
+        if(rsp.wasReceived() || rsp.wasSuspected() || rejected.contains(rsp.getSender()))
+            return false;
+        return rsp_filter == null || rsp_filter.needMoreResponses();
+    }
+
+
+    /** Marks all suspects in the 'received' array */
+    private void markSuspects() {
+        Address suspect;
+        synchronized(requests) {
+            for(int i=0; i < suspects.size(); i++) {
+                suspect=(Address)suspects.elementAt(i);
+                Rsp rsp=(Rsp)requests.get(suspect);
+                if(rsp != null) {
+                    rsp.setSuspected(true);
+                    break; // we can break here because we ensure there are no duplicate members
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Marks an asynchronous request as done if all required responses have been received. Has to be called with
+     * the requests lock held; if it returns true, the caller has to call requestDone() after releasing the lock.
+     */
+    private boolean checkCompleted() {
+        if(!async || done || !responsesComplete())
+            return false;
+        done=true;
+        requests.notifyAll();
+        return true;
+    }
+
+    /** Cleans up after an asynchronous request is done and notifies the listeners. Called without locks held */
+    private void requestDone() {
+        if(timeout_task != null)
+            timeout_task.cancel();
+        if(corr != null)
+            corr.done(req_id);
+        if(log.isTraceEnabled())
+            log.trace(new StringBuffer("async request ").append(req_id).append(" done (timed out=").append(timed_out).
+                      append(", cancelled=").append(cancelled).append(')'));
+        notifyListeners();
+    }
+
+    private void timeout() {
+        synchronized(requests) {
+            if(done)
+                return;
+            adjustMembership();
+            if(!responsesComplete())
+                timed_out=true;
+            done=true;
+            requests.notifyAll();
+        }
+        requestDone();
+    }
+
+    private void notifyListeners() {
+        Object[] tmp;
+        synchronized(listeners) {
+            tmp=listeners.toArray();
+            listeners.clear();
+        }
+        for(int i=0; i < tmp.length; i++) {
+            try {
+                ((RspListener)tmp[i]).requestDone(this);
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failed notifying listener of request " + req_id, t);
+            }
+        }
+    }
+
     private boolean responsesComplete() {
         int num_received=0, num_not_received=0, num_suspected=0;
         final int num_total=requests.size();
 
+        if(rsp_filter != null && !rsp_filter.needMoreResponses())
+            return true;
+
         Rsp rsp;
         for(Iterator it=requests.values().iterator(); it.hasNext();) {
             rsp=(Rsp)it.next();
@@ -524,7 +798,7 @@ public class GroupRequest implements RspCollector, Command {
                 num_received++;
             }
             else {
-                if(rsp.wasSuspected()) {
+                if(rsp.wasSuspected() || rejected.contains(rsp.getSender())) { // rejected members are not waited for
                     num_suspected++;
                 }
                 else {
@@ -631,4 +905,28 @@ public class GroupRequest implements RspCollector, Command {
             default: return "<unknown> (" + m + ")";
         }
     }
+
+
+    /**
+     * Completes an asynchronous request whose responses did not all arrive in time. Drops its reference to the
+     * request when cancelled, as cancelled tasks stay in the timer's queue until they would have run.
+     */
+    private static class TimeoutTask extends TimerTask {
+        private volatile GroupRequest req;
+
+        TimeoutTask(GroupRequest req) {
+            this.req=req;
+        }
+
+        public void run() {
+            GroupRequest tmp=req;
+            if(tmp != null)
+                tmp.timeout();
+        }
+
+        public boolean cancel() {
+            req=null;
+            return super.cancel();
+        }
+    }
 }
@@ -0,0 +1,679 @@
+package org.jgroups.blocks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jgroups.Address;
+import org.jgroups.Channel;
+import org.jgroups.ChannelException;
+import org.jgroups.MembershipListener;
+import org.jgroups.View;
+import org.jgroups.util.Promise;
+import org.jgroups.util.Util;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Lock manager in which every lock is arbitrated by a single lock master, instead of being voted on by all members
+ * as in {@link DistributedLockManager}. Acquiring a lock is one request to the lock master and one grant back (no
+ * message at all if the local member is the lock master), releasing a lock is a single asynchronous message.<p/>
+ * The lock master is the coordinator or, if use_lock_masters is true, the member picked for the lock ID by rendezvous
+ * hashing, which spreads the locks over all members. In the latter case, lock IDs have to have the same hashCode() in
+ * all JVMs (e.g. Strings or Integers).<p/>
+ * Requests for a held lock are queued at the lock master and granted in FIFO order. Locks are reentrant: an owner
+ * which holds a lock acquires it again without contacting the lock master, and has to release it as often as it
+ * acquired it.<p/>
+ * A granted lock is a lease of lease_time ms, which is renewed by the holder's member for as long as the lock is
+ * held. If the renewals stop (e.g. because the holder hangs), the lock master revokes the lock and grants it to the
+ * next waiter. A lease_time of 0 disables leases. Locks held by, and requests from, members which left the view are
+ * dropped. When the lock master of a lock changes, the holder re-registers the lock and outstanding requests are
+ * sent to the new lock master, which doesn't grant locks it didn't master before until reacquire_time ms after the
+ * view change, to give the holders time to re-register. Conflicting holders after a merge are revoked, so a lock is
+ * never held by more than one member.
+ * @version $Id$
+ */
+public class LeaseLockManager implements LockManager, MembershipListener {
+    private final Channel channel;
+    private final RpcDispatcher disp;
+
+    /** Duration of a lock lease in ms. Leases are renewed every lease_time / 3 ms. 0 disables leases */
+    private final long lease_time;
+
+    /** Use hash-determined lock masters rather than the coordinator for all locks */
+    private final boolean use_lock_masters;
+
+    /** Time in ms after a view change during which holders can re-register the locks whose lock master changed */
+    private long reacquire_time=2000;
+
+    private volatile Vector members=new Vector();
+
+    /** Locks held by owners on this member: lock ID -> LocalLock */
+    private final Map held=new HashMap();
+
+    /** Outstanding lock requests of this member: request ID (Long) -> LockRequest */
+    private final Map requests=new HashMap();
+
+    private long next_request_id=1;
+
+    /** Locks this member is the lock master for: lock ID -> MasterLock. Guards the fields below as well */
+    private final Map locks=new HashMap();
+
+    /** The members of the previous view, to determine which locks were mastered by us before the view change */
+    private Vector prev_members=new Vector();
+
+    /** Locks not mastered by us in the previous view are not granted before this time */
+    private long reacquire_deadline=0;
+
+    private Thread timer=null;
+    private volatile boolean running=false;
+    private long last_renewal=0;
+
+    private long num_lock_requests=0, num_reentrant_locks=0, num_grants=0, num_revocations=0;
+
+    private static final Class[] lock_signature=new Class[]{Object.class, Object.class, Address.class, long.class, long.class};
+    private static final Class[] unlock_signature=new Class[]{Object.class, Address.class, long.class};
+    private static final Class[] granted_signature=new Class[]{Object.class, long.class, Address.class};
+    private static final Class[] expired_signature=new Class[]{Object.class, long.class};
+    private static final Class[] renew_signature=new Class[]{Address.class, Vector.class};
+
+    protected final Log log=LogFactory.getLog(getClass());
+
+
+    /**
+     * Creates a lock manager which uses the coordinator as lock master and leases of 10 seconds
+     * @param channel The channel, may or may not be connected. It mustn't be used by another building block
+     */
+    public LeaseLockManager(Channel channel) {
+        this(channel, 10000, false);
+    }
+
+    /**
+     * @param channel The channel, may or may not be connected. It mustn't be used by another building block
+     * @param lease_time The time in ms after which a lock is revoked unless renewed. 0 disables leases
+     * @param use_lock_masters Spreads the locks over all members by hashing the lock IDs instead of using the
+     * coordinator as lock master for all locks
+     */
+    public LeaseLockManager(Channel channel, long lease_time, boolean use_lock_masters) {
+        this.channel=channel;
+        this.lease_time=lease_time;
+        this.use_lock_masters=use_lock_masters;
+        disp=new RpcDispatcher(channel, null, this, this);
+        View view=channel.getView();
+        if(view != null)
+            viewAccepted(view);
+        start();
+    }
+
+
+    public long getLeaseTime()                           {return lease_time;}
+    public boolean getUseLockMasters()                   {return use_lock_masters;}
+    public long getReacquireTime()                       {return reacquire_time;}
+    public void setReacquireTime(long reacquire_time)    {this.reacquire_time=reacquire_time;}
+    public long getNumberOfLockRequests()                {return num_lock_requests;}
+    public long getNumberOfReentrantLocks()              {return num_reentrant_locks;}
+    public long getNumberOfGrants()                      {return num_grants;}
+    public long getNumberOfRevocations()                 {return num_revocations;}
+
+
+    public synchronized int getNumberOfHeldLocks() {
+        return held.size();
+    }
+
+    public int getNumberOfMasteredLocks() {
+        synchronized(locks) {
+            return locks.size();
+        }
+    }
+
+    /** Returns the member currently arbitrating the given lock */
+    public Address getLockMaster(Object lock_id) {
+        return getLockMaster(lock_id, members);
+    }
+
+
+    public void start() {
+        if(running)
+            return;
+        running=true;
+        timer=new Thread(new Runnable() {
+            public void run() {
+                long interval=lease_time > 0? Math.min(lease_time / 3, 500) : 500;
+                while(running) {
+                    Util.sleep(Math.max(10, interval));
+                    if(running)
+                        handleTimeouts();
+                }
+            }
+        }, "LeaseLockManager.Timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /** Stops renewing leases and the dispatcher. Locks held by this member will expire at their lock masters */
+    public void stop() {
+        running=false;
+        Thread tmp=timer;
+        timer=null;
+        if(tmp != null)
+            tmp.interrupt();
+        disp.stop();
+    }
+
+
+    /**
+     * Locks <code>lock_id</code> on behalf of <code>owner</code>
+     * @param lock_id The ID of the lock, needs to be serializable
+     * @param owner The owner of the lock, e.g. a thread name or transaction ID, needs to be serializable
+     * @param timeout Max time in ms to wait for the lock. 0 waits forever
+     * @throws LockNotGrantedException If the lock was not granted within timeout ms
+     * @throws ChannelException If there is no view yet (channel not connected)
+     */
+    public void lock(Object lock_id, Object owner, int timeout) throws LockNotGrantedException, ChannelException {
+        if(!(lock_id instanceof Serializable) || !(owner instanceof Serializable))
+            throw new ClassCastException("LeaseLockManager works only with serializable objects.");
+
+        LockRequest req;
+        synchronized(this) {
+            LocalLock lock=(LocalLock)held.get(lock_id);
+            if(lock != null && lock.owner.equals(owner)) {
+                lock.count++;
+                num_reentrant_locks++;
+                return;
+            }
+            Address master=getLockMaster(lock_id, members);
+            if(master == null)
+                throw new ChannelException("no view has been received yet, cannot determine lock master");
+            req=new LockRequest(lock_id, owner, next_request_id++, master);
+            requests.put(new Long(req.id), req);
+            num_lock_requests++;
+        }
+
+        sendLockRequest(req);
+        Object result=timeout > 0? req.promise.getResult(timeout) : req.promise.getResult();
+        if(result != null)
+            return;
+
+        Address master;
+        synchronized(this) {
+            requests.remove(new Long(req.id));
+            if(req.promise.hasResult()) // granted after the timeout elapsed, but before we removed the request
+                return;
+            master=req.master;
+        }
+        // withdraw the request, releases the lock if a grant is on its way
+        call(master, "_unlock", new Object[]{lock_id, getLocalAddress(), new Long(req.id)}, unlock_signature);
+        throw new LockNotGrantedException("Lock " + lock_id + " cannot be granted.");
+    }
+
+
+    public void unlock(Object lock_id, Object owner) throws LockNotReleasedException, ChannelException {
+        LocalLock lock;
+        synchronized(this) {
+            lock=(LocalLock)held.get(lock_id);
+            if(lock == null || !lock.owner.equals(owner))
+                throw new LockNotReleasedException("Lock " + lock_id + " is not held by " + owner);
+            if(--lock.count > 0)
+                return;
+            held.remove(lock_id);
+        }
+        call(lock.master, "_unlock", new Object[]{lock_id, getLocalAddress(), new Long(lock.id)}, unlock_signature);
+    }
+
+
+    /**
+     * Same as {@link #unlock(Object, Object)}: conflicting holders are revoked by the lock master after a merge, so
+     * a lock is never multi-locked and LockMultiLockedException is never thrown
+     */
+    public void unlock(Object lock_id, Object owner, boolean releaseMultiLocked)
+            throws LockNotReleasedException, ChannelException, LockMultiLockedException {
+        unlock(lock_id, owner);
+    }
+
+
+    public synchronized String printHeldLocks() {
+        StringBuffer sb=new StringBuffer();
+        for(Iterator it=held.values().iterator(); it.hasNext();)
+            sb.append(it.next()).append('\n');
+        return sb.toString();
+    }
+
+    public String printMasteredLocks() {
+        StringBuffer sb=new StringBuffer();
+        synchronized(locks) {
+            for(Iterator it=locks.values().iterator(); it.hasNext();)
+                sb.append(it.next()).append('\n');
+        }
+        return sb.toString();
+    }
+
+
+
+    /*------------------------ Lock master: callbacks from RpcDispatcher ------------------------*/
+
+    /** Grants the lock to the requester, or queues the request if the lock is held */
+    public void _lock(Object lock_id, Object owner, Address requester, long req_id, long lease) {
+        Holder grant=null;
+        synchronized(locks) {
+            MasterLock lock=(MasterLock)locks.get(lock_id);
+            if(lock == null) {
+                lock=new MasterLock(lock_id);
+                locks.put(lock_id, lock);
+            }
+            Holder holder=new Holder(owner, requester, req_id, lease);
+            if(lock.holder == null && lock.waiters.isEmpty() && canGrant(lock_id, System.currentTimeMillis()))
+                grant=lock.grant(holder);
+            else
+                lock.waiters.add(holder);
+        }
+        if(grant != null)
+            sendGrant(lock_id, grant);
+    }
+
+
+    /** Releases the lock if the request holds it, or withdraws the request if it is still queued */
+    public void _unlock(Object lock_id, Address requester, long req_id) {
+        Holder next=null;
+        synchronized(locks) {
+            MasterLock lock=(MasterLock)locks.get(lock_id);
+            if(lock == null)
+                return;
+            if(lock.holder != null && lock.holder.matches(requester, req_id)) {
+                lock.holder=null;
+                if(canGrant(lock_id, System.currentTimeMillis()))
+                    next=grantNext(lock);
+            }
+            else
+                lock.removeWaiter(requester, req_id);
+            if(lock.isUnused())
+                locks.remove(lock_id);
+        }
+        if(next != null)
+            sendGrant(lock_id, next);
+    }
+
+
+    /** Re-registers a lock whose lock master changed; revokes the lock if a different holder is registered already */
+    public void _reacquire(Object lock_id, Object owner, Address requester, long req_id, long lease) {
+        boolean conflict=false;
+        synchronized(locks) {
+            MasterLock lock=(MasterLock)locks.get(lock_id);
+            if(lock == null) {
+                lock=new MasterLock(lock_id);
+                locks.put(lock_id, lock);
+            }
+            if(lock.holder == null || lock.holder.matches(requester, req_id))
+                lock.grant(new Holder(owner, requester, req_id, lease));
+            else
+                conflict=true;
+        }
+        if(conflict) {
+            if(log.isWarnEnabled())
+                log.warn("lock " + lock_id + " is already held, revoking it from " + owner + " (" + requester + ")");
+            num_revocations++;
+            call(requester, "_expired", new Object[]{lock_id, new Long(req_id)}, expired_signature);
+        }
+    }
+
+
+    /** Renews the leases of the given locks held by requester */
+    public void _renew(Address requester, Vector lock_ids) {
+        long now=System.currentTimeMillis();
+        synchronized(locks) {
+            for(int i=0; i < lock_ids.size(); i++) {
+                MasterLock lock=(MasterLock)locks.get(lock_ids.get(i));
+                if(lock != null && lock.holder != null && lock.holder.requester.equals(requester))
+                    lock.renew(now);
+            }
+        }
+    }
+
+
+
+    /*------------------------ Lock requester: callbacks from RpcDispatcher ------------------------*/
+
+    /** The lock was granted by master. Releases it again if the request has been withdrawn in the meantime */
+    public void _granted(Object lock_id, long req_id, Address master) {
+        synchronized(this) {
+            LockRequest req=(LockRequest)requests.get(new Long(req_id));
+            if(req != null && req.master.equals(master)) {
+                requests.remove(new Long(req_id));
+                held.put(lock_id, new LocalLock(req.owner, req_id, master));
+                req.promise.setResult(Boolean.TRUE);
+                return;
+            }
+        }
+        call(master, "_unlock", new Object[]{lock_id, getLocalAddress(), new Long(req_id)}, unlock_signature);
+    }
+
+
+    /** The lease of the lock expired, or the lock conflicted with another holder after a merge */
+    public void _expired(Object lock_id, long req_id) {
+        synchronized(this) {
+            LocalLock lock=(LocalLock)held.get(lock_id);
+            if(lock == null || lock.id != req_id)
+                return;
+            held.remove(lock_id);
+        }
+        if(log.isWarnEnabled()) log.warn("lock " + lock_id + " was revoked by the lock master");
+    }
+
+
+
+    /*------------------------------- MembershipListener interface -------------------------------*/
+
+    public void viewAccepted(View new_view) {
+        Vector new_mbrs=new Vector(new_view.getMembers());
+        List reacquire=new ArrayList(), resend=new ArrayList(), grants=new ArrayList();
+        Vector old_mbrs;
+
+        synchronized(this) {
+            old_mbrs=members;
+            members=new_mbrs;
+            for(Iterator it=held.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry=(Map.Entry)it.next();
+                LocalLock lock=(LocalLock)entry.getValue();
+                Address master=getLockMaster(entry.getKey(), new_mbrs);
+                if(!master.equals(lock.master)) {
+                    lock.master=master;
+                    reacquire.add(entry);
+                }
+            }
+            for(Iterator it=requests.values().iterator(); it.hasNext();) {
+                LockRequest req=(LockRequest)it.next();
+                Address master=getLockMaster(req.lock_id, new_mbrs);
+                if(!master.equals(req.master)) {
+                    req.master=master;
+                    resend.add(req);
+                }
+            }
+        }
+
+        Address local_addr=getLocalAddress();
+        synchronized(locks) {
+            long now=System.currentTimeMillis();
+            prev_members=old_mbrs;
+            if(new_mbrs.size() > 1)
+                reacquire_deadline=now + reacquire_time;
+            for(Iterator it=locks.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry=(Map.Entry)it.next();
+                MasterLock lock=(MasterLock)entry.getValue();
+                if(local_addr != null && !local_addr.equals(getLockMaster(entry.getKey(), new_mbrs))) {
+                    it.remove(); // holder and waiters will contact the new lock master
+                    continue;
+                }
+                lock.removeWaitersNotIn(new_mbrs);
+                if(lock.holder != null && !new_mbrs.contains(lock.holder.requester)) {
+                    if(log.isTraceEnabled())
+                        log.trace("removing lock " + entry.getKey() + " held by " + lock.holder.requester + " (left)");
+                    lock.holder=null;
+                    Holder next=grantNext(lock);
+                    if(next != null)
+                        grants.add(new Object[]{entry.getKey(), next});
+                }
+                if(lock.isUnused())
+                    it.remove();
+            }
+        }
+        for(int i=0; i < grants.size(); i++) {
+            Object[] tmp=(Object[])grants.get(i);
+            sendGrant(tmp[0], (Holder)tmp[1]);
+        }
+        for(int i=0; i < reacquire.size(); i++) {
+            Map.Entry entry=(Map.Entry)reacquire.get(i);
+            LocalLock lock=(LocalLock)entry.getValue();
+            call(lock.master, "_reacquire",
+                 new Object[]{entry.getKey(), lock.owner, local_addr, new Long(lock.id), new Long(lease_time)}, lock_signature);
+        }
+        for(int i=0; i < resend.size(); i++)
+            sendLockRequest((LockRequest)resend.get(i));
+    }
+
+    public void suspect(Address suspected_mbr) {
+    }
+
+    public void block() {
+    }
+
+
+
+    /*------------------------------------- Private methods -------------------------------------*/
+
+    private Address getLocalAddress() {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Picks the coordinator, or the member with the highest hash of lock ID and address (rendezvous hashing), so that
+     * only the locks of members which left, or a share of the locks for a new member, move on a view change
+     */
+    private Address getLockMaster(Object lock_id, Vector mbrs) {
+        if(mbrs == null || mbrs.isEmpty())
+            return null;
+        if(!use_lock_masters)
+            return (Address)mbrs.firstElement();
+        Address master=null;
+        int max=0, hash=lock_id.hashCode();
+        for(int i=0; i < mbrs.size(); i++) {
+            Address mbr=(Address)mbrs.get(i);
+            int weight=DistributedHashtable.hash(hash ^ DistributedHashtable.hash(mbr.hashCode()));
+            if(master == null || weight > max) {
+                master=mbr;
+                max=weight;
+            }
+        }
+        return master;
+    }
+
+    /** Free locks may be granted unless they were mastered by a different member before the last view change and
+     * the holders may still re-register them. Needs to be called with the lock on locks held */
+    private boolean canGrant(Object lock_id, long now) {
+        if(now >= reacquire_deadline)
+            return true;
+        Address local_addr=getLocalAddress();
+        return local_addr != null && local_addr.equals(getLockMaster(lock_id, prev_members));
+    }
+
+    /** Grants the lock to the first waiter which is still a member. Needs to be called with the lock on locks held */
+    private Holder grantNext(MasterLock lock) {
+        Vector mbrs=members;
+        while(!lock.waiters.isEmpty()) {
+            Holder next=(Holder)lock.waiters.removeFirst();
+            if(mbrs.contains(next.requester))
+                return lock.grant(next);
+        }
+        return null;
+    }
+
+    private void sendLockRequest(LockRequest req) {
+        call(req.master, "_lock",
+             new Object[]{req.lock_id, req.owner, getLocalAddress(), new Long(req.id), new Long(lease_time)}, lock_signature);
+    }
+
+    private void sendGrant(Object lock_id, Holder holder) {
+        num_grants++;
+        call(holder.requester, "_granted", new Object[]{lock_id, new Long(holder.req_id), getLocalAddress()},
+             granted_signature);
+    }
+
+    /** Invokes the method directly if dest is the local member, or else sends it asynchronously */
+    private void call(Address dest, String method_name, Object[] args, Class[] types) {
+        MethodCall method_call=new MethodCall(method_name, args, types);
+        try {
+            if(dest.equals(getLocalAddress()))
+                method_call.invoke(this);
+            else
+                disp.callRemoteMethod(dest, method_call, GroupRequest.GET_NONE, 0);
+        }
+        catch(Throwable t) {
+            if(log.isErrorEnabled()) log.error("failed invoking " + method_name + "() on " + dest, t);
+        }
+    }
+
+
+    /** Renews the leases of the locks held by this member, revokes expired leases and grants free locks with waiters
+     * once the reacquire period after a view change is over */
+    private void handleTimeouts() {
+        long now=System.currentTimeMillis();
+        Address local_addr=getLocalAddress();
+
+        if(lease_time > 0 && now - last_renewal >= lease_time / 3 && local_addr != null) {
+            last_renewal=now;
+            Map renewals=new HashMap(); // master -> Vector of lock IDs
+            synchronized(this) {
+                for(Iterator it=held.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry entry=(Map.Entry)it.next();
+                    LocalLock lock=(LocalLock)entry.getValue();
+                    Vector ids=(Vector)renewals.get(lock.master);
+                    if(ids == null) {
+                        ids=new Vector();
+                        renewals.put(lock.master, ids);
+                    }
+                    ids.add(entry.getKey());
+                }
+            }
+            for(Iterator it=renewals.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry=(Map.Entry)it.next();
+                call((Address)entry.getKey(), "_renew", new Object[]{local_addr, entry.getValue()}, renew_signature);
+            }
+        }
+
+        List revoked=new ArrayList(), grants=new ArrayList();
+        synchronized(locks) {
+            for(Iterator it=locks.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry=(Map.Entry)it.next();
+                MasterLock lock=(MasterLock)entry.getValue();
+                if(lock.holder != null && lock.expiry <= now) {
+                    revoked.add(new Object[]{entry.getKey(), lock.holder});
+                    lock.holder=null;
+                }
+                if(lock.holder == null && canGrant(entry.getKey(), now)) {
+                    Holder next=grantNext(lock);
+                    if(next != null)
+                        grants.add(new Object[]{entry.getKey(), next});
+                }
+                if(lock.isUnused())
+                    it.remove();
+            }
+        }
+        for(int i=0; i < revoked.size(); i++) {
+            Object[] tmp=(Object[])revoked.get(i);
+            Holder holder=(Holder)tmp[1];
+            if(log.isWarnEnabled())
+                log.warn("lease of lock " + tmp[0] + " held by " + holder.owner + " (" + holder.requester + ") expired");
+            num_revocations++;
+            call(holder.requester, "_expired", new Object[]{tmp[0], new Long(holder.req_id)}, expired_signature);
+        }
+        for(int i=0; i < grants.size(); i++) {
+            Object[] tmp=(Object[])grants.get(i);
+            sendGrant(tmp[0], (Holder)tmp[1]);
+        }
+    }
+
+
+
+    /** A lock held by an owner on this member */
+    private static class LocalLock {
+        final Object  owner;
+        final long    id;
+        Address       master;
+        int           count=1;
+
+        LocalLock(Object owner, long id, Address master) {
+            this.owner=owner;
+            this.id=id;
+            this.master=master;
+        }
+
+        public String toString() {
+            return "owner=" + owner + ", id=" + id + ", master=" + master + ", count=" + count;
+        }
+    }
+
+
+    /** An outstanding lock request of this member */
+    private static class LockRequest {
+        final Object  lock_id;
+        final Object  owner;
+        final long    id;
+        Address       master;
+        final Promise promise=new Promise();
+
+        LockRequest(Object lock_id, Object owner, long id, Address master) {
+            this.lock_id=lock_id;
+            this.owner=owner;
+            this.id=id;
+            this.master=master;
+        }
+    }
+
+
+    /** The holder of a lock, or a waiter for it, at the lock master */
+    private static class Holder {
+        final Object  owner;
+        final Address requester;
+        final long    req_id;
+        final long    lease;
+
+        Holder(Object owner, Address requester, long req_id, long lease) {
+            this.owner=owner;
+            this.requester=requester;
+            this.req_id=req_id;
+            this.lease=lease;
+        }
+
+        boolean matches(Address requester, long req_id) {
+            return this.req_id == req_id && this.requester.equals(requester);
+        }
+
+        public String toString() {
+            return owner + " (" + requester + ")";
+        }
+    }
+
+
+    /** A lock arbitrated by this member */
+    private static class MasterLock {
+        final Object     lock_id;
+        Holder           holder=null;
+        long             expiry=Long.MAX_VALUE;
+        final LinkedList waiters=new LinkedList();
+
+        MasterLock(Object lock_id) {
+            this.lock_id=lock_id;
+        }
+
+        Holder grant(Holder h) {
+            holder=h;
+            renew(System.currentTimeMillis());
+            return h;
+        }
+
+        void renew(long now) {
+            expiry=holder.lease > 0? now + holder.lease : Long.MAX_VALUE;
+        }
+
+        boolean isUnused() {
+            return holder == null && waiters.isEmpty();
+        }
+
+        void removeWaiter(Address requester, long req_id) {
+            for(Iterator it=waiters.iterator(); it.hasNext();) {
+                if(((Holder)it.next()).matches(requester, req_id)) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+
+        void removeWaitersNotIn(Vector mbrs) {
+            for(Iterator it=waiters.iterator(); it.hasNext();) {
+                if(!mbrs.contains(((Holder)it.next()).requester))
+                    it.remove();
+            }
+        }
+
+        public String toString() {
+            return lock_id + ": holder=" + holder + ", waiters=" + waiters;
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.util.Vector;
 import java.util.Collection;
 import java.util.TreeSet;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
 
 
 /**
@@ -62,6 +64,18 @@ public class MessageDispatcher implements RequestHandler {
      */
     protected boolean concurrent_processing=false;
 
+    /**
+     * Max number of outstanding asynchronous requests per destination (see castMessageWithFuture()). When reached,
+     * new requests to that destination block until earlier ones are done. 0 means unbounded
+     */
+    protected int max_outstanding_per_dest=0;
+
+    /** Number of outstanding asynchronous requests per destination (keys=Address, values=int[1]) */
+    protected final Map outstanding=new HashMap();
+
+    /** Times out asynchronous requests, created on the first asynchronous request */
+    protected TimeScheduler timer=null;
+
 
     public MessageDispatcher(Channel channel, MessageListener l, MembershipListener l2) {
         this.channel=channel;
@@ -265,6 +279,25 @@ public class MessageDispatcher implements RequestHandler {
             corr.setConcurrentProcessing(flag);
     }
 
+    public int getMaxOutstandingPerDest() {
+        return max_outstanding_per_dest;
+    }
+
+    public void setMaxOutstandingPerDest(int max) {
+        synchronized(outstanding) {
+            max_outstanding_per_dest=max;
+            outstanding.notifyAll();
+        }
+    }
+
+    /** Returns the number of outstanding asynchronous requests to dest */
+    public int getNumOutstanding(Address dest) {
+        synchronized(outstanding) {
+            int[] count=(int[])outstanding.get(dest);
+            return count != null? count[0] : 0;
+        }
+    }
+
 
     public final void start() {
         if(corr == null) {
@@ -294,6 +327,12 @@ public class MessageDispatcher implements RequestHandler {
         if(corr != null) {
             corr.stop();
         }
+        synchronized(this) {
+            if(timer != null) {
+                timer.cancel();
+                timer=null;
+            }
+        }
 
         // fixes leaks of MembershipListeners (http://jira.jboss.com/jira/browse/JGRP-160)
         if(adapter != null && handler != null) {
@@ -381,7 +420,103 @@ public class MessageDispatcher implements RequestHandler {
      * @return RspList A list of responses. Each response is an <code>Object</code> and associated to its sender.
      */
     public RspList castMessage(final Vector dests, Message msg, int mode, long timeout, boolean use_anycasting) {
+        return castMessage(dests, msg, mode, timeout, use_anycasting, null);
+    }
+
+
+    /**
+     * Same as {@link #castMessage(java.util.Vector,Message,int,long,boolean)}, but the responses are passed through
+     * a filter, which can reject responses or end the call before <code>mode</code> responses have been received
+     * (e.g. after the first non-null response).
+     * @param filter The response filter, may be null. Must not be shared between calls
+     */
+    public RspList castMessage(final Vector dests, Message msg, int mode, long timeout, boolean use_anycasting,
+                               RspFilter filter) {
         GroupRequest _req=null;
+        Vector real_dests=getRealDests(dests);
+        if(real_dests == null || real_dests.size() == 0) {
+            if(log.isTraceEnabled())
+                log.trace("destination list is empty, won't send message");
+            return new RspList(); // return empty response list
+        }
+
+        _req=new GroupRequest(msg, corr, real_dests, mode, timeout, 0);
+        _req.setCaller(this.local_addr);
+        _req.setResponseFilter(filter);
+        try {
+            _req.execute(use_anycasting);
+        }
+        catch(Exception ex) {
+            throw new RuntimeException("failed executing request " + _req, ex);
+        }
+
+        return _req.getResults();
+    }
+
+
+
+    public RspFuture castMessageWithFuture(final Vector dests, Message msg, int mode, long timeout) {
+        return castMessageWithFuture(dests, msg, mode, timeout, false, null, null);
+    }
+
+
+    /**
+     * Asynchronous version of {@link #castMessage(java.util.Vector,Message,int,long,boolean)}: sends the message and
+     * returns a future, which is done when <code>mode</code> responses have been received (e.g. the first response,
+     * a majority or all responses), or when the timeout has elapsed. The request is kept in the RequestCorrelator's
+     * table of pending requests; no thread waits for it, so a few threads can have many requests outstanding.<p/>
+     * If max_outstanding_per_dest is set, this method blocks until every destination has fewer than
+     * max_outstanding_per_dest outstanding requests. It must therefore not be called from a {@link RspListener}.
+     * @param timeout If 0: the request is only done when all <code>mode</code> responses have been received (or it is
+     *                cancelled). Otherwise, it is done after at most timeout ms
+     * @param filter A response filter (see {@link RspFilter}). May be null
+     * @param l A listener notified when the request is done. May be null
+     * @return A future for the responses. If there are no destinations, the future is done and its RspList is empty
+     */
+    public RspFuture castMessageWithFuture(final Vector dests, Message msg, int mode, long timeout,
+                                           boolean use_anycasting, RspFilter filter, RspListener l) {
+        Vector real_dests=getRealDests(dests);
+        if(real_dests == null)
+            real_dests=new Vector();
+
+        final GroupRequest _req=new GroupRequest(msg, corr, real_dests, mode, timeout, 0);
+        _req.setCaller(this.local_addr);
+        _req.setResponseFilter(filter);
+
+        final Vector slots=max_outstanding_per_dest > 0 && mode != GroupRequest.GET_NONE? real_dests : null;
+        if(slots != null) {
+            try {
+                acquireSlots(slots);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while waiting to send request to " + real_dests, e);
+            }
+            _req.addListener(new RspListener() {
+                public void requestDone(RspFuture future) {
+                    releaseSlots(slots);
+                }
+            });
+        }
+        _req.addListener(l);
+
+        try {
+            _req.executeAsync(use_anycasting, getTimer());
+        }
+        catch(Exception ex) {
+            if(slots != null && !_req.isDone()) // else the listener has released them
+                releaseSlots(slots);
+            throw new RuntimeException("failed executing request " + _req, ex);
+        }
+        return _req;
+    }
+
+
+    /**
+     * Returns a copy of dests (or of the current membership if dests is null), minus the local address if
+     * local delivery is off.
+     */
+    protected Vector getRealDests(final Vector dests) {
         Vector real_dests;
         Channel tmp;
 
@@ -415,30 +550,12 @@ public class MessageDispatcher implements RequestHandler {
             }
         }
 
-        // don't even send the message if the destination list is empty
         if(log.isTraceEnabled())
             log.trace("real_dests=" + real_dests);
-
-        if(real_dests == null || real_dests.size() == 0) {
-            if(log.isTraceEnabled())
-                log.trace("destination list is empty, won't send message");
-            return new RspList(); // return empty response list
-        }
-
-        _req=new GroupRequest(msg, corr, real_dests, mode, timeout, 0);
-        _req.setCaller(this.local_addr);
-        try {
-            _req.execute(use_anycasting);
-        }
-        catch(Exception ex) {
-            throw new RuntimeException("failed executing request " + _req, ex);
-        }
-
-        return _req.getResults();
+        return real_dests;
     }
 
 
-
     /**
      * Multicast a message request to all members in <code>dests</code> and receive responses via the RspCollector
      * interface. When done receiving the required number of responses, the caller has to call done(req_id) on the
@@ -518,6 +635,59 @@ public class MessageDispatcher implements RequestHandler {
     }
 
 
+    protected synchronized TimeScheduler getTimer() {
+        if(timer == null)
+            timer=new TimeScheduler(true);
+        return timer;
+    }
+
+
+    /**
+     * Blocks until all destinations have fewer than max_outstanding_per_dest outstanding requests, then increments
+     * their counts. The counts of all destinations are incremented together, so callers waiting for overlapping
+     * sets of destinations cannot deadlock.
+     * @throws InterruptedException Thrown if interrupted while waiting; no count has been incremented then
+     */
+    private void acquireSlots(Vector dests) throws InterruptedException {
+        synchronized(outstanding) {
+            while(!slotsAvailable(dests))
+                outstanding.wait();
+            for(int i=0; i < dests.size(); i++) {
+                Object dest=dests.elementAt(i);
+                int[] count=(int[])outstanding.get(dest);
+                if(count == null) {
+                    count=new int[1];
+                    outstanding.put(dest, count);
+                }
+                count[0]++;
+            }
+        }
+    }
+
+    private boolean slotsAvailable(Vector dests) {
+        if(max_outstanding_per_dest <= 0)
+            return true;
+        for(int i=0; i < dests.size(); i++) {
+            int[] count=(int[])outstanding.get(dests.elementAt(i));
+            if(count != null && count[0] >= max_outstanding_per_dest)
+                return false;
+        }
+        return true;
+    }
+
+    private void releaseSlots(Vector dests) {
+        synchronized(outstanding) {
+            for(int i=0; i < dests.size(); i++) {
+                Object dest=dests.elementAt(i);
+                int[] count=(int[])outstanding.get(dest);
+                if(count != null && --count[0] <= 0)
+                    outstanding.remove(dest);
+            }
+            outstanding.notifyAll();
+        }
+    }
+
+
     /**
      * Sends a message to a single member (destination = msg.dest) and returns the response. The message's destination
      * must be non-zero !
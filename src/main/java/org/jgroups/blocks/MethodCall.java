@@ -1,13 +1,16 @@
 package org.jgroups.blocks;
 
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jgroups.Address;
+import org.jgroups.util.ContextObjectInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
 
-import java.io.Externalizable;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
+import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
@@ -16,11 +19,17 @@ import java.util.*;
 /**
  * A method call is the JGroups representation of a remote method.
  * It includes the name of the method (case sensitive) and a list of arguments.
- * A method call is serializable and can be passed over the wire.
+ * A method call is serializable and can be passed over the wire.<p/>
+ * When marshalled with {@link Util#objectToByteBuffer(Object)} (the default in {@link RpcDispatcher}), a method call
+ * is written as {@link Streamable}: arguments of primitive wrapper types, Strings, byte arrays and Streamables are
+ * written in binary form, types are written as a single byte for common classes, and only other arguments go
+ * through Java serialization. Methods resolved by name are cached per target class, so reflection is only used on
+ * the first invocation of a method. Use {@link #MethodCall(short, Object[])} together with a {@link MethodRegistry}
+ * to ship only the ID of a method.
  * @author Bela Ban
  * @version $Revision: 1.24 $
  */
-public class MethodCall implements Externalizable {
+public class MethodCall implements Externalizable, Streamable {
 
     private static final long serialVersionUID=7873471327078957662L;
 
@@ -65,6 +74,22 @@ public class MethodCall implements Externalizable {
     /** Use an ID to map to a method */
     protected static final short ID=5;
 
+    /** Resolved methods: MethodKey -> Method */
+    private static final Map methods=new ConcurrentReaderHashMap();
+
+    /** Argument types (Streamable encoding) */
+    private static final byte ARG_NULL=0, ARG_BOOLEAN=1, ARG_BYTE=2, ARG_CHAR=3, ARG_SHORT=4, ARG_INT=5, ARG_LONG=6,
+            ARG_FLOAT=7, ARG_DOUBLE=8, ARG_STRING=9, ARG_BYTES=10, ARG_STREAMABLE=11, ARG_SERIALIZABLE=12;
+
+    /** Classes written as their index in this array rather than their name (Streamable encoding) */
+    private static final Class[] CLASSES={boolean.class, byte.class, char.class, short.class, int.class, long.class,
+            float.class, double.class, String.class, Object.class, byte[].class, Object[].class, Address.class,
+            Serializable.class, List.class, Vector.class, Map.class, Collection.class, Boolean.class, Integer.class,
+            Long.class};
+
+    /** Longest string which is guaranteed to fit into writeUTF() */
+    private static final int MAX_UTF_LENGTH=0xFFFF / 3;
+
 
     /**
      * Creates an empty method call, this is always invalid, until
@@ -300,31 +325,10 @@ public class MethodCall implements Externalizable {
         }
         cl=target.getClass();
         try {
-            switch(mode) {
-            case OLD:
-                meth=findMethod(cl);
-                break;
-            case METHOD:
-                if(this.method != null)
-                    meth=this.method;
-                break;
-            case TYPES:
-                //meth=cl.getDeclaredMethod(method_name, types);
-                meth = getMethod(cl, method_name, types);
-                break;
-            case SIGNATURE:
-                Class[] mytypes=null;
-                if(signature != null)
-                    mytypes=getTypesFromString(cl, signature);
-                //meth=cl.getDeclaredMethod(method_name, mytypes);
-                meth = getMethod(cl, method_name, mytypes);
-                break;
-            case ID:
-                break;
-            default:
-                if(log.isErrorEnabled()) log.error("mode " + mode + " is invalid");
-                break;
-            }
+            if(mode == METHOD)
+                meth=this.method;
+            else
+                meth=resolveMethod(cl);
 
             if(meth != null) {
                 retval=meth.invoke(target, args);
@@ -366,6 +370,43 @@ public class MethodCall implements Externalizable {
     }
 
 
+    /** Looks up the method in the cache of resolved methods, and resolves and caches it on a miss */
+    private Method resolveMethod(Class cl) throws Exception {
+        Object params;
+        switch(mode) {
+            case OLD:       params=null; break;
+            case TYPES:     params=types; break;
+            case SIGNATURE: params=signature; break;
+            case ID:        return null; // resolved by RpcDispatcher's MethodLookup
+            default:
+                if(log.isErrorEnabled()) log.error("mode " + mode + " is invalid");
+                return null;
+        }
+        MethodKey key=new MethodKey(cl, method_name, mode, params, args != null? args.length : 0);
+        Method meth=(Method)methods.get(key);
+        if(meth != null)
+            return meth;
+
+        switch(mode) {
+            case OLD:
+                meth=findMethod(cl);
+                break;
+            case TYPES:
+                meth=getMethod(cl, method_name, types);
+                break;
+            case SIGNATURE:
+                Class[] mytypes=null;
+                if(signature != null)
+                    mytypes=getTypesFromString(cl, signature);
+                meth=getMethod(cl, method_name, mytypes);
+                break;
+        }
+        if(meth != null)
+            methods.put(key, meth);
+        return meth;
+    }
+
+
     Class[] getTypesFromString(Class cl, String[] signature) throws Exception {
         String  name;
         Class   parameter;
@@ -520,7 +561,283 @@ public class MethodCall implements Externalizable {
     }
 
 
-}
+    public void writeTo(DataOutputStream out) throws IOException {
+        if(method_name != null) {
+            out.writeBoolean(true);
+            out.writeUTF(method_name);
+        }
+        else {
+            out.writeBoolean(false);
+            out.writeShort(method_id);
+        }
+        out.writeShort(mode);
+
+        if(args == null)
+            out.writeShort(-1);
+        else {
+            out.writeShort(args.length);
+            for(int i=0; i < args.length; i++)
+                writeArg(args[i], out);
+        }
+
+        switch(mode) {
+            case METHOD:
+                writeClass(method.getDeclaringClass(), out);
+                writeClasses(method.getParameterTypes(), out);
+                break;
+            case TYPES:
+                writeClasses(types, out);
+                break;
+            case SIGNATURE:
+                if(signature == null)
+                    out.writeShort(-1);
+                else {
+                    out.writeShort(signature.length);
+                    for(int i=0; i < signature.length; i++)
+                        out.writeUTF(signature[i]);
+                }
+                break;
+        }
+
+        if(payload != null) {
+            out.writeBoolean(true);
+            writeArg(payload, out);
+        }
+        else
+            out.writeBoolean(false);
+    }
+
+
+    public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+        if(in.readBoolean())
+            method_name=in.readUTF();
+        else
+            method_id=in.readShort();
+        mode=in.readShort();
+
+        short len=in.readShort();
+        if(len >= 0) {
+            args=new Object[len];
+            for(int i=0; i < len; i++)
+                args[i]=readArg(in);
+        }
+
+        switch(mode) {
+            case METHOD:
+                Class declaring_class=readClass(in);
+                Class[] parameter_types=readClasses(in);
+                MethodKey key=new MethodKey(declaring_class, method_name, METHOD, parameter_types, parameter_types.length);
+                method=(Method)methods.get(key);
+                if(method == null) {
+                    try {
+                        method=declaring_class.getDeclaredMethod(method_name, parameter_types);
+                    }
+                    catch(NoSuchMethodException e) {
+                        throw new IOException(e.toString());
+                    }
+                    methods.put(key, method);
+                }
+                break;
+            case TYPES:
+                types=readClasses(in);
+                break;
+            case SIGNATURE:
+                len=in.readShort();
+                if(len >= 0) {
+                    signature=new String[len];
+                    for(int i=0; i < len; i++)
+                        signature[i]=in.readUTF();
+                }
+                break;
+        }
 
+        if(in.readBoolean())
+            payload=(Map)readArg(in);
+    }
 
 
+    private static void writeArg(Object arg, DataOutputStream out) throws IOException {
+        if(arg == null) {
+            out.writeByte(ARG_NULL);
+            return;
+        }
+        Class cl=arg.getClass();
+        if(cl == String.class && ((String)arg).length() <= MAX_UTF_LENGTH) {
+            out.writeByte(ARG_STRING);
+            out.writeUTF((String)arg);
+        }
+        else if(cl == Integer.class) {
+            out.writeByte(ARG_INT);
+            out.writeInt(((Integer)arg).intValue());
+        }
+        else if(cl == Long.class) {
+            out.writeByte(ARG_LONG);
+            out.writeLong(((Long)arg).longValue());
+        }
+        else if(cl == Boolean.class) {
+            out.writeByte(ARG_BOOLEAN);
+            out.writeBoolean(((Boolean)arg).booleanValue());
+        }
+        else if(cl == byte[].class) {
+            byte[] buf=(byte[])arg;
+            out.writeByte(ARG_BYTES);
+            out.writeInt(buf.length);
+            out.write(buf, 0, buf.length);
+        }
+        else if(cl == Short.class) {
+            out.writeByte(ARG_SHORT);
+            out.writeShort(((Short)arg).shortValue());
+        }
+        else if(cl == Byte.class) {
+            out.writeByte(ARG_BYTE);
+            out.writeByte(((Byte)arg).byteValue());
+        }
+        else if(cl == Character.class) {
+            out.writeByte(ARG_CHAR);
+            out.writeChar(((Character)arg).charValue());
+        }
+        else if(cl == Float.class) {
+            out.writeByte(ARG_FLOAT);
+            out.writeFloat(((Float)arg).floatValue());
+        }
+        else if(cl == Double.class) {
+            out.writeByte(ARG_DOUBLE);
+            out.writeDouble(((Double)arg).doubleValue());
+        }
+        else if(arg instanceof Streamable) {
+            out.writeByte(ARG_STREAMABLE);
+            Util.writeGenericStreamable((Streamable)arg, out);
+        }
+        else {
+            // Util.objectToByteBuffer() cannot be used here: we're called from it, and it uses a shared buffer
+            ExposedByteArrayOutputStream tmp=new ExposedByteArrayOutputStream(128);
+            ObjectOutputStream oos=new ObjectOutputStream(tmp);
+            oos.writeObject(arg);
+            oos.close();
+            out.writeByte(ARG_SERIALIZABLE);
+            out.writeInt(tmp.size());
+            out.write(tmp.getRawBuffer(), 0, tmp.size());
+        }
+    }
+
+
+    private static Object readArg(DataInputStream in) throws IOException {
+        byte type=in.readByte();
+        switch(type) {
+            case ARG_NULL:      return null;
+            case ARG_BOOLEAN:   return Boolean.valueOf(in.readBoolean());
+            case ARG_BYTE:      return new Byte(in.readByte());
+            case ARG_CHAR:      return new Character(in.readChar());
+            case ARG_SHORT:     return new Short(in.readShort());
+            case ARG_INT:       return new Integer(in.readInt());
+            case ARG_LONG:      return new Long(in.readLong());
+            case ARG_FLOAT:     return new Float(in.readFloat());
+            case ARG_DOUBLE:    return new Double(in.readDouble());
+            case ARG_STRING:    return in.readUTF();
+            case ARG_BYTES:
+                byte[] buf=new byte[in.readInt()];
+                in.readFully(buf);
+                return buf;
+            case ARG_STREAMABLE:
+                return Util.readGenericStreamable(in);
+            case ARG_SERIALIZABLE:
+                buf=new byte[in.readInt()];
+                in.readFully(buf);
+                try {
+                    return new ContextObjectInputStream(new ByteArrayInputStream(buf)).readObject();
+                }
+                catch(ClassNotFoundException e) {
+                    throw new IOException(e.toString());
+                }
+            default:
+                throw new IOException("argument type " + type + " is invalid");
+        }
+    }
+
+
+    private static void writeClasses(Class[] classes, DataOutputStream out) throws IOException {
+        if(classes == null) {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(classes.length);
+        for(int i=0; i < classes.length; i++)
+            writeClass(classes[i], out);
+    }
+
+    private static Class[] readClasses(DataInputStream in) throws IOException {
+        short len=in.readShort();
+        if(len < 0)
+            return null;
+        Class[] retval=new Class[len];
+        for(int i=0; i < len; i++)
+            retval[i]=readClass(in);
+        return retval;
+    }
+
+    private static void writeClass(Class cl, DataOutputStream out) throws IOException {
+        for(int i=0; i < CLASSES.length; i++) {
+            if(CLASSES[i] == cl) {
+                out.writeByte(i);
+                return;
+            }
+        }
+        out.writeByte(-1);
+        out.writeUTF(cl.getName());
+    }
+
+    private static Class readClass(DataInputStream in) throws IOException {
+        byte index=in.readByte();
+        if(index >= 0)
+            return CLASSES[index];
+        String name=in.readUTF();
+        try {
+            ClassLoader loader=Thread.currentThread().getContextClassLoader();
+            return Class.forName(name, false, loader != null? loader : MethodCall.class.getClassLoader());
+        }
+        catch(ClassNotFoundException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+
+    /** Key of a resolved method: target class, method name, mode, and types, signature or number of arguments */
+    private static final class MethodKey {
+        private final Class  target;
+        private final String name;
+        private final short  mode;
+        private final Object params;
+        private final int    num_args;
+        private final int    hash;
+
+        MethodKey(Class target, String name, short mode, Object params, int num_args) {
+            this.target=target;
+            this.name=name;
+            this.mode=mode;
+            this.params=params;
+            this.num_args=num_args;
+            this.hash=target.hashCode() * 31 + (name != null? name.hashCode() : 0) + mode + num_args;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof MethodKey))
+                return false;
+            MethodKey other=(MethodKey)obj;
+            return target == other.target && mode == other.mode && num_args == other.num_args &&
+                    (name == null? other.name == null : name.equals(other.name)) && paramsEqual(params, other.params);
+        }
+
+        private static boolean paramsEqual(Object p1, Object p2) {
+            if(p1 == p2)
+                return true;
+            if(p1 == null || p2 == null)
+                return false;
+            return Arrays.equals((Object[])p1, (Object[])p2);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.jgroups.blocks;
+
+import java.lang.reflect.Method;
+
+/**
+ * Maps method IDs to the public methods of a target class. Callers create method calls with
+ * {@link MethodCall#MethodCall(short, Object[])}, so that only the ID of a method is sent instead of its name and
+ * parameter types, and the receiver sets the registry with {@link RpcDispatcher#setMethodLookup(MethodLookup)}.
+ * Lookups are an array access. All members have to register the same IDs.
+ * @version $Id$
+ */
+public class MethodRegistry implements MethodLookup {
+    private final Class target;
+
+    /** Indexed by method ID, replaced on registration (copy-on-write) */
+    private volatile Method[] methods=new Method[0];
+
+
+    /**
+     * @param target The class of the server object on which the methods will be invoked
+     */
+    public MethodRegistry(Class target) {
+        this.target=target;
+    }
+
+    public Class getTarget() {
+        return target;
+    }
+
+
+    /**
+     * Registers the public method with the given name and parameter types under id
+     * @throws NoSuchMethodException If the target class doesn't have a public method with this name and parameter types
+     * @throws IllegalArgumentException If the ID is negative, or already registered for a different method
+     */
+    public void register(short id, String method_name, Class[] types) throws NoSuchMethodException {
+        register(id, target.getMethod(method_name, types));
+    }
+
+    public synchronized void register(short id, Method method) {
+        if(id < 0)
+            throw new IllegalArgumentException("method ID must not be negative (" + id + ")");
+        Method[] tmp=methods;
+        if(id < tmp.length && tmp[id] != null) {
+            if(tmp[id].equals(method))
+                return;
+            throw new IllegalArgumentException("ID " + id + " is already registered for " + tmp[id]);
+        }
+        Method[] copy=new Method[Math.max(tmp.length, id + 1)];
+        System.arraycopy(tmp, 0, copy, 0, tmp.length);
+        copy[id]=method;
+        methods=copy;
+    }
+
+
+    public Method findMethod(short id) {
+        Method[] tmp=methods;
+        return id >= 0 && id < tmp.length? tmp[id] : null;
+    }
+
+
+    public String toString() {
+        StringBuffer sb=new StringBuffer(target.getName()).append(':');
+        Method[] tmp=methods;
+        for(int i=0; i < tmp.length; i++) {
+            if(tmp[i] != null)
+                sb.append("\n").append(i).append(": ").append(tmp[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -3,16 +3,22 @@
 package org.jgroups.blocks;
 
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.ReadWriteLock;
+import EDU.oswego.cs.dl.util.concurrent.Sync;
+import EDU.oswego.cs.dl.util.concurrent.WriterPreferenceReadWriteLock;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.*;
 import org.jgroups.jmx.JmxConfigurator;
+import org.jgroups.util.ExposedByteArrayOutputStream;
 import org.jgroups.util.Queue;
 import org.jgroups.util.QueueClosedException;
+import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import javax.management.MBeanServer;
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 
 
@@ -20,14 +26,32 @@ import java.util.*;
 
 /**
  * A tree-like structure that is replicated across several members. Updates will be multicast to all group
- * members reliably and in the same order.
+ * members reliably and in the same order.<p/>
+ * Modifications are multicast as batches: a batch is sent when it contains max_batch_size modifications, when
+ * batch_window ms have elapsed since its first modification, or when an explicit batch is ended
+ * ({@link #startBatch()}, {@link #endBatch()}). With batch_window=0 (default) and no explicit batch, every
+ * modification is sent right away. Successive puts to the same node within a batch are merged, and keys whose
+ * values don't change the (settled) local tree are not shipped at all. Note that the maps passed to put() are copied
+ * (shallow) when added to a batch, so values must not be modified until the batch has been sent.<p/>
+ * Reads don't acquire locks: children are kept in concurrent maps, the data map of a node is replaced (copy-on-write)
+ * rather than modified, and nodes are looked up by FQN in an index instead of walking the tree. Structural changes
+ * are synchronized on the parent node, data changes on the node itself. getState() only blocks updates while the
+ * structure of the tree is copied; the copy shares the (immutable) data maps and is serialized after updates resume.
  * @author Bela Ban Jan 17 2002
  * @author <a href="mailto:aolias@yahoo.com">Alfonso Olias-Sanz</a>
  */
 public class ReplicatedTree implements Runnable, MessageListener, MembershipListener {
     public static final String SEPARATOR="/";
     final static int INDENT=4;
-    Node root=new Node(SEPARATOR, SEPARATOR, null, null);
+    volatile Node root=new Node(SEPARATOR, SEPARATOR, null, null);
+
+    /** Map<String,Node> of FQNs and nodes. A node is listed under its FQN as it was created (lookups with a
+     * different spelling of the same FQN walk the tree) */
+    final Map index=new ConcurrentReaderHashMap();
+
+    /** Updates hold the read lock (they exclude each other on the nodes they modify), getState() holds the write
+     * lock while it copies the tree */
+    final ReadWriteLock update_lock=new WriterPreferenceReadWriteLock();
     final Vector listeners=new Vector();
     final Queue request_queue=new Queue();
     Thread request_handler=null;
@@ -64,6 +88,34 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
      * messages when there are no member in the group */
 	private boolean send_message = false;
 
+    /** Max time (ms) modifications are collected before they are sent in one message. 0 sends them right away
+     * (unless an explicit batch was started) */
+    long batch_window=0;
+
+    /** Max number of modifications in one message */
+    int max_batch_size=1000;
+
+    /** Guards pending, batch_depth and outstanding_batches. Held while sending, so batches are sent in order */
+    final Object batch_lock=new Object();
+
+    /** Modifications not yet sent */
+    Batch pending=new Batch();
+
+    /** Number of nested startBatch() calls */
+    int batch_depth=0;
+
+    /** Number of batches sent by us which have not yet been applied to our own tree. Keys are only compared to the
+     * local tree (to drop unchanged ones) when this is 0 */
+    int outstanding_batches=0;
+
+    /** Whether to drop keys of a put whose values are unchanged in the local tree (see
+     * {@link #setSuppressUnchangedKeys(boolean)}) */
+    boolean suppress_unchanged_keys=false;
+
+    Thread batch_flusher=null;
+
+    long num_batches_sent=0, num_modifications_sent=0, num_unchanged_keys=0;
+
 
 
     public interface ReplicatedTreeListener {
@@ -82,6 +134,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
      * and starts it
      */
     public ReplicatedTree(String groupname, String props, long state_fetch_timeout) throws Exception {
+        index.put(SEPARATOR, root);
         if(groupname != null)
             this.groupname=groupname;
         if(props != null)
@@ -93,6 +146,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
     }
 
     public ReplicatedTree(String groupname, String props, long state_fetch_timeout, boolean jmx) throws Exception {
+        index.put(SEPARATOR, root);
         if(groupname != null)
             this.groupname=groupname;
         if(props != null)
@@ -111,6 +165,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
     }
 
     public ReplicatedTree() {
+        index.put(SEPARATOR, root);
     }
 
 
@@ -118,6 +173,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
      * Expects an already connected channel. Creates a PullPushAdapter and starts it
      */
     public ReplicatedTree(JChannel channel) throws Exception {
+        index.put(SEPARATOR, root);
         this.channel=channel;
         start();
     }
@@ -127,8 +183,90 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         remote_calls=flag;
     }
 
+    public long getBatchWindow() {
+        return batch_window;
+    }
+
+    /** Sets the max time (ms) modifications are collected before they are multicast in one message. 0 sends
+     * every modification right away, unless an explicit batch was started */
+    public void setBatchWindow(long batch_window) {
+        synchronized(batch_lock) {
+            this.batch_window=batch_window;
+            if(batch_window > 0 && request_handler != null)
+                startBatchFlusher();
+            batch_lock.notifyAll();
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return max_batch_size;
+    }
+
+    public void setMaxBatchSize(int max_batch_size) {
+        this.max_batch_size=max_batch_size;
+    }
+
+    public long getNumberOfBatchesSent() {
+        return num_batches_sent;
+    }
+
+    public long getNumberOfModificationsSent() {
+        return num_modifications_sent;
+    }
+
+    public boolean isSuppressUnchangedKeys() {
+        return suppress_unchanged_keys;
+    }
+
+    /**
+     * If true, keys of a put whose values are equal to those in the local tree are not sent, and a put which
+     * doesn't change anything is not sent at all. This saves bandwidth, but breaks last-writer-wins: when members
+     * update the same key concurrently, a put which re-sets a value we currently see is dropped, although it
+     * would have been ordered after (and overwritten) a concurrent put of another member, so the members may end
+     * up with different values. Only enable this if a key is modified by a single member at a time. Default is false
+     */
+    public void setSuppressUnchangedKeys(boolean suppress_unchanged_keys) {
+        this.suppress_unchanged_keys=suppress_unchanged_keys;
+    }
+
+    /** Returns the number of keys which were not sent because their values didn't change */
+    public long getNumberOfUnchangedKeys() {
+        return num_unchanged_keys;
+    }
+
+    /**
+     * Starts an explicit batch: modifications are collected until the matching {@link #endBatch()} is called, and
+     * then multicast together (batches exceeding max_batch_size modifications are sent in several messages).
+     * Calls can be nested; the batch is sent when the outermost batch ends
+     */
+    public void startBatch() {
+        synchronized(batch_lock) {
+            batch_depth++;
+        }
+    }
+
+    /** Ends an explicit batch started with {@link #startBatch()}. Sends the collected modifications if this is the
+     * outermost batch */
+    public void endBatch() {
+        synchronized(batch_lock) {
+            if(batch_depth > 0)
+                batch_depth--;
+            if(batch_depth == 0 && !pending.isEmpty())
+                sendPending();
+        }
+    }
+
+    /** Sends all collected modifications right away */
+    public void flush() {
+        synchronized(batch_lock) {
+            if(!pending.isEmpty())
+                sendPending();
+        }
+    }
+
     public void setRootNode(Node n) {
         root=n;
+        rebuildIndex();
     }
 
     public Address getLocalAddress() {
@@ -171,6 +309,11 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
             request_handler.setDaemon(true);
             request_handler.start();
         }
+        if(batch_window > 0) {
+            synchronized(batch_lock) {
+                startBatchFlusher();
+            }
+        }
         adapter=new PullPushAdapter(channel, this, this);
         adapter.setListener(this);
         boolean rc=channel.getState(null, state_fetch_timeout);
@@ -185,6 +328,13 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
 
     public void stop() {
+        synchronized(batch_lock) {
+            batch_depth=0;
+            if(!pending.isEmpty())
+                sendPending();
+            batch_flusher=null;
+            batch_lock.notifyAll();
+        }
         if(request_handler != null && request_handler.isAlive()) {
             request_queue.close(true);
             request_handler=null;
@@ -218,25 +368,8 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
 		//Changes done by <aos>
 		//if true, propagate action to the group
-        if(send_message == true) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast PUT request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.PUT, fqn, data)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting PUT request: " + ex);
-            }
-        }
-        else {
+        if(!replicate(Batch.PUT, fqn, null, data))
             _put(fqn, data);
-        }
     }
 
 
@@ -256,26 +389,13 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
         //Changes done by <aos>
         //if true, propagate action to the group
-        if(send_message == true) {
-
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast PUT request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.PUT, fqn, key, value)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting PUT request: " + ex);
-            }
+        HashMap data=null;
+        if(key != null && value != null) {
+            data=new HashMap();
+            data.put(key, value);
         }
-        else {
+        if(!replicate(Batch.PUT, fqn, null, data))
             _put(fqn, key, value);
-        }
     }
 
 
@@ -290,22 +410,8 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         }
 		//Changes done by <aos>
 		//if true, propagate action to the group
-        if(send_message == true) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast REMOVE request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(null, null, new Request(Request.REMOVE, fqn)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting REMOVE request: " + ex);
-            }
-        }
-        else {
+        if(!replicate(Batch.REMOVE, fqn, null, null))
             _remove(fqn);
-        }
     }
 
 
@@ -321,25 +427,8 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         }
 		//Changes done by <aos>
 		//if true, propagate action to the group
-        if(send_message == true) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast REMOVE request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.REMOVE, fqn, key)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting REMOVE request: " + ex);
-            }
-        }
-        else {
+        if(key != null && !replicate(Batch.REMOVE, fqn, key, null))
             _remove(fqn, key);
-        }
     }
 
 
@@ -423,7 +512,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         if(n == null) return null;
         m=n.getChildren();
         if(m != null)
-            return m.keySet();
+            return new TreeSet(m.keySet());
         else
             return null;
     }
@@ -436,7 +525,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
         children=root.getChildren();
         if(children != null && children.size() > 0) {
-            Collection nodes=children.values();
+            Collection nodes=new TreeMap(children).values();
             for(Iterator it=nodes.iterator(); it.hasNext();) {
                 ((Node)it.next()).print(sb, indent);
                 sb.append('\n');
@@ -468,6 +557,122 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
 
 
+    /**
+     * Adds a modification to the current batch and sends the batch if neither a batch window nor an explicit batch
+     * is used, or if it is full. If suppress_unchanged_keys is set, a put is dropped if it wouldn't change the local
+     * tree, and only the changed keys of a put are added. Keys can only be compared when no modification affecting
+     * the node is pending, i.e. has been added or sent, but not yet applied to our own tree.
+     * @return False if the modification was not replicated and has to be applied locally (no other members)
+     */
+    private boolean replicate(int type, String fqn, String key, HashMap data) {
+        if(fqn == null)
+            return true;
+        synchronized(batch_lock) {
+            if(send_message == false && pending.isEmpty())
+                return false;
+
+            if(suppress_unchanged_keys && type == Batch.PUT && outstanding_batches == 0 && !pending.affects(fqn)) {
+                Node n=findNode(fqn);
+                if(n != null) {
+                    int size=data != null? data.size() : 0;
+                    data=removeUnchangedKeys(n, data);
+                    num_unchanged_keys+=size - (data != null? data.size() : 0);
+                    if(data == null || data.isEmpty())
+                        return true;
+                }
+            }
+
+            if(pending.isEmpty() && batch_window > 0)
+                batch_lock.notifyAll(); // wakes up the batch flusher
+            pending.add(type, fqn, key, data);
+            if(pending.size() >= max_batch_size || (batch_depth == 0 && batch_window <= 0))
+                sendPending();
+            return true;
+        }
+    }
+
+
+    /** Returns a map with the entries of data whose values differ from those in n */
+    private static HashMap removeUnchangedKeys(Node n, HashMap data) {
+        if(data == null)
+            return null;
+        HashMap retval=new HashMap(), node_data=n.getData();
+        Map.Entry entry;
+        Object old_val;
+        for(Iterator it=data.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            old_val=node_data != null? node_data.get(entry.getKey()) : null;
+            if(old_val == null || !old_val.equals(entry.getValue()))
+                retval.put(entry.getKey(), entry.getValue());
+        }
+        return retval;
+    }
+
+
+    /** Multicasts the pending batch. Needs to be called with batch_lock held */
+    private void sendPending() {
+        Batch batch=pending;
+        pending=new Batch();
+        if(channel == null) {
+            if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast " + batch.size() + " modifications");
+            return;
+        }
+        try {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128 + batch.size() * 32);
+            DataOutputStream out=new DataOutputStream(out_stream);
+            batch.writeTo(out);
+            out.flush();
+            channel.send(new Message(null, null, out_stream.getRawBuffer(), 0, out_stream.size()));
+            outstanding_batches++;
+            num_batches_sent++;
+            num_modifications_sent+=batch.size();
+        }
+        catch(Exception ex) {
+            if(log.isErrorEnabled()) log.error("failure bcasting " + batch.size() + " modifications: " + ex);
+        }
+    }
+
+
+    /** Needs to be called with batch_lock held */
+    private void startBatchFlusher() {
+        if(batch_flusher == null || !batch_flusher.isAlive()) {
+            batch_flusher=new Thread(new Runnable() {
+                public void run() {
+                    flushBatches();
+                }
+            }, "ReplicatedTree.BatchFlusher thread");
+            batch_flusher.setDaemon(true);
+            batch_flusher.start();
+        }
+    }
+
+
+    /** Sends the pending batch batch_window ms after its first modification was added, unless an explicit batch
+     * is in progress */
+    private void flushBatches() {
+        synchronized(batch_lock) {
+            while(batch_flusher == Thread.currentThread()) {
+                try {
+                    if(pending.isEmpty() || batch_depth > 0) {
+                        batch_lock.wait(1000);
+                        continue;
+                    }
+                    long wait_time=pending.created + batch_window - System.currentTimeMillis();
+                    if(wait_time > 0) {
+                        batch_lock.wait(wait_time);
+                        continue;
+                    }
+                    sendPending();
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+
+
     /* --------------------- Callbacks -------------------------- */
 
 
@@ -477,14 +682,27 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         boolean child_exists=false;
 
         if(fqn == null) return;
-        n=findParentNode(fqn, child_name, true); // create all nodes if they don't exist
-        if(child_name.getValue() != null) {
-            child_exists=n.childExists(child_name.getValue());
-            n.createChild(child_name.getValue(), fqn, n, data);
+        acquire(update_lock.readLock());
+        try {
+            n=(Node)index.get(fqn);
+            if(n != null) {
+                child_exists=true;
+                n.setData(data);
+            }
+            else {
+                n=findParentNode(fqn, child_name, true); // create all nodes if they don't exist
+                if(child_name.getValue() != null) {
+                    child_exists=n.childExists(child_name.getValue());
+                    addToIndex(n.createChild(child_name.getValue(), fqn, n, data));
+                }
+                else {
+                    child_exists=true;
+                    n.setData(data);
+                }
+            }
         }
-        else {
-            child_exists=true;
-            n.setData(data);
+        finally {
+            update_lock.readLock().release();
         }
         if(child_exists)
             notifyNodeModified(fqn);
@@ -499,14 +717,27 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         boolean child_exists=false;
 
         if(fqn == null || key == null || value == null) return;
-        n=findParentNode(fqn, child_name, true);
-        if(child_name.getValue() != null) {
-            child_exists=n.childExists(child_name.getValue());
-            n.createChild(child_name.getValue(), fqn, n, key, value);
+        acquire(update_lock.readLock());
+        try {
+            n=(Node)index.get(fqn);
+            if(n != null) {
+                child_exists=true;
+                n.setData(key, value);
+            }
+            else {
+                n=findParentNode(fqn, child_name, true);
+                if(child_name.getValue() != null) {
+                    child_exists=n.childExists(child_name.getValue());
+                    addToIndex(n.createChild(child_name.getValue(), fqn, n, key, value));
+                }
+                else {
+                    child_exists=true;
+                    n.setData(key, value);
+                }
+            }
         }
-        else {
-            child_exists=true;
-            n.setData(key, value);
+        finally {
+            update_lock.readLock().release();
         }
         if(child_exists)
             notifyNodeModified(fqn);
@@ -520,14 +751,22 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         StringHolder child_name=new StringHolder();
 
         if(fqn == null) return;
-        if(fqn.equals(SEPARATOR)) {
-            root.removeAll();
-            notifyNodeRemoved(fqn);
-            return;
+        acquire(update_lock.readLock());
+        try {
+            if(fqn.equals(SEPARATOR)) {
+                root.removeAll();
+                index.clear();
+                index.put(SEPARATOR, root);
+            }
+            else {
+                n=findParentNode(fqn, child_name, false);
+                if(n == null) return;
+                removeFromIndex(n.removeChild(child_name.getValue(), fqn));
+            }
+        }
+        finally {
+            update_lock.readLock().release();
         }
-        n=findParentNode(fqn, child_name, false);
-        if(n == null) return;
-        n.removeChild(child_name.getValue(), fqn);
         notifyNodeRemoved(fqn);
     }
 
@@ -536,9 +775,15 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         Node n;
 
         if(fqn == null || key == null) return;
-        n=findNode(fqn);
-        if(n != null)
-            n.removeData(key);
+        acquire(update_lock.readLock());
+        try {
+            n=findNode(fqn);
+            if(n != null)
+                n.removeData(key);
+        }
+        finally {
+            update_lock.readLock().release();
+        }
     }
 
 
@@ -546,9 +791,15 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         Node n;
 
         if(fqn == null) return;
-        n=findNode(fqn);
-        if(n != null)
-            n.removeData();
+        acquire(update_lock.readLock());
+        try {
+            n=findNode(fqn);
+            if(n != null)
+                n.removeData();
+        }
+        finally {
+            update_lock.readLock().release();
+        }
     }
 
 
@@ -561,15 +812,18 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
     /*-------------------- MessageListener ----------------------*/
 
-    /** Callback. Process the contents of the message; typically an _add() or _set() request */
+    /** Callback. Process the contents of the message; a batch of _put() and _remove() requests */
     public void receive(Message msg) {
-        Request req=null;
+        Batch batch;
 
         if(msg == null || msg.getLength() == 0)
             return;
         try {
-            req=(Request)msg.getObject();
-            request_queue.add(req);
+            batch=new Batch();
+            batch.readFrom(new DataInputStream(new ByteArrayInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength())));
+            Address local_addr=getLocalAddress();
+            batch.local=local_addr != null && local_addr.equals(msg.getSrc());
+            request_queue.add(batch);
         }
         catch(QueueClosedException queue_closed_ex) {
             if(log.isErrorEnabled()) log.error("request queue is null");
@@ -579,10 +833,18 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         }
     }
 
-    /** Return a copy of the current cache (tree) */
+    /** Return a copy of the current cache (tree). Updates are only blocked while the tree structure is copied */
     public byte[] getState() {
+        Node copy;
+        acquire(update_lock.writeLock());
         try {
-            return Util.objectToByteBuffer(root.clone());
+            copy=root.copy(null);
+        }
+        finally {
+            update_lock.writeLock().release();
+        }
+        try {
+            return Util.objectToByteBuffer(copy);
         }
         catch(Throwable ex) {
             if(log.isErrorEnabled()) log.error("exception returning cache: " + ex);
@@ -601,8 +863,16 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         }
         try {
             obj=Util.objectFromByteBuffer(new_state);
-            new_root=(Node)((Node)obj).clone();
-            root=new_root;
+            new_root=(Node)obj;
+            new_root.setParents();
+            acquire(update_lock.writeLock());
+            try {
+                root=new_root;
+                rebuildIndex();
+            }
+            finally {
+                update_lock.writeLock().release();
+            }
             notifyAllNodesCreated(root);
         }
         catch(Throwable ex) {
@@ -653,37 +923,48 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
     /** Request handler thread */
     public void run() {
+        Batch batch;
         Request req;
-        String fqn=null;
 
         while(request_handler != null) {
             try {
-                req=(Request)request_queue.remove(0);
-                fqn=req.fqn;
-                switch(req.type) {
-                    case Request.PUT:
-                        if(req.key != null && req.value != null)
-                            _put(fqn, req.key, req.value);
-                        else
-                            _put(fqn, req.data);
-                        break;
-                    case Request.REMOVE:
-                        if(req.key != null)
-                            _remove(fqn, req.key);
-                        else
-                            _remove(fqn);
-                        break;
-                    default:
-                        if(log.isErrorEnabled()) log.error("type " + req.type + " unknown");
-                        break;
-                }
+                batch=(Batch)request_queue.remove();
             }
             catch(QueueClosedException queue_closed_ex) {
                 request_handler=null;
                 break;
             }
-            catch(Throwable other_ex) {
-                if(log.isWarnEnabled()) log.warn("exception processing request: " + other_ex);
+            try {
+                for(Iterator it=batch.requests.iterator(); it.hasNext();) {
+                    req=(Request)it.next();
+                    try {
+                        switch(req.type) {
+                            case Batch.PUT:
+                                _put(req.fqn, req.data);
+                                break;
+                            case Batch.REMOVE:
+                                if(req.key != null)
+                                    _remove(req.fqn, req.key);
+                                else
+                                    _remove(req.fqn);
+                                break;
+                            default:
+                                if(log.isErrorEnabled()) log.error("type " + req.type + " unknown");
+                                break;
+                        }
+                    }
+                    catch(Throwable other_ex) {
+                        if(log.isWarnEnabled()) log.warn("exception processing request " + req + ": " + other_ex);
+                    }
+                }
+            }
+            finally {
+                if(batch.local) {
+                    synchronized(batch_lock) {
+                        if(outstanding_batches > 0)
+                            outstanding_batches--;
+                    }
+                }
             }
         }
     }
@@ -707,6 +988,17 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         if(fqn == null || fqn.equals(SEPARATOR) || "".equals(fqn))
             return curr;
 
+        // fast path: the parent is in the index, e.g. "/a/b" for "/a/b/c"
+        int index_of_name=fqn.lastIndexOf(SEPARATOR);
+        if(index_of_name >= 0 && index_of_name < fqn.length() - SEPARATOR.length()) {
+            node=index_of_name == 0? curr : (Node)index.get(fqn.substring(0, index_of_name));
+            if(node != null) {
+                if(child_name != null)
+                    child_name.setValue(fqn.substring(index_of_name + SEPARATOR.length()));
+                return node;
+            }
+        }
+
         sb=new StringBuffer();
         tok=new StringTokenizer(fqn, SEPARATOR);
         while(tok.countTokens() > 1) {
@@ -714,7 +1006,7 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
             sb.append(SEPARATOR).append(name);
             node=curr.getChild(name);
             if(node == null && create_if_not_exists)
-                node=curr.createChild(name, sb.toString(), null, null);
+                node=addToIndex(curr.createChild(name, sb.toString(), curr, null));
             if(node == null)
                 return null;
             else
@@ -734,6 +1026,11 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
      * @return Node The node at fqn
      */
     Node findNode(String fqn) {
+        if(fqn != null) {
+            Node n=(Node)index.get(fqn);
+            if(n != null)
+                return n;
+        }
         StringHolder sh=new StringHolder();
         Node n=findParentNode(fqn, sh, false);
         String child_name=sh.getValue();
@@ -748,6 +1045,58 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
     }
 
 
+    private Node addToIndex(Node n) {
+        if(n != null && !index.containsKey(n.fqn))
+            index.put(n.fqn, n);
+        return n;
+    }
+
+    /** Removes n and all nodes below it from the index */
+    private void removeFromIndex(Node n) {
+        if(n == null) return;
+        if(index.get(n.fqn) == n)
+            index.remove(n.fqn);
+        Map children=n.getChildren();
+        if(children != null) {
+            for(Iterator it=children.values().iterator(); it.hasNext();)
+                removeFromIndex((Node)it.next());
+        }
+    }
+
+    private void rebuildIndex() {
+        index.clear();
+        index.put(SEPARATOR, root);
+        addAllToIndex(root);
+    }
+
+    private void addAllToIndex(Node n) {
+        Map children=n.getChildren();
+        if(children != null) {
+            Node child;
+            for(Iterator it=children.values().iterator(); it.hasNext();) {
+                child=addToIndex((Node)it.next());
+                addAllToIndex(child);
+            }
+        }
+    }
+
+    /** Acquires lock, even if the thread is interrupted (the interrupt status is restored) */
+    private static void acquire(Sync lock) {
+        boolean interrupted=false;
+        while(true) {
+            try {
+                lock.acquire();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted=true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
     void notifyNodeAdded(String fqn) {
         for(int i=0; i < listeners.size(); i++)
             ((ReplicatedTreeListener)listeners.elementAt(i)).nodeAdded(fqn);
@@ -788,10 +1137,10 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
     public static class Node implements Serializable {
         String name=null;     // relative name (e.g. "Security")
         String fqn=null;      // fully qualified name (e.g. "/federations/fed1/servers/Security")
-        Node parent=null;   // parent node
-        TreeMap children=null; // keys: child name, value: Node
-        HashMap data=null;     // data for current node
-        private static final long serialVersionUID = -3077676554440038890L;
+        transient Node parent=null;   // parent node, set by setParents() after deserialization
+        volatile Map children=null; // keys: child name, value: Node
+        volatile HashMap data=null; // data for current node, replaced on modification (copy-on-write)
+        private static final long serialVersionUID=5294356938613227458L;
         // Address       creator=null;  // member that created this node (needed ?)
 
 
@@ -806,43 +1155,46 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
             name=child_name;
             this.fqn=fqn;
             this.parent=parent;
-            if(data == null) data=new HashMap();
+            data=new HashMap();
             data.put(key, value);
         }
 
-        void setData(Map data) {
+        synchronized void setData(Map data) {
             if(data == null) return;
-            if(this.data == null)
-                this.data=new HashMap();
-            this.data.putAll(data);
+            HashMap tmp=this.data != null? new HashMap(this.data) : new HashMap();
+            tmp.putAll(data);
+            this.data=tmp;
         }
 
-        void setData(String key, Object value) {
-            if(this.data == null)
-                this.data=new HashMap();
-            this.data.put(key, value);
+        synchronized void setData(String key, Object value) {
+            HashMap tmp=this.data != null? new HashMap(this.data) : new HashMap();
+            tmp.put(key, value);
+            this.data=tmp;
         }
 
+        /** Returns the data of this node. The map must not be modified */
         HashMap getData() {
             return data;
         }
 
         Object getData(String key) {
-            return data != null? data.get(key) : null;
+            HashMap tmp=data;
+            return tmp != null? tmp.get(key) : null;
         }
 
 
         boolean childExists(String child_name) {
             if(child_name == null) return false;
-            return children != null && children.containsKey(child_name);
+            Map tmp=children;
+            return tmp != null && tmp.containsKey(child_name);
         }
 
 
-        Node createChild(String child_name, String fqn, Node parent, HashMap data) {
+        synchronized Node createChild(String child_name, String fqn, Node parent, HashMap data) {
             Node child=null;
 
             if(child_name == null) return null;
-            if(children == null) children=new TreeMap();
+            if(children == null) children=new ConcurrentReaderHashMap();
             child=(Node)children.get(child_name);
             if(child != null)
                 child.setData(data);
@@ -853,11 +1205,11 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
             return child;
         }
 
-        Node createChild(String child_name, String fqn, Node parent, String key, Object value) {
+        synchronized Node createChild(String child_name, String fqn, Node parent, String key, Object value) {
             Node child=null;
 
             if(child_name == null) return null;
-            if(children == null) children=new TreeMap();
+            if(children == null) children=new ConcurrentReaderHashMap();
             child=(Node)children.get(child_name);
             if(child != null)
                 child.setData(key, value);
@@ -870,30 +1222,35 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
 
         Node getChild(String child_name) {
-            return child_name == null? null : children == null? null : (Node)children.get(child_name);
+            Map tmp=children;
+            return child_name == null? null : tmp == null? null : (Node)tmp.get(child_name);
         }
 
         Map getChildren() {
             return children;
         }
 
-        void removeData(String key) {
-            if(data != null)
-                data.remove(key);
+        synchronized void removeData(String key) {
+            if(data != null && data.containsKey(key)) {
+                HashMap tmp=new HashMap(data);
+                tmp.remove(key);
+                data=tmp;
+            }
         }
 
-        void removeData() {
+        synchronized void removeData() {
             if(data != null)
-                data.clear();
+                data=new HashMap();
         }
 
-        void removeChild(String child_name, String fqn) {
-            if(child_name != null && children != null && children.containsKey(child_name)) {
-                children.remove(child_name);
-            }
+        /** Removes the child and returns it, or null if not found */
+        synchronized Node removeChild(String child_name, String fqn) {
+            if(child_name != null && children != null)
+                return (Node)children.remove(child_name);
+            return null;
         }
 
-        void removeAll() {
+        synchronized void removeAll() {
             if(children != null)
                 children.clear();
         }
@@ -901,8 +1258,9 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         void print(StringBuffer sb, int indent) {
             printIndent(sb, indent);
             sb.append(SEPARATOR).append(name);
-            if(children != null && children.size() > 0) {
-                Collection values=children.values();
+            Map tmp=children;
+            if(tmp != null && tmp.size() > 0) {
+                Collection values=new TreeMap(tmp).values();
                 for(Iterator it=values.iterator(); it.hasNext();) {
                     sb.append('\n');
                     ((Node)it.next()).print(sb, indent + INDENT);
@@ -927,12 +1285,45 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
         }
 
 
-        public Object clone() throws CloneNotSupportedException {
-            Node n=new Node(name, fqn, parent != null? (Node)parent.clone() : null, data);
-            if(children != null) n.children=(TreeMap)children.clone();
+        /**
+         * Copies the subtree rooted at this node. The data maps are shared with the original, as they're never
+         * modified in place
+         * @param new_parent The parent of the copy
+         */
+        Node copy(Node new_parent) {
+            Node n=new Node(name, fqn, new_parent, null);
+            n.data=data;
+            Map tmp=children;
+            if(tmp != null) {
+                Map tmp_children=new ConcurrentReaderHashMap();
+                Map.Entry entry;
+                for(Iterator it=tmp.entrySet().iterator(); it.hasNext();) {
+                    entry=(Map.Entry)it.next();
+                    tmp_children.put(entry.getKey(), ((Node)entry.getValue()).copy(n));
+                }
+                n.children=tmp_children;
+            }
             return n;
         }
 
+        /** Sets the parent references of all nodes below this one (they're not serialized) */
+        void setParents() {
+            Map tmp=children;
+            if(tmp != null) {
+                Node child;
+                for(Iterator it=tmp.values().iterator(); it.hasNext();) {
+                    child=(Node)it.next();
+                    child.parent=this;
+                    child.setParents();
+                }
+            }
+        }
+
+
+        public Object clone() throws CloneNotSupportedException {
+            return copy(parent);
+        }
+
     }
 
 
@@ -953,58 +1344,214 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
 
 
     /**
-     * Class used to multicast add(), remove() and set() methods to all members.
+     * A single modification (put() or remove()) of a batch
+     */
+    private static class Request {
+        final int type;
+        final String fqn;
+        final String key;
+        HashMap data;
+
+        private Request(int type, String fqn, String key, HashMap data) {
+            this.type=type;
+            this.fqn=fqn;
+            this.key=key;
+            this.data=data;
+        }
+
+        public String toString() {
+            StringBuffer sb=new StringBuffer();
+            sb.append(Batch.type2String(type)).append(" (");
+            if(fqn != null) sb.append(" fqn=" + fqn);
+            if(data != null) sb.append(", data=" + data);
+            if(key != null) sb.append(", key=" + key);
+            sb.append(')');
+            return sb.toString();
+        }
+    }
+
+
+    /**
+     * A list of modifications which is multicast in one message. Successive puts to the same node are merged (a
+     * remove ends the merging, as it can affect any node below it). On the wire, the FQNs are interned: every FQN
+     * (and every prefix of it) is written once, as the index of its parent FQN plus the relative name, and the
+     * requests refer to FQNs by index
      */
-    private static class Request implements Serializable {
+    private static class Batch implements Streamable {
         static final int PUT=1;
         static final int REMOVE=2;
 
-        int type=0;
-        String fqn=null;
-        String key=null;
-        Object value=null;
-        HashMap data=null;
-        private static final long serialVersionUID = 7772753222127676782L;
+        /** Parent index of an FQN below the root, e.g. "/a" */
+        static final int ROOT=-1;
+
+        /** Parent index of an FQN which is written as is (no separator) */
+        static final int LITERAL=-2;
+
+        final List requests=new ArrayList();
+
+        /** Puts which can still be merged, keyed by FQN */
+        final Map puts=new HashMap();
+
+        /** FQNs of all requests */
+        final Set fqns=new HashSet();
+        boolean removes=false;
+        long created=0;
+
+        /** Whether this batch was sent by us (set on reception) */
+        boolean local=false;
+
+        void add(int type, String fqn, String key, HashMap data) {
+            if(requests.isEmpty())
+                created=System.currentTimeMillis();
+            fqns.add(fqn);
+            if(type == PUT) {
+                Request req=(Request)puts.get(fqn);
+                if(req != null) {
+                    if(data != null) {
+                        if(req.data == null)
+                            req.data=new HashMap();
+                        req.data.putAll(data);
+                    }
+                    return;
+                }
+                req=new Request(PUT, fqn, null, data != null? new HashMap(data) : null);
+                puts.put(fqn, req);
+                requests.add(req);
+            }
+            else {
+                requests.add(new Request(type, fqn, key, null));
+                puts.clear();
+                removes=true;
+            }
+        }
 
-        private Request(int type, String fqn) {
-            this.type=type;
-            this.fqn=fqn;
+        /** Whether the node at fqn might be modified by this batch */
+        boolean affects(String fqn) {
+            return removes || fqns.contains(fqn);
         }
 
-        private Request(int type, String fqn, HashMap data) {
-            this(type, fqn);
-            this.data=data;
+        boolean isEmpty() {
+            return requests.isEmpty();
         }
 
-        private Request(int type, String fqn, String key) {
-            this(type, fqn);
-            this.key=key;
+        int size() {
+            return requests.size();
         }
 
-        private Request(int type, String fqn, String key, Object value) {
-            this(type, fqn);
-            this.key=key;
-            this.value=value;
+        public void writeTo(DataOutputStream out) throws IOException {
+            Map ids=new HashMap();
+            List names=new ArrayList(), parents=new ArrayList();
+            int[] fqn_ids=new int[requests.size()];
+            for(int i=0; i < fqn_ids.length; i++)
+                fqn_ids[i]=intern(((Request)requests.get(i)).fqn, ids, names, parents);
+
+            out.writeInt(names.size());
+            for(int i=0; i < names.size(); i++) {
+                out.writeInt(((Integer)parents.get(i)).intValue());
+                out.writeUTF((String)names.get(i));
+            }
+
+            out.writeInt(requests.size());
+            Request req;
+            for(int i=0; i < fqn_ids.length; i++) {
+                req=(Request)requests.get(i);
+                out.writeByte(req.type);
+                out.writeInt(fqn_ids[i]);
+                if(req.type == PUT) {
+                    if(req.data == null) {
+                        out.writeInt(-1);
+                        continue;
+                    }
+                    out.writeInt(req.data.size());
+                    Map.Entry entry;
+                    for(Iterator it=req.data.entrySet().iterator(); it.hasNext();) {
+                        entry=(Map.Entry)it.next();
+                        writeValue(entry.getKey(), out);
+                        writeValue(entry.getValue(), out);
+                    }
+                }
+                else
+                    Util.writeString(req.key, out);
+            }
         }
 
-        public String toString() {
-            StringBuffer sb=new StringBuffer();
-            sb.append(type2String(type)).append(" (");
-            if(fqn != null) sb.append(" fqn=" + fqn);
-            switch(type) {
-                case PUT:
-                    if(data != null) sb.append(", data=" + data);
-                    if(key != null) sb.append(", key=" + key);
-                    if(value != null) sb.append(", value=" + value);
-                    break;
-                case REMOVE:
-                    if(key != null) sb.append(", key=" + key);
-                    break;
-                default:
-                    break;
+        public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+            String[] names=new String[in.readInt()];
+            int parent;
+            String name;
+            for(int i=0; i < names.length; i++) {
+                parent=in.readInt();
+                name=in.readUTF();
+                if(parent == LITERAL)
+                    names[i]=name;
+                else
+                    names[i]=(parent == ROOT? "" : names[parent]) + SEPARATOR + name;
+            }
+
+            int num=in.readInt();
+            int type, size;
+            String fqn;
+            for(int i=0; i < num; i++) {
+                type=in.readByte();
+                fqn=names[in.readInt()];
+                if(type == PUT) {
+                    size=in.readInt();
+                    HashMap data=null;
+                    if(size >= 0) {
+                        data=new HashMap(size);
+                        for(int j=0; j < size; j++)
+                            data.put(readValue(in), readValue(in));
+                    }
+                    requests.add(new Request(PUT, fqn, null, data));
+                }
+                else
+                    requests.add(new Request(type, fqn, Util.readString(in), null));
+            }
+        }
+
+        /** Returns the index of fqn, adding it (and its prefixes) if not yet present */
+        private static int intern(String fqn, Map ids, List names, List parents) {
+            Integer id=(Integer)ids.get(fqn);
+            if(id != null)
+                return id.intValue();
+            int index=fqn.lastIndexOf(SEPARATOR), parent;
+            String name;
+            if(index < 0) {
+                parent=LITERAL;
+                name=fqn;
+            }
+            else {
+                parent=index == 0? ROOT : intern(fqn.substring(0, index), ids, names, parents);
+                name=fqn.substring(index + SEPARATOR.length());
+            }
+            names.add(name);
+            parents.add(new Integer(parent));
+            ids.put(fqn, new Integer(names.size() - 1));
+            return names.size() - 1;
+        }
+
+        private static void writeValue(Object obj, DataOutputStream out) throws IOException {
+            try {
+                Util.writeByteBuffer(Util.objectToByteBuffer(obj), out);
+            }
+            catch(IOException ex) {
+                throw ex;
+            }
+            catch(Exception ex) {
+                throw new IOException("failed marshalling " + obj + ": " + ex);
+            }
+        }
+
+        private static Object readValue(DataInputStream in) throws IOException {
+            try {
+                return Util.objectFromByteBuffer(Util.readByteBuffer(in));
+            }
+            catch(IOException ex) {
+                throw ex;
+            }
+            catch(Exception ex) {
+                throw new IOException("failed unmarshalling value: " + ex);
             }
-            sb.append(')');
-            return sb.toString();
         }
 
         static String type2String(int t) {
@@ -1018,6 +1565,9 @@ public class ReplicatedTree implements Runnable, MessageListener, MembershipList
             }
         }
 
+        public String toString() {
+            return requests.size() + " requests";
+        }
     }
 
 
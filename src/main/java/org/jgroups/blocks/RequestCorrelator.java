@@ -549,6 +549,12 @@ public class RequestCorrelator {
                 RspCollector coll=findEntry(hdr.id);
                 if(coll != null) {
                     Address sender=msg.getSrc();
+                    if(coll instanceof FilteringRspCollector && !((FilteringRspCollector)coll).wantsResponse(sender)) {
+                        if(log.isTraceEnabled())
+                            log.trace(new StringBuffer("dropped response from ").append(sender).
+                                      append(" for request ").append(hdr.id).append(": not needed any more"));
+                        break;
+                    }
                     Object retval=null;
                     byte[] buf=msg.getBuffer();
                     try {
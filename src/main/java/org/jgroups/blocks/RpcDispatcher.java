@@ -164,6 +164,16 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
     }
 
     public RspList callRemoteMethods(Vector dests, MethodCall method_call, int mode, long timeout, boolean use_anycasting) {
+        return callRemoteMethods(dests, method_call, mode, timeout, use_anycasting, null);
+    }
+
+
+    /**
+     * Invokes a method in all members in dests, passing the responses through filter (see {@link RspFilter}).
+     * E.g. a lookup can return after the first non-null response rather than wait for the slowest member.
+     */
+    public RspList callRemoteMethods(Vector dests, MethodCall method_call, int mode, long timeout,
+                                     boolean use_anycasting, RspFilter filter) {
         if(dests != null && dests.size() == 0) {
             // don't send if dest list is empty
             if(log.isTraceEnabled())
@@ -189,13 +199,51 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
         }
 
         Message msg=new Message(null, null, buf);
-        RspList  retval=super.castMessage(dests, msg, mode, timeout, use_anycasting);
+        RspList  retval=super.castMessage(dests, msg, mode, timeout, use_anycasting, filter);
         if(log.isTraceEnabled()) log.trace("responses: " + retval);
         return retval;
     }
 
 
 
+    public RspFuture callRemoteMethodsWithFuture(Vector dests, MethodCall method_call, int mode, long timeout) {
+        return callRemoteMethodsWithFuture(dests, method_call, mode, timeout, false, null, null);
+    }
+
+
+    /**
+     * Asynchronous version of {@link #callRemoteMethods(java.util.Vector,MethodCall,int,long,boolean)}: returns
+     * a future for the responses rather than waiting for them. See
+     * {@link MessageDispatcher#castMessageWithFuture(java.util.Vector,Message,int,long,boolean,RspFilter,RspListener)}.
+     */
+    public RspFuture callRemoteMethodsWithFuture(Vector dests, MethodCall method_call, int mode, long timeout,
+                                                 boolean use_anycasting, RspFilter filter, RspListener l) {
+        if(log.isTraceEnabled())
+            log.trace(new StringBuffer("dests=").append(dests).append(", method_call=").append(method_call).
+                      append(", mode=").append(mode).append(", timeout=").append(timeout));
+
+        byte[] buf;
+        try {
+            buf=req_marshaller != null? req_marshaller.objectToByteBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        }
+        catch(Exception e) {
+            throw new RuntimeException("failure to marshal argument(s)", e);
+        }
+
+        Message msg=new Message(null, null, buf);
+        return super.castMessageWithFuture(dests, msg, mode, timeout, use_anycasting, filter, l);
+    }
+
+
+    /** Invokes a method on a single member and returns a future for its response */
+    public RspFuture callRemoteMethodWithFuture(Address dest, MethodCall method_call, int mode, long timeout,
+                                                RspListener l) {
+        Vector dests=new Vector(1);
+        dests.addElement(dest);
+        return callRemoteMethodsWithFuture(dests, method_call, mode, timeout, false, null, l);
+    }
+
+
     public Object callRemoteMethod(Address dest, String method_name, Object[] args,
                                    Class[] types, int mode, long timeout) throws Throwable {
         MethodCall method_call=new MethodCall(method_name, args, types);
@@ -0,0 +1,29 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Decides which responses of a {@link GroupRequest} are accepted, and whether the request is done before the
+ * number of responses required by its mode has been received. Examples are stopping at the first non-null response,
+ * or at a quorum of matching responses.<p/>
+ * Both methods are invoked while the request's lock is held, so a filter needs no synchronization of its own,
+ * but it must be quick and must not block. A filter instance serves a single request.
+ * @version $Id$
+ */
+public interface RspFilter {
+
+    /**
+     * Called for every response as it is received (so it can also be used to process responses as they stream in).
+     * @param response The response value. An exception thrown by the remote method if the call failed
+     * @param sender The member which sent the response
+     * @return True if the response is added to the RspList. If false, the response is discarded and the request no
+     * longer waits for the sender, as if it had been suspected
+     */
+    boolean isAcceptable(Object response, Address sender);
+
+    /**
+     * Called after every response. Returns false if the request is done, regardless of its mode. The remaining
+     * responses will be dropped by the RequestCorrelator without being unmarshalled.
+     */
+    boolean needMoreResponses();
+}
@@ -0,0 +1,49 @@
+package org.jgroups.blocks;
+
+import org.jgroups.TimeoutException;
+import org.jgroups.util.RspList;
+
+/**
+ * The result of an asynchronous group request (see {@link MessageDispatcher#castMessageWithFuture(java.util.Vector,
+ * org.jgroups.Message,int,long)}). A future is done when the number of responses required by its mode (e.g.
+ * {@link GroupRequest#GET_FIRST}, {@link GroupRequest#GET_MAJORITY} or {@link GroupRequest#GET_ALL}) has been
+ * received, when the request timed out, or when it was cancelled. In the latter two cases, {@link #get()} returns
+ * the responses received so far.
+ * @version $Id$
+ */
+public interface RspFuture {
+
+    /**
+     * Blocks until the request is done and returns the responses. If the calling thread is interrupted, the responses
+     * received so far are returned (with the interrupt status set), and {@link #isDone()} may still be false
+     */
+    RspList get();
+
+    /**
+     * Waits for at most timeout ms for the request to be done and returns the responses. The request itself is
+     * <em>not</em> cancelled when the wait times out.
+     * @param timeout Time to wait in ms. A value of <= 0 waits until the request is done.
+     * @throws TimeoutException Thrown if the request is not done after timeout ms, or when the calling thread is
+     * interrupted before it is done (the interrupt status is set then)
+     */
+    RspList get(long timeout) throws TimeoutException;
+
+    boolean isDone();
+
+    /** Returns true if the request was completed by its timeout rather than by receiving enough responses */
+    boolean isTimedOut();
+
+    boolean isCancelled();
+
+    /**
+     * Stops waiting for responses, and removes the request from the RequestCorrelator.
+     * @return False if the request was already done, true otherwise
+     */
+    boolean cancel();
+
+    /**
+     * Adds a listener which is notified when the request is done. If the request is already done, the listener is
+     * notified right away, by the caller's thread.
+     */
+    void addListener(RspListener l);
+}
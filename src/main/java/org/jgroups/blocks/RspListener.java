@@ -0,0 +1,11 @@
+package org.jgroups.blocks;
+
+/**
+ * Notified when an asynchronous group request is done (see {@link RspFuture}).<p/>
+ * The callback is invoked by the thread which delivered the last required response, or by the timer thread
+ * on a timeout, so it must not block. In particular, it must not wait for the results of other requests.
+ * @version $Id$
+ */
+public interface RspListener {
+    void requestDone(RspFuture future);
+}
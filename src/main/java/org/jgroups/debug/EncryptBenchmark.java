@@ -0,0 +1,157 @@
+package org.jgroups.debug;
+
+import org.jgroups.util.CipherPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Measures the encryption throughput of {@link CipherPool} across message sizes and numbers of threads, compared to
+ * a single Cipher instance shared by all threads (which has to be synchronized, as ENCRYPT did before it used a
+ * CipherPool). Every thread encrypts and decrypts a buffer of the given size in a loop. Every measurement is
+ * preceded by a warmup run.
+ * @version $Id$
+ */
+public class EncryptBenchmark {
+    static final int[] SIZES={100, 1000, 8000, 64000};
+
+    final int num_threads;
+    final long bytes_per_run;
+
+
+    public EncryptBenchmark(int num_threads, long bytes_per_run) {
+        this.num_threads=num_threads;
+        this.bytes_per_run=bytes_per_run;
+    }
+
+
+    public void run(String transformation, int key_size) throws Exception {
+        String algorithm=transformation.indexOf('/') >= 0? transformation.substring(0, transformation.indexOf('/')) : transformation;
+        KeyGenerator gen=KeyGenerator.getInstance(algorithm);
+        gen.init(key_size);
+        SecretKey key=gen.generateKey();
+        System.out.println("-- " + transformation + " (" + key_size + " bit key), " + num_threads + " threads");
+
+        for(int i=0; i < SIZES.length; i++) {
+            int size=SIZES[i];
+            if(transformation.indexOf('/') < 0) { // ECB only: the old ENCRYPT used a single cipher
+                Crypter shared=new SharedCipher(transformation, key);
+                run(shared, size, num_threads);
+                print("shared cipher", size, run(shared, size, num_threads));
+            }
+            Crypter pool=new PooledCipher(new CipherPool(transformation, key, num_threads));
+            run(pool, size, 1);
+            print("pool, 1 thread", size, run(pool, size, 1));
+            if(num_threads > 1)
+                print("pool, " + num_threads + " threads", size, run(pool, size, num_threads));
+        }
+    }
+
+
+    /** Returns the throughput in MB/sec */
+    double run(final Crypter crypter, final int size, int threads) throws Exception {
+        final int iterations=(int)Math.max(1, bytes_per_run / size / threads);
+        final Exception[] failure=new Exception[1];
+        Thread[] workers=new Thread[threads];
+        for(int i=0; i < workers.length; i++) {
+            workers[i]=new Thread() {
+                public void run() {
+                    byte[] buf=new byte[size];
+                    try {
+                        for(int j=0; j < iterations; j++) {
+                            byte[] decrypted=crypter.decrypt(crypter.encrypt(buf));
+                            if(decrypted.length != size)
+                                throw new Exception("decrypted " + decrypted.length + " bytes, expected " + size);
+                        }
+                    }
+                    catch(Exception e) {
+                        failure[0]=e;
+                    }
+                }
+            };
+        }
+        long start=System.nanoTime();
+        for(int i=0; i < workers.length; i++)
+            workers[i].start();
+        for(int i=0; i < workers.length; i++)
+            workers[i].join();
+        long time=System.nanoTime() - start;
+        if(failure[0] != null)
+            throw failure[0];
+        return (double)iterations * size * threads / (1024 * 1024) / (time / 1000000000.0);
+    }
+
+
+    static void print(String name, int size, double mb_sec) {
+        System.out.println(name + ", " + size + " bytes: " + (int)mb_sec + " MB/sec");
+    }
+
+
+    interface Crypter {
+        byte[] encrypt(byte[] buf) throws Exception;
+        byte[] decrypt(byte[] buf) throws Exception;
+    }
+
+    static class SharedCipher implements Crypter {
+        final Cipher encoder, decoder;
+
+        SharedCipher(String transformation, SecretKey key) throws Exception {
+            encoder=Cipher.getInstance(transformation);
+            encoder.init(Cipher.ENCRYPT_MODE, key);
+            decoder=Cipher.getInstance(transformation);
+            decoder.init(Cipher.DECRYPT_MODE, key);
+        }
+
+        public byte[] encrypt(byte[] buf) throws Exception {
+            synchronized(encoder) {
+                return encoder.doFinal(buf);
+            }
+        }
+
+        public byte[] decrypt(byte[] buf) throws Exception {
+            synchronized(decoder) {
+                return decoder.doFinal(buf);
+            }
+        }
+    }
+
+    static class PooledCipher implements Crypter {
+        final CipherPool pool;
+
+        PooledCipher(CipherPool pool) {
+            this.pool=pool;
+        }
+
+        public byte[] encrypt(byte[] buf) throws Exception {
+            return pool.encrypt(buf);
+        }
+
+        public byte[] decrypt(byte[] buf) throws Exception {
+            return pool.decrypt(buf);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int num_threads=Runtime.getRuntime().availableProcessors();
+        long mbytes=100;
+        for(int i=0; i < args.length; i++) {
+            if("-threads".equals(args[i])) {
+                num_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-mbytes".equals(args[i])) {
+                mbytes=Long.parseLong(args[++i]);
+                continue;
+            }
+            System.out.println("EncryptBenchmark [-threads <number of threads>] [-mbytes <MB per measurement>]");
+            return;
+        }
+        EncryptBenchmark bench=new EncryptBenchmark(num_threads, mbytes * 1024 * 1024);
+        bench.run("Blowfish", 128);
+        bench.run("AES", 128);
+        bench.run("AES/CBC/PKCS5Padding", 128);
+        bench.run("AES/GCM/NoPadding", 128);
+    }
+}
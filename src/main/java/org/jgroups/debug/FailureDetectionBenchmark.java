@@ -0,0 +1,229 @@
+package org.jgroups.debug;
+
+import org.jgroups.*;
+import org.jgroups.protocols.DISCARD;
+import org.jgroups.protocols.FD;
+import org.jgroups.protocols.FD_ALL;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+
+/**
+ * Compares failure detection protocols (FD and FD_ALL) under simulated message loss. Starts a number of channels
+ * in the same JVM, each with a DISCARD layer below the failure detector. All members multicast data at a fixed
+ * rate while DISCARD drops a percentage of the incoming messages; after the loss phase, one member is 'crashed' by
+ * making its DISCARD layer drop all messages, and we measure the time until the remaining members have installed a
+ * view without it.<p/>
+ * Reported are the number of heartbeats sent and the number of suspect events generated during the loss phase
+ * (false suspicions), and the detection time of the crashed member.
+ * @version $Id$
+ */
+public class FailureDetectionBenchmark {
+    static final String FD_PROPS="FD(timeout=2000;max_tries=3;shun=false)";
+    static final String FD_ALL_PROPS="FD_ALL(interval=1000;timeout=10000;phi_threshold=8)";
+
+    final int       num_members;
+    final double    loss_rate;
+    final long      loss_duration;
+    final int       msgs_per_sec;
+    final String    fd_props;
+    final String    fd_name;
+
+    final JChannel[] channels;
+
+
+    public FailureDetectionBenchmark(int num_members, double loss_rate, long loss_duration, int msgs_per_sec, String fd_props) {
+        this.num_members=num_members;
+        this.loss_rate=loss_rate;
+        this.loss_duration=loss_duration;
+        this.msgs_per_sec=msgs_per_sec;
+        this.fd_props=fd_props;
+        this.fd_name=fd_props.indexOf('(') > 0? fd_props.substring(0, fd_props.indexOf('(')) : fd_props;
+        this.channels=new JChannel[num_members];
+    }
+
+
+    String createProps() {
+        return "UDP(mcast_addr=228.8.8.9;mcast_port=45599;ip_ttl=0;loopback=true;enable_bundling=false):" +
+                "PING(timeout=2000;num_initial_members=" + num_members + "):" +
+                "DISCARD(excludeitself=true):" +
+                fd_props + ":" +
+                "VERIFY_SUSPECT(timeout=1500):" +
+                "pbcast.NAKACK(gc_lag=0;retransmit_timeout=300,600,1200,2400,4800):" +
+                "UNICAST(timeout=300,600,1200,2400):" +
+                "pbcast.STABLE(desired_avg_gossip=20000):" +
+                "pbcast.GMS(join_timeout=3000;join_retry_timeout=2000;shun=false;print_local_addr=false)";
+    }
+
+
+    public void start() throws Exception {
+        String props=createProps();
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=new JChannel(props);
+            channels[i].setOpt(Channel.LOCAL, Boolean.FALSE);
+            channels[i].connect("FailureDetectionBenchmark");
+            channels[i].getProtocolStack().findProtocol(fd_name).enableStats(true);
+        }
+        System.out.println("view: " + channels[0].getView());
+    }
+
+
+    public void stop() {
+        for(int i=channels.length -1; i >= 0; i--) {
+            if(channels[i] != null)
+                channels[i].close();
+        }
+    }
+
+
+    public void run() throws Exception {
+        Sender[] senders=new Sender[channels.length];
+        for(int i=0; i < channels.length; i++) {
+            senders[i]=new Sender(channels[i]);
+            senders[i].start();
+        }
+
+        // 1. loss phase
+        System.out.println("-- loss phase: " + (loss_rate * 100) + "% incoming loss for " + loss_duration + " ms");
+        for(int i=0; i < channels.length; i++)
+            getDiscard(channels[i]).setUpDiscardRate(loss_rate);
+        Util.sleep(loss_duration);
+        for(int i=0; i < channels.length; i++)
+            getDiscard(channels[i]).setUpDiscardRate(0);
+
+        int heartbeats=0, suspects=0;
+        for(int i=0; i < channels.length; i++) {
+            heartbeats+=getNumHeartbeats(channels[i]);
+            suspects+=getNumSuspects(channels[i]);
+        }
+        System.out.println("heartbeats sent: " + heartbeats + ", suspect events (false suspicions): " + suspects);
+
+        // 2. crash the last member
+        JChannel victim=channels[channels.length -1];
+        Address victim_addr=victim.getLocalAddress();
+        System.out.println("-- crashing " + victim_addr);
+        senders[senders.length -1].running=false;
+        long start=System.currentTimeMillis();
+        DISCARD discard=getDiscard(victim);
+        discard.setExcludeItself(false);
+        discard.setUpDiscardRate(1);
+        discard.setDownDiscardRate(1);
+
+        while(channels[0].getView().containsMember(victim_addr)) {
+            Util.sleep(50);
+            if(System.currentTimeMillis() - start > 120000) {
+                System.out.println("member was not excluded after 120 secs");
+                break;
+            }
+        }
+        long detection_time=System.currentTimeMillis() - start;
+        System.out.println("detection time for crashed member: " + detection_time + " ms, view: " +
+                channels[0].getView());
+
+        for(int i=0; i < senders.length; i++)
+            senders[i].running=false;
+    }
+
+
+    static DISCARD getDiscard(JChannel ch) {
+        return (DISCARD)ch.getProtocolStack().findProtocol("DISCARD");
+    }
+
+    int getNumHeartbeats(JChannel ch) {
+        Protocol prot=ch.getProtocolStack().findProtocol(fd_name);
+        if(prot instanceof FD_ALL)
+            return ((FD_ALL)prot).getNumberOfHeartbeatsSent();
+        if(prot instanceof FD)
+            return ((FD)prot).getNumberOfHeartbeatsSent();
+        return 0;
+    }
+
+    int getNumSuspects(JChannel ch) {
+        Protocol prot=ch.getProtocolStack().findProtocol(fd_name);
+        if(prot instanceof FD_ALL)
+            return ((FD_ALL)prot).getNumSuspectEventsGenerated();
+        if(prot instanceof FD)
+            return ((FD)prot).getNumSuspectEventsGenerated();
+        return 0;
+    }
+
+
+    /** Multicasts small messages at msgs_per_sec */
+    class Sender extends Thread {
+        final JChannel ch;
+        volatile boolean running=true;
+
+        Sender(JChannel ch) {
+            super("Sender");
+            setDaemon(true);
+            this.ch=ch;
+        }
+
+        public void run() {
+            long sleep=msgs_per_sec > 0? Math.max(1000 / msgs_per_sec, 1) : 0;
+            while(running && msgs_per_sec > 0) {
+                try {
+                    ch.send(new Message(null, null, new byte[100]));
+                }
+                catch(Exception e) {
+                    break;
+                }
+                Util.sleep(sleep);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        int num_members=4, msgs_per_sec=100;
+        double loss_rate=0.2;
+        long loss_duration=30000;
+        String fd_props=FD_ALL_PROPS;
+
+        for(int i=0; i < args.length; i++) {
+            if("-num_members".equals(args[i])) {
+                num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-loss".equals(args[i])) {
+                loss_rate=Double.parseDouble(args[++i]);
+                continue;
+            }
+            if("-duration".equals(args[i])) {
+                loss_duration=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-rate".equals(args[i])) {
+                msgs_per_sec=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-fd".equals(args[i])) {
+                fd_props=args[++i];
+                continue;
+            }
+            if("-use_fd".equals(args[i])) {
+                fd_props=FD_PROPS;
+                continue;
+            }
+            help();
+            return;
+        }
+
+        FailureDetectionBenchmark bench=new FailureDetectionBenchmark(num_members, loss_rate, loss_duration,
+                                                                      msgs_per_sec, fd_props);
+        try {
+            bench.start();
+            bench.run();
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+        }
+        finally {
+            bench.stop();
+        }
+    }
+
+    static void help() {
+        System.out.println("FailureDetectionBenchmark [-help] [-num_members <num>] [-loss <rate (0-1)>] " +
+                "[-duration <msecs>] [-rate <msgs/sec per member>] [-use_fd | -fd <failure detection protocol spec>]");
+    }
+}
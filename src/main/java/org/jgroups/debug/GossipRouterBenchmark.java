@@ -0,0 +1,312 @@
+package org.jgroups.debug;
+
+import org.jgroups.*;
+import org.jgroups.protocols.TUNNEL;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+
+/**
+ * Exercises a cluster of replicating GossipRouters on localhost. Starts a number of routers (peers of each other)
+ * and a number of TUNNEL channels in the same JVM; every member lists all routers in router_hosts, but starting
+ * with a different one, so the members are spread over the routers and their messages have to be forwarded
+ * between routers.<p/>
+ * In the replication phase, all members multicast a number of messages and we measure the time until every member
+ * has received all of them. In the failover phase, the first router is stopped while the members are sending, and
+ * we measure the time until its members have reconnected to another router, and check that no message was lost.
+ * Finally, the router is restarted and we check that it got the registrations of all members from its peers.
+ * @version $Id$
+ */
+public class GossipRouterBenchmark {
+    static final String BIND_ADDR="127.0.0.1";
+    static final String GROUP="GossipRouterBenchmark";
+
+    final int           num_routers;
+    final int           num_members;
+    final int           num_msgs;
+    final int           base_port;
+    final boolean       bundling;
+
+    final GossipRouter[] routers;
+    final JChannel[]    channels;
+    final int[]         received;
+    String              peers;
+
+
+    public GossipRouterBenchmark(int num_routers, int num_members, int num_msgs, int base_port, boolean bundling) {
+        this.num_routers=num_routers;
+        this.num_members=num_members;
+        this.num_msgs=num_msgs;
+        this.base_port=base_port;
+        this.bundling=bundling;
+        this.routers=new GossipRouter[num_routers];
+        this.channels=new JChannel[num_members];
+        this.received=new int[num_members];
+    }
+
+
+    /** Returns the routers as "host[port],host[port]", starting with router start */
+    String createRouterHosts(int start) {
+        StringBuffer sb=new StringBuffer();
+        for(int i=0; i < num_routers; i++) {
+            if(i > 0)
+                sb.append(',');
+            sb.append(BIND_ADDR).append('[').append(base_port + (start + i) % num_routers).append(']');
+        }
+        return sb.toString();
+    }
+
+    String createProps(int index) {
+        return "TUNNEL(router_hosts=" + createRouterHosts(index % num_routers) + ";reconnect_interval=500;" +
+                "enable_bundling=" + bundling + "):" +
+                "PING(timeout=2000;num_initial_members=" + num_members + "):" +
+                "MERGE2(min_interval=3000;max_interval=5000):" +
+                "FD_SOCK:" +
+                "VERIFY_SUSPECT(timeout=1500):" +
+                "pbcast.NAKACK(gc_lag=0;retransmit_timeout=300,600,1200):" +
+                "UNICAST(timeout=300,600,1200):" +
+                "pbcast.STABLE(desired_avg_gossip=20000):" +
+                "pbcast.GMS(join_timeout=3000;join_retry_timeout=2000;shun=false;print_local_addr=false)";
+    }
+
+
+    public void start() throws Exception {
+        peers=createRouterHosts(0);
+        for(int i=0; i < num_routers; i++)
+            routers[i]=startRouter(i);
+        waitForPeers(10000);
+
+        for(int i=0; i < num_members; i++) {
+            final int index=i;
+            channels[i]=new JChannel(createProps(i));
+            channels[i].setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    synchronized(received) {
+                        received[index]++;
+                    }
+                }
+            });
+            channels[i].connect(GROUP);
+        }
+        for(int i=0; i < num_members; i++)
+            System.out.println(channels[i].getLocalAddress() + ": router=" + getTunnel(i).getRouterStub().getCurrentRouter());
+        System.out.println("view: " + channels[0].getView());
+    }
+
+    GossipRouter startRouter(int index) throws Exception {
+        GossipRouter router=new GossipRouter(base_port + index, BIND_ADDR);
+        router.setPeers(peers);
+        router.start();
+        return router;
+    }
+
+
+    /** Waits until every router is connected to all of its peers, or timeout ms have elapsed */
+    void waitForPeers(long timeout) {
+        long start=System.currentTimeMillis();
+        for(int i=0; i < routers.length; i++) {
+            while(routers[i].getNumberOfConnectedPeers() < num_routers -1 && System.currentTimeMillis() - start < timeout)
+                Util.sleep(50);
+            System.out.println("router " + routers[i].getPort() + ": " + routers[i].getNumberOfConnectedPeers() +
+                    " connected peers");
+        }
+    }
+
+
+    public void stop() {
+        for(int i=channels.length -1; i >= 0; i--) {
+            if(channels[i] != null)
+                channels[i].close();
+        }
+        for(int i=0; i < routers.length; i++) {
+            if(routers[i] != null)
+                routers[i].stop();
+        }
+    }
+
+
+    public void run() throws Exception {
+        // 1. replication
+        System.out.println("-- replication: " + num_members + " members multicast " + num_msgs + " msgs each");
+        long start=System.currentTimeMillis();
+        Sender[] senders=startSenders(0);
+        joinSenders(senders);
+        boolean ok=waitForMessages(num_members * num_msgs, 30000);
+        long time=System.currentTimeMillis() - start;
+        System.out.println((ok? "received all msgs" : "MISSING MSGS") + " in " + time + " ms: " + printReceived());
+        printForwarded();
+
+        // 2. failover: stop the first router while the members are sending
+        if(num_routers < 2) {
+            System.out.println("-- skipping failover, it needs at least 2 routers");
+            return;
+        }
+        System.out.println("-- failover: stopping router " + routers[0].getPort() + " while sending");
+        resetReceived();
+        senders=startSenders(1);
+        Util.sleep(500);
+        routers[0].stop();
+        routers[0]=null;
+        start=System.currentTimeMillis();
+        for(int i=0; i < num_members; i += num_routers) { // the members whose first router is the stopped one
+            TUNNEL tunnel=getTunnel(i);
+            while(!isConnectedToOtherRouter(tunnel, base_port) && System.currentTimeMillis() - start < 30000)
+                Util.sleep(5);
+            System.out.println(channels[i].getLocalAddress() + " failed over to " +
+                    tunnel.getRouterStub().getCurrentRouter() + " after " + (System.currentTimeMillis() - start) + " ms");
+        }
+        joinSenders(senders);
+        ok=waitForMessages(num_members * num_msgs, 30000);
+        System.out.println((ok? "received all msgs" : "MISSING MSGS") + ": " + printReceived());
+        System.out.println("view: " + channels[0].getView());
+        printForwarded();
+
+        // 3. restart the router: it gets the registrations from its peers
+        System.out.println("-- restarting router " + (base_port));
+        routers[0]=startRouter(0);
+        Util.sleep(3000);
+        System.out.println("routing table of restarted router:\n" + routers[0].dumpRoutingTable());
+    }
+
+
+    static boolean isConnectedToOtherRouter(TUNNEL tunnel, int port) {
+        IpAddress router=tunnel.getRouterStub().getCurrentRouter();
+        return tunnel.isConnected() && router != null && router.getPort() != port;
+    }
+
+    TUNNEL getTunnel(int index) {
+        return (TUNNEL)channels[index].getProtocolStack().findProtocol("TUNNEL");
+    }
+
+    Sender[] startSenders(long sleep) {
+        Sender[] senders=new Sender[num_members];
+        for(int i=0; i < senders.length; i++) {
+            senders[i]=new Sender(channels[i], sleep);
+            senders[i].start();
+        }
+        return senders;
+    }
+
+    static void joinSenders(Sender[] senders) throws InterruptedException {
+        for(int i=0; i < senders.length; i++)
+            senders[i].join();
+    }
+
+    boolean waitForMessages(int expected, long timeout) {
+        long start=System.currentTimeMillis();
+        while(System.currentTimeMillis() - start < timeout) {
+            boolean done=true;
+            synchronized(received) {
+                for(int i=0; i < received.length; i++) {
+                    if(received[i] < expected)
+                        done=false;
+                }
+            }
+            if(done)
+                return true;
+            Util.sleep(50);
+        }
+        return false;
+    }
+
+    void resetReceived() {
+        synchronized(received) {
+            for(int i=0; i < received.length; i++)
+                received[i]=0;
+        }
+    }
+
+    String printReceived() {
+        StringBuffer sb=new StringBuffer();
+        synchronized(received) {
+            for(int i=0; i < received.length; i++)
+                sb.append(i == 0? "" : ", ").append(received[i]);
+        }
+        return "[" + sb + "] (expected " + num_members * num_msgs + " each)";
+    }
+
+    void printForwarded() {
+        StringBuffer sb=new StringBuffer("forwarded msgs:");
+        for(int i=0; i < routers.length; i++) {
+            if(routers[i] != null)
+                sb.append(' ').append(routers[i].getPort()).append('=').append(routers[i].getNumberOfForwardedMessages());
+        }
+        System.out.println(sb);
+    }
+
+
+    /** Multicasts num_msgs messages, sleeping sleep ms after each */
+    class Sender extends Thread {
+        final JChannel ch;
+        final long     sleep;
+
+        Sender(JChannel ch, long sleep) {
+            super("Sender");
+            setDaemon(true);
+            this.ch=ch;
+            this.sleep=sleep;
+        }
+
+        public void run() {
+            for(int i=0; i < num_msgs; i++) {
+                try {
+                    ch.send(new Message(null, null, new byte[100]));
+                }
+                catch(Exception e) {
+                    System.err.println("failed sending msg #" + i + ": " + e);
+                    break;
+                }
+                if(sleep > 0)
+                    Util.sleep(sleep);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        int num_routers=3, num_members=3, num_msgs=2000, base_port=12001;
+        boolean bundling=false;
+
+        for(int i=0; i < args.length; i++) {
+            if("-num_routers".equals(args[i])) {
+                num_routers=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-num_members".equals(args[i])) {
+                num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-num_msgs".equals(args[i])) {
+                num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-port".equals(args[i])) {
+                base_port=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-bundling".equals(args[i])) {
+                bundling=true;
+                continue;
+            }
+            help();
+            return;
+        }
+
+        GossipRouterBenchmark bench=new GossipRouterBenchmark(num_routers, num_members, num_msgs, base_port, bundling);
+        try {
+            bench.start();
+            bench.run();
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+        }
+        finally {
+            bench.stop();
+        }
+    }
+
+    static void help() {
+        System.out.println("GossipRouterBenchmark [-help] [-num_routers <num>] [-num_members <num>] " +
+                "[-num_msgs <msgs per member>] [-port <port of the first router>] [-bundling]");
+    }
+}
@@ -0,0 +1,141 @@
+package org.jgroups.debug;
+
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.MethodRegistry;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Measures the cost of an RPC without the network: marshalling a {@link MethodCall} at the caller, and unmarshalling
+ * and dispatching it at the receiver ({@link RpcDispatcher#handle(Message)}). The Streamable encoding is compared to
+ * Java serialization (the encoding used before MethodCall became Streamable), and method calls by name and types
+ * to method calls by ID ({@link MethodRegistry}). Every measurement is preceded by a warmup run of the same
+ * number of iterations.
+ * @version $Id$
+ */
+public class MethodCallBenchmark {
+    static final short PUT=0, ADD=1;
+
+    final int num;
+    final RpcDispatcher disp;
+
+
+    public MethodCallBenchmark(int num) throws Exception {
+        this.num=num;
+        JChannel ch=new JChannel("LOOPBACK"); // never connected, only needed to create the dispatcher
+        disp=new RpcDispatcher(ch, null, null, new Target());
+        MethodRegistry registry=new MethodRegistry(Target.class);
+        registry.register(PUT, "put", new Class[]{String.class, byte[].class});
+        registry.register(ADD, "add", new Class[]{int.class, long.class});
+        disp.setMethodLookup(registry);
+    }
+
+
+    public void run() throws Exception {
+        byte[] val=new byte[100];
+        run("put(String,byte[]) by types", new MethodCall("put", new Object[]{"key-1", val}, new Class[]{String.class, byte[].class}));
+        run("put(String,byte[]) by ID", new MethodCall(PUT, new Object[]{"key-1", val}));
+        run("add(int,long) by types", new MethodCall("add", new Object[]{new Integer(1), new Long(2)}, new Class[]{int.class, long.class}));
+        run("add(int,long) by ID", new MethodCall(ADD, new Object[]{new Integer(1), new Long(2)}));
+    }
+
+
+    void run(String name, MethodCall call) throws Exception {
+        System.out.println("-- " + name);
+        byte[] buf=Util.objectToByteBuffer(call);
+        byte[] ser_buf=serialize(call);
+        System.out.println("size: " + buf.length + " bytes (serialized: " + ser_buf.length + " bytes)");
+
+        for(int i=0; i < 2; i++) {
+            boolean warmup=i == 0;
+
+            long start=System.nanoTime();
+            for(int j=0; j < num; j++)
+                Util.objectToByteBuffer(call);
+            long marshal=System.nanoTime() - start;
+
+            start=System.nanoTime();
+            for(int j=0; j < num; j++)
+                serialize(call);
+            long ser_marshal=System.nanoTime() - start;
+
+            start=System.nanoTime();
+            for(int j=0; j < num; j++)
+                Util.objectFromByteBuffer(buf);
+            long unmarshal=System.nanoTime() - start;
+
+            start=System.nanoTime();
+            for(int j=0; j < num; j++)
+                deserialize(ser_buf);
+            long ser_unmarshal=System.nanoTime() - start;
+
+            start=System.nanoTime();
+            for(int j=0; j < num; j++) {
+                Object retval=disp.handle(new Message(null, null, buf));
+                if(retval instanceof Throwable)
+                    throw new Exception("dispatching " + call + " failed", (Throwable)retval);
+            }
+            long dispatch=System.nanoTime() - start;
+
+            if(!warmup) {
+                print("marshal", marshal, ser_marshal);
+                print("unmarshal", unmarshal, ser_unmarshal);
+                print("unmarshal + dispatch", dispatch, -1);
+            }
+        }
+    }
+
+
+    void print(String phase, long time, long ser_time) {
+        StringBuffer sb=new StringBuffer(phase).append(": ").append(time / num).append(" ns/call");
+        if(ser_time >= 0)
+            sb.append(" (serialized: ").append(ser_time / num).append(" ns/call)");
+        System.out.println(sb);
+    }
+
+    static byte[] serialize(Object obj) throws Exception {
+        ByteArrayOutputStream out=new ByteArrayOutputStream(256);
+        ObjectOutputStream oos=new ObjectOutputStream(out);
+        oos.writeObject(obj);
+        oos.close();
+        return out.toByteArray();
+    }
+
+    static Object deserialize(byte[] buf) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(buf)).readObject();
+    }
+
+
+    public static class Target {
+        long sum=0;
+
+        public void put(String key, byte[] val) {
+            sum+=val.length;
+        }
+
+        public long add(int a, long b) {
+            return sum+=a + b;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int num=200000;
+        for(int i=0; i < args.length; i++) {
+            if("-num".equals(args[i])) {
+                num=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("MethodCallBenchmark [-num <number of calls>]");
+            return;
+        }
+        new MethodCallBenchmark(num).run();
+    }
+}
@@ -0,0 +1,159 @@
+package org.jgroups.debug;
+
+import org.jgroups.persistence.FilePersistenceManager;
+import org.jgroups.persistence.LogStructuredPersistenceManager;
+import org.jgroups.persistence.PersistenceManager;
+import org.jgroups.util.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Compares {@link FilePersistenceManager} and {@link LogStructuredPersistenceManager}. For each, a number of keys
+ * is saved, half of them are overwritten, a tenth removed, and all entries are retrieved. For the log-structured
+ * manager, the time to reopen the store (log replay) is measured as well.<p/>
+ * FilePersistenceManager rewrites the whole store on every save() and remove(), so it is only run with file_keys
+ * keys (default: 2000); its per-operation cost grows linearly with the number of keys. Values are Floats, as
+ * FilePersistenceManager converts all values it loads to Floats.
+ * @version $Id$
+ */
+public class PersistenceBenchmark {
+    final File dir;
+    final boolean sync;
+
+    public PersistenceBenchmark(File dir, boolean sync) {
+        this.dir=dir;
+        this.sync=sync;
+    }
+
+
+    public void runFile(int num_keys) throws Exception {
+        File store=new File(dir, "file-store.properties");
+        store.delete();
+        Properties props=new Properties();
+        props.setProperty("persist", store.getAbsolutePath());
+        PersistenceManager mgr=new FilePersistenceManager(writeProperties(props, "file-persist.properties"));
+        System.out.println("-- FilePersistenceManager, " + num_keys + " keys");
+        run(mgr, num_keys);
+        mgr.shutDown();
+        store.delete();
+    }
+
+
+    public void runLog(int num_keys) throws Exception {
+        File log_dir=new File(dir, "log-store");
+        deleteDir(log_dir);
+        Properties props=new Properties();
+        props.setProperty("persist", log_dir.getAbsolutePath());
+        props.setProperty("log.sync", String.valueOf(sync));
+        props.setProperty("log.segment_size", String.valueOf(4 * 1024 * 1024));
+        String props_file=writeProperties(props, "log-persist.properties");
+        LogStructuredPersistenceManager mgr=new LogStructuredPersistenceManager(props_file);
+        System.out.println("-- LogStructuredPersistenceManager (sync=" + sync + "), " + num_keys + " keys");
+        run(mgr, num_keys);
+        System.out.println(mgr + ", compacted segments: " + mgr.compact());
+        mgr.shutDown();
+
+        long start=System.currentTimeMillis();
+        mgr=new LogStructuredPersistenceManager(props_file);
+        long time=System.currentTimeMillis() - start;
+        System.out.println("reopen (log replay): " + time + " ms, " + mgr.getNumberOfKeys() + " keys");
+        mgr.shutDown();
+        deleteDir(log_dir);
+    }
+
+
+    static void run(PersistenceManager mgr, int num_keys) throws Exception {
+        long start=System.currentTimeMillis();
+        for(int i=0; i < num_keys; i++)
+            mgr.save("key-" + i, new Float(i));
+        print("save", num_keys, start);
+
+        start=System.currentTimeMillis();
+        for(int i=0; i < num_keys; i+=2)
+            mgr.save("key-" + i, new Float(-i));
+        print("overwrite", num_keys / 2, start);
+
+        start=System.currentTimeMillis();
+        for(int i=0; i < num_keys; i+=10)
+            mgr.remove("key-" + i);
+        print("remove", num_keys / 10, start);
+
+        start=System.currentTimeMillis();
+        Map all=mgr.retrieveAll();
+        long time=System.currentTimeMillis() - start;
+        System.out.println("retrieveAll: " + all.size() + " entries in " + time + " ms");
+    }
+
+
+    static void print(String op, int num, long start) {
+        long time=Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(op + ": " + num + " ops in " + time + " ms (" + (num * 1000L / time) + " ops/sec)");
+    }
+
+
+    String writeProperties(Properties props, String name) throws Exception {
+        File file=new File(dir, name);
+        OutputStream out=new FileOutputStream(file);
+        try {
+            props.store(out, null);
+        }
+        finally {
+            Util.close(out);
+        }
+        return file.getAbsolutePath();
+    }
+
+
+    static void deleteDir(File d) {
+        File[] files=d.listFiles();
+        for(int i=0; files != null && i < files.length; i++)
+            files[i].delete();
+        d.delete();
+    }
+
+
+    public static void main(String[] args) {
+        int num_keys=100000, file_keys=2000;
+        boolean sync=false;
+        String dir=System.getProperty("java.io.tmpdir");
+
+        for(int i=0; i < args.length; i++) {
+            if("-num_keys".equals(args[i])) {
+                num_keys=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-file_keys".equals(args[i])) {
+                file_keys=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-dir".equals(args[i])) {
+                dir=args[++i];
+                continue;
+            }
+            if("-sync".equals(args[i])) {
+                sync=true;
+                continue;
+            }
+            help();
+            return;
+        }
+
+        PersistenceBenchmark bench=new PersistenceBenchmark(new File(dir), sync);
+        try {
+            if(file_keys > 0)
+                bench.runFile(Math.min(file_keys, num_keys));
+            bench.runLog(num_keys);
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void help() {
+        System.out.println("PersistenceBenchmark [-help] [-num_keys <num>] [-file_keys <num>] [-dir <directory>] [-sync]");
+    }
+}
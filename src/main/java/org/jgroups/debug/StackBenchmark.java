@@ -0,0 +1,601 @@
+package org.jgroups.debug;
+
+import org.jgroups.*;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.protocols.UNICAST;
+import org.jgroups.protocols.pbcast.NakAckHeader;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.NakReceiverWindow;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.Retransmitter;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Measures the hot paths of the protocol stack: marshalling of messages, the retransmission tables, the timer,
+ * fragmentation, bundling in the transport, and full-stack round trips. The full-stack benchmarks run over
+ * {@link org.jgroups.protocols.SHARED_LOOPBACK}, so they don't depend on the network.<p/>
+ * Every benchmark performs its operation in batches, the size of which is calibrated so that a batch takes at least
+ * 10 ms (throughput benchmarks start with larger batches). After a warmup period, a number of runs of fixed
+ * duration is measured, and the best and average times per operation are printed. The results can be saved to a
+ * file (-save) and later runs compared against it (-compare), so a change can be judged against a baseline measured
+ * on the same machine.
+ * @version $Id$
+ */
+public class StackBenchmark {
+    /** The stack used by the full-stack benchmarks, bundling is set by the benchmark */
+    static final String PROPS="SHARED_LOOPBACK(down_thread=false;up_thread=false;loopback=true;" +
+            "use_incoming_packet_handler=false;max_bundle_size=64000;max_bundle_timeout=30;enable_bundling=%b):" +
+            "PING(timeout=500;down_thread=false;num_initial_members=2;up_thread=false):" +
+            "pbcast.NAKACK(down_thread=false;use_mcast_xmit=false;gc_lag=0;discard_delivered_msgs=true;" +
+            "up_thread=false;retransmit_timeout=100,200,300,600,1200,2400,4800):" +
+            "UNICAST(timeout=300,600,1200,2400,3600;down_thread=false;up_thread=false):" +
+            "pbcast.STABLE(stability_delay=1000;desired_avg_gossip=50000;max_bytes=400000;down_thread=false;" +
+            "up_thread=false):" +
+            "pbcast.GMS(print_local_addr=false;join_timeout=3000;down_thread=false;join_retry_timeout=2000;" +
+            "up_thread=false;shun=true):" +
+            "FC(max_credits=2000000;down_thread=false;up_thread=false;min_threshold=0.10):" +
+            "FRAG2(frag_size=60000;down_thread=false;up_thread=false)";
+
+    static final long MIN_BATCH_TIME=10 * 1000000L; // ns
+
+    final long warmup_time, run_time; // ms
+    final int num_runs;
+    final Properties baseline;
+    final Properties results=new Properties();
+
+
+    public StackBenchmark(long warmup_time, long run_time, int num_runs, Properties baseline) {
+        this.warmup_time=warmup_time;
+        this.run_time=run_time;
+        this.num_runs=num_runs;
+        this.baseline=baseline;
+    }
+
+
+    public Properties getResults() {
+        return results;
+    }
+
+
+    /** Runs all benchmarks whose name contains filter (all if filter is null) */
+    public void run(String filter) throws Exception {
+        Benchmark[] benchmarks={
+                new MessageWrite(), new MessageRead(), new MessageSize(), new MessageCopy(),
+                new ObjectToByteBuffer("Util.objectToByteBuffer(String)", "a string of moderate length, used as a key"),
+                new ObjectToByteBuffer("Util.objectToByteBuffer(Long)", new Long(322649)),
+                new NakReceiverWindowInOrder(), new NakReceiverWindowOutOfOrder(), new RetransmitterAddRemove(),
+                new TimeSchedulerExecute(), new Fragmentation(),
+                new Multicast("TP, 100 byte multicasts, no bundling", false),
+                new Multicast("TP, 100 byte multicasts, bundling", true),
+                new RoundTrip()
+        };
+        for(int i=0; i < benchmarks.length; i++) {
+            if(filter == null || benchmarks[i].name.indexOf(filter) >= 0)
+                run(benchmarks[i]);
+        }
+    }
+
+
+    void run(Benchmark b) throws Exception {
+        b.setUp();
+        try {
+            int batch=b.min_batch;
+            while(time(b, batch) < MIN_BATCH_TIME && batch < (1 << 24))
+                batch*=2;
+
+            long end=System.currentTimeMillis() + warmup_time;
+            while(System.currentTimeMillis() < end)
+                b.run(batch);
+
+            double best=Double.MAX_VALUE, sum=0;
+            for(int i=0; i < num_runs; i++) {
+                long ops=0, time=0;
+                while(time < run_time * 1000000L) {
+                    time+=time(b, batch);
+                    ops+=batch;
+                }
+                double ns_per_op=(double)time / ops;
+                best=Math.min(best, ns_per_op);
+                sum+=ns_per_op;
+            }
+            results.setProperty(b.name, String.valueOf(best));
+            print(b.name, best, sum / num_runs);
+        }
+        finally {
+            b.tearDown();
+        }
+    }
+
+    static long time(Benchmark b, int num) throws Exception {
+        long start=System.nanoTime();
+        b.run(num);
+        return System.nanoTime() - start;
+    }
+
+    void print(String name, double best, double avg) {
+        StringBuffer sb=new StringBuffer(name).append(": ").append(format(best)).append(" ns/op (avg ").
+                append(format(avg)).append(')');
+        String prev=baseline != null? baseline.getProperty(name) : null;
+        if(prev != null) {
+            double diff=(best - Double.parseDouble(prev)) / Double.parseDouble(prev) * 100;
+            sb.append(", baseline ").append(format(Double.parseDouble(prev))).append(" ns/op (").
+                    append(diff >= 0? "+" : "").append(format(diff)).append("%)");
+        }
+        System.out.println(sb);
+    }
+
+    static String format(double d) {
+        return d >= 100 || d <= -100? String.valueOf(Math.round(d)) : String.valueOf(Math.round(d * 10) / 10.0);
+    }
+
+
+    static Message createMessage(int size) throws Exception {
+        Message msg=new Message(null, new IpAddress(InetAddress.getByName("127.0.0.1"), 7800), new byte[size]);
+        msg.putHeader("NAKACK", new NakAckHeader(NakAckHeader.MSG, 322649));
+        msg.putHeader("UNICAST", new UNICAST.UnicastHeader(UNICAST.UnicastHeader.DATA, 322649));
+        msg.putHeader("UDP", new TpHeader("demo-cluster"));
+        return msg;
+    }
+
+
+    abstract static class Benchmark {
+        final String name;
+
+        /** Benchmarks measuring throughput need batches large enough to fill the pipeline (e.g. the bundler) */
+        final int min_batch;
+
+        Benchmark(String name) {
+            this(name, 1);
+        }
+
+        Benchmark(String name, int min_batch) {
+            this.name=name;
+            this.min_batch=min_batch;
+        }
+
+        void setUp() throws Exception {}
+
+        /** Performs num operations */
+        abstract void run(int num) throws Exception;
+
+        void tearDown() throws Exception {}
+    }
+
+
+    static class MessageWrite extends Benchmark {
+        Message msg;
+        final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(2048);
+        final DataOutputStream out=new DataOutputStream(out_stream);
+
+        MessageWrite() {super("Message.writeTo(), 1000 bytes, 3 headers");}
+
+        void setUp() throws Exception {
+            msg=createMessage(1000);
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++) {
+                out_stream.reset();
+                msg.writeTo(out);
+            }
+        }
+    }
+
+    static class MessageRead extends Benchmark {
+        byte[] buf;
+
+        MessageRead() {super("Message.readFrom(), 1000 bytes, 3 headers");}
+
+        void setUp() throws Exception {
+            ByteArrayOutputStream out_stream=new ByteArrayOutputStream(2048);
+            DataOutputStream out=new DataOutputStream(out_stream);
+            createMessage(1000).writeTo(out);
+            out.flush();
+            buf=out_stream.toByteArray();
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++) {
+                DataInputStream in=new DataInputStream(new ExposedByteArrayInputStream(buf));
+                Message msg=new Message(false);
+                msg.readFrom(in);
+            }
+        }
+    }
+
+    static class MessageSize extends Benchmark {
+        Message msg;
+        long total=0;
+
+        MessageSize() {super("Message.size(), 3 headers");}
+
+        void setUp() throws Exception {
+            msg=createMessage(1000);
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++)
+                total+=msg.size();
+        }
+    }
+
+    static class MessageCopy extends Benchmark {
+        Message msg;
+
+        MessageCopy() {super("Message.copy(), 1000 bytes, 3 headers");}
+
+        void setUp() throws Exception {
+            msg=createMessage(1000);
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++)
+                msg.copy();
+        }
+    }
+
+    static class ObjectToByteBuffer extends Benchmark {
+        final Object obj;
+
+        ObjectToByteBuffer(String name, Object obj) {
+            super(name);
+            this.obj=obj;
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++)
+                Util.objectToByteBuffer(obj);
+        }
+    }
+
+
+    /** Adds messages in order, removes them, and calls stable() every 100 messages (as STABLE would) */
+    static class NakReceiverWindowInOrder extends Benchmark {
+        NakReceiverWindow win;
+        final Message msg=new Message(null, null, null);
+        long seqno=0;
+
+        NakReceiverWindowInOrder() {super("NakReceiverWindow add/remove/stable, in order");}
+
+        void setUp() throws Exception {
+            win=new NakReceiverWindow(new IpAddress(7800), 0);
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++) {
+                win.add(++seqno, msg);
+                win.remove();
+                if(seqno % 100 == 0)
+                    win.stable(seqno);
+            }
+        }
+
+        void tearDown() {
+            win.destroy();
+        }
+    }
+
+    /** Adds pairs of messages in reverse order, so every pair creates a gap which is handed to the retransmitter */
+    static class NakReceiverWindowOutOfOrder extends Benchmark {
+        TimeScheduler timer;
+        NakReceiverWindow win;
+        final Message msg=new Message(null, null, null);
+        long seqno=0;
+
+        NakReceiverWindowOutOfOrder() {super("NakReceiverWindow add/remove/stable, out of order");}
+
+        void setUp() throws Exception {
+            timer=new TimeScheduler(true);
+            win=new NakReceiverWindow(new IpAddress(7800), new NoopRetransmitCommand(), 0, timer);
+            win.setRetransmitTimeouts(new long[]{100, 200, 400});
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i+=2) {
+                win.add(seqno + 2, msg);
+                win.add(seqno + 1, msg);
+                win.remove();
+                win.remove();
+                seqno+=2;
+                if(seqno % 100 == 0)
+                    win.stable(seqno);
+            }
+        }
+
+        void tearDown() throws Exception {
+            win.destroy();
+            timer.cancel();
+        }
+    }
+
+    static class RetransmitterAddRemove extends Benchmark {
+        TimeScheduler timer;
+        Retransmitter xmitter;
+        long seqno=0;
+
+        RetransmitterAddRemove() {super("Retransmitter add/remove");}
+
+        void setUp() throws Exception {
+            timer=new TimeScheduler(true);
+            xmitter=new Retransmitter(new IpAddress(7800), new NoopRetransmitCommand(), timer);
+            xmitter.setRetransmitTimeouts(new long[]{100, 200, 400});
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++) {
+                seqno++;
+                xmitter.add(seqno, seqno);
+                xmitter.remove(seqno);
+            }
+        }
+
+        void tearDown() throws Exception {
+            xmitter.reset();
+            timer.cancel();
+        }
+    }
+
+    static class NoopRetransmitCommand implements Retransmitter.RetransmitCommand {
+        public void retransmit(long first_seqno, long last_seqno, Address sender) {
+        }
+    }
+
+
+    /** Schedules tasks for immediate execution and waits until all of them have run */
+    static class TimeSchedulerExecute extends Benchmark {
+        TimeScheduler timer;
+        int executed=0;
+
+        TimeSchedulerExecute() {super("TimeScheduler add/execute");}
+
+        void setUp() throws Exception {
+            timer=new TimeScheduler(true);
+        }
+
+        void run(final int num) throws Exception {
+            synchronized(this) {
+                executed=0;
+            }
+            for(int i=0; i < num; i++) {
+                timer.add(new TimeScheduler.Task() {
+                    boolean done=false;
+                    public boolean cancelled() {return done;}
+                    public long nextInterval() {return 0;}
+                    public void run() {
+                        done=true;
+                        synchronized(TimeSchedulerExecute.this) {
+                            if(++executed == num)
+                                TimeSchedulerExecute.this.notifyAll();
+                        }
+                    }
+                });
+            }
+            synchronized(this) {
+                while(executed < num)
+                    wait();
+            }
+        }
+
+        void tearDown() throws Exception {
+            timer.cancel();
+        }
+    }
+
+
+    /**
+     * Fragments a 64K message into 8K fragments and reassembles them: FRAG2 runs between a protocol which loops
+     * the fragments back up and one which receives the reassembled messages
+     */
+    static class Fragmentation extends Benchmark {
+        FRAG2 frag;
+        final byte[] buf=new byte[64000];
+        int received=0;
+
+        Fragmentation() {super("FRAG2 fragment/reassemble, 64000 bytes into 8000 byte fragments");}
+
+        void setUp() throws Exception {
+            final Address addr=new IpAddress(7800);
+            frag=new FRAG2();
+            Properties props=new Properties();
+            props.setProperty("frag_size", "8000");
+            frag.setProperties(props);
+            frag.init();
+            frag.setDownProtocol(new Protocol() {
+                public String getName() {return "Loop";}
+                public void down(Event evt) {
+                    if(evt.getType() == Event.MSG)
+                        ((Message)evt.getArg()).setSrc(addr);
+                    frag.up(evt);
+                }
+            });
+            frag.setUpProtocol(new Protocol() {
+                public String getName() {return "Sink";}
+                public void up(Event evt) {
+                    if(evt.getType() == Event.MSG)
+                        received++;
+                }
+            });
+        }
+
+        void run(int num) throws Exception {
+            for(int i=0; i < num; i++)
+                frag.down(new Event(Event.MSG, new Message(null, null, buf)));
+            if(received < num)
+                throw new Exception("received " + received + " messages, expected " + num);
+            received=0;
+        }
+    }
+
+
+    /** Two members on SHARED_LOOPBACK: one multicasts small messages, the other receives them */
+    static class Multicast extends Benchmark {
+        final boolean bundling;
+        JChannel sender, receiver;
+        final byte[] payload=new byte[100];
+        long received=0;
+
+        Multicast(String name, boolean bundling) {
+            super(name, 10000);
+            this.bundling=bundling;
+        }
+
+        void setUp() throws Exception {
+            String props=PROPS.replaceFirst("%b", String.valueOf(bundling));
+            receiver=new JChannel(props);
+            receiver.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    synchronized(Multicast.this) {
+                        received++;
+                        Multicast.this.notifyAll();
+                    }
+                }
+            });
+            sender=new JChannel(props);
+            receiver.connect("StackBenchmark-multicast");
+            sender.connect("StackBenchmark-multicast");
+        }
+
+        void run(int num) throws Exception {
+            long expected;
+            synchronized(this) {
+                expected=received + num;
+            }
+            for(int i=0; i < num; i++)
+                sender.send(new Message(null, null, payload));
+            synchronized(this) {
+                while(received < expected)
+                    wait(1000);
+            }
+        }
+
+        void tearDown() {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+
+    /** Two members on SHARED_LOOPBACK: one sends a unicast to the other, which replies */
+    static class RoundTrip extends Benchmark {
+        JChannel client, server;
+        final byte[] payload=new byte[100];
+        long replies=0;
+
+        RoundTrip() {super("Full stack unicast round trip, 100 bytes");}
+
+        void setUp() throws Exception {
+            String props=PROPS.replaceFirst("%b", "false");
+            server=new JChannel(props);
+            server.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    try {
+                        server.send(new Message(msg.getSrc(), null, payload));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            client=new JChannel(props);
+            client.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    synchronized(RoundTrip.this) {
+                        replies++;
+                        RoundTrip.this.notifyAll();
+                    }
+                }
+            });
+            server.connect("StackBenchmark-roundtrip");
+            client.connect("StackBenchmark-roundtrip");
+        }
+
+        void run(int num) throws Exception {
+            Address dest=server.getLocalAddress();
+            for(int i=0; i < num; i++) {
+                long expected;
+                synchronized(this) {
+                    expected=replies + 1;
+                }
+                client.send(new Message(dest, null, payload));
+                synchronized(this) {
+                    while(replies < expected)
+                        wait(1000);
+                }
+            }
+        }
+
+        void tearDown() {
+            client.close();
+            server.close();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        long warmup=2000, time=1000;
+        int runs=5;
+        String filter=null, save=null, compare=null;
+        for(int i=0; i < args.length; i++) {
+            if("-warmup".equals(args[i])) {
+                warmup=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-time".equals(args[i])) {
+                time=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-runs".equals(args[i])) {
+                runs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-benchmark".equals(args[i])) {
+                filter=args[++i];
+                continue;
+            }
+            if("-save".equals(args[i])) {
+                save=args[++i];
+                continue;
+            }
+            if("-compare".equals(args[i])) {
+                compare=args[++i];
+                continue;
+            }
+            System.out.println("StackBenchmark [-warmup <ms>] [-time <ms per run>] [-runs <number of runs>] " +
+                    "[-benchmark <substring of benchmark names>] [-save <results file>] [-compare <results file>]");
+            return;
+        }
+
+        Properties baseline=null;
+        if(compare != null) {
+            baseline=new Properties();
+            InputStream in=new FileInputStream(compare);
+            try {
+                baseline.load(in);
+            }
+            finally {
+                Util.close(in);
+            }
+        }
+
+        StackBenchmark bench=new StackBenchmark(warmup, time, runs, baseline);
+        bench.run(filter);
+
+        if(save != null) {
+            OutputStream out=new FileOutputStream(save);
+            try {
+                bench.getResults().store(out, "StackBenchmark results in ns/op");
+            }
+            finally {
+                Util.close(out);
+            }
+        }
+    }
+}
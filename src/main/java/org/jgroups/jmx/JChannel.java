@@ -221,6 +221,23 @@ public class JChannel implements JChannelMBean {
         channel.resetStats();
     }
 
+    public boolean getInstrumented() {
+        return channel.getProtocolStack().isInstrumented();
+    }
+
+    /** Enables or disables the instrumentation of all protocols */
+    public void setInstrumented(boolean flag) {
+        channel.getProtocolStack().setInstrumented(flag);
+    }
+
+    public void resetInstrumentation() {
+        channel.getProtocolStack().resetInstrumentation();
+    }
+
+    public String printInstrumentation() {
+        return channel.getProtocolStack().printInstrumentation();
+    }
+
     public long getSentMessages() {return channel.getSentMessages();}
     public long getSentBytes() {return channel.getSentBytes();}
     public long getReceivedMessages() {return channel.getReceivedMessages();}
@@ -53,6 +53,11 @@ public interface JChannelMBean {
 
     Map dumpStats();
 
+    boolean getInstrumented();
+    void setInstrumented(boolean flag);
+    void resetInstrumentation();
+    String printInstrumentation();
+
     View getView();
     String getViewAsString();
     Address getLocalAddress();
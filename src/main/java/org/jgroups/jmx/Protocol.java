@@ -1,5 +1,6 @@
 package org.jgroups.jmx;
 
+import org.jgroups.stack.Instrumentation;
 import org.jgroups.stack.ProtocolObserver;
 
 import java.util.Properties;
@@ -57,6 +58,25 @@ public class Protocol implements ProtocolMBean {
         return prot.dumpStats();
     }
 
+    public boolean getInstrumented() {
+        return prot.isInstrumented();
+    }
+
+    public void setInstrumented(boolean flag) {
+        prot.setInstrumented(flag);
+    }
+
+    public void resetInstrumentation() {
+        Instrumentation instr=prot.getInstrumentation();
+        if(instr != null)
+            instr.reset();
+    }
+
+    public String printInstrumentation() {
+        Instrumentation instr=prot.getInstrumentation();
+        return instr != null? instr.toString() : null;
+    }
+
     public boolean getUpThread() {
         return prot.upThreadEnabled();
     }
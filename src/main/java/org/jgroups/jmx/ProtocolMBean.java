@@ -18,6 +18,10 @@ public interface ProtocolMBean {
     void resetStats();
     String printStats();
     Map dumpStats();
+    boolean getInstrumented();
+    void setInstrumented(boolean flag);
+    void resetInstrumentation();
+    String printInstrumentation();
     boolean getUpThread();
     boolean getDownThread();
     void setObserver(ProtocolObserver observer);
@@ -0,0 +1,39 @@
+package org.jgroups.jmx.protocols;
+
+import org.jgroups.jmx.Protocol;
+
+/**
+ * @version $Id$
+ */
+public class COMPRESS extends Protocol implements COMPRESSMBean {
+    org.jgroups.protocols.COMPRESS p;
+
+    public COMPRESS() {
+    }
+
+    public COMPRESS(org.jgroups.stack.Protocol p) {
+        super(p);
+        this.p=(org.jgroups.protocols.COMPRESS)p;
+    }
+
+    public void attachProtocol(org.jgroups.stack.Protocol p) {
+        super.attachProtocol(p);
+        this.p=(org.jgroups.protocols.COMPRESS)p;
+    }
+
+    public long getNumberOfCompressedMessages() {
+        return p.getNumberOfCompressedMessages();
+    }
+
+    public long getNumberOfUncompressedMessages() {
+        return p.getNumberOfUncompressedMessages();
+    }
+
+    public long getNumberOfSkippedMessages() {
+        return p.getNumberOfSkippedMessages();
+    }
+
+    public double getCompressionRatio() {
+        return p.getCompressionRatio();
+    }
+}
@@ -0,0 +1,13 @@
+package org.jgroups.jmx.protocols;
+
+import org.jgroups.jmx.ProtocolMBean;
+
+/**
+ * @version $Id$
+ */
+public interface COMPRESSMBean extends ProtocolMBean {
+    long getNumberOfCompressedMessages();
+    long getNumberOfUncompressedMessages();
+    long getNumberOfSkippedMessages();
+    double getCompressionRatio();
+}
@@ -52,6 +52,30 @@ public class Discovery extends Protocol implements DiscoveryMBean {
         return p.getNumberOfDiscoveryRequestsSent();
     }
 
+    public int getResponsesSent() {
+        return p.getNumberOfResponsesSent();
+    }
+
+    public int getResponsesSuppressed() {
+        return p.getNumberOfResponsesSuppressed();
+    }
+
+    public String getResponders() {
+        return p.getResponders();
+    }
+
+    public boolean isBreakOnCoordResponse() {
+        return p.isBreakOnCoordResponse();
+    }
+
+    public void setBreakOnCoordResponse(boolean flag) {
+        p.setBreakOnCoordResponse(flag);
+    }
+
+    public String getCachedMembers() {
+        return p.getCachedMembers();
+    }
+
     public Vector findInitialMembers() {
         return p.findInitialMembers();
     }
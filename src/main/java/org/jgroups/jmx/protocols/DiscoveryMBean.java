@@ -16,6 +16,12 @@ public interface DiscoveryMBean extends ProtocolMBean {
     int getPingRequests();
     void setPingRequests(int num_ping_requests);
     int getDiscoveryRequestsSent();
+    int getResponsesSent();
+    int getResponsesSuppressed();
+    String getResponders();
+    boolean isBreakOnCoordResponse();
+    void setBreakOnCoordResponse(boolean flag);
+    String getCachedMembers();
     Vector findInitialMembers();
     String findInitialMembersAsString();
 }
@@ -0,0 +1,79 @@
+package org.jgroups.jmx.protocols;
+
+import org.jgroups.jmx.Protocol;
+
+/**
+ * @version $Id$
+ */
+public class FD_ALL extends Protocol implements FD_ALLMBean {
+    org.jgroups.protocols.FD_ALL p;
+
+    public FD_ALL() {
+    }
+
+    public FD_ALL(org.jgroups.stack.Protocol p) {
+        super(p);
+        this.p=(org.jgroups.protocols.FD_ALL)p;
+    }
+
+    public void attachProtocol(org.jgroups.stack.Protocol p) {
+        super.attachProtocol(p);
+        this.p=(org.jgroups.protocols.FD_ALL)p;
+    }
+
+    public int getNumberOfHeartbeatsSent() {
+        return p.getNumberOfHeartbeatsSent();
+    }
+
+    public int getNumberOfHeartbeatsSuppressed() {
+        return p.getNumberOfHeartbeatsSuppressed();
+    }
+
+    public int getNumberOfHeartbeatsReceived() {
+        return p.getNumberOfHeartbeatsReceived();
+    }
+
+    public int getNumSuspectEventsGenerated() {
+        return p.getNumSuspectEventsGenerated();
+    }
+
+    public long getInterval() {
+        return p.getInterval();
+    }
+
+    public void setInterval(long interval) {
+        p.setInterval(interval);
+    }
+
+    public long getTimeout() {
+        return p.getTimeout();
+    }
+
+    public void setTimeout(long timeout) {
+        p.setTimeout(timeout);
+    }
+
+    public double getPhiThreshold() {
+        return p.getPhiThreshold();
+    }
+
+    public void setPhiThreshold(double phi_threshold) {
+        p.setPhiThreshold(phi_threshold);
+    }
+
+    public String getLocalAddress() {
+        return p.getLocalAddress();
+    }
+
+    public String getMembers() {
+        return p.getMembers();
+    }
+
+    public String printSuspectHistory() {
+        return p.printSuspectHistory();
+    }
+
+    public String printArrivalWindows() {
+        return p.printArrivalWindows();
+    }
+}
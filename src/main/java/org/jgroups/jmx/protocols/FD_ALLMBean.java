@@ -0,0 +1,23 @@
+package org.jgroups.jmx.protocols;
+
+import org.jgroups.jmx.ProtocolMBean;
+
+/**
+ * @version $Id$
+ */
+public interface FD_ALLMBean extends ProtocolMBean {
+    int getNumberOfHeartbeatsSent();
+    int getNumberOfHeartbeatsSuppressed();
+    int getNumberOfHeartbeatsReceived();
+    int getNumSuspectEventsGenerated();
+    long getInterval();
+    void setInterval(long interval);
+    long getTimeout();
+    void setTimeout(long timeout);
+    double getPhiThreshold();
+    void setPhiThreshold(double phi_threshold);
+    String getLocalAddress();
+    String getMembers();
+    String printSuspectHistory();
+    String printArrivalWindows();
+}
@@ -37,4 +37,52 @@ public class MERGE2 extends Protocol implements MERGE2MBean {
     public void setMaxInterval(long l) {
         p.setMaxInterval(l);
     }
+
+    public long getAnnounceInterval() {
+        return p.getAnnounceInterval();
+    }
+
+    public long getDiscoveryTimeout() {
+        return p.getDiscoveryTimeout();
+    }
+
+    public void setDiscoveryTimeout(long timeout) {
+        p.setDiscoveryTimeout(timeout);
+    }
+
+    public int getNumberOfMergeEvents() {
+        return p.getNumberOfMergeEvents();
+    }
+
+    public int getNumberOfMergesCompleted() {
+        return p.getNumberOfMergesCompleted();
+    }
+
+    public int getNumberOfTriggeredRounds() {
+        return p.getNumberOfTriggeredRounds();
+    }
+
+    public int getNumberOfAnnouncementsSent() {
+        return p.getNumberOfAnnouncementsSent();
+    }
+
+    public int getNumberOfForeignAnnouncements() {
+        return p.getNumberOfForeignAnnouncements();
+    }
+
+    public long getLastMergeDuration() {
+        return p.getLastMergeDuration();
+    }
+
+    public double getAverageMergeDuration() {
+        return p.getAverageMergeDuration();
+    }
+
+    public String getLastMergeCoordinators() {
+        return p.getLastMergeCoordinators();
+    }
+
+    public String getForeignCoordinators() {
+        return p.getForeignCoordinators();
+    }
 }
@@ -11,4 +11,16 @@ public interface MERGE2MBean extends ProtocolMBean {
     void setMinInterval(long i);
     long getMaxInterval();
     void setMaxInterval(long l);
+    long getAnnounceInterval();
+    long getDiscoveryTimeout();
+    void setDiscoveryTimeout(long timeout);
+    int getNumberOfMergeEvents();
+    int getNumberOfMergesCompleted();
+    int getNumberOfTriggeredRounds();
+    int getNumberOfAnnouncementsSent();
+    int getNumberOfForeignAnnouncements();
+    long getLastMergeDuration();
+    double getAverageMergeDuration();
+    String getLastMergeCoordinators();
+    String getForeignCoordinators();
 }
@@ -52,6 +52,42 @@ public class SEQUENCER extends Protocol implements SEQUENCERMBean {
         return p.getReceivedBroadcasts();
     }
 
+    public long getBatchesSent() {
+        return p.getBatchesSent();
+    }
+
+    public long getReceivedBatches() {
+        return p.getReceivedBatches();
+    }
+
+    public long getResentForwards() {
+        return p.getResentForwards();
+    }
+
+    public double getAverageBatchSize() {
+        return p.getAverageBatchSize();
+    }
+
+    public int getMaxBatchSize() {
+        return p.getMaxBatchSize();
+    }
+
+    public void setMaxBatchSize(int size) {
+        p.setMaxBatchSize(size);
+    }
+
+    public long getBatchDelay() {
+        return p.getBatchDelay();
+    }
+
+    public void setBatchDelay(long delay) {
+        p.setBatchDelay(delay);
+    }
+
+    public int getForwardTableSize() {
+        return p.getForwardTableSize();
+    }
+
     public void resetStats() {
         super.resetStats();
     }
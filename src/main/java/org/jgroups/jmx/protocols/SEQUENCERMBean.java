@@ -14,5 +14,14 @@ public interface SEQUENCERMBean extends ProtocolMBean {
     long getBroadcast();
     long getReceivedForwards();
     long getReceivedBroadcasts();
+    long getBatchesSent();
+    long getReceivedBatches();
+    long getResentForwards();
+    double getAverageBatchSize();
+    int getMaxBatchSize();
+    void setMaxBatchSize(int size);
+    long getBatchDelay();
+    void setBatchDelay(long delay);
+    int getForwardTableSize();
 
 }
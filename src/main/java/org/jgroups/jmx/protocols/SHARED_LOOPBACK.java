@@ -0,0 +1,47 @@
+package org.jgroups.jmx.protocols;
+
+import org.jgroups.stack.Protocol;
+
+/**
+ * @version $Id$
+ */
+public class SHARED_LOOPBACK extends org.jgroups.jmx.protocols.TP implements SHARED_LOOPBACKMBean {
+    org.jgroups.protocols.SHARED_LOOPBACK tp;
+
+    public SHARED_LOOPBACK() {
+    }
+
+    public SHARED_LOOPBACK(Protocol p) {
+        super(p);
+        tp=(org.jgroups.protocols.SHARED_LOOPBACK)p;
+    }
+
+    public void attachProtocol(Protocol p) {
+        super.attachProtocol(p);
+        tp=(org.jgroups.protocols.SHARED_LOOPBACK)p;
+    }
+
+    public int getMaxQueueSize() {
+        return tp.getMaxQueueSize();
+    }
+
+    public void setMaxQueueSize(int size) {
+        tp.setMaxQueueSize(size);
+    }
+
+    public int getInboundQueueSize() {
+        return tp.getInboundQueueSize();
+    }
+
+    public long getNumPacketsSent() {
+        return tp.getNumPacketsSent();
+    }
+
+    public long getNumPacketsReceived() {
+        return tp.getNumPacketsReceived();
+    }
+
+    public long getNumPacketsDropped() {
+        return tp.getNumPacketsDropped();
+    }
+}
@@ -0,0 +1,13 @@
+package org.jgroups.jmx.protocols;
+
+/**
+ * @version $Id$
+ */
+public interface SHARED_LOOPBACKMBean extends TPMBean {
+    int getMaxQueueSize();
+    void setMaxQueueSize(int size);
+    int getInboundQueueSize();
+    long getNumPacketsSent();
+    long getNumPacketsReceived();
+    long getNumPacketsDropped();
+}
@@ -74,4 +74,16 @@ public class STATS extends org.jgroups.jmx.Protocol implements STATSMBean {
     public String printStats() {
         return p.printStats();
     }
+
+    public boolean isRecordLatency() {
+        return p.isRecordLatency();
+    }
+
+    public void setRecordLatency(boolean flag) {
+        p.setRecordLatency(flag);
+    }
+
+    public String printLatency() {
+        return p.getLatency().toString();
+    }
 }
@@ -20,4 +20,7 @@ public interface STATSMBean extends ProtocolMBean {
     long getReceivedMcastMessages();
     long getReceivedMcastBytes();
     String printStats();
+    boolean isRecordLatency();
+    void setRecordLatency(boolean flag);
+    String printLatency();
 }
@@ -70,6 +70,22 @@ public class NAKACK extends Protocol implements NAKACKMBean {
         p.setMaxXmitSize(max_xmit_size);
     }
 
+    public long getMaxXmitBufBytes() {
+        return p.getMaxXmitBufBytes();
+    }
+
+    public void setMaxXmitBufBytes(long max_xmit_buf_bytes) {
+        p.setMaxXmitBufBytes(max_xmit_buf_bytes);
+    }
+
+    public long getSentTableBytes() {
+        return p.getSentTableBytes();
+    }
+
+    public long getNumSpilledMessages() {
+        return p.getNumSpilledMessages();
+    }
+
     public long getXmitRequestsReceived() {
         return p.getXmitRequestsReceived();
     }
@@ -19,6 +19,10 @@ public interface NAKACKMBean extends ProtocolMBean {
     void setMaxXmitBufSize(int max_xmit_buf_size);
     long getMaxXmitSize();
     void setMaxXmitSize(long max_xmit_size);
+    long getMaxXmitBufBytes();
+    void setMaxXmitBufBytes(long max_xmit_buf_bytes);
+    long getSentTableBytes();
+    long getNumSpilledMessages();
     int getSentTableSize();
     int getReceivedTableSize();
     long getXmitRequestsReceived();
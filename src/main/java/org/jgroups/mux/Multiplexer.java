@@ -1,5 +1,6 @@
 package org.jgroups.mux;
 
+import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.*;
@@ -14,7 +15,14 @@ import java.util.*;
  * Used for dispatching incoming messages. The Multiplexer implements UpHandler and registers with the associated
  * JChannel (there can only be 1 Multiplexer per JChannel). When up() is called with a message, the header of the
  * message is removed and the MuxChannel corresponding to the header's service ID is retrieved from the map,
- * and MuxChannel.up() is called with the message.
+ * and MuxChannel.up() is called with the message.<p/>
+ * By default, every service has its own delivery lane: a bounded queue and a thread which passes the queued events to
+ * the service's MuxChannel. Therefore a slow service (e.g. one blocking in receive()) only delays its own messages, but
+ * not those of the other services sharing the JChannel; when the backlog of a service exceeds lane_capacity events,
+ * the thread calling up() blocks (flow control). All events for a service are delivered by the same thread in the
+ * order in which they were received, so the order of messages from the same sender is preserved. State transfer events
+ * are delivered on the caller's thread, after all events queued for the service before them have been delivered.
+ * Delivery lanes can be disabled with {@link #setUseDeliveryLanes(boolean)}.
  * @author Bela Ban
  * @version $Id: Multiplexer.java,v 1.35.2.4 2007/02/12 18:42:34 vlada Exp $
  */
@@ -55,6 +63,21 @@ public class Multiplexer implements UpHandler {
 
     private long SERVICES_RSP_TIMEOUT=10000;
 
+    /** Whether to deliver events to each service on a separate thread (see class comment) */
+    private boolean use_delivery_lanes=true;
+
+    /** Max number of events queued for a service */
+    private int lane_capacity=10000;
+
+    /** Map<String,ServiceLane>. The delivery lanes, keyed by service ID. Created on demand */
+    private final Map lanes=new HashMap();
+
+    /** Map<String,Promise>. State IDs for which we're waiting for a state (when fetching states in parallel) */
+    private final Map pending_states=new HashMap();
+
+    /** Whether to request the states of all services at once (see {@link #setParallelStateFetching(boolean)}) */
+    private boolean parallel_state_fetching=false;
+
 
 
 
@@ -102,6 +125,64 @@ public class Multiplexer implements UpHandler {
         return generateServiceView(hosts);
     }
 
+    public boolean isUseDeliveryLanes() {
+        return use_delivery_lanes;
+    }
+
+    /** Enables or disables delivery lanes. Should be set before the first MuxChannel is connected */
+    public void setUseDeliveryLanes(boolean use_delivery_lanes) {
+        this.use_delivery_lanes=use_delivery_lanes;
+    }
+
+    public boolean isParallelStateFetching() {
+        return parallel_state_fetching;
+    }
+
+    /**
+     * If true, the states of all services are requested at once and awaited together, rather than one after the
+     * other. Only enable this if the state transfer protocol can handle concurrent transfers: pbcast.STATE_TRANSFER
+     * cannot, as it handles only one outstanding state request (a single digest is set, and stability is suspended
+     * and resumed once per transfer). Parallel fetching is never used when FLUSH is present (a flush per state).
+     * Default is false
+     */
+    public void setParallelStateFetching(boolean parallel_state_fetching) {
+        this.parallel_state_fetching=parallel_state_fetching;
+    }
+
+    public int getLaneCapacity() {
+        return lane_capacity;
+    }
+
+    /** Sets the max number of events queued per service. Takes effect for lanes created afterwards */
+    public void setLaneCapacity(int lane_capacity) {
+        this.lane_capacity=lane_capacity;
+    }
+
+    /**
+     * Returns the delivery statistics of a service: backlog (number of queued events), max_backlog, num_delivered and
+     * avg_queue_time (ms an event waited in the queue). Returns null if the service has no delivery lane
+     */
+    public Map getServiceStats(String service_id) {
+        ServiceLane lane;
+        synchronized(lanes) {
+            lane=(ServiceLane)lanes.get(service_id);
+        }
+        return lane != null? lane.dumpStats() : null;
+    }
+
+    /** Returns Map<String,Map> of service IDs and their delivery statistics (see {@link #getServiceStats(String)}) */
+    public Map dumpServiceStats() {
+        Map retval=new HashMap();
+        synchronized(lanes) {
+            Map.Entry entry;
+            for(Iterator it=lanes.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                retval.put(entry.getKey(), ((ServiceLane)entry.getValue()).dumpStats());
+            }
+        }
+        return retval;
+    }
+
     public boolean stateTransferListenersPresent() {
         return state_transfer_listeners != null && state_transfer_listeners.size() > 0;
     }
@@ -156,10 +237,15 @@ public class Multiplexer implements UpHandler {
     }
 
     /** Fetches the app states for all service IDs in keys.
-     * The keys are a duplicate list, so it cannot be modified by the caller of this method
+     * The keys are a duplicate list, so it cannot be modified by the caller of this method.
+     * The states are fetched one after the other, unless parallel state fetching was enabled (and FLUSH is
+     * absent): then all states are requested at once and we wait for all of them
      * @param keys
      */
     private boolean fetchServiceStates(Address target, Set keys, long timeout) throws ChannelClosedException, ChannelNotConnectedException {
+        if(parallel_state_fetching && keys.size() > 1 && !flush_present)
+            return fetchServiceStatesInParallel(target, keys, timeout);
+
         boolean rc, all_rcs=true;
         String appl_id;
         for(Iterator it=keys.iterator(); it.hasNext();) {
@@ -172,6 +258,66 @@ public class Multiplexer implements UpHandler {
     }
 
 
+    private boolean fetchServiceStatesInParallel(Address target, Set keys, long timeout) throws ChannelClosedException, ChannelNotConnectedException {
+        if(!channel.isOpen())
+            throw new ChannelClosedException();
+        if(!channel.isConnected())
+            throw new ChannelNotConnectedException();
+        if(target == null)
+            target=getCoordinator();
+        Address local_address=getLocalAddress();
+        if(target == null || (local_address != null && target.equals(local_address))) {
+            if(log.isTraceEnabled())
+                log.trace("cannot get state from myself (" + target + "): probably the first member");
+            return false;
+        }
+
+        Map promises=new HashMap();
+        String appl_id;
+        synchronized(pending_states) {
+            for(Iterator it=keys.iterator(); it.hasNext();) {
+                appl_id=(String)it.next();
+                Promise p=new Promise();
+                promises.put(appl_id, p);
+                pending_states.put(appl_id, p);
+            }
+        }
+
+        boolean all_rcs=true;
+        try {
+            if(log.isTraceEnabled())
+                log.trace("fetching states " + keys + " from " + target);
+            for(Iterator it=keys.iterator(); it.hasNext();) {
+                appl_id=(String)it.next();
+                channel.down(new Event(Event.GET_STATE, new StateTransferInfo(target, appl_id, timeout)));
+            }
+
+            long start=System.currentTimeMillis(), time_to_wait;
+            Map.Entry entry;
+            for(Iterator it=promises.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                time_to_wait=timeout > 0? timeout - (System.currentTimeMillis() - start) : 0;
+                Boolean rc=null;
+                if(timeout <= 0 || time_to_wait > 0)
+                    rc=(Boolean)((Promise)entry.getValue()).getResult(time_to_wait);
+                if(rc == null || !rc.booleanValue()) {
+                    if(log.isWarnEnabled())
+                        log.warn("failed fetching state " + entry.getKey() + " from " + target);
+                    all_rcs=false;
+                }
+            }
+        }
+        finally {
+            synchronized(pending_states) {
+                pending_states.keySet().removeAll(promises.keySet());
+            }
+        }
+        if(!all_rcs)
+            channel.down(new Event(Event.RESUME_STABLE));
+        return all_rcs;
+    }
+
+
     /**
      * Fetches the map of services and hosts from the coordinator (Multiplexer). No-op if we are the coordinator
      */
@@ -264,7 +410,7 @@ public class Multiplexer implements UpHandler {
                     log.warn("service " + hdr.id + " not currently running, discarding messgage " + msg);
                     return;
                 }
-                mux_ch.up(evt);
+                dispatch(mux_ch, evt);
                 break;
 
             case Event.VIEW_CHANGE:
@@ -413,11 +559,66 @@ public class Multiplexer implements UpHandler {
     private void passToAllMuxChannels(Event evt) {
         for(Iterator it=services.values().iterator(); it.hasNext();) {
             MuxChannel ch=(MuxChannel)it.next();
+            dispatch(ch, evt);
+        }
+    }
+
+
+    /** Passes an event to a service, via the service's delivery lane if delivery lanes are used */
+    private void dispatch(MuxChannel ch, Event evt) {
+        if(!use_delivery_lanes) {
             ch.up(evt);
+            return;
+        }
+        ServiceLane lane;
+        synchronized(lanes) {
+            lane=(ServiceLane)lanes.get(ch.getId());
+            if(lane == null || lane.ch != ch) {
+                if(lane != null)
+                    lane.stop();
+                lane=new ServiceLane(ch);
+                lanes.put(ch.getId(), lane);
+                lane.start();
+            }
+        }
+        lane.add(evt);
+    }
+
+
+    /**
+     * Passes an event to a service on the caller's thread, after all events queued for the service have been
+     * delivered. Used for state transfer events, which have to be handled synchronously
+     */
+    private void deliver(MuxChannel ch, Event evt) {
+        ServiceLane lane;
+        synchronized(lanes) {
+            lane=(ServiceLane)lanes.get(ch.getId());
+        }
+        if(lane != null && lane.ch == ch)
+            lane.waitUntilEmpty();
+        ch.up(evt);
+    }
+
+
+    private void stopLane(String id) {
+        ServiceLane lane;
+        synchronized(lanes) {
+            lane=(ServiceLane)lanes.remove(id);
+        }
+        if(lane != null)
+            lane.stop();
+    }
+
+    private void stopAllLanes() {
+        synchronized(lanes) {
+            for(Iterator it=lanes.values().iterator(); it.hasNext();)
+                ((ServiceLane)it.next()).stop();
+            lanes.clear();
         }
     }
 
     public MuxChannel remove(String id) {
+        stopLane(id);
         synchronized(services) {
             return (MuxChannel)services.remove(id);
         }
@@ -448,6 +649,7 @@ public class Multiplexer implements UpHandler {
 
 
     public void unregister(String appl_id) {
+        stopLane(appl_id);
         synchronized(services) {
             services.remove(appl_id);
         }
@@ -470,6 +672,7 @@ public class Multiplexer implements UpHandler {
                 }
                 channel.close();
                 services.clear();
+                stopAllLanes();
             }
             return all_closed;
         }
@@ -485,6 +688,7 @@ public class Multiplexer implements UpHandler {
                 mux_ch.closeMessageQueue(true);
             }
         }
+        stopAllLanes();
     }
 
     public boolean shutdown() {
@@ -504,6 +708,7 @@ public class Multiplexer implements UpHandler {
                 }
                 channel.shutdown();
                 services.clear();
+                stopAllLanes();
             }
             return all_closed;
         }
@@ -616,7 +821,7 @@ public class Multiplexer implements UpHandler {
                 throw new IllegalArgumentException("didn't find service with ID=" + id + " to fetch state from");
 
             // evt.setArg(info);
-            mux_ch.up(evt); // state_id will be null, get regular state from the service named state_id
+            deliver(mux_ch, evt); // state_id will be null, get regular state from the service named state_id
         }
         catch(Throwable ex) {
             if(log.isErrorEnabled())
@@ -636,8 +841,15 @@ public class Multiplexer implements UpHandler {
         tmp=info.state_id;
 
         if(tmp == null) {
-            if(log.isTraceEnabled())
-                log.trace("state is null, not passing up: " + info);
+            // we cannot tell which service the state was for, so fail all pending fetches rather than have
+            // fetchServiceStatesInParallel() wait for them until the timeout (or forever if there is none)
+            if(log.isWarnEnabled())
+                log.warn("state ID is null, not passing up: " + info);
+            synchronized(pending_states) {
+                for(Iterator it=pending_states.values().iterator(); it.hasNext();)
+                    ((Promise)it.next()).setResult(Boolean.FALSE);
+                pending_states.clear();
+            }
             return;
         }
 
@@ -659,8 +871,15 @@ public class Multiplexer implements UpHandler {
             StateTransferInfo tmp_info=info.copy();
             tmp_info.state_id=substate_id;
             evt.setArg(tmp_info);
-            mux_ch.up(evt); // state_id will be null, get regular state from the service named state_id
+            deliver(mux_ch, evt); // state_id will be null, get regular state from the service named state_id
+        }
+
+        Promise p;
+        synchronized(pending_states) {
+            p=(Promise)pending_states.remove(tmp);
         }
+        if(p != null)
+            p.setResult(Boolean.valueOf(evt.getType() == Event.STATE_TRANSFER_INPUTSTREAM || info.state != null));
     }
 
     private void handleServiceStateRequest(ServiceInfo info, Address sender) throws Exception {
@@ -740,7 +959,7 @@ public class Multiplexer implements UpHandler {
                 MuxChannel ch=(MuxChannel)services.get(service);
                 if(ch != null) {
                     Event view_evt=new Event(Event.VIEW_CHANGE, service_view);
-                    ch.up(view_evt);
+                    dispatch(ch, view_evt);
                 }
                 else {
                     if(log.isTraceEnabled())
@@ -783,7 +1002,7 @@ public class Multiplexer implements UpHandler {
                 MuxChannel ch=(MuxChannel)services.get(service);
                 if(ch != null) {
                     Event view_evt=new Event(Event.VIEW_CHANGE, service_view);
-                    ch.up(view_evt);
+                    dispatch(ch, view_evt);
                 }
                 else {
                     if(log.isTraceEnabled())
@@ -887,7 +1106,7 @@ public class Multiplexer implements UpHandler {
             membersCopy.retainAll(my_services);
             MergeView v=new MergeView(view.getVid(), membersCopy, view.getSubgroups());
             Event evt=new Event(Event.VIEW_CHANGE, v);
-            ch.up(evt);
+            dispatch(ch, evt);
         }
     }
 
@@ -927,7 +1146,7 @@ public class Multiplexer implements UpHandler {
                         MuxChannel ch=(MuxChannel)services.get(service);
                         if(ch != null) {
                             Event view_evt=new Event(Event.VIEW_CHANGE, service_view);
-                            ch.up(view_evt);
+                            dispatch(ch, view_evt);
                         }
                         else {
                             if(log.isTraceEnabled())
@@ -978,6 +1197,128 @@ public class Multiplexer implements UpHandler {
     }
 
 
+    /**
+     * Delivery lane of a service: events are added to a bounded queue by the thread calling up() and passed to the
+     * MuxChannel by a separate thread, in the order in which they were added
+     */
+    private class ServiceLane implements Runnable {
+        final MuxChannel         ch;
+        final BoundedLinkedQueue queue;
+        Thread                   thread=null;
+
+        /** Number of events added, but not yet delivered (including the one currently being delivered) */
+        int                      backlog=0;
+        int                      max_backlog=0;
+        long                     num_delivered=0, total_queue_time=0;
+
+        ServiceLane(MuxChannel ch) {
+            this.ch=ch;
+            this.queue=new BoundedLinkedQueue(Math.max(1, lane_capacity));
+        }
+
+        synchronized void start() {
+            if(thread == null) {
+                thread=new Thread(Util.getGlobalThreadGroup(), this, "MuxLane-" + ch.getId());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null)
+                tmp.interrupt();
+            backlog=0;
+            notifyAll();
+        }
+
+        void add(Event evt) {
+            synchronized(this) {
+                if(thread == null)
+                    return;
+                backlog++;
+                if(backlog > max_backlog)
+                    max_backlog=backlog;
+            }
+            try {
+                queue.put(new QueuedEvent(evt));
+            }
+            catch(InterruptedException e) {
+                synchronized(this) {
+                    backlog--;
+                    notifyAll();
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Blocks until all events added so far have been delivered (or the lane has been stopped) */
+        synchronized void waitUntilEmpty() {
+            while(backlog > 0 && thread != null && Thread.currentThread() != thread) {
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        synchronized Map dumpStats() {
+            Map retval=new HashMap();
+            retval.put("backlog", new Integer(backlog));
+            retval.put("max_backlog", new Integer(max_backlog));
+            retval.put("num_delivered", new Long(num_delivered));
+            retval.put("avg_queue_time", new Double(num_delivered > 0? total_queue_time / (double)num_delivered : 0));
+            return retval;
+        }
+
+        public void run() {
+            QueuedEvent qe;
+            while(thread != null && Thread.currentThread().equals(thread)) {
+                try {
+                    qe=(QueuedEvent)queue.take();
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+                long queue_time=System.currentTimeMillis() - qe.timestamp;
+                try {
+                    ch.up(qe.evt);
+                }
+                catch(Throwable t) {
+                    if(log.isErrorEnabled())
+                        log.error("failed passing event " + qe.evt + " to service " + ch.getId(), t);
+                }
+                synchronized(this) {
+                    num_delivered++;
+                    total_queue_time+=queue_time;
+                    if(backlog > 0)
+                        backlog--;
+                    if(backlog == 0)
+                        notifyAll();
+                }
+            }
+        }
+
+        public String toString() {
+            return ch.getId() + ": " + dumpStats();
+        }
+    }
+
+
+    private static class QueuedEvent {
+        final Event evt;
+        final long  timestamp=System.currentTimeMillis();
+
+        QueuedEvent(Event evt) {
+            this.evt=evt;
+        }
+    }
+
+
     private static class BlockOkCollector {
         int num_block_oks=0;
 
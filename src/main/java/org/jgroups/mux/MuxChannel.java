@@ -101,7 +101,11 @@ public class MuxChannel extends JChannel {
     }
 
     public Map dumpStats() {
-        return ch.dumpStats();
+        Map retval=ch.dumpStats();
+        Map lane_stats=mux.getServiceStats(id);
+        if(retval != null && lane_stats != null)
+            retval.put("MUX", lane_stats);
+        return retval;
     }
 
 
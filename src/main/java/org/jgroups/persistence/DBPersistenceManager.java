@@ -13,6 +13,7 @@ package org.jgroups.persistence;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jgroups.util.Util;
 
 import java.io.*;
 import java.sql.*;
@@ -20,7 +21,14 @@ import java.util.*;
 
 
 /**
- * Class will be utilized
+ * JDBC based PersistenceManager. Connections are pooled (jdbc.pool_size) and every pooled connection caches its
+ * prepared statements. Saves are upserts: an UPDATE is tried first and rows that didn't exist are INSERTed, so
+ * there is no separate existence check. saveAll() writes all entries in JDBC batches of jdbc.batch_size rows
+ * within a single transaction.<p/>
+ * If jdbc.write_behind_delay is greater than 0, save() only queues the entry, and a flusher thread writes all
+ * entries queued during that delay in one batch; multiple saves of the same key are coalesced into one write.
+ * When more than jdbc.max_pending entries are queued, save() flushes synchronously. remove(), clear(),
+ * retrieveAll() and shutDown() flush queued entries first, so they always see the latest state.
  */
 public class DBPersistenceManager implements PersistenceManager {
 
@@ -89,6 +97,16 @@ public class DBPersistenceManager implements PersistenceManager {
     }
 
 
+    /**
+     * Creates the manager from already loaded properties (e.g. for an embedded database)
+     * @param props
+     * @exception Exception
+     */
+    public DBPersistenceManager(Properties props) throws Exception {
+        init(props);
+    }
+
+
     /**
      * used to intitiailize complete DB access. THis method will use
      * existing database to create schema (if it doesnt exist) and
@@ -97,80 +115,73 @@ public class DBPersistenceManager implements PersistenceManager {
      * @exception Exception;
      */
     protected void init(InputStream in) throws Exception {
-        list=new Vector();
-        readProps(in);
-        loadDriver();
+        Properties tmp=new Properties();
+        tmp.load(in);
+        init(tmp);
+    }
+
 
-        //check conn
-        Connection conn=this.getConnection();
-        this.closeConnection(conn);
+    protected void init(Properties properties) throws Exception {
+        readProps(properties);
+        loadDriver();
+        pool=new ConnectionPool(pool_size);
         createDBTables();
-        retrieveAll(); // work around to make sure, no duplicates are created.
-        log.error(" Done constructing DB Persist Manager");
+        if(write_behind_delay > 0)
+            startFlusher();
+        if(log.isDebugEnabled())
+            log.debug("done constructing DB persistence manager (pool_size=" + pool_size + ", batch_size=" + batch_size +
+                      ", write_behind_delay=" + write_behind_delay + ")");
     }
 
 
-    // TODO list for this implementation
-    // add constructor for xml file
-    // add constructor for default
+    public int getPoolSize()                       {return pool_size;}
+    public int getBatchSize()                      {return batch_size;}
+    public void setBatchSize(int batch_size)       {this.batch_size=batch_size;}
+    public long getWriteBehindDelay()              {return write_behind_delay;}
+    public int getMaxPending()                     {return max_pending;}
+    public void setMaxPending(int max_pending)     {this.max_pending=max_pending;}
+    public long getNumberOfRowsWritten()           {return num_rows_written;}
+    public long getNumberOfBatches()               {return num_batches;}
+    public long getNumberOfFlushes()               {return num_flushes;}
+    public long getNumberOfCoalescedSaves()        {return num_coalesced_saves;}
+
+    public int getNumberOfPendingSaves() {
+        synchronized(pending) {
+            return pending.size();
+        }
+    }
 
 
     /**
-     * Saves NV pair as serializable object; 
+     * Saves NV pair as serializable object;
      * creates if new, stores new state if already exists.
      * @param key
      * @param val
      * @exception CannotPersistException;
      */
     public void save(Serializable key, Serializable val) throws CannotPersistException {
-        // checking if this is update or new entry
-        if(!entryExists(key)) {
-            log.error(" entry doesnt exist for " + key.toString());
-            try {
-                addNewEntry(key, val);
-                list.add(key.toString());
-                return;
-            }
-            catch(Throwable t1) {
-                t1.printStackTrace();
-                //trace here
-                throw new CannotPersistException(t1, " error adding a completely new entry in to DB ");
+        if(write_behind_delay > 0) {
+            boolean flush_now;
+            synchronized(pending) {
+                if(pending.containsKey(key))
+                    num_coalesced_saves++;
+                pending.put(key, val);
+                flush_now=pending.size() >= max_pending;
+                pending.notifyAll();
             }
-        }// checking entries
-
-        // THis is for regular updates to the key,val pair
-        Connection conn=null;
-        PreparedStatement prepStat=null;
-        try {
-            conn=this.getConnection();
-            String keyStr=null;
-            keyStr=key.toString();
-            byte[] keyBytes=getBytes(key);
-            byte[] valBytes=getBytes(val);
-            log.error(" value is " + val);
-            //use simple execute, do not create prepared statement
-            prepStat=conn.prepareStatement(updateStat);
-            prepStat.setString(3, keyStr);
-            prepStat.setBytes(1, keyBytes);
-            prepStat.setBytes(2, valBytes);
-            prepStat.executeQuery();
-        }
-        catch(Throwable t) {
-            //trace here
-            t.printStackTrace();
-            // throw exception here
-            throw new CannotPersistException(t, "error updating an existing entry in to the database ");
+            if(flush_now)
+                flush();
+            return;
         }
-                // cleanup
-        finally {
+
+        Map map=new HashMap(2);
+        map.put(key, val);
+        synchronized(write_lock) {
             try {
-                if(prepStat != null) prepStat.close();
-                this.closeConnection(conn);
+                write(map);
             }
             catch(Throwable t) {
-                // trace
-                conn=null;
-                prepStat=null;
+                throw new CannotPersistException(t, "error saving " + key + " in the database");
             }
         }
     }
@@ -182,103 +193,66 @@ public class DBPersistenceManager implements PersistenceManager {
      * @exception CannotRemoveException;
      */
     public Serializable remove(Serializable key) throws CannotRemoveException {
-        Connection conn=null;
-        Statement stat=null;
-        PreparedStatement prepStat=null;
-        ResultSet set=null;
-        Serializable val=null;
+        synchronized(write_lock) {
+            Serializable val=null;
+            boolean was_pending;
+            synchronized(pending) {
+                was_pending=pending.containsKey(key);
+                if(was_pending)
+                    val=(Serializable)pending.remove(key);
+            }
 
-        try {
-            conn=this.getConnection();
-            stat=conn.createStatement();
-            String exQuery=" select * from replhashmap where key like '" + key.toString() + '\'';
-            set=stat.executeQuery(exQuery);
-            set.next();
-            val=getSerializable(set.getBinaryStream(3));
-        }
-        catch(Throwable t3) {
-            //trace
-            t3.printStackTrace();
-            throw new CannotRemoveException(t3, " Error retrieving value for given key");
-        }
-        finally {
+            PooledConnection pc=null;
+            boolean success=false;
             try {
-                if(prepStat != null) prepStat.close();
-                this.closeConnection(conn);
+                pc=pool.acquire();
+                if(!was_pending) {
+                    PreparedStatement select=pc.prepare(selectStat);
+                    select.setString(1, key.toString());
+                    ResultSet set=select.executeQuery();
+                    try {
+                        if(set.next())
+                            val=getSerializable(set.getBinaryStream(1));
+                    }
+                    finally {
+                        set.close();
+                    }
+                }
+                PreparedStatement delete=pc.prepare(removeStat);
+                delete.setString(1, key.toString());
+                delete.executeUpdate();
+                pc.conn.commit();
+                success=true;
             }
             catch(Throwable t) {
-                // trace
-                conn=null;
-                prepStat=null;
+                throw new CannotRemoveException(t, "Could not remove existing entry due to error in jdbc transaction");
             }
-        }
-
-
-        try {
-            conn=this.getConnection();
-            prepStat=conn.prepareStatement(removeStat);
-            prepStat.setString(1, key.toString());
-            prepStat.executeQuery();
-            list.remove(key.toString());
-        }
-        catch(Throwable t) {
-            //trace here..
-            t.printStackTrace();
-            // throw Exception
-            throw new CannotRemoveException(t, "Could not remove existing entry due to error in jdbc transaction");
-        }
-
-                // cleanup
-        finally {
-            try {
-                set.close();
-                stat.close();
-                if(prepStat != null) prepStat.close();
-                this.closeConnection(conn);
+            finally {
+                release(pc, success);
             }
-            catch(Throwable t) {
-                // trace
-                conn=null;
-                stat=null;
-            }//end of try..catch
-        }// end of finally..
-        return val;
-    }// end of remove
+            return val;
+        }
+    }
 
 
     /**
-     * Saves all row entries for the map to DB.
+     * Saves all row entries for the map to DB, in JDBC batches and a single transaction. Entries queued by
+     * write-behind are written in the same transaction.
      * @param map
      * @exception CannotPersistException;
      */
-    public synchronized void saveAll(Map map) throws CannotPersistException {
-        Iterator iter=null;
-        try {
-            Set keySet=map.keySet();
-            iter=keySet.iterator();
-        }
-        catch(Throwable t) {
-            t.printStackTrace();
-            //trace here
-            throw new CannotPersistException(t, "Error with the map entered to saveAll");
-        }
-
-        //Individually saving all
-        while(iter.hasNext()) {
+    public void saveAll(Map map) throws CannotPersistException {
+        synchronized(write_lock) {
+            Map tmp=drainPending();
+            tmp.putAll(map);
             try {
-                Serializable key=(Serializable) iter.next();
-                Serializable val=(Serializable) map.get(key);
-
-                // dont this in same thread, optimization can be added
-                this.save(key, val);
+                write(tmp);
             }
-            catch(Throwable t2) {
-                t2.printStackTrace();
-                //trace here
-                continue;
+            catch(Throwable t) {
+                throw new CannotPersistException(t, "error saving " + tmp.size() + " entries in the database");
             }
-        }// end of while..
-    }// end of saveall
+        }
+    }
 
 
     /**
@@ -286,35 +260,30 @@ public class DBPersistenceManager implements PersistenceManager {
      * @return Map;
      * @exception CannotRetrieveException;
      */
-    public synchronized Map retrieveAll() throws CannotRetrieveException {
-        Connection conn=null;
-        Statement stat=null;
-        ResultSet set=null;
-        Map map=null;
+    public Map retrieveAll() throws CannotRetrieveException {
+        PooledConnection pc=null;
+        boolean success=false;
         try {
-            conn=this.getConnection();
-            stat=conn.createStatement();
-            set=stat.executeQuery(" select * from replhashmap");
-            map=retrieveAll(set);
+            flush();
+            pc=pool.acquire();
+            ResultSet set=pc.prepare(selectAllStat).executeQuery();
+            try {
+                Map map=retrieveAll(set);
+                pc.conn.commit();
+                success=true;
+                return map;
+            }
+            finally {
+                set.close();
+            }
         }
         catch(Throwable t) {
-            //trace here
             throw new CannotRetrieveException(t, "Error happened while querying the database for bulk retrieve, try starting DB manually");
         }
-
-
-        //finally
-        try {
-            stat.close();
-            this.closeConnection(conn);
-        }
-        catch(Throwable t1) {
-            // trace it
-            // ignore
+        finally {
+            release(pc, success);
         }
-
-        return map;
-    }// end of retrieveall
+    }
 
 
     /**
@@ -325,13 +294,10 @@ public class DBPersistenceManager implements PersistenceManager {
     private Map retrieveAll(ResultSet result) throws Exception {
         HashMap map=new HashMap();
         while(result.next()) {
-            InputStream inputStrKey=result.getBinaryStream(2);
-            InputStream inputStrVal=result.getBinaryStream(3);
-            Serializable key=getSerializable(inputStrKey);
-            Serializable val=getSerializable(inputStrVal);
+            Serializable key=getSerializable(result.getBinaryStream(1));
+            Serializable val=getSerializable(result.getBinaryStream(2));
             map.put(key, val);
-            list.add(key.toString());
-        }// end of while..
+        }
         return map;
     }
 
@@ -341,36 +307,82 @@ public class DBPersistenceManager implements PersistenceManager {
      * @exception CannotRemoveException;
      */
     public void clear() throws CannotRemoveException {
-        Connection conn=null;
-        Statement stat=null;
-        try {
-            conn=this.getConnection();
-            stat=conn.createStatement();
-            stat.executeQuery("delete from replhashmap");
-        }
-        catch(Throwable t) {
-            //trace here
-            throw new CannotRemoveException(t, " delete all query failed with existing database");
+        synchronized(write_lock) {
+            synchronized(pending) {
+                pending.clear();
+            }
+            PooledConnection pc=null;
+            boolean success=false;
+            try {
+                pc=pool.acquire();
+                pc.prepare(clearStat).executeUpdate();
+                pc.conn.commit();
+                success=true;
+            }
+            catch(Throwable t) {
+                throw new CannotRemoveException(t, " delete all query failed with existing database");
+            }
+            finally {
+                release(pc, success);
+            }
         }
+    }
 
-        //finally
-        try {
-            stat.close();
-            this.closeConnection(conn);
-        }
-        catch(Throwable t) {
-            conn=null;
-            stat=null;
+
+    /**
+     * Writes all entries queued by write-behind to the database. No-op if write-behind is disabled
+     * @exception CannotPersistException;
+     */
+    public void flush() throws CannotPersistException {
+        synchronized(write_lock) {
+            Map tmp=drainPending();
+            if(tmp.isEmpty())
+                return;
+            try {
+                write(tmp);
+                num_flushes++;
+            }
+            catch(Throwable t) {
+                // re-queue the entries which haven't been saved again in the meantime, so the next flush retries them
+                synchronized(pending) {
+                    for(Iterator it=tmp.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry entry=(Map.Entry)it.next();
+                        if(!pending.containsKey(entry.getKey()))
+                            pending.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                throw new CannotPersistException(t, "error flushing " + tmp.size() + " entries to the database");
+            }
         }
     }
 
 
     /**
-     * Shutting down the database cleanly
+     * Flushes queued entries and closes all pooled connections
      */
     public void shutDown() {
-        // non-trivial problem, more research required
-        // no-op for now..
+        Thread tmp=flusher;
+        flusher=null;
+        if(tmp != null) {
+            synchronized(pending) {
+                pending.notifyAll();
+            }
+            tmp.interrupt();
+            try {
+                tmp.join(write_behind_delay + 1000);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        }
+        catch(CannotPersistException e) {
+            if(log.isErrorEnabled()) log.error("failed flushing pending entries on shutdown", e);
+        }
+        if(pool != null)
+            pool.close();
     }
 
 
@@ -379,51 +391,86 @@ public class DBPersistenceManager implements PersistenceManager {
      * The private interfaces are used specifically to this manager
      */
 
+    /** Removes and returns all entries queued by write-behind */
+    private Map drainPending() {
+        synchronized(pending) {
+            Map tmp=new HashMap(pending);
+            pending.clear();
+            return tmp;
+        }
+    }
+
+
     /**
-     * Used to enter a completely new row in to the current table
-     * @param Serializable; key
-     * @param Serializable; value
-     * @exception CannotPersistException;
+     * Upserts all entries in batches of batch_size rows, using a single connection and transaction. Needs to be
+     * called with write_lock held: concurrent upserts of the same new key would both find no row to UPDATE, and
+     * both INSERT it
+     * @param map
+     * @exception Exception;
      */
-    private void addNewEntry(Serializable key, Serializable val) throws CannotPersistException, CannotConnectException {
-        Connection conn=getConnection();
+    private void write(Map map) throws Exception {
+        if(map.isEmpty())
+            return;
+        PooledConnection pc=pool.acquire();
+        boolean success=false;
         try {
-            PreparedStatement prepStat=conn.prepareStatement(insertStat);
-            prepStat.setString(1, key.toString());
-            byte[] keyBytes=getBytes(key);
-            byte[] valBytes=getBytes(val);
-            //InputStream keyStream = getBinaryInputStream(key);
-            //InputStream valStream = getBinaryInputStream(val);
-            prepStat.setBytes(2, keyBytes);
-            prepStat.setBytes(3, valBytes);
-            //prepStat.setBinaryStream(keyStream);
-            //prepStat.setBinaryStream(valStream);
-            prepStat.executeQuery();
-            conn.commit();
-            log.error(" executing insert " + insertStat);
+            List entries=new ArrayList(map.entrySet());
+            for(int from=0; from < entries.size(); from+=batch_size)
+                upsert(pc, entries.subList(from, Math.min(entries.size(), from + batch_size)));
+            pc.conn.commit();
+            success=true;
         }
-        catch(Throwable t) {
-            //conn.rollback();
-            t.printStackTrace();
-            //trace here
-            throw new CannotPersistException(t, "error adding new entry using creating Db connection and schema");
+        finally {
+            release(pc, success);
         }
-    }// end of addentry..
+    }
 
 
     /**
-     * Gets a binaryinputstream from a serialized object
-     * @param Serializable;
-     * @return BinaryInputStream;
-     * @exception Exception;
+     * Runs the UPDATEs for all entries as one batch, then INSERTs the entries for which no row was updated
+     * as a second batch. Drivers which don't report update counts for batches have their UPDATEs re-executed
+     * individually to find out which rows exist.
      */
-    private java.io.InputStream getBinaryInputStream(Serializable ser) throws Exception {
-        ByteArrayOutputStream stream=new ByteArrayOutputStream();
-        ObjectOutputStream keyoos=new ObjectOutputStream(stream);
-        keyoos.writeObject(ser);
-        ByteArrayInputStream pipe=new ByteArrayInputStream(stream.toByteArray());
-        return pipe;
-    }// end of stream conversion
+    private void upsert(PooledConnection pc, List entries) throws Exception {
+        int size=entries.size();
+        String[] keys=new String[size];
+        byte[][] key_bytes=new byte[size][], val_bytes=new byte[size][];
+        PreparedStatement update=pc.prepare(updateStat);
+        for(int i=0; i < size; i++) {
+            Map.Entry entry=(Map.Entry)entries.get(i);
+            keys[i]=entry.getKey().toString();
+            key_bytes[i]=getBytes((Serializable)entry.getKey());
+            val_bytes[i]=getBytes((Serializable)entry.getValue());
+            update.setBytes(1, key_bytes[i]);
+            update.setBytes(2, val_bytes[i]);
+            update.setString(3, keys[i]);
+            update.addBatch();
+        }
+        int[] counts=update.executeBatch();
+
+        PreparedStatement insert=null;
+        for(int i=0; i < size; i++) {
+            int count=i < counts.length? counts[i] : Statement.SUCCESS_NO_INFO;
+            if(count == Statement.SUCCESS_NO_INFO) {
+                update.setBytes(1, key_bytes[i]);
+                update.setBytes(2, val_bytes[i]);
+                update.setString(3, keys[i]);
+                count=update.executeUpdate();
+            }
+            if(count == 0) {
+                if(insert == null)
+                    insert=pc.prepare(insertStat);
+                insert.setString(1, keys[i]);
+                insert.setBytes(2, key_bytes[i]);
+                insert.setBytes(3, val_bytes[i]);
+                insert.addBatch();
+            }
+        }
+        if(insert != null)
+            insert.executeBatch();
+        num_batches++;
+        num_rows_written+=size;
+    }
 
 
     /**
@@ -439,63 +486,6 @@ public class DBPersistenceManager implements PersistenceManager {
     }
 
 
-    /**
-     * Used to enter a completely new row in to the current table
-     * @param Serializable; key
-     * @param Serializable; value
-     * @exception CannotPersistException;
-     */
-    private void addNewEntryGen(Serializable key, Serializable val) throws CannotPersistException, CannotConnectException {
-        Connection conn=getConnection();
-        try {
-            PreparedStatement prepStat=conn.prepareStatement(insertStat);
-            prepStat.setString(1, key.toString());
-            prepStat.setBytes(2, getBytes(key));
-            prepStat.setBytes(3, getBytes(val));
-            prepStat.executeUpdate();
-        }
-        catch(Throwable t) {
-            //trace here
-            throw new CannotPersistException(t, "error adding new entry using creating Db connection and schema");
-        }
-    }// end of entering new row gen
-
-    /**
-     * Used to enter a completely new row in to the current table
-     * @param Serializable; key
-     * @param Serializable; value
-     * @exception CannotPersistException;
-     */
-    private void addNewEntryOra(Serializable key, Serializable val) throws CannotPersistException, CannotConnectException {
-        Connection conn=getConnection();
-        try {
-            PreparedStatement prepStat=conn.prepareStatement(insertStat);
-            prepStat.setString(1, key.toString());
-            InputStream keyBin=getBinaryInputStream(key);
-            InputStream keyVal=getBinaryInputStream(val);
-            byte[] keyBytes=getBytes(key);
-            byte[] valBytes=getBytes(val);
-            prepStat.setBytes(2, keyBytes);
-            prepStat.setBytes(3, valBytes);
-            prepStat.executeBatch();
-        }
-        catch(Throwable t) {
-            //trace here
-            throw new CannotPersistException(t, "error adding new entry using creating Db connection and schema");
-        }
-    }// end of entering new row ora
-
-
-    /**
-     * Cache checking
-     * @param java.io.Serializable
-     * @return boolean;
-     */
-    private boolean entryExists(Serializable key) {
-        return list.contains(key.toString());
-    }
-
-
     /**
      * Conversion helper
      * @param Serializable;
@@ -505,46 +495,70 @@ public class DBPersistenceManager implements PersistenceManager {
         ByteArrayOutputStream stream=new ByteArrayOutputStream();
         ObjectOutputStream keyoos=new ObjectOutputStream(stream);
         keyoos.writeObject(ser);
-        byte[] keyBytes=stream.toByteArray();
-        return keyBytes;
+        keyoos.close();
+        return stream.toByteArray();
     }// end of getBytes
 
 
+    private void release(PooledConnection pc, boolean success) {
+        if(pc == null)
+            return;
+        if(!success) {
+            try {
+                pc.conn.rollback();
+            }
+            catch(Throwable t) {
+            }
+        }
+        pool.release(pc, success);
+    }
 
 
-    /**
-     * ALL IMPL below is for INIT purposes
-     */
+    private void startFlusher() {
+        flusher=new Thread(new Runnable() {
+            public void run() {
+                while(flusher != null) {
+                    synchronized(pending) {
+                        while(pending.isEmpty() && flusher != null) {
+                            try {
+                                pending.wait();
+                            }
+                            catch(InterruptedException e) {
+                            }
+                        }
+                    }
+                    if(flusher == null)
+                        break;
+                    // coalesce all saves arriving within write_behind_delay into one flush
+                    Util.sleep(write_behind_delay);
+                    try {
+                        flush();
+                    }
+                    catch(CannotPersistException e) {
+                        if(log.isErrorEnabled()) log.error("write-behind flush failed, will be retried", e);
+                        Util.sleep(write_behind_delay);
+                    }
+                }
+            }
+        }, "DBPersistenceManager.Flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
 
-    /**
-     * This method will be invoked by defauly by each persistence
-     * manager to read from a default location or one provided by
-     * the caller.
-     * @return void;
-     * @exception Exception;
-     */
-    private void readProps(String filePath) throws Exception {
-        FileInputStream _stream=new FileInputStream(filePath);
-        props=new Properties();
-        props.load(_stream);
 
-        // using properties to set most used variables
-        driverName=props.getProperty("jdbc.Driver");
-        connStr=props.getProperty("jdbc.Conn").trim();
-        userName=props.getProperty("jdbc.User").trim();
-        userPass=props.getProperty("jdbc.Pass").trim();
-        createTable=props.getProperty("jdbc.table").trim();
-    }
 
+    /**
+     * ALL IMPL below is for INIT purposes
+     */
 
     /**
-     * Duplicate reader using stream instead of dile
-     * @param InputStream;
+     * Reads the JDBC and pooling settings from the given properties
+     * @param Properties;
      * @exception Exception;
      */
-    private void readProps(InputStream input) throws Exception {
-        props=new Properties();
-        props.load(input);
+    private void readProps(Properties properties) throws Exception {
+        props=properties;
+        String str;
 
         // using properties to set most used variables
         driverName=props.getProperty("jdbc.Driver");
@@ -552,6 +566,16 @@ public class DBPersistenceManager implements PersistenceManager {
         userName=props.getProperty("jdbc.User");
         userPass=props.getProperty("jdbc.Pass");
         createTable=props.getProperty("jdbc.table");
+        if(connStr != null)
+            connStr=connStr.trim();
+        if((str=props.getProperty("jdbc.pool_size")) != null)
+            pool_size=Integer.parseInt(str.trim());
+        if((str=props.getProperty("jdbc.batch_size")) != null)
+            batch_size=Integer.parseInt(str.trim());
+        if((str=props.getProperty("jdbc.write_behind_delay")) != null)
+            write_behind_delay=Long.parseLong(str.trim());
+        if((str=props.getProperty("jdbc.max_pending")) != null)
+            max_pending=Integer.parseInt(str.trim());
     }
 
 
@@ -570,103 +594,174 @@ public class DBPersistenceManager implements PersistenceManager {
 
     /**
      * Once the driver is loaded, the DB is ready to be connected. This
-     * method provides a handle to connect to the DB.
+     * method creates a new connection for the pool, with auto-commit
+     * turned off.
      * @return Connection;
      * @exception CannotConnectException;
      */
-    private Connection getConnection() throws CannotConnectException {
+    private Connection createConnection() throws CannotConnectException {
         try {
-            connStr=connStr.trim();
             Connection conn=DriverManager.getConnection(connStr, userName, userPass);
-            if(log.isInfoEnabled()) log.info("userName=" + userName +
-                                             ", userPass=" + userPass + ", connStr=" + connStr);
+            conn.setAutoCommit(false);
+            if(log.isDebugEnabled()) log.debug("created connection to " + connStr + " (userName=" + userName + ")");
             return conn;
         }
         catch(Throwable t) {
-            t.printStackTrace();
-            //trace here
             throw new CannotConnectException(t, "Error in creating connection using provided properties ");
         }
     }// end of get conn..
 
 
-    /**
-     * Method is used for closing created connection.
-     * Pooling is not implemented currently, but will be made available
-     * as soon as this manager uses large number of transactions
-     * @param Connection
-     */
-    private void closeConnection(Connection conn) {
-        try {
-            if(conn != null) {
-                conn.close();
-                conn=null;
-            }
-        }
-        catch(Throwable t) {
-            //trace here
-            conn=null;
-        }
-    }// end of closeConn
-
-
     /**
      * Used to create table provided the DB instance
      * @exception CannotCreateSchemaException;
      * @exception CannotConnectException;
      */
     private void createDBTables() throws CannotCreateSchemaException, CannotConnectException {
-        Connection conn=this.getConnection();
-        Statement stat=null;
+        PooledConnection pc=pool.acquire();
+        boolean exists=false;
         try {
-            stat=conn.createStatement();
+            Statement stat=pc.conn.createStatement();
+            try {
+                stat.executeQuery("select count(*) from " + tabName).close();
+                exists=true;
+            }
+            finally {
+                stat.close();
+            }
         }
-        catch(Exception e) {
-            //trace here..
-            e.printStackTrace();
-            throw new CannotConnectException(e, "there was an error in creating statements for persisting data using created connection");
+        catch(Throwable t) {
+            if(log.isDebugEnabled()) log.debug("table " + tabName + " not found (" + t + "), creating it");
         }
-        try {
-            ResultSet set=stat.executeQuery("select * from replhashmap");
+        finally {
+            release(pc, exists);
         }
-        catch(Throwable t) {
-            t.printStackTrace();
-            //use connection to create new statement
-            addSchemaToDB(conn);
-        }// end of out throwable..
+        if(!exists)
+            addSchemaToDB();
     }// end of method..
 
 
     /**
      * used to create required table within the DB
-     * @param Connection;
      * @exception CannotCreateSchema;
      */
-    private void addSchemaToDB(Connection conn) throws CannotCreateSchemaException {
-        Statement stat=null;
-        Statement stat2=null;
+    private void addSchemaToDB() throws CannotCreateSchemaException, CannotConnectException {
+        PooledConnection pc=pool.acquire();
+        boolean success=false;
         try {
-
-            stat=conn.createStatement();
-            log.error(" executing query for oracle " + createTable);
-            stat.executeQuery(createTable);
+            String sql=createTable != null? createTable : createTableGen;
+            if(log.isDebugEnabled()) log.debug("creating table: " + sql);
+            Statement stat=pc.conn.createStatement();
+            try {
+                stat.executeUpdate(sql);
+            }
+            finally {
+                stat.close();
+            }
+            pc.conn.commit();
+            success=true;
         }
         catch(Throwable t) {
-            t.printStackTrace();
-            // trace here
             throw new CannotCreateSchemaException(t, "error was using schema with blobs");
         }// end of catch
-
-                // clean up is required after init
         finally {
+            release(pc, success);
+        }
+    }// end of gen schema..
+
+
+
+    /** A pooled connection and the prepared statements cached for it */
+    private static class PooledConnection {
+        final Connection conn;
+        final Map statements=new HashMap();
+
+        PooledConnection(Connection conn) {
+            this.conn=conn;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stat=(PreparedStatement)statements.get(sql);
+            if(stat == null) {
+                stat=conn.prepareStatement(sql);
+                statements.put(sql, stat);
+            }
+            return stat;
+        }
+
+        void close() {
+            for(Iterator it=statements.values().iterator(); it.hasNext();) {
+                try {
+                    ((PreparedStatement)it.next()).close();
+                }
+                catch(Throwable t) {
+                }
+            }
+            statements.clear();
             try {
-                if(stat != null) stat.close();
-                this.closeConnection(conn);
+                conn.close();
             }
-            catch(Throwable t3) {
+            catch(Throwable t) {
             }
-        }// end of finally..
-    }// end of gen schema..
+        }
+    }
+
+
+    /**
+     * Hands out up to max_size connections. Connections released after a failure are closed rather than reused,
+     * as they may be broken
+     */
+    private class ConnectionPool {
+        private final LinkedList idle=new LinkedList();
+        private final int max_size;
+        private int size=0;
+        private boolean closed=false;
+
+        ConnectionPool(int max_size) {
+            this.max_size=Math.max(1, max_size);
+        }
+
+        synchronized PooledConnection acquire() throws CannotConnectException {
+            while(true) {
+                if(closed)
+                    throw new CannotConnectException(new IllegalStateException("connection pool is closed"), "manager was shut down");
+                if(!idle.isEmpty())
+                    return (PooledConnection)idle.removeFirst();
+                if(size < max_size) {
+                    PooledConnection pc=new PooledConnection(createConnection());
+                    size++;
+                    return pc;
+                }
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    throw new CannotConnectException(e, "interrupted waiting for a connection");
+                }
+            }
+        }
+
+        synchronized void release(PooledConnection pc, boolean reuse) {
+            if(reuse && !closed)
+                idle.addFirst(pc);
+            else {
+                pc.close();
+                size--;
+            }
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed=true;
+            for(Iterator it=idle.iterator(); it.hasNext();) {
+                ((PooledConnection)it.next()).close();
+                size--;
+            }
+            idle.clear();
+            notifyAll();
+        }
+    }
+
 
     private Properties props=null;
     private String driverName=null;
@@ -674,14 +769,31 @@ public class DBPersistenceManager implements PersistenceManager {
     private String userPass=null;
     private String connStr=null;
     private String createTable=null;
-    private final boolean oracleDB=false;
-    private Vector list=null;
+
+    private int pool_size=4;
+    private int batch_size=500;
+    private long write_behind_delay=0;
+    private int max_pending=10000;
+    private ConnectionPool pool=null;
+
+    /** Entries queued by save() when write-behind is enabled, flushed by the flusher thread */
+    private final Map pending=new HashMap();
+    /**
+     * Serializes all writes (save(), flushes, remove(), saveAll() and clear()), so a flush cannot overwrite a later
+     * modification, and concurrent upserts of the same key don't insert duplicate rows
+     */
+    private final Object write_lock=new Object();
+    private volatile Thread flusher=null;
+
+    private long num_rows_written=0, num_batches=0, num_flushes=0, num_coalesced_saves=0;
 
 
     private static final String tabName="replhashmap";
     private static final String insertStat="insert into replhashmap(key, keyBin, valBin) values  (?, ?, ?)";
-    private static final String updateStat="update replhashmap set keyBin = ?, valBin = ? where key like ?";
-    private static final String removeStat=" delete from replhashmap where key like ?";
+    private static final String updateStat="update replhashmap set keyBin = ?, valBin = ? where key = ?";
+    private static final String selectStat="select valBin from replhashmap where key = ?";
+    private static final String selectAllStat="select keyBin, valBin from replhashmap";
+    private static final String removeStat=" delete from replhashmap where key = ?";
+    private static final String clearStat="delete from replhashmap";
     private static final String createTableGen=" create table replhashmap(key varchar, keyBin varbinary, valBin varbinary)";
-    private static final String createTableOra=" create table replhashmap ( key varchar2(100), keyBin blob, valBin blob)";
 }
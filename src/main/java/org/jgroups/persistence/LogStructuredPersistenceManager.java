@@ -0,0 +1,765 @@
+package org.jgroups.persistence;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jgroups.util.Util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A PersistenceManager which appends every modification as a binary record to a log, which consists of segment
+ * files (segment-&lt;id&gt;.log) in a directory. An in-memory index maps each key to the location of its most recent
+ * record, so save() and remove() only append to the current segment rather than rewriting the store, and values
+ * are only read in retrieveAll() (or remove(), which returns the previous value).<p/>
+ * Record format: length (int), CRC32 of the body (int), body. The body is the type (byte), the key and, for puts,
+ * the value. Keys and values are marshalled with {@link Util#objectToByteBuffer(Object)} and written as length
+ * (int) and bytes.<p/>
+ * On startup, the index is rebuilt by replaying all segments in order; an incomplete or corrupt record at the end
+ * of the last segment (crash during a write) is truncated. When the current segment exceeds log.segment_size bytes,
+ * a new segment is started. A background thread compacts the log when more than log.compaction_threshold of it is
+ * garbage (overwritten or removed entries): the live records of the oldest segment are copied to the current
+ * segment and the oldest segment is deleted. As it is the oldest segment, its removal records can be dropped.<p/>
+ * With log.sync=true, save(), saveAll(), remove() and clear() return only when their records have been forced to
+ * disk. Concurrent callers share one force (group commit): while one thread syncs, the others wait and are
+ * covered by the next sync. log.sync_delay ms can be added before a sync, so that more callers can join it.<p/>
+ * Properties (read from the properties file passed to the constructor):
+ * <ul>
+ * <li>persist: the directory containing the segments
+ * <li>log.segment_size: max size of a segment in bytes (default: 16MB)
+ * <li>log.sync: whether to force records to disk before returning (default: false)
+ * <li>log.sync_delay: ms to wait before a sync (default: 0)
+ * <li>log.compaction_threshold: fraction of garbage (0-1) which triggers a compaction (default: 0.5)
+ * <li>log.compaction_interval: ms between checks for compaction (default: 10000)
+ * </ul>
+ * To use it instead of {@link FilePersistenceManager}, set filePersistMgr=org.jgroups.persistence.LogStructuredPersistenceManager
+ * in persist.properties. Keys must implement equals() and hashCode().
+ * @author Bela Ban
+ * @version $Id$
+ */
+public class LogStructuredPersistenceManager implements PersistenceManager {
+    static final byte PUT=1;
+    static final byte REMOVE=2;
+    static final byte CLEAR=3;
+
+    /** Length and checksum */
+    static final int HEADER_SIZE=8;
+
+    static final String PREFIX="segment-";
+    static final String SUFFIX=".log";
+
+    private final File dir;
+    private long segment_size=16 * 1024 * 1024;
+    private boolean sync=false;
+    private long sync_delay=0;
+    private double compaction_threshold=0.5;
+    private long compaction_interval=10000;
+
+    /** Guards index, segments, active and the byte counts */
+    private final Object lock=new Object();
+
+    /** Map<Object,Location>: the location of the most recent record of each key */
+    private final Map index=new HashMap();
+
+    /** Map<Integer,Segment>: all segments, oldest first */
+    private final TreeMap segments=new TreeMap();
+
+    /** The segment to which records are appended */
+    private Segment active=null;
+
+    /** Total size of all segments, and size of the records referenced by index */
+    private long total_bytes=0, live_bytes=0;
+
+    /** Number of bytes appended, and number of bytes known to be on disk (group commit) */
+    private long written=0, synced=0;
+    private boolean syncing=false;
+    private final Object sync_lock=new Object();
+
+    private Thread compactor=null;
+    private volatile boolean running=false;
+
+    private long num_records_written=0, num_syncs=0, num_compactions=0, num_records_compacted=0;
+
+    protected final Log log=LogFactory.getLog(this.getClass());
+
+
+    /**
+     * Creates the manager from a properties file (see class comment)
+     */
+    public LogStructuredPersistenceManager(String propertiesFilename) throws Exception {
+        this(readProperties(propertiesFilename));
+    }
+
+    public LogStructuredPersistenceManager(Properties props) throws Exception {
+        String path=props.getProperty(PersistenceFactory.persistProp);
+        if(path == null)
+            throw new IllegalArgumentException("property \"" + PersistenceFactory.persistProp + "\" (directory) is missing");
+        String str;
+        if((str=props.getProperty("log.segment_size")) != null)
+            segment_size=Long.parseLong(str);
+        if((str=props.getProperty("log.sync")) != null)
+            sync=Boolean.valueOf(str).booleanValue();
+        if((str=props.getProperty("log.sync_delay")) != null)
+            sync_delay=Long.parseLong(str);
+        if((str=props.getProperty("log.compaction_threshold")) != null)
+            compaction_threshold=Double.parseDouble(str);
+        if((str=props.getProperty("log.compaction_interval")) != null)
+            compaction_interval=Long.parseLong(str);
+        dir=new File(path);
+        open();
+    }
+
+
+    public long getSegmentSize()                      {return segment_size;}
+    public void setSegmentSize(long segment_size)     {this.segment_size=segment_size;}
+    public boolean isSync()                           {return sync;}
+    public void setSync(boolean sync)                 {this.sync=sync;}
+    public long getSyncDelay()                        {return sync_delay;}
+    public void setSyncDelay(long sync_delay)         {this.sync_delay=sync_delay;}
+    public double getCompactionThreshold()            {return compaction_threshold;}
+    public void setCompactionThreshold(double t)      {this.compaction_threshold=t;}
+    public long getNumberOfRecordsWritten()           {return num_records_written;}
+    public long getNumberOfSyncs()                    {return num_syncs;}
+    public long getNumberOfCompactions()              {return num_compactions;}
+    public long getNumberOfRecordsCompacted()         {return num_records_compacted;}
+
+    public int getNumberOfSegments() {
+        synchronized(lock) {
+            return segments.size();
+        }
+    }
+
+    public int getNumberOfKeys() {
+        synchronized(lock) {
+            return index.size();
+        }
+    }
+
+    public long getTotalBytes() {
+        synchronized(lock) {
+            return total_bytes;
+        }
+    }
+
+    public long getLiveBytes() {
+        synchronized(lock) {
+            return live_bytes;
+        }
+    }
+
+
+    public void save(Serializable key, Serializable val) throws CannotPersistException {
+        long pos;
+        try {
+            byte[] record=createRecord(PUT, key, val);
+            synchronized(lock) {
+                checkOpen();
+                pos=append(record, new Object[]{key}, new int[]{0}, new byte[]{PUT});
+            }
+            if(sync)
+                waitForSync(pos);
+        }
+        catch(Exception e) {
+            throw new CannotPersistException(e, "failed saving " + key);
+        }
+    }
+
+
+    public Serializable remove(Serializable key) throws CannotRemoveException {
+        Object retval;
+        long pos;
+        try {
+            byte[] record=createRecord(REMOVE, key, null);
+            synchronized(lock) {
+                checkOpen();
+                Location loc=(Location)index.get(key);
+                if(loc == null)
+                    return null;
+                retval=readValue(loc);
+                pos=append(record, new Object[]{key}, new int[]{0}, new byte[]{REMOVE});
+            }
+            if(sync)
+                waitForSync(pos);
+        }
+        catch(Exception e) {
+            throw new CannotRemoveException(e, "failed removing " + key);
+        }
+        return (Serializable)retval;
+    }
+
+
+    /**
+     * Saves all entries of map (existing entries not in map are not removed). The records are appended with one
+     * write, and synced once
+     */
+    public void saveAll(Map map) throws CannotPersistException {
+        if(map == null || map.isEmpty())
+            return;
+        long pos;
+        try {
+            ByteArrayOutputStream out=new ByteArrayOutputStream(map.size() * 64);
+            Object[] keys=new Object[map.size()];
+            int[] offsets=new int[keys.length];
+            byte[] types=new byte[keys.length];
+            int i=0;
+            Map.Entry entry;
+            for(Iterator it=map.entrySet().iterator(); it.hasNext(); i++) {
+                entry=(Map.Entry)it.next();
+                keys[i]=entry.getKey();
+                offsets[i]=out.size();
+                types[i]=PUT;
+                out.write(createRecord(PUT, entry.getKey(), entry.getValue()));
+            }
+            synchronized(lock) {
+                checkOpen();
+                pos=append(out.toByteArray(), keys, offsets, types);
+            }
+            if(sync)
+                waitForSync(pos);
+        }
+        catch(Exception e) {
+            throw new CannotPersistException(e, "failed saving " + map.size() + " entries");
+        }
+    }
+
+
+    public Map retrieveAll() throws CannotRetrieveException {
+        Map retval=new HashMap();
+        try {
+            synchronized(lock) {
+                checkOpen();
+                Map.Entry entry;
+                for(Iterator it=index.entrySet().iterator(); it.hasNext();) {
+                    entry=(Map.Entry)it.next();
+                    retval.put(entry.getKey(), readValue((Location)entry.getValue()));
+                }
+            }
+        }
+        catch(Exception e) {
+            throw new CannotRetrieveException(e, "failed reading entries from " + dir);
+        }
+        return retval;
+    }
+
+
+    /**
+     * Appends a CLEAR record (which makes replay drop everything before it), then deletes all older segments
+     */
+    public void clear() throws CannotRemoveException {
+        try {
+            synchronized(lock) {
+                checkOpen();
+                append(createRecord(CLEAR, null, null), new Object[]{null}, new int[]{0}, new byte[]{CLEAR});
+                active.channel.force(false);
+                for(Iterator it=segments.values().iterator(); it.hasNext();) {
+                    Segment seg=(Segment)it.next();
+                    if(seg != active) {
+                        total_bytes-=seg.size;
+                        seg.delete();
+                        it.remove();
+                    }
+                }
+            }
+        }
+        catch(Exception e) {
+            throw new CannotRemoveException(e, "failed clearing " + dir);
+        }
+    }
+
+
+    public void shutDown() {
+        running=false;
+        Thread tmp=compactor;
+        compactor=null;
+        if(tmp != null) {
+            tmp.interrupt();
+            try {
+                tmp.join(compaction_interval);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized(lock) {
+            for(Iterator it=segments.values().iterator(); it.hasNext();) {
+                Segment seg=(Segment)it.next();
+                try {
+                    if(seg == active)
+                        seg.channel.force(false);
+                }
+                catch(IOException e) {
+                    if(log.isErrorEnabled()) log.error("failed syncing " + seg.file, e);
+                }
+                seg.close();
+            }
+            segments.clear();
+            index.clear();
+            active=null;
+        }
+    }
+
+
+    /**
+     * Compacts the log if more than compaction_threshold of it is garbage. Called periodically by the compaction
+     * thread, but can also be called directly
+     * @return The number of segments that were compacted
+     */
+    public int compact() throws IOException {
+        int num_segments, compacted=0;
+        synchronized(lock) {
+            num_segments=segments.size() - 1;
+        }
+        // each compaction removes the garbage of one segment, so stop after having compacted all segments once
+        for(int i=0; i < num_segments && needsCompaction(); i++) {
+            if(!compactOldestSegment())
+                break;
+            compacted++;
+        }
+        return compacted;
+    }
+
+
+    public String toString() {
+        synchronized(lock) {
+            return dir + ": " + index.size() + " keys, " + segments.size() + " segments, " + live_bytes + " live bytes of " +
+                    total_bytes + " bytes";
+        }
+    }
+
+
+    /* ----------------------------------- Private methods ---------------------------------- */
+
+    private void open() throws IOException {
+        if(!dir.exists() && !dir.mkdirs())
+            throw new IOException("failed creating " + dir);
+        File[] files=dir.listFiles();
+        for(int i=0; files != null && i < files.length; i++) {
+            String name=files[i].getName();
+            if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    int id=Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    segments.put(new Integer(id), new Segment(id, files[i]));
+                }
+                catch(NumberFormatException e) {
+                    if(log.isWarnEnabled()) log.warn("ignoring " + files[i]);
+                }
+            }
+        }
+
+        long start=System.currentTimeMillis();
+        for(Iterator it=segments.values().iterator(); it.hasNext();) {
+            Segment seg=(Segment)it.next();
+            replay(seg, !it.hasNext());
+            total_bytes+=seg.size;
+        }
+        if(segments.isEmpty())
+            active=createSegment(0);
+        else
+            active=(Segment)segments.get(segments.lastKey());
+        written=synced=0;
+        if(log.isDebugEnabled())
+            log.debug("replayed " + segments.size() + " segments in " + (System.currentTimeMillis() - start) + " ms: " + this);
+
+        running=true;
+        compactor=new Thread(new Runnable() {
+            public void run() {
+                runCompactor();
+            }
+        }, "LogStructuredPersistenceManager.Compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+
+    /** Rebuilds the index from the records of seg. Truncates an incomplete or corrupt last record of the last segment */
+    private void replay(Segment seg, boolean last) throws IOException {
+        DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(seg.file), 65536));
+        long offset=0, length=seg.file.length();
+        CRC32 crc=new CRC32();
+        try {
+            while(offset < length) {
+                if(length - offset < HEADER_SIZE)
+                    break;
+                int len=in.readInt(), checksum=in.readInt();
+                if(len <= 0 || offset + HEADER_SIZE + len > length)
+                    break;
+                byte[] body=new byte[len];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, len);
+                if((int)crc.getValue() != checksum)
+                    break;
+                apply(seg, offset, HEADER_SIZE + len, body);
+                offset+=HEADER_SIZE + len;
+            }
+        }
+        finally {
+            Util.close(in);
+        }
+
+        if(offset < length) {
+            if(last) {
+                if(log.isWarnEnabled())
+                    log.warn("truncating incomplete record at offset " + offset + " of " + seg.file + " (" + (length - offset) + " bytes)");
+                seg.channel.truncate(offset);
+            }
+            else {
+                if(log.isErrorEnabled())
+                    log.error("corrupt record at offset " + offset + " of " + seg.file + ", ignoring the rest of the segment");
+            }
+        }
+        seg.size=offset; // compaction must not read the corrupt part of a segment
+    }
+
+
+    /** Applies a record read during replay to the index */
+    private void apply(Segment seg, long offset, int length, byte[] body) throws IOException {
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(body));
+        byte type=in.readByte();
+        if(type == CLEAR) {
+            index.clear();
+            live_bytes=0;
+            return;
+        }
+        Object key=readObject(in);
+        Location old;
+        if(type == PUT) {
+            old=(Location)index.put(key, new Location(seg, offset, length));
+            live_bytes+=length;
+        }
+        else
+            old=(Location)index.remove(key);
+        if(old != null)
+            live_bytes-=old.length;
+    }
+
+
+    /**
+     * Appends one or more records (in buf, at the given offsets) to the active segment and updates the index.
+     * Needs to be called with lock held
+     * @return The position (in bytes written) which has to be synced for the records to be on disk
+     */
+    private long append(byte[] buf, Object[] keys, int[] offsets, byte[] types) throws IOException {
+        if(active.size > 0 && active.size + buf.length > segment_size)
+            roll();
+        long base=active.size;
+        ByteBuffer tmp=ByteBuffer.wrap(buf);
+        while(tmp.hasRemaining())
+            active.channel.write(tmp, base + tmp.position());
+        active.size+=buf.length;
+        total_bytes+=buf.length;
+        written+=buf.length;
+
+        Location old;
+        for(int i=0; i < keys.length; i++) {
+            int length=(i + 1 < offsets.length? offsets[i + 1] : buf.length) - offsets[i];
+            switch(types[i]) {
+                case PUT:
+                    old=(Location)index.put(keys[i], new Location(active, base + offsets[i], length));
+                    live_bytes+=length;
+                    break;
+                case REMOVE:
+                    old=(Location)index.remove(keys[i]);
+                    break;
+                default: // CLEAR
+                    index.clear();
+                    live_bytes=0;
+                    old=null;
+                    break;
+            }
+            if(old != null)
+                live_bytes-=old.length;
+        }
+        num_records_written+=keys.length;
+        return written;
+    }
+
+
+    /** Starts a new segment. Needs to be called with lock held */
+    private void roll() throws IOException {
+        // with sync, records of the old segment are covered by syncs of the new one. Without, compaction relies on
+        // rolled segments being on disk before it deletes the originals of the records copied into them
+        active.channel.force(false);
+        active=createSegment(active.id + 1);
+    }
+
+
+    private Segment createSegment(int id) throws IOException {
+        StringBuffer sb=new StringBuffer(String.valueOf(id));
+        while(sb.length() < 8)
+            sb.insert(0, '0');
+        Segment seg=new Segment(id, new File(dir, PREFIX + sb + SUFFIX));
+        segments.put(new Integer(id), seg);
+        return seg;
+    }
+
+
+    /**
+     * Blocks until all bytes up to pos have been forced to disk. The first caller to find no sync in progress
+     * forces the active segment, covering all records appended so far
+     */
+    private void waitForSync(long pos) throws IOException {
+        while(true) {
+            synchronized(sync_lock) {
+                while(syncing && synced < pos) {
+                    try {
+                        sync_lock.wait();
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for sync");
+                    }
+                }
+                if(synced >= pos)
+                    return;
+                syncing=true;
+            }
+
+            long target=0;
+            boolean success=false;
+            try {
+                if(sync_delay > 0)
+                    Util.sleep(sync_delay);
+                FileChannel ch;
+                synchronized(lock) {
+                    checkOpen();
+                    target=written;
+                    ch=active.channel;
+                }
+                ch.force(false);
+                num_syncs++;
+                success=true;
+            }
+            finally {
+                synchronized(sync_lock) {
+                    syncing=false;
+                    if(success && target > synced)
+                        synced=target;
+                    sync_lock.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    private boolean needsCompaction() {
+        synchronized(lock) {
+            return active != null && segments.size() > 1 && total_bytes > 0 &&
+                    (total_bytes - live_bytes) / (double)total_bytes > compaction_threshold;
+        }
+    }
+
+
+    /**
+     * Copies the live records of the oldest segment to the active segment and deletes the oldest segment. As no
+     * older segment exists, its REMOVE and CLEAR records can be dropped
+     */
+    private boolean compactOldestSegment() throws IOException {
+        Segment seg;
+        synchronized(lock) {
+            if(segments.size() < 2)
+                return false;
+            seg=(Segment)segments.get(segments.firstKey());
+            if(seg == active)
+                return false;
+        }
+
+        // the segment isn't modified any longer, so it can be read without holding the lock
+        DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(seg.file), 65536));
+        long offset=0;
+        int copied=0;
+        try {
+            while(offset < seg.size) {
+                int len=in.readInt(), checksum=in.readInt();
+                byte[] record=new byte[HEADER_SIZE + len];
+                in.readFully(record, HEADER_SIZE, len);
+                if(record[HEADER_SIZE] == PUT) {
+                    Object key=readObject(new DataInputStream(new ByteArrayInputStream(record, HEADER_SIZE + 1, len - 1)));
+                    synchronized(lock) {
+                        checkOpen();
+                        Location loc=(Location)index.get(key);
+                        if(loc != null && loc.segment == seg && loc.offset == offset) {
+                            writeHeader(record, len, checksum);
+                            append(record, new Object[]{key}, new int[]{0}, new byte[]{PUT});
+                            copied++;
+                        }
+                    }
+                }
+                offset+=HEADER_SIZE + len;
+            }
+        }
+        catch(Exception e) {
+            throw new IOException("failed compacting " + seg.file + ": " + e);
+        }
+        finally {
+            Util.close(in);
+        }
+
+        synchronized(lock) {
+            // the copies have to be on disk before the originals are deleted, even if sync is false (segments
+            // rolled over while copying have been forced by roll())
+            if(active != null)
+                active.channel.force(false);
+            // clear() may have removed (and deleted) the segment while we were copying it
+            if(segments.get(new Integer(seg.id)) == seg) {
+                segments.remove(new Integer(seg.id));
+                total_bytes-=seg.size;
+                seg.delete();
+            }
+            num_compactions++;
+            num_records_compacted+=copied;
+        }
+        if(log.isDebugEnabled())
+            log.debug("compacted " + seg.file + ": copied " + copied + " live records, " + this);
+        return true;
+    }
+
+
+    private void runCompactor() {
+        while(running) {
+            Util.sleep(compaction_interval);
+            if(!running)
+                break;
+            try {
+                compact();
+            }
+            catch(Throwable t) {
+                if(running && log.isErrorEnabled())
+                    log.error("compaction failed", t);
+            }
+        }
+    }
+
+
+    private void checkOpen() throws IOException {
+        if(active == null)
+            throw new IOException(dir + " has been shut down");
+    }
+
+
+    /** Reads the value of the record at loc. Needs to be called with lock held (segments are deleted under the lock) */
+    private static Object readValue(Location loc) throws Exception {
+        ByteBuffer buf=ByteBuffer.allocate(loc.length);
+        while(buf.hasRemaining()) {
+            if(loc.segment.channel.read(buf, loc.offset + buf.position()) < 0)
+                throw new EOFException("unexpected end of " + loc.segment.file);
+        }
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf.array(), HEADER_SIZE, loc.length - HEADER_SIZE));
+        in.readByte(); // type
+        readObject(in); // key
+        return readObject(in);
+    }
+
+
+    /** Creates a record: length, checksum, type, key and (for PUT) value */
+    private static byte[] createRecord(byte type, Object key, Object val) throws Exception {
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream(64);
+        DataOutputStream out=new DataOutputStream(out_stream);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        if(type != CLEAR)
+            writeObject(key, out);
+        if(type == PUT)
+            writeObject(val, out);
+        out.flush();
+        byte[] record=out_stream.toByteArray();
+        CRC32 crc=new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        writeHeader(record, record.length - HEADER_SIZE, (int)crc.getValue());
+        return record;
+    }
+
+    private static void writeHeader(byte[] record, int len, int checksum) {
+        record[0]=(byte)(len >>> 24);
+        record[1]=(byte)(len >>> 16);
+        record[2]=(byte)(len >>> 8);
+        record[3]=(byte)len;
+        record[4]=(byte)(checksum >>> 24);
+        record[5]=(byte)(checksum >>> 16);
+        record[6]=(byte)(checksum >>> 8);
+        record[7]=(byte)checksum;
+    }
+
+    private static void writeObject(Object obj, DataOutputStream out) throws Exception {
+        byte[] buf=Util.objectToByteBuffer(obj);
+        out.writeInt(buf.length);
+        out.write(buf, 0, buf.length);
+    }
+
+    private static Object readObject(DataInputStream in) throws IOException {
+        byte[] buf=new byte[in.readInt()];
+        in.readFully(buf);
+        try {
+            return Util.objectFromByteBuffer(buf);
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(Exception e) {
+            throw new IOException("failed unmarshalling object: " + e);
+        }
+    }
+
+    private static Properties readProperties(String filename) throws IOException {
+        Properties props=new Properties();
+        InputStream in=new FileInputStream(filename);
+        try {
+            props.load(in);
+        }
+        finally {
+            Util.close(in);
+        }
+        return props;
+    }
+
+
+    private static class Segment {
+        final int              id;
+        final File             file;
+        final RandomAccessFile raf;
+        final FileChannel      channel;
+        long                   size=0;
+
+        Segment(int id, File file) throws IOException {
+            this.id=id;
+            this.file=file;
+            this.raf=new RandomAccessFile(file, "rw");
+            this.channel=raf.getChannel();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+        void delete() {
+            close();
+            file.delete();
+        }
+
+        public String toString() {
+            return file.getName() + " (" + size + " bytes)";
+        }
+    }
+
+
+    /** The location of a record */
+    private static class Location {
+        final Segment segment;
+        final long    offset;
+        final int     length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment=segment;
+            this.offset=offset;
+            this.length=length;
+        }
+    }
+}
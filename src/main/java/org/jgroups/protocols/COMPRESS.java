@@ -5,36 +5,49 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.Message;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.CodecPool;
+import org.jgroups.util.DeflateCodec;
 import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages sent across the wire.
- * Should ideally be layered somewhere above a fragmentation protocol (e.g. FRAG).
+ * Should ideally be layered somewhere above a fragmentation protocol (e.g. FRAG).<p/>
+ * The compression algorithm is pluggable (property codec, a {@link org.jgroups.util.Codec}), and compressors are
+ * taken from a {@link CodecPool}, so concurrent senders and receivers don't block each other. A payload which
+ * doesn't compress to less than skip_ratio of its size is sent uncompressed (without a header); while payloads
+ * don't compress, only every sample_interval-th payload is compressed.
  * @author Bela Ban
  * @version $Id: COMPRESS.java,v 1.12.2.1 2007/04/27 08:03:50 belaban Exp $
  */
 public class COMPRESS extends Protocol {
-    Deflater[] deflater_pool=null;
-    Inflater[] inflater_pool=null;
+    CodecPool pool=null;
 
+    /** The compression algorithm, needs to implement org.jgroups.util.Codec */
+    String codec=DeflateCodec.class.getName();
 
     /** Values are from 0-9 (0=no compression, 9=best compression) */
-    int compression_level=Deflater.BEST_COMPRESSION; // this is 9
+    int compression_level=Deflater.BEST_SPEED; // this is 1
 
     /** Minimal payload size of a message (in bytes) for compression to kick in */
     long min_size=500;
 
-    /** Number of inflaters/deflaters, for concurrency, increase this to the max number of concurrent requests possible */
-    int pool_size=2;
+    /** Max number of idle compressors. More are created when needed, but they are not pooled */
+    int pool_size=Runtime.getRuntime().availableProcessors();
 
-    private int inflater_index=0;
-    private int deflater_index=0;
+    /** A payload is only sent compressed if the compressed size is less than skip_ratio times the original size */
+    double skip_ratio=0.9;
+
+    /** While payloads don't compress, only every sample_interval-th payload is compressed */
+    int sample_interval=16;
+
+    long num_compressed_msgs=0, num_uncompressed_msgs=0, num_bytes_before=0, num_bytes_after=0;
 
     final static String name="COMPRESS";
 
@@ -42,49 +55,20 @@ public class COMPRESS extends Protocol {
         return name;
     }
 
-
-    private final int getInflaterIndex() {
-        synchronized(this) {
-            int retval=inflater_index++;
-            if(inflater_index >= pool_size) {
-                inflater_index=0;
-            }
-            return retval;
-        }
-    }
-
-
-    private final int getDeflaterIndex() {
-        synchronized(this) {
-            int retval=deflater_index++;
-            if(deflater_index >= pool_size) {
-                deflater_index=0;
-            }
-            return retval;
-        }
-    }
+    public long getNumberOfCompressedMessages()   {return num_compressed_msgs;}
+    public long getNumberOfUncompressedMessages() {return num_uncompressed_msgs;}
+    public long getNumberOfSkippedMessages()      {return pool != null? pool.getNumSkipped() : 0;}
+    public double getCompressionRatio()           {return pool != null? pool.getCompressionRatio() : 1.0;}
 
 
     public void init() throws Exception {
-        deflater_pool=new Deflater[pool_size];
-        for(int i=0; i < deflater_pool.length; i++) {
-            deflater_pool[i]=new Deflater(compression_level);
-        }
-        inflater_pool=new Inflater[pool_size];
-        for(int i=0; i < inflater_pool.length; i++) {
-            inflater_pool[i]=new Inflater();
-        }
+        Class cl=Util.loadClass(codec, this.getClass());
+        pool=new CodecPool(cl, compression_level, pool_size, skip_ratio, sample_interval);
     }
 
     public void destroy() {
-        for(int i=0; i < deflater_pool.length; i++) {
-            Deflater deflater=deflater_pool[i];
-            deflater.end();
-        }
-        for(int i=0; i < inflater_pool.length; i++) {
-            Inflater inflater=inflater_pool[i];
-            inflater.end();
-        }
+        if(pool != null)
+            pool.destroy();
     }
 
 
@@ -92,6 +76,12 @@ public class COMPRESS extends Protocol {
         String str;
 
         super.setProperties(props);
+        str=props.getProperty("codec");
+        if(str != null) {
+            codec=str;
+            props.remove("codec");
+        }
+
         str=props.getProperty("compression_level");
         if(str != null) {
             compression_level=Integer.parseInt(str);
@@ -114,6 +104,22 @@ public class COMPRESS extends Protocol {
             props.remove("pool_size");
         }
 
+        str=props.getProperty("skip_ratio");
+        if(str != null) {
+            skip_ratio=Double.parseDouble(str);
+            if(skip_ratio <= 0 || skip_ratio > 1) {
+                log.warn("skip_ratio must be > 0 and <= 1, setting it to 1");
+                skip_ratio=1;
+            }
+            props.remove("skip_ratio");
+        }
+
+        str=props.getProperty("sample_interval");
+        if(str != null) {
+            sample_interval=Integer.parseInt(str);
+            props.remove("sample_interval");
+        }
+
         if(props.size() > 0) {
             log.error("the following properties are not recognized: " + props);
             return false;
@@ -122,10 +128,29 @@ public class COMPRESS extends Protocol {
     }
 
 
+    public void resetStats() {
+        super.resetStats();
+        num_compressed_msgs=num_uncompressed_msgs=num_bytes_before=num_bytes_after=0;
+        if(pool != null)
+            pool.resetStats();
+    }
+
+    public Map dumpStats() {
+        Map m=new HashMap();
+        m.put("num_compressed_msgs", new Long(num_compressed_msgs));
+        m.put("num_uncompressed_msgs", new Long(num_uncompressed_msgs));
+        m.put("num_skipped_msgs", new Long(getNumberOfSkippedMessages()));
+        m.put("num_bytes_before_compression", new Long(num_bytes_before));
+        m.put("num_bytes_after_compression", new Long(num_bytes_after));
+        m.put("compression_ratio", new Double(getCompressionRatio()));
+        return m;
+    }
+
+
 
     /**
-     * We compress the payload if it is larger than <code>min_size</code>. In this case we add a header containing
-     * the original size before compression. Otherwise we add no header.<br/>
+     * We compress the payload if it is larger than <code>min_size</code> and if it compresses well enough. In this
+     * case we add a header containing the original size before compression. Otherwise we add no header.<br/>
      * Note that we compress either the entire buffer (if offset/length are not used), or a subset (if offset/length
      * are used)
      * @param evt
@@ -135,25 +160,30 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
             if(length >= min_size) {
-                byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
-                byte[] compressed_payload=new byte[length];
-                int compressed_size;
-                int tmp_index=getDeflaterIndex();
-                Deflater deflater=deflater_pool[tmp_index]; // must be guaranteed to be non-null !
-                synchronized(deflater) {
-                    deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    compressed_size=deflater.getTotalOut();
+                byte[] compressed_payload=null;
+                try {
+                    compressed_payload=pool.compress(msg.getRawBuffer(), msg.getOffset(), length);
+                }
+                catch(Exception e) {
+                    if(log.isErrorEnabled()) log.error("exception on compression, sending message uncompressed", e);
+                }
+                if(compressed_payload != null) {
+                    msg.setBuffer(compressed_payload);
+                    msg.putHeader(name, new CompressHeader(length));
+                    if(stats) {
+                        num_compressed_msgs++;
+                        num_bytes_before+=length;
+                        num_bytes_after+=compressed_payload.length;
+                    }
+                    if(log.isTraceEnabled())
+                        log.trace("compressed payload from " + length + " bytes to " + compressed_payload.length + " bytes");
+                }
+                else {
+                    if(stats)
+                        num_uncompressed_msgs++;
+                    if(log.isTraceEnabled())
+                        log.trace("sending payload of " + length + " bytes uncompressed");
                 }
-                byte[] new_payload=new byte[compressed_size];
-                System.arraycopy(compressed_payload, 0, new_payload, 0, compressed_size);
-                msg.setBuffer(new_payload);
-                msg.putHeader(name, new CompressHeader(length));
-                if(log.isTraceEnabled())
-                    log.trace("compressed payload from " + length + " bytes to " + compressed_size + " bytes (inflater #" +
-                    tmp_index + ")");
             }
         }
         passDown(evt);
@@ -173,22 +203,14 @@ public class COMPRESS extends Protocol {
                 byte[] compressed_payload=msg.getRawBuffer();
                 if(compressed_payload != null && compressed_payload.length > 0) {
                     int original_size=hdr.original_size;
-                    byte[] uncompressed_payload=new byte[original_size];
-                    int tmp_index=getInflaterIndex();
-                    Inflater inflater=inflater_pool[tmp_index];
-                    synchronized(inflater) {
-                        inflater.reset();
-                        inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                        try {
-                            inflater.inflate(uncompressed_payload);
-                            if(log.isTraceEnabled())
-                                log.trace("uncompressed " + compressed_payload.length + " bytes to " + original_size +
-                                        " bytes (deflater #" + tmp_index + ")");
-                            msg.setBuffer(uncompressed_payload);
-                        }
-                        catch(DataFormatException e) {
-                            if(log.isErrorEnabled()) log.error("exception on uncompression", e);
-                        }
+                    try {
+                        byte[] uncompressed_payload=pool.uncompress(compressed_payload, msg.getOffset(), msg.getLength(), original_size);
+                        if(log.isTraceEnabled())
+                            log.trace("uncompressed " + msg.getLength() + " bytes to " + original_size + " bytes");
+                        msg.setBuffer(uncompressed_payload);
+                    }
+                    catch(Exception e) {
+                        if(log.isErrorEnabled()) log.error("exception on uncompression", e);
                     }
                 }
             }
@@ -35,6 +35,30 @@ public class DISCARD extends Protocol {
         return "DISCARD";
     }
 
+    public double getUpDiscardRate() {
+        return up;
+    }
+
+    public void setUpDiscardRate(double up) {
+        this.up=up;
+    }
+
+    public double getDownDiscardRate() {
+        return down;
+    }
+
+    public void setDownDiscardRate(double down) {
+        this.down=down;
+    }
+
+    public boolean isExcludeItself() {
+        return excludeItself;
+    }
+
+    public void setExcludeItself(boolean flag) {
+        this.excludeItself=flag;
+    }
+
 
     public boolean setProperties(Properties props) {
         String str;
@@ -81,7 +105,7 @@ public class DISCARD extends Protocol {
             if(up > 0) {
                 r=Math.random();
                 if(r < up) {
-                    if(excludeItself && msg.getSrc().equals(localAddress)) {
+                    if(excludeItself && (msg.getSrc() == null || msg.getSrc().equals(localAddress))) { // no src: a message of our own
                         if(log.isTraceEnabled()) log.trace("excluding itself");
                     }
                     else {
@@ -108,7 +132,7 @@ public class DISCARD extends Protocol {
             if(down > 0) {
                 r=Math.random();
                 if(r < down) {
-                    if(excludeItself && msg.getSrc().equals(localAddress)) {
+                    if(excludeItself && msg.getSrc() != null && msg.getSrc().equals(localAddress)) { // src may not be set yet
                         if(log.isTraceEnabled()) log.trace("excluding itself");
                     }
                     else {
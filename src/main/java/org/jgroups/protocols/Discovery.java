@@ -3,7 +3,9 @@ package org.jgroups.protocols;
 
 import org.jgroups.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
 
+import java.io.*;
 import java.util.*;
 
 
@@ -21,6 +23,14 @@ import java.util.*;
  * <li>timeout - the timeout (ms) to wait for the initial members, default is 3000=3 secs
  * <li>num_initial_members - the minimum number of initial members for a FIND_INITAL_MBRS, default is 2
  * <li>num_ping_requests - the number of GET_MBRS_REQ messages to be sent (min=1), distributed over timeout ms
+ * <li>responders - which members respond to a GET_MBRS_REQ: "all" (default), "coord" (only the coordinator) or
+ * "random" (the coordinator plus a random subset of about num_initial_members members). Members which are not yet
+ * servers always respond, as their responses are needed to determine the initial coordinator. With "coord" or "random",
+ * responses carry the members of the responder's view, so a single response from the coordinator satisfies
+ * num_initial_members. Note that "coord" and "random" are not understood by members running older versions
+ * <li>break_on_coord_rsp - return the initial members as soon as the coordinator has responded (default false)
+ * <li>member_cache_file - if set, the members of each view are written to this file. On startup, the members in the
+ * file are sent direct (unicast) GET_MBRS_REQ messages, in addition to the regular discovery requests
  * </ul>
  * @author Bela Ban
  * @version $Id: Discovery.java,v 1.16.2.1 2007/04/27 08:03:51 belaban Exp $
@@ -40,6 +50,25 @@ public abstract class Discovery extends Protocol {
 
     int           num_discovery_requests=0;
 
+    static final int RSP_ALL=0;
+    static final int RSP_COORD=1;
+    static final int RSP_RANDOM=2;
+
+    /** Which members respond to a GET_MBRS_REQ (GET_MBRS_REQ_DIRECT is always answered) */
+    int           responders=RSP_ALL;
+
+    /** Return from findInitialMembers() as soon as the coordinator has responded */
+    boolean       break_on_coord_rsp=false;
+
+    /** The file in which the last known members are stored. Null disables the cache */
+    String        member_cache_file=null;
+
+    /** Vector<Address>. The members read from member_cache_file on startup */
+    final Vector  cached_members=new Vector(11);
+
+    int           num_rsps_sent=0;
+    int           num_rsps_suppressed=0;
+
 
     /** Called after local_addr was set */
     public void localAddressSet(Address addr) {
@@ -90,6 +119,38 @@ public abstract class Discovery extends Protocol {
         return num_discovery_requests;
     }
 
+    public int getNumberOfResponsesSent() {
+        return num_rsps_sent;
+    }
+
+    public int getNumberOfResponsesSuppressed() {
+        return num_rsps_suppressed;
+    }
+
+    public String getResponders() {
+        switch(responders) {
+            case RSP_COORD:  return "coord";
+            case RSP_RANDOM: return "random";
+            default:         return "all";
+        }
+    }
+
+    public boolean isBreakOnCoordResponse() {
+        return break_on_coord_rsp;
+    }
+
+    public void setBreakOnCoordResponse(boolean flag) {
+        this.break_on_coord_rsp=flag;
+        if(ping_waiter != null)
+            ping_waiter.setBreakOnCoordResponse(flag);
+    }
+
+    public String getCachedMembers() {
+        synchronized(cached_members) {
+            return cached_members.toString();
+        }
+    }
+
 
     public Vector providedUpServices() {
         Vector ret=new Vector(1);
@@ -134,6 +195,34 @@ public abstract class Discovery extends Protocol {
                 num_ping_requests=1;
         }
 
+        str=props.getProperty("responders");
+        if(str != null) {
+            str=str.trim().toLowerCase();
+            if(str.equals("all"))
+                responders=RSP_ALL;
+            else if(str.equals("coord"))
+                responders=RSP_COORD;
+            else if(str.equals("random"))
+                responders=RSP_RANDOM;
+            else {
+                if(log.isErrorEnabled()) log.error("responders (" + str + ") has to be all, coord or random");
+                return false;
+            }
+            props.remove("responders");
+        }
+
+        str=props.getProperty("break_on_coord_rsp");
+        if(str != null) {
+            break_on_coord_rsp=Boolean.valueOf(str).booleanValue();
+            props.remove("break_on_coord_rsp");
+        }
+
+        str=props.getProperty("member_cache_file");
+        if(str != null) {
+            member_cache_file=str;
+            props.remove("member_cache_file");
+        }
+
         if(props.size() > 0) {
             StringBuffer sb=new StringBuffer();
             for(Enumeration e=props.propertyNames(); e.hasMoreElements();) {
@@ -150,14 +239,18 @@ public abstract class Discovery extends Protocol {
 
     public void resetStats() {
         super.resetStats();
-        num_discovery_requests=0;
+        num_discovery_requests=num_rsps_sent=num_rsps_suppressed=0;
     }
 
     public void start() throws Exception {
         super.start();
         PingSender ping_sender=new PingSender(timeout, num_ping_requests, this);
-        if(ping_waiter == null)
+        if(ping_waiter == null) {
             ping_waiter=new PingWaiter(timeout, num_initial_members, this, ping_sender);
+            ping_waiter.setBreakOnCoordResponse(break_on_coord_rsp);
+        }
+        if(member_cache_file != null)
+            readMemberCache();
     }
 
     public void stop() {
@@ -230,16 +323,34 @@ public abstract class Discovery extends Protocol {
             switch(hdr.type) {
 
             case PingHeader.GET_MBRS_REQ:   // return Rsp(local_addr, coord)
+            case PingHeader.GET_MBRS_REQ_DIRECT:
                 if(local_addr != null && msg.getSrc() != null && local_addr.equals(msg.getSrc())) {
                     return;
                 }
+                Vector view_mbrs=null;
+                int num_mbrs;
                 synchronized(members) {
                     coord=members.size() > 0 ? (Address)members.firstElement() : local_addr;
+                    num_mbrs=members.size();
+                    if(responders != RSP_ALL && is_server)
+                        view_mbrs=new Vector(members);
+                }
+
+                if(hdr.type == PingHeader.GET_MBRS_REQ && !shouldRespond(coord, num_mbrs)) {
+                    num_rsps_suppressed++;
+                    if(log.isTraceEnabled())
+                        log.trace("received GET_MBRS_REQ from " + msg.getSrc() + ", not responding (responders=" +
+                                getResponders() + ")");
+                    return;
                 }
 
                 PingRsp ping_rsp=new PingRsp(local_addr, coord, is_server);
                 rsp_msg=new Message(msg.getSrc(), null, null);
-                rsp_hdr=new PingHeader(PingHeader.GET_MBRS_RSP, ping_rsp);
+                if(view_mbrs != null)
+                    rsp_hdr=new PingHeader(PingHeader.GET_MBRS_RSP_VIEW, ping_rsp, view_mbrs);
+                else
+                    rsp_hdr=new PingHeader(PingHeader.GET_MBRS_RSP, ping_rsp);
+                num_rsps_sent++;
                 rsp_msg.putHeader(getName(), rsp_hdr);
                 if(log.isTraceEnabled())
                     log.trace("received GET_MBRS_REQ from " + msg.getSrc() + ", sending response " + rsp_hdr);
@@ -254,6 +365,22 @@ public abstract class Discovery extends Protocol {
                 ping_waiter.addResponse(rsp);
                 return;
 
+            case PingHeader.GET_MBRS_RSP_VIEW: // add response plus a server response for each member of the view
+                rsp=hdr.arg;
+                if(log.isTraceEnabled())
+                    log.trace("received GET_MBRS_RSP_VIEW, rsp=" + rsp + ", mbrs=" + hdr.mbrs);
+                ping_waiter.addResponse(rsp);
+                if(rsp != null && hdr.mbrs != null) {
+                    Address mbr;
+                    for(Iterator it=hdr.mbrs.iterator(); it.hasNext();) {
+                        mbr=(Address)it.next();
+                        if(mbr.equals(local_addr) || mbr.equals(rsp.own_addr))
+                            continue;
+                        ping_waiter.addResponse(new PingRsp(mbr, rsp.coord_addr, true));
+                    }
+                }
+                return;
+
             default:
                 if(log.isWarnEnabled()) log.warn("got PING header with unknown type (" + hdr.type + ')');
                 return;
@@ -309,6 +436,8 @@ public abstract class Discovery extends Protocol {
                     members.clear();
                     members.addAll(tmp);
                 }
+                if(evt.getType() == Event.VIEW_CHANGE && member_cache_file != null)
+                    writeMemberCache(tmp);
             }
             passDown(evt);
             break;
@@ -337,9 +466,111 @@ public abstract class Discovery extends Protocol {
 
 
 
+    /**
+     * Sends a GET_MBRS_REQ_DIRECT to each member read from member_cache_file. Called by PingSender after
+     * {@link #sendGetMembersRequest()}
+     */
+    public void sendGetMembersRequestToCachedMembers() {
+        Vector tmp;
+        Address dest;
+        synchronized(cached_members) {
+            if(cached_members.size() == 0)
+                return;
+            tmp=new Vector(cached_members);
+        }
+        for(Iterator it=tmp.iterator(); it.hasNext();) {
+            dest=(Address)it.next();
+            if(dest.equals(local_addr))
+                continue;
+            if(log.isTraceEnabled())
+                log.trace("[FIND_INITIAL_MBRS] sending PING request to cached member " + dest);
+            passDown(new Event(Event.MSG, createDirectGetMembersRequest(dest)));
+        }
+    }
+
+
+    /**
+     * Creates a discovery request which is sent to a single member. With responders=all, this is a regular
+     * GET_MBRS_REQ (understood by older versions), otherwise a GET_MBRS_REQ_DIRECT, which is answered by every member
+     */
+    protected Message createDirectGetMembersRequest(Address dest) {
+        Message msg=new Message(dest, null, null);
+        byte type=responders == RSP_ALL? PingHeader.GET_MBRS_REQ : PingHeader.GET_MBRS_REQ_DIRECT;
+        msg.putHeader(getName(), new PingHeader(type, null));
+        return msg;
+    }
+
+
     /* -------------------------- Private methods ---------------------------- */
 
 
+    /** Decides whether to answer a (multicast) GET_MBRS_REQ, based on responders */
+    private boolean shouldRespond(Address coord, int num_mbrs) {
+        if(!is_server || responders == RSP_ALL)
+            return true; // clients always respond, their responses are needed to determine the initial coord
+        if(local_addr != null && local_addr.equals(coord))
+            return true;
+        if(responders == RSP_RANDOM && num_mbrs > 0)
+            return Math.random() < Math.min(1.0, (double)num_initial_members / num_mbrs);
+        return false;
+    }
+
+
+    private void readMemberCache() {
+        File file=new File(member_cache_file);
+        if(!file.exists())
+            return;
+        DataInputStream in=null;
+        try {
+            in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            Collection tmp=Util.readAddresses(in, Vector.class);
+            synchronized(cached_members) {
+                cached_members.clear();
+                if(tmp != null)
+                    cached_members.addAll(tmp);
+            }
+            if(log.isDebugEnabled())
+                log.debug("read cached members " + tmp + " from " + file);
+        }
+        catch(Exception ex) {
+            if(log.isWarnEnabled())
+                log.warn("failed reading member cache " + file + ", ignoring it", ex);
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+
+    /** Writes the members to a temp file first, then renames it, so a crash never leaves a corrupt cache */
+    private void writeMemberCache(Vector mbrs) {
+        File file=new File(member_cache_file).getAbsoluteFile();
+        File tmp_file=null;
+        DataOutputStream out=null;
+        try {
+            tmp_file=File.createTempFile(file.getName(), ".tmp", file.getParentFile()); // several members may share the file
+            out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp_file)));
+            Util.writeAddresses(mbrs, out);
+            out.close();
+            out=null;
+            if(!tmp_file.renameTo(file)) {
+                file.delete();
+                if(!tmp_file.renameTo(file))
+                    throw new IOException("failed renaming " + tmp_file + " to " + file);
+            }
+        }
+        catch(IOException ex) {
+            if(log.isWarnEnabled())
+                log.warn("failed writing member cache " + file, ex);
+            if(tmp_file != null)
+                tmp_file.delete();
+        }
+        finally {
+            Util.close(out);
+        }
+    }
+
+
     protected final View makeView(Vector mbrs) {
         Address coord;
         long id;
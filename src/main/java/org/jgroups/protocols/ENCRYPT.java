@@ -5,6 +5,7 @@ package org.jgroups.protocols;
 import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
 import org.jgroups.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.CipherPool;
 import org.jgroups.util.QueueClosedException;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
@@ -14,9 +15,7 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.*;
-import java.security.cert.CertificateException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Map;
 import java.util.Properties;
@@ -79,6 +78,12 @@ import java.util.WeakHashMap;
  * decrypting future messages if it chooses to listen in on the group. This is not included as it really requires
  * a suitable authentication scheme as well to make this feature useful as there is nothing to stop the peer rejoining and receiving the new
  * key. A future release will address this issue.
+ * <p><p>
+ * Encryption and decryption use a {@link CipherPool}, so messages sent or received by different threads are
+ * encrypted concurrently (cipher_pool_size sets the max number of idle ciphers kept). sym_algorithm may be a full
+ * transformation, e.g. "AES/GCM/NoPadding": with an AEAD mode, every message is also authenticated, and messages
+ * which were tampered with are discarded. To encrypt whole datagrams (after bundling) rather than single messages,
+ * see the encrypt_* properties of {@link TP}.
  *
  * @author Steve Woodcock
  * @author Bela Ban
@@ -118,14 +123,12 @@ public class ENCRYPT extends Protocol {
 //	 for client to store server's public Key
     PublicKey serverPubKey = null;
 
-    // needed because we do simultaneous encode/decode with these ciphers - which
-    // would be a threading issue
-    Cipher symEncodingCipher;
-    Cipher symDecodingCipher;
+    // current shared key, its version and its pool of ciphers, replaced as a whole when the key changes;
+    // Cipher instances are not thread-safe, so every encrypt/decrypt uses its own instance from the pool
+    volatile SymKey symKey = null;
+    int cipherPoolSize = 8;
 
-    // version filed for secret key
-    private String symVersion = null;
-    // dhared secret key to encrypt/decrypt messages
+    // shared secret key generated or loaded by init(), before the ciphers are initialised with it
     SecretKey secretKey = null;
 
     // map to hold previous keys so we can decrypt some earlier messages if we need to
@@ -285,6 +288,13 @@ public class ENCRYPT extends Protocol {
                 log.info("alias used is " + alias);
         }
 
+        str=props.getProperty("cipher_pool_size");
+        if(str != null)
+        {
+            cipherPoolSize=Integer.parseInt(str);
+            props.remove("cipher_pool_size");
+        }
+
         str=props.getProperty("encrypt_entire_message");
         if(str != null)
         {
@@ -314,7 +324,7 @@ public class ENCRYPT extends Protocol {
         {
             initConfiguredKey();
         }
-        initSymCiphers(symAlgorithm, getSecretKey());
+        initSymCiphers(symAlgorithm, secretKey, null);
     }
 
 
@@ -324,69 +334,22 @@ public class ENCRYPT extends Protocol {
      *  keystoreGenerator file in demos. The keystore must be on the classpath
      *  to find it.
      *
-     * @throws KeyStoreException
      * @throws Exception
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
-     * @throws CertificateException
-     * @throws UnrecoverableKeyException
      */
-    private void initConfiguredKey() throws KeyStoreException, Exception,
-                                            IOException, NoSuchAlgorithmException, CertificateException,
-                                            UnrecoverableKeyException
+    private void initConfiguredKey() throws Exception
     {
-        InputStream inputStream = null;
-        // must not use default keystore type - as does not support secret keys
-        KeyStore store = KeyStore.getInstance("JCEKS");
-
-        SecretKey tempKey = null;
-        try
-        {
-            // load in keystore using this thread's classloader
-            inputStream = Thread.currentThread().getContextClassLoader()
-                    .getResourceAsStream(keyStoreName);
-            // we can't find a keystore here -
-            if (inputStream == null)
-            {
-                throw new Exception("Unable to load keystore " + keyStoreName +
-                        " ensure file is on classpath");
-            }
-            // we have located a file lets load the keystore
-            try{
-            store.load(inputStream, storePassword.toCharArray());
-            // loaded keystore - get the key
-            tempKey = (SecretKey) store
-                    .getKey(alias, keyPassword.toCharArray());
-            } catch (IOException e){
-                throw new Exception("Unable to load keystore "+ keyStoreName + ": " + e);
-            }catch (NoSuchAlgorithmException e){
-                throw new Exception("No Such algorithm "+ keyStoreName + ": " + e);
-            }catch(CertificateException e){
-                throw new Exception("Certificate exception "+ keyStoreName + ": " + e);
-            }
-
-            if (tempKey == null)
-            {
-                throw new Exception("Unable to retrieve key '" + alias
-                        + "' from keystore " + keyStoreName);
-            }
-            //set the key here
-            setSecretKey(tempKey);
+        SecretKey tempKey = CipherPool.loadSecretKey(keyStoreName, storePassword, keyPassword, alias);
+        //set the key here
+        secretKey = tempKey;
 
-            if (symAlgorithm.equals(DEFAULT_SYM_ALGO)) {
+        if (symAlgorithm.equals(DEFAULT_SYM_ALGO)) {
             symAlgorithm = tempKey.getAlgorithm();
-            }
-
-            // set the fact we are using a supplied key
-
-            suppliedKey = true;
-            queue_down =false;
-            queue_up =false;
-        } finally
-        {
-            Util.close(inputStream);
         }
 
+        // set the fact we are using a supplied key
+        suppliedKey = true;
+        queue_down =false;
+        queue_up =false;
     }
 
 
@@ -410,38 +373,38 @@ public class ENCRYPT extends Protocol {
         keyGen.init(symInit);
         secretKey = keyGen.generateKey();
 
-        setSecretKey(secretKey);
-
         if (log.isInfoEnabled())
             log.info(" Symmetric key generated ");
     }
 
 
     /**
-     * Initialises the Ciphers for both encryption and decryption using the
-     * generated or supplied secret key.
+     * Initialises the cipher pool for both encryption and decryption using the
+     * generated or supplied secret key, and publishes it together with the key
+     * and its version.
      *
      * @param algorithm
      * @param secret
+     * @param symVersion the version of the key, or null to compute it from the key
      * @throws Exception
      */
-    private void initSymCiphers(String algorithm, SecretKey secret) throws Exception
+    private void initSymCiphers(String algorithm, SecretKey secret, String symVersion) throws Exception
     {
 
         if (log.isInfoEnabled())
             log.info(" Initializing symmetric ciphers");
 
-        symEncodingCipher = Cipher.getInstance(algorithm);
-        symDecodingCipher = Cipher.getInstance(algorithm);
-        symEncodingCipher.init(Cipher.ENCRYPT_MODE, secret);
-        symDecodingCipher.init(Cipher.DECRYPT_MODE, secret);
+        CipherPool ciphers = new CipherPool(algorithm, secret, cipherPoolSize);
 
         //set the version
-        MessageDigest digest = MessageDigest.getInstance("MD5");
-        digest.reset();
-        digest.update(secret.getEncoded());
+        if (symVersion == null) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.reset();
+            digest.update(secret.getEncoded());
+            symVersion = new String(digest.digest(), "UTF-8");
+        }
 
-        symVersion = new String(digest.digest(), "UTF-8");
+        symKey = new SymKey(secret, symVersion, ciphers);
         if (log.isInfoEnabled()) {
             // log.info(" Initialized symmetric ciphers with secret key (" + symVersion.length() + " bytes) " +symVersion);
             StringBuffer sb=new StringBuffer(" Initialized symmetric ciphers with secret key (" + symVersion.length() + " bytes) ");
@@ -653,7 +616,7 @@ public class ENCRYPT extends Protocol {
                     drainUpQueue();
                 }
                 // try and decrypt the message
-                Message tmpMsg=decryptMessage(symDecodingCipher, msg);
+                Message tmpMsg=decryptMessage(msg);
                 if (tmpMsg != null){
                     if(log.isTraceEnabled())
                         log.trace("decrypted message " + tmpMsg);
@@ -688,7 +651,7 @@ public class ENCRYPT extends Protocol {
                             // extract peer's public key
                             PublicKey tmpKey = generatePubKey(msg.getBuffer());
                             // send back the secret key we have
-                            sendSecretKey(getSecretKey(), tmpKey, msg.getSrc());
+                            sendSecretKey(symKey, tmpKey, msg.getSrc());
                         } catch (Exception e){
                             log.warn("unable to reconstitute peer's public key");
                         }
@@ -738,7 +701,7 @@ public class ENCRYPT extends Protocol {
         Event tmp =null;
         while ((tmp = (Event)upMessageQueue.poll(0L)) != null){
             if (tmp != null){
-                Message msg = decryptMessage(symDecodingCipher, (Message)tmp.getArg());
+                Message msg = decryptMessage((Message)tmp.getArg());
 
                 if (msg != null){
                     if(log.isTraceEnabled()){
@@ -769,11 +732,13 @@ public class ENCRYPT extends Protocol {
 
         // put the previous key into the map
         // if the keys are already there then they will overwrite
-        keyMap.put(getSymVersion(), getSymDecodingCipher());
+        SymKey prev = symKey;
+        if (prev != null)
+            keyMap.put(prev.version, prev.ciphers);
 
-        setSecretKey(key);
-        initSymCiphers(key.getAlgorithm(),key );
-        setSymVersion(version);
+        secretKey = key;
+        // the key only carries the algorithm name, symAlgorithm may also specify mode and padding
+        initSymCiphers(symAlgorithm, key, version);
 
         // drain the up queue
         log.info("setting queue up to false in setKeys");
@@ -788,42 +753,43 @@ public class ENCRYPT extends Protocol {
     /**
      *  Does the actual work for decrypting - if version does not match current cipher
      * then tries to use previous cipher
-     * @param cipher
      * @param msg
      * @return
      * @throws Exception
      */
-    private Message decryptMessage(Cipher cipher, Message msg) throws Exception
+    private Message decryptMessage(Message msg) throws Exception
     {
         EncryptHeader hdr = (EncryptHeader)msg.getHeader(EncryptHeader.KEY);
-        if (!hdr.getVersion().equals(getSymVersion())){
+        SymKey current = symKey; // the version and ciphers have to be read together
+        CipherPool ciphers = current.ciphers;
+        if (!hdr.getVersion().equals(current.version)){
             log.warn("attempting to use stored cipher as message does not uses current encryption version ");
-            cipher = (Cipher)keyMap.get(hdr.getVersion());
-            if (cipher == null) {
+            ciphers = (CipherPool)keyMap.get(hdr.getVersion());
+            if (ciphers == null) {
                 log.warn("Unable to find a matching cipher in previous key map");
                 return null;
             } else{
                 if(log.isTraceEnabled())
                     log.trace("decrypting using previous cipher version "+ hdr.getVersion());
-                return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+                return _decrypt(ciphers, msg, hdr.encrypt_entire_msg);
             }
         }
 
         else {
 
             // reset buffer with decrypted message
-            return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+            return _decrypt(ciphers, msg, hdr.encrypt_entire_msg);
         }
     }
 
 
-    private Message _decrypt(Cipher cipher, Message msg, boolean decrypt_entire_msg) throws Exception {
+    private Message _decrypt(CipherPool ciphers, Message msg, boolean decrypt_entire_msg) throws Exception {
+        byte[] decrypted_msg=ciphers.decrypt(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
         if(!decrypt_entire_msg) {
-            msg.setBuffer(cipher.doFinal(msg.getBuffer()));
+            msg.setBuffer(decrypted_msg);
             return msg;
         }
 
-        byte[] decrypted_msg=cipher.doFinal(msg.getBuffer());
         Message ret=(Message)Util.streamableFromByteBuffer(Message.class, decrypted_msg);
         if(ret.getDest() == null)
             ret.setDest(msg.getDest());
@@ -834,14 +800,14 @@ public class ENCRYPT extends Protocol {
 
 
     /**
-     * @param secret
+     * @param secret the shared key and its version
      * @param pubKey
      * @throws InvalidKeyException
      * @throws IllegalStateException
      * @throws IllegalBlockSizeException
      * @throws BadPaddingException
      */
-    private void sendSecretKey(SecretKey secret, PublicKey pubKey, Address source)
+    private void sendSecretKey(SymKey secret, PublicKey pubKey, Address source)
             throws InvalidKeyException, IllegalStateException,
                    IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
                    NoSuchAlgorithmException
@@ -856,7 +822,7 @@ public class ENCRYPT extends Protocol {
         tmp.init(Cipher.ENCRYPT_MODE, pubKey);
 
         //encrypt current secret key
-        byte[] encryptedKey = tmp.doFinal(secret.getEncoded());
+        byte[] encryptedKey = tmp.doFinal(secret.key.getEncoded());
 
         //SW logout encrypted bytes we are sending so we
         // can match the clients log to see if they match
@@ -867,10 +833,10 @@ public class ENCRYPT extends Protocol {
         newMsg = new Message(source, local_addr, encryptedKey);
 
         newMsg.putHeader(EncryptHeader.KEY, new EncryptHeader(
-                EncryptHeader.SECRETKEY, getSymVersion()));
+                EncryptHeader.SECRETKEY, secret.version));
 
         if (log.isDebugEnabled())
-            log.debug(" Sending version " + getSymVersion()
+            log.debug(" Sending version " + secret.version
                     + " encoded key to client");
         passDown(new Event(Event.MSG, newMsg));
     }
@@ -1018,12 +984,14 @@ public class ENCRYPT extends Protocol {
             return;
         }
 
-        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, getSymVersion());
+        SymKey current=symKey; // the version in the header has to match the ciphers
+        CipherPool ciphers=current.ciphers;
+        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, current.version);
         hdr.encrypt_entire_msg=this.encrypt_entire_message;
 
         if(encrypt_entire_message) {
             byte[] serialized_msg=Util.streamableToByteBuffer(msg);
-            byte[] encrypted_msg=encryptMessage(symEncodingCipher, serialized_msg);
+            byte[] encrypted_msg=ciphers.encrypt(serialized_msg);
             Message tmp=msg.copy(false); // we need to preserve headers which may already be present
             tmp.setBuffer(encrypted_msg);
             tmp.setSrc(local_addr);
@@ -1038,24 +1006,11 @@ public class ENCRYPT extends Protocol {
 
         // copy neeeded because same message (object) may be retransmitted -> no double encryption
         Message msgEncrypted = msg.copy(false);
-        msgEncrypted.setBuffer(encryptMessage(symEncodingCipher, msg.getBuffer()));
+        msgEncrypted.setBuffer(ciphers.encrypt(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
         passDown(new Event(Event.MSG, msgEncrypted));
     }
 
 
-    /**
-     *
-     * @param cipher
-     * @param plain
-     * @return
-     * @throws Exception
-     */
-    private byte[] encryptMessage(Cipher cipher, byte[] plain) throws Exception
-    {
-        return cipher.doFinal(plain);
-    }
-
-
     private SecretKeySpec decodeKey(byte[] encodedKey) throws Exception
     {
         // try and decode secrey key sent from keyserver
@@ -1137,7 +1092,7 @@ public class ENCRYPT extends Protocol {
      */
     protected SecretKey getDesKey()
     {
-        return secretKey;
+        return getSecretKey();
     }
 
 
@@ -1209,17 +1164,8 @@ public class ENCRYPT extends Protocol {
      */
     private String getSymVersion()
     {
-        return symVersion;
-    }
-
-
-    /**
-     * @param symVersion
-     *            The symVersion to set.
-     */
-    private void setSymVersion(String symVersion)
-    {
-        this.symVersion = symVersion;
+        SymKey current = symKey;
+        return current != null? current.version : null;
     }
 
 
@@ -1228,16 +1174,8 @@ public class ENCRYPT extends Protocol {
      */
     private SecretKey getSecretKey()
     {
-        return secretKey;
-    }
-
-
-    /**
-     * @param secretKey The secretKey to set.
-     */
-    private void setSecretKey(SecretKey secretKey)
-    {
-        this.secretKey = secretKey;
+        SymKey current = symKey;
+        return current != null? current.key : secretKey;
     }
 
 
@@ -1249,18 +1187,12 @@ public class ENCRYPT extends Protocol {
         return keyStoreName;
     }
     /**
-     * @return Returns the symDecodingCipher.
-     */
-    protected Cipher getSymDecodingCipher()
-    {
-        return symDecodingCipher;
-    }
-    /**
-     * @return Returns the symEncodingCipher.
+     * @return Returns the pool of ciphers for the current shared key.
      */
-    protected Cipher getSymEncodingCipher()
+    protected CipherPool getSymCiphers()
     {
-        return symEncodingCipher;
+        SymKey current = symKey;
+        return current != null? current.ciphers : null;
     }
     /**
      * @return Returns the local_addr.
@@ -1293,6 +1225,23 @@ public class ENCRYPT extends Protocol {
 
 
 
+    /**
+     * A shared key with its version and pool of ciphers. Immutable, so that a thread reading the current
+     * SymKey once always gets ciphers matching the version
+     */
+    static class SymKey {
+        final SecretKey  key;
+        final String     version;
+        final CipherPool ciphers;
+
+        SymKey(SecretKey key, String version, CipherPool ciphers) {
+            this.key=key;
+            this.version=version;
+            this.ciphers=ciphers;
+        }
+    }
+
+
     public static class EncryptHeader extends org.jgroups.Header implements Streamable {
         short type;
         public static final short ENCRYPT = 0;
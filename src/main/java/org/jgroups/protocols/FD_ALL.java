@@ -0,0 +1,606 @@
+// $Id$
+
+package org.jgroups.protocols;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArrayList;
+import org.jgroups.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.List;
+
+
+/**
+ * Failure detection based on aggregated heartbeats. Contrary to {@link FD}, which pings a single neighbor with
+ * are-you-alive messages, every member monitors all other members, and <em>every</em> message received from a member
+ * counts as proof of its liveness. A member only multicasts a HEARTBEAT if it hasn't sent a multicast message for
+ * <code>interval</code> milliseconds, so a busy cluster generates (almost) no failure detection traffic at all.<p>
+ * Suspicion is based on the phi accrual failure detector (Hayashibara et al): for each member we keep a sliding
+ * window of message inter-arrival times, and compute phi, the (negative log10 of the) probability that a message
+ * would still arrive given the time we haven't heard from the member. When phi exceeds
+ * <code>phi_threshold</code>, the member is suspected. Since the sender guarantees at least one message every
+ * <code>interval</code> ms, the mean of the distribution is never assumed to be smaller than <code>interval</code>,
+ * and the standard deviation never smaller than <code>min_std_dev</code>; this prevents high data rates from
+ * making the detector overly sensitive to short pauses. In addition, a member which hasn't been heard from for more
+ * than <code>timeout</code> ms is always suspected.<p>
+ * SUSPECT messages are multicast to the group (and retransmitted every <code>timeout</code> ms until the member is
+ * excluded or we hear from it again), and passed up as SUSPECT events. Should be placed below NAKACK (so that
+ * retransmissions count as traffic), and typically above VERIFY_SUSPECT.
+ * @version $Id$
+ */
+public class FD_ALL extends Protocol {
+    Address               local_addr=null;
+
+    /** Interval (in msecs) in which a HEARTBEAT is multicast if no other multicast message was sent */
+    long                  interval=1000;
+
+    /** Interval (in msecs) in which the arrival windows of all members are checked */
+    long                  check_interval=500;
+
+    /** Max time (in msecs) not to hear from a member before suspecting it, regardless of phi (0 disables it) */
+    long                  timeout=10000;
+
+    /** Suspect a member when phi exceeds this value (<= 0 disables phi accrual suspicion) */
+    double                phi_threshold=8.0;
+
+    /** Number of inter-arrival samples kept per member */
+    int                   window_size=100;
+
+    /** The min standard deviation (in msecs) assumed for the inter-arrival times */
+    long                  min_std_dev=500;
+
+    final List            members=new CopyOnWriteArrayList();
+
+    /** Map<Address,ArrivalWindow>. Keeps track of the arrival times of messages from each member */
+    final Map             windows=new ConcurrentReaderHashMap();
+
+    /** Time (in msecs) the last multicast message was sent by us */
+    volatile long         last_mcast_sent=0;
+
+    TimeScheduler         timer=null;
+    private HeartbeatSender heartbeat_sender=null;
+    private SuspectChecker  suspect_checker=null;
+    private final Object  task_mutex=new Object();
+
+    protected int         num_heartbeats_sent=0;
+    protected int         num_heartbeats_suppressed=0;
+    protected int         num_heartbeats_received=0;
+    protected int         num_suspect_events=0;
+
+    final BoundedList     suspect_history=new BoundedList(20);
+    final static String   name="FD_ALL";
+
+
+    public String getName() {return name;}
+    public String getLocalAddress() {return local_addr != null? local_addr.toString() : "null";}
+    public String getMembers() {return members.toString();}
+    public int getNumberOfHeartbeatsSent() {return num_heartbeats_sent;}
+    public int getNumberOfHeartbeatsSuppressed() {return num_heartbeats_suppressed;}
+    public int getNumberOfHeartbeatsReceived() {return num_heartbeats_received;}
+    public int getNumSuspectEventsGenerated() {return num_suspect_events;}
+    public long getInterval() {return interval;}
+    public void setInterval(long interval) {this.interval=interval;}
+    public long getTimeout() {return timeout;}
+    public void setTimeout(long timeout) {this.timeout=timeout;}
+    public double getPhiThreshold() {return phi_threshold;}
+    public void setPhiThreshold(double phi_threshold) {this.phi_threshold=phi_threshold;}
+    public String printSuspectHistory() {
+        StringBuffer sb=new StringBuffer();
+        for(Enumeration en=suspect_history.elements(); en.hasMoreElements();) {
+            sb.append(en.nextElement()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /** Returns, for each member, the current phi value and the time since we last heard from it */
+    public String printArrivalWindows() {
+        StringBuffer sb=new StringBuffer();
+        Map.Entry entry;
+        ArrivalWindow win;
+        long now=System.currentTimeMillis();
+        for(Iterator it=windows.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            win=(ArrivalWindow)entry.getValue();
+            sb.append(entry.getKey()).append(": ").append(win.toString(now)).append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    public boolean setProperties(Properties props) {
+        String str;
+
+        super.setProperties(props);
+        str=props.getProperty("interval");
+        if(str != null) {
+            interval=Long.parseLong(str);
+            props.remove("interval");
+        }
+
+        str=props.getProperty("check_interval");
+        if(str != null) {
+            check_interval=Long.parseLong(str);
+            props.remove("check_interval");
+        }
+
+        str=props.getProperty("timeout");
+        if(str != null) {
+            timeout=Long.parseLong(str);
+            props.remove("timeout");
+        }
+
+        str=props.getProperty("phi_threshold");
+        if(str != null) {
+            phi_threshold=Double.parseDouble(str);
+            props.remove("phi_threshold");
+        }
+
+        str=props.getProperty("window_size");
+        if(str != null) {
+            window_size=Integer.parseInt(str);
+            props.remove("window_size");
+        }
+
+        str=props.getProperty("min_std_dev");
+        if(str != null) {
+            min_std_dev=Long.parseLong(str);
+            props.remove("min_std_dev");
+        }
+
+        if(interval <= 0 || check_interval <= 0) {
+            log.error("interval (" + interval + ") and check_interval (" + check_interval + ") have to be > 0");
+            return false;
+        }
+        if(phi_threshold <= 0 && timeout <= 0) {
+            log.error("either phi_threshold or timeout has to be > 0, otherwise no member will ever be suspected");
+            return false;
+        }
+
+        if(!props.isEmpty()) {
+            log.error("the following properties are not recognized: " + props);
+            return false;
+        }
+        return true;
+    }
+
+    public void resetStats() {
+        num_heartbeats_sent=num_heartbeats_suppressed=num_heartbeats_received=num_suspect_events=0;
+        suspect_history.removeAll();
+    }
+
+    public Map dumpStats() {
+        Map retval=super.dumpStats();
+        if(retval == null)
+            retval=new HashMap();
+        retval.put("num_heartbeats_sent", new Integer(num_heartbeats_sent));
+        retval.put("num_heartbeats_suppressed", new Integer(num_heartbeats_suppressed));
+        retval.put("num_heartbeats_received", new Integer(num_heartbeats_received));
+        retval.put("num_suspect_events", new Integer(num_suspect_events));
+        retval.put("arrival_windows", printArrivalWindows());
+        return retval;
+    }
+
+
+    public void init() throws Exception {
+        if(stack != null && stack.timer != null)
+            timer=stack.timer;
+        else
+            throw new Exception("FD_ALL.init(): timer cannot be retrieved from protocol stack");
+    }
+
+
+    public void stop() {
+        stopTasks();
+    }
+
+
+    public void up(Event evt) {
+        Message msg;
+        FdAllHeader hdr;
+        Address sender;
+
+        switch(evt.getType()) {
+
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+
+            case Event.MSG:
+                msg=(Message)evt.getArg();
+                sender=msg.getSrc();
+                if(sender != null)
+                    messageReceived(sender); // any message counts as heartbeat
+
+                Object tmp=msg.getHeader(name);
+                if(tmp == null || !(tmp instanceof FdAllHeader))
+                    break;  // message did not originate from FD_ALL layer, just pass up
+
+                hdr=(FdAllHeader)msg.removeHeader(name);
+                switch(hdr.type) {
+                    case FdAllHeader.HEARTBEAT:
+                        num_heartbeats_received++;
+                        break;                                     // don't pass up !
+
+                    case FdAllHeader.SUSPECT:
+                        if(hdr.mbrs != null) {
+                            if(log.isTraceEnabled()) log.trace("[SUSPECT] suspect hdr is " + hdr);
+                            Address m;
+                            for(int i=0; i < hdr.mbrs.size(); i++) {
+                                m=(Address)hdr.mbrs.elementAt(i);
+                                if(local_addr != null && m.equals(local_addr)) {
+                                    if(log.isWarnEnabled())
+                                        log.warn("I was suspected by " + hdr.from + "; ignoring the SUSPECT message " +
+                                                "and sending a HEARTBEAT");
+                                    sendHeartbeat();
+                                    continue;
+                                }
+                                passUp(new Event(Event.SUSPECT, m));
+                                passDown(new Event(Event.SUSPECT, m));
+                            }
+                        }
+                        break;
+                }
+                return;
+        }
+        passUp(evt); // pass up to the layer above us
+    }
+
+
+    public void down(Event evt) {
+        View v;
+
+        switch(evt.getType()) {
+            case Event.MSG:
+                Address dest=((Message)evt.getArg()).getDest();
+                if(dest == null || dest.isMulticastAddress())
+                    last_mcast_sent=System.currentTimeMillis();
+                break;
+
+            case Event.VIEW_CHANGE:
+                passDown(evt);
+                v=(View)evt.getArg();
+                handleViewChange(v.getMembers());
+                return;
+
+            case Event.UNSUSPECT:
+                Address mbr=(Address)evt.getArg();
+                ArrivalWindow win=mbr != null? (ArrivalWindow)windows.get(mbr) : null;
+                if(win != null)
+                    win.reset(System.currentTimeMillis());
+                break;
+        }
+        passDown(evt);
+    }
+
+
+    private void handleViewChange(Vector mbrs) {
+        long now=System.currentTimeMillis();
+        Address mbr;
+
+        synchronized(task_mutex) {
+            members.clear();
+            members.addAll(mbrs);
+            windows.keySet().retainAll(mbrs);
+            for(Iterator it=mbrs.iterator(); it.hasNext();) {
+                mbr=(Address)it.next();
+                if(mbr.equals(local_addr) || windows.containsKey(mbr))
+                    continue;
+                windows.put(mbr, new ArrivalWindow(now));
+            }
+            if(members.size() > 1)
+                startTasks();
+            else
+                stopTasks();
+        }
+    }
+
+
+    private void messageReceived(Address sender) {
+        ArrivalWindow win=(ArrivalWindow)windows.get(sender);
+        if(win != null) {
+            if(win.messageReceived(System.currentTimeMillis()) && log.isDebugEnabled())
+                log.debug("received message from suspected member " + sender + ", unsuspecting it");
+        }
+    }
+
+
+    private void sendHeartbeat() {
+        Message hb=new Message(); // multicast
+        hb.putHeader(name, new FdAllHeader(FdAllHeader.HEARTBEAT));
+        passDown(new Event(Event.MSG, hb));
+        num_heartbeats_sent++;
+    }
+
+
+    private void suspect(Vector suspects) {
+        if(suspects == null || suspects.size() == 0)
+            return;
+        if(log.isDebugEnabled())
+            log.debug("[" + local_addr + "]: suspecting " + suspects);
+        Message suspect_msg=new Message(); // multicast
+        suspect_msg.putHeader(name, new FdAllHeader(FdAllHeader.SUSPECT, suspects, local_addr));
+        passDown(new Event(Event.MSG, suspect_msg));
+    }
+
+
+    private void startTasks() {
+        if(heartbeat_sender == null || heartbeat_sender.cancelled()) {
+            heartbeat_sender=new HeartbeatSender();
+            timer.add(heartbeat_sender, true);  // fixed-rate scheduling
+        }
+        if(suspect_checker == null || suspect_checker.cancelled()) {
+            suspect_checker=new SuspectChecker();
+            timer.add(suspect_checker, true);
+        }
+    }
+
+    private void stopTasks() {
+        synchronized(task_mutex) {
+            if(heartbeat_sender != null) {
+                heartbeat_sender.stop();
+                heartbeat_sender=null;
+            }
+            if(suspect_checker != null) {
+                suspect_checker.stop();
+                suspect_checker=null;
+            }
+        }
+    }
+
+
+    /**
+     * Sliding window of inter-arrival times of messages from a given member. All methods need to be synchronized,
+     * as messages can be received concurrently with the SuspectChecker task
+     */
+    class ArrivalWindow {
+        final long[]  samples=new long[Math.max(window_size, 1)];
+        int           index=0, count=0;
+        long          sum=0;
+        double        sum_sq=0;
+        long          last_arrival;
+        long          last_suspect_sent=0; // 0 if not suspected
+
+        ArrivalWindow(long now) {
+            last_arrival=now;
+        }
+
+        /** Adds a sample. Returns true if the member was suspected */
+        synchronized boolean messageReceived(long now) {
+            long diff=now - last_arrival;
+            last_arrival=now;
+            if(diff > 0) {
+                if(count == samples.length) {
+                    sum-=samples[index];
+                    sum_sq-=(double)samples[index] * samples[index];
+                }
+                else
+                    count++;
+                samples[index]=diff;
+                sum+=diff;
+                sum_sq+=(double)diff * diff;
+                index=(index + 1) % samples.length;
+            }
+            boolean was_suspected=last_suspect_sent > 0;
+            last_suspect_sent=0;
+            return was_suspected;
+        }
+
+        synchronized void reset(long now) {
+            last_arrival=now;
+            last_suspect_sent=0;
+        }
+
+        synchronized long timeSinceLastArrival(long now) {
+            return now - last_arrival;
+        }
+
+        /**
+         * Computes phi, using the normal distribution of the inter-arrival times. The CDF of the normal
+         * distribution is approximated with a logistic function (error < 0.0002)
+         */
+        synchronized double phi(long now) {
+            double t=now - last_arrival;
+            double mean=count > 0? (double)sum / count : interval;
+            double variance=count > 0? sum_sq / count - mean * mean : 0;
+            double std_dev=Math.max(Math.sqrt(Math.max(variance, 0)), min_std_dev);
+            mean=Math.max(mean, interval); // the sender sends at least 1 msg every interval ms
+
+            double y=(t - mean) / std_dev;
+            double e=Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if(t > mean)
+                return -log10(e / (1.0 + e));
+            else
+                return -log10(1.0 - 1.0 / (1.0 + e));
+        }
+
+        public String toString(long now) {
+            StringBuffer sb=new StringBuffer();
+            sb.append("last heard ").append(timeSinceLastArrival(now)).append(" ms ago, phi=");
+            sb.append((float)phi(now)).append(" (").append(count).append(" samples)");
+            synchronized(this) {
+                if(last_suspect_sent > 0)
+                    sb.append(" [suspected]");
+            }
+            return sb.toString();
+        }
+    }
+
+    private static double log10(double d) {
+        return Math.log(d) / Math.log(10);
+    }
+
+
+    public static class FdAllHeader extends Header implements Streamable {
+        public static final byte HEARTBEAT=0;
+        public static final byte SUSPECT=1;
+
+        byte    type=HEARTBEAT;
+        Vector  mbrs=null;
+        Address from=null;  // member who suspected mbrs
+
+
+        public FdAllHeader() {
+        } // used for externalization
+
+        public FdAllHeader(byte type) {
+            this.type=type;
+        }
+
+        public FdAllHeader(byte type, Vector mbrs, Address from) {
+            this(type);
+            this.mbrs=mbrs;
+            this.from=from;
+        }
+
+
+        public String toString() {
+            switch(type) {
+                case HEARTBEAT:
+                    return "[FD_ALL: heartbeat]";
+                case SUSPECT:
+                    return "[FD_ALL: SUSPECT (suspected_mbrs=" + mbrs + ", from=" + from + ")]";
+                default:
+                    return "[FD_ALL: unknown type (" + type + ")]";
+            }
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(type);
+            if(mbrs == null)
+                out.writeBoolean(false);
+            else {
+                out.writeBoolean(true);
+                out.writeInt(mbrs.size());
+                for(Iterator it=mbrs.iterator(); it.hasNext();) {
+                    Address addr=(Address)it.next();
+                    Marshaller.write(addr, out);
+                }
+            }
+            Marshaller.write(from, out);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            type=in.readByte();
+            boolean mbrs_not_null=in.readBoolean();
+            if(mbrs_not_null) {
+                int len=in.readInt();
+                mbrs=new Vector(11);
+                for(int i=0; i < len; i++) {
+                    Address addr=(Address)Marshaller.read(in);
+                    mbrs.add(addr);
+                }
+            }
+            from=(Address)Marshaller.read(in);
+        }
+
+        public long size() {
+            int retval=Global.BYTE_SIZE; // type
+            retval+=Util.size(mbrs);
+            retval+=Util.size(from);
+            return retval;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            Util.writeAddresses(mbrs, out);
+            Util.writeAddress(from, out);
+        }
+
+        public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+            type=in.readByte();
+            mbrs=(Vector)Util.readAddresses(in, Vector.class);
+            from=Util.readAddress(in);
+        }
+    }
+
+
+    /** Multicasts a HEARTBEAT if we haven't sent any multicast message during the last interval ms */
+    protected class HeartbeatSender implements TimeScheduler.Task {
+        boolean started=true;
+
+        public void stop() {
+            started=false;
+        }
+
+        public boolean cancelled() {
+            return !started;
+        }
+
+        public long nextInterval() {
+            return interval;
+        }
+
+        public void run() {
+            // allow for some scheduling jitter, otherwise we'd send a heartbeat every other interval
+            if(System.currentTimeMillis() - last_mcast_sent >= interval - (interval / 10)) {
+                if(log.isTraceEnabled())
+                    log.trace("sending heartbeat (own address=" + local_addr + ')');
+                sendHeartbeat();
+            }
+            else
+                num_heartbeats_suppressed++;
+        }
+    }
+
+
+    /** Computes phi for all members and suspects the ones which exceed phi_threshold or timeout */
+    protected class SuspectChecker implements TimeScheduler.Task {
+        boolean started=true;
+
+        public void stop() {
+            started=false;
+        }
+
+        public boolean cancelled() {
+            return !started;
+        }
+
+        public long nextInterval() {
+            return check_interval;
+        }
+
+        public void run() {
+            long now=System.currentTimeMillis();
+            Vector suspects=null;
+            Map.Entry entry;
+            Address mbr;
+            ArrivalWindow win;
+            double phi;
+            long not_heard_from;
+
+            for(Iterator it=windows.entrySet().iterator(); it.hasNext();) {
+                entry=(Map.Entry)it.next();
+                mbr=(Address)entry.getKey();
+                win=(ArrivalWindow)entry.getValue();
+                synchronized(win) {
+                    phi=win.phi(now);
+                    not_heard_from=win.timeSinceLastArrival(now);
+                    if((phi_threshold > 0 && phi >= phi_threshold) || (timeout > 0 && not_heard_from >= timeout)) {
+                        // resend the SUSPECT every timeout ms (or interval if timeout is disabled), until excluded
+                        long resend_interval=timeout > 0? timeout : interval;
+                        if(win.last_suspect_sent > 0 && now - win.last_suspect_sent < resend_interval)
+                            continue;
+                        boolean first_time=win.last_suspect_sent == 0;
+                        win.last_suspect_sent=now;
+                        if(suspects == null)
+                            suspects=new Vector(3);
+                        suspects.add(mbr);
+                        if(first_time) {
+                            if(log.isDebugEnabled())
+                                log.debug("[" + local_addr + "]: haven't heard from " + mbr + " for " +
+                                        not_heard_from + " ms (phi=" + (float)phi + "), suspecting it");
+                            num_suspect_events++;
+                            if(stats)
+                                suspect_history.add(new Date() + ": " + mbr + " (phi=" + (float)phi + ")");
+                        }
+                    }
+                }
+            }
+            suspect(suspects);
+        }
+    }
+
+}
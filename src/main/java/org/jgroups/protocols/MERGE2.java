@@ -3,16 +3,15 @@
 package org.jgroups.protocols;
 
 
-import org.jgroups.Address;
-import org.jgroups.Event;
-import org.jgroups.View;
-import org.jgroups.Global;
+import org.jgroups.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Promise;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
-import java.util.Properties;
-import java.util.Vector;
+import java.io.*;
+import java.util.*;
 
 
 
@@ -35,6 +34,13 @@ import java.util.Vector;
  *     <li>Send the event up the stack
  *     </ol>
  * </ul>
+ * Optionally (announce_interval > 0, disabled by default), a coordinator multicasts a small announcement every
+ * announce_interval ms. When a coordinator receives an announcement from a coordinator which is not a member of its
+ * view (a 'foreign' coordinator), the FindSubgroups task is woken up immediately rather than waiting for the next random interval. All coordinators
+ * found by discovery, plus all foreign coordinators seen since the last round, are merged in a single MERGE event.
+ * Discovery is bounded by discovery_timeout, so a lost FIND_INITIAL_MBRS_OK cannot block the task forever.<p>
+ * The time from the detection of a partition until the merged view is installed, and the coordinators of the
+ * subgroups involved, are recorded (see {@link #getLastMergeDuration()} and {@link #getLastMergeCoordinators()}).
  *
  * <p>
  *
@@ -55,6 +61,33 @@ public class MERGE2 extends Protocol {
     /** Use a new thread to send the MERGE event up the stack */
     boolean               use_separate_thread=false;
 
+    /** Interval (ms) at which a coordinator multicasts its announcement. 0 (default) disables announcements */
+    long                  announce_interval=0;
+
+    /** Max time (ms) to wait for the result of FIND_INITIAL_MBRS. 0 waits forever (old behavior) */
+    long                  discovery_timeout=10000;
+
+    /** Min time (ms) between 2 merge rounds triggered by foreign announcements, to avoid merge storms */
+    long                  min_trigger_interval=1000;
+
+    /** Map<Address,Long>. Coordinators of foreign views we've received announcements from, and the time of the last
+     * announcement. Entries not refreshed within max_interval are dropped (e.g. a coordinator which crashed or
+     * became a participant) */
+    private final Map     foreign_coords=new HashMap();
+
+    private Vector        members=new Vector();
+    TimeScheduler         timer=null;
+    private CoordinatorAnnouncer announcer=null;
+
+    /** Time at which the pending merge was started (0 if none), and the coordinators involved */
+    private long          merge_start=0;
+    private Vector        merge_coords=null;
+
+    private int           num_merge_events=0, num_merges_completed=0, num_triggered_rounds=0;
+    private int           num_announcements_sent=0, num_foreign_announcements=0;
+    private long          last_merge_duration=0, total_merge_duration=0;
+    private Vector        last_merge_coords=null;
+
 
     public String getName() {
         return "MERGE2";
@@ -76,6 +109,81 @@ public class MERGE2 extends Protocol {
         max_interval=l;
     }
 
+    public long getAnnounceInterval() {
+        return announce_interval;
+    }
+
+    public long getDiscoveryTimeout() {
+        return discovery_timeout;
+    }
+
+    public void setDiscoveryTimeout(long timeout) {
+        discovery_timeout=timeout;
+    }
+
+    public int getNumberOfMergeEvents() {
+        return num_merge_events;
+    }
+
+    public int getNumberOfMergesCompleted() {
+        return num_merges_completed;
+    }
+
+    public int getNumberOfTriggeredRounds() {
+        return num_triggered_rounds;
+    }
+
+    public int getNumberOfAnnouncementsSent() {
+        return num_announcements_sent;
+    }
+
+    public int getNumberOfForeignAnnouncements() {
+        return num_foreign_announcements;
+    }
+
+    /** Time (ms) between detection of the last partition and the installation of the merged view */
+    public long getLastMergeDuration() {
+        return last_merge_duration;
+    }
+
+    public double getAverageMergeDuration() {
+        return num_merges_completed > 0? total_merge_duration / (double)num_merges_completed : 0.0;
+    }
+
+    /** Returns the coordinators of the subgroups involved in the last merge */
+    public synchronized String getLastMergeCoordinators() {
+        return last_merge_coords != null? last_merge_coords.toString() : "n/a";
+    }
+
+    public synchronized String getForeignCoordinators() {
+        return foreign_coords.keySet().toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_merge_events=num_merges_completed=num_triggered_rounds=0;
+        num_announcements_sent=num_foreign_announcements=0;
+        last_merge_duration=total_merge_duration=0;
+        synchronized(this) {
+            last_merge_coords=null;
+        }
+    }
+
+    public Map dumpStats() {
+        Map m=super.dumpStats();
+        if(m == null)
+            m=new HashMap();
+        m.put("num_merge_events", new Integer(num_merge_events));
+        m.put("num_merges_completed", new Integer(num_merges_completed));
+        m.put("num_triggered_rounds", new Integer(num_triggered_rounds));
+        m.put("num_announcements_sent", new Integer(num_announcements_sent));
+        m.put("num_foreign_announcements", new Integer(num_foreign_announcements));
+        m.put("last_merge_duration", new Long(last_merge_duration));
+        m.put("avg_merge_duration", new Double(getAverageMergeDuration()));
+        m.put("last_merge_coords", getLastMergeCoordinators());
+        return m;
+    }
+
 
     public boolean setProperties(Properties props) {
         String str;
@@ -108,6 +216,24 @@ public class MERGE2 extends Protocol {
             props.remove("use_separate_thread");
         }
 
+        str=props.getProperty("announce_interval");
+        if(str != null) {
+            announce_interval=Long.parseLong(str);
+            props.remove("announce_interval");
+        }
+
+        str=props.getProperty("discovery_timeout");
+        if(str != null) {
+            discovery_timeout=Long.parseLong(str);
+            props.remove("discovery_timeout");
+        }
+
+        str=props.getProperty("min_trigger_interval");
+        if(str != null) {
+            min_trigger_interval=Long.parseLong(str);
+            props.remove("min_trigger_interval");
+        }
+
         if(props.size() > 0) {
             log.error("the following properties are not recognized: " + props);
             return false;
@@ -123,9 +249,22 @@ public class MERGE2 extends Protocol {
     }
 
 
+    public void init() throws Exception {
+        timer=stack != null? stack.timer : null;
+        if(timer == null && announce_interval > 0)
+            throw new Exception("MERGE2.init(): timer cannot be retrieved from protocol stack");
+    }
+
+
     public void stop() {
         is_coord=false;
         stopTask();
+        stopAnnouncer();
+        synchronized(this) {
+            foreign_coords.clear();
+            merge_start=0;
+            merge_coords=null;
+        }
     }
 
 
@@ -158,6 +297,17 @@ public class MERGE2 extends Protocol {
                 passUp(evt); // could be needed by GMS
                 break;
 
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                MergeHeader hdr=(MergeHeader)msg.removeHeader(getName());
+                if(hdr == null) {
+                    passUp(evt);
+                    break;
+                }
+                if(hdr.type == MergeHeader.COORD_ANNOUNCEMENT)
+                    handleAnnouncement(hdr.coord);
+                break; // announcements are consumed here
+
             default:
                 passUp(evt);            // Pass up to the layer above us
                 break;
@@ -186,12 +336,15 @@ public class MERGE2 extends Protocol {
                 mbrs=((View)evt.getArg()).getMembers();
                 if(mbrs == null || mbrs.size() == 0 || local_addr == null) {
                     stopTask();
+                    stopAnnouncer();
                     break;
                 }
+                handleViewChange(mbrs);
                 coord=(Address)mbrs.elementAt(0);
                 if(coord.equals(local_addr)) {
                     is_coord=true;
                     startTask(); // start task if we became coordinator (doesn't start if already running)
+                    startAnnouncer();
                 }
                 else {
                     // if we were coordinator, but are no longer, stop task. this happens e.g. when we merge and someone
@@ -200,6 +353,7 @@ public class MERGE2 extends Protocol {
                         is_coord=false;
                     }
                     stopTask();
+                    stopAnnouncer();
                 }
                 break;
 
@@ -235,6 +389,125 @@ public class MERGE2 extends Protocol {
             }
         }
     }
+
+    void startAnnouncer() {
+        if(announce_interval <= 0 || timer == null)
+            return;
+        synchronized(task_lock) {
+            if(announcer == null || announcer.cancelled()) {
+                announcer=new CoordinatorAnnouncer();
+                timer.add(announcer, true);
+            }
+        }
+    }
+
+    void stopAnnouncer() {
+        synchronized(task_lock) {
+            if(announcer != null) {
+                announcer.stop();
+                announcer=null;
+            }
+        }
+    }
+
+    void sendAnnouncement() {
+        if(!is_coord || local_addr == null)
+            return;
+        Message msg=new Message(); // multicast to all
+        msg.putHeader(getName(), new MergeHeader(MergeHeader.COORD_ANNOUNCEMENT, local_addr));
+        passDown(new Event(Event.MSG, msg));
+        num_announcements_sent++;
+    }
+
+    /**
+     * Called when we receive an announcement. If it was sent by a coordinator which is not in our view, we know
+     * that there is a partition: remember the coordinator and wake up the FindSubgroups task
+     */
+    void handleAnnouncement(Address other_coord) {
+        if(!is_coord || other_coord == null || local_addr == null || local_addr.equals(other_coord))
+            return;
+        boolean trigger;
+        synchronized(this) {
+            if(members.contains(other_coord))
+                return;
+            num_foreign_announcements++;
+            boolean is_new=foreign_coords.put(other_coord, new Long(System.currentTimeMillis())) == null;
+            trigger=is_new && merge_start == 0;
+            if(trigger) {
+                merge_start=System.currentTimeMillis();  // detection time
+                merge_coords=null;
+            }
+        }
+        if(trigger) {
+            if(log.isDebugEnabled())
+                log.debug("received announcement from foreign coordinator " + other_coord + ", starting merge round");
+            synchronized(task_lock) {
+                if(task != null)
+                    task.trigger();
+            }
+        }
+    }
+
+    /**
+     * Drops all foreign coordinators which are now members of our view. If the view contains all coordinators of a
+     * pending merge, the merge has completed and we record its duration
+     */
+    synchronized void handleViewChange(Vector mbrs) {
+        members=new Vector(mbrs);
+        foreign_coords.keySet().removeAll(mbrs);
+        if(merge_start > 0 && merge_coords != null && mbrs.containsAll(merge_coords)) {
+            last_merge_duration=System.currentTimeMillis() - merge_start;
+            total_merge_duration+=last_merge_duration;
+            num_merges_completed++;
+            last_merge_coords=merge_coords;
+            if(log.isDebugEnabled())
+                log.debug("merge of " + merge_coords.size() + " subgroups " + merge_coords + " completed in " +
+                          last_merge_duration + " ms");
+            merge_start=0;
+            merge_coords=null;
+        }
+    }
+
+    /** Adds all foreign coordinators which sent an announcement within the last max_interval ms to coords, and
+     * drops the ones which didn't */
+    synchronized void addForeignCoordinators(Vector coords) {
+        long now=System.currentTimeMillis();
+        Map.Entry entry;
+        Object addr;
+        for(Iterator it=foreign_coords.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            addr=entry.getKey();
+            if(now - ((Long)entry.getValue()).longValue() > max_interval) {
+                if(log.isTraceEnabled())
+                    log.trace("dropping foreign coordinator " + addr + ": no announcement within " + max_interval + " ms");
+                it.remove();
+                continue;
+            }
+            if(!coords.contains(addr))
+                coords.add(addr);
+        }
+    }
+
+    /**
+     * Marks the start of a merge of coords (unless a merge triggered by an announcement is already pending, in which
+     * case its detection time is kept)
+     */
+    synchronized void startMerge(Vector coords) {
+        if(merge_start == 0)
+            merge_start=System.currentTimeMillis();
+        merge_coords=new Vector(coords);
+        num_merge_events++;
+    }
+
+    /** Clears a pending merge which didn't complete within max_interval, so that new announcements trigger again */
+    synchronized void expireMerge() {
+        if(merge_start > 0 && System.currentTimeMillis() - merge_start > max_interval) {
+            if(log.isDebugEnabled())
+                log.debug("merge of " + merge_coords + " did not complete within " + max_interval + " ms");
+            merge_start=0;
+            merge_coords=null;
+        }
+    }
     /* ---------------------------------- End of Private Methods ------------------------------------ */
 
 
@@ -247,6 +520,8 @@ public class MERGE2 extends Protocol {
      */
     private class FindSubgroups implements Runnable {
         Thread thread=null;
+        boolean triggered=false;
+        long    last_triggered_round=0;
 
         String getName() {
             return thread != null? thread.getName() : null;
@@ -277,6 +552,36 @@ public class MERGE2 extends Protocol {
             thread=null;
         }
 
+        /** Wakes up the task, so that it runs a merge round right away */
+        public synchronized void trigger() {
+            triggered=true;
+            notifyAll();
+        }
+
+        /** Waits for the given time, or until triggered. Triggered rounds are at least min_trigger_interval apart */
+        synchronized void waitForNextRound(long interval) {
+            long target=System.currentTimeMillis() + interval;
+            long now, wait_time;
+            while(thread != null) {
+                now=System.currentTimeMillis();
+                if(triggered && now - last_triggered_round >= min_trigger_interval) {
+                    num_triggered_rounds++;
+                    last_triggered_round=now;
+                    break;
+                }
+                wait_time=triggered? last_triggered_round + min_trigger_interval - now : target - now;
+                if(!triggered && wait_time <= 0)
+                    break;
+                try {
+                    wait(Math.max(wait_time, 1));
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+            }
+            triggered=false;
+        }
+
 
         public void run() {
             long interval;
@@ -286,13 +591,20 @@ public class MERGE2 extends Protocol {
             // if(log.isDebugEnabled()) log.debug("merge task started as I'm the coordinator");
             while(thread != null && Thread.currentThread().equals(thread)) {
                 interval=computeInterval();
-                Util.sleep(interval);
+                waitForNextRound(interval);
                 if(thread == null) break;
+                expireMerge();
                 initial_mbrs=findInitialMembers();
                 if(thread == null) break;
                 if(log.isDebugEnabled()) log.debug("initial_mbrs=" + initial_mbrs);
                 coords=detectMultipleCoordinators(initial_mbrs);
-                if(coords != null && coords.size() > 1) {
+                if(coords == null)
+                    coords=new Vector(11);
+                if(local_addr != null && !coords.contains(local_addr))
+                    coords.add(local_addr);
+                addForeignCoordinators(coords); // merges all subgroups we know of in one round
+                if(coords.size() > 1) {
+                    startMerge(coords);
                     if(log.isDebugEnabled())
                         log.debug("found multiple coordinators: " + coords + "; sending up MERGE event");
                     final Event evt=new Event(Event.MERGE, coords);
@@ -331,7 +643,10 @@ public class MERGE2 extends Protocol {
             PingRsp tmp=new PingRsp(local_addr, local_addr, true);
             find_promise.reset();
             passDown(Event.FIND_INITIAL_MBRS_EVT);
-            Vector retval=(Vector)find_promise.getResult(0); // wait indefinitely until response is received
+            // discovery_timeout=0 waits indefinitely until response is received
+            Vector retval=(Vector)find_promise.getResult(discovery_timeout);
+            if(retval == null && thread != null && log.isWarnEnabled())
+                log.warn("discovery did not return within " + discovery_timeout + " ms");
             if(retval != null && is_coord && local_addr != null && !retval.contains(tmp))
                 retval.add(tmp);
             return retval;
@@ -364,4 +679,71 @@ public class MERGE2 extends Protocol {
 
     }
 
+
+
+    /** Periodically multicasts our address, as long as we're coordinator */
+    private class CoordinatorAnnouncer implements TimeScheduler.Task {
+        boolean cancelled=false;
+
+        public void stop() {
+            cancelled=true;
+        }
+
+        public boolean cancelled() {
+            return cancelled;
+        }
+
+        public long nextInterval() {
+            return announce_interval;
+        }
+
+        public void run() {
+            sendAnnouncement();
+        }
+    }
+
+
+    public static class MergeHeader extends Header implements Streamable {
+        public static final byte COORD_ANNOUNCEMENT=1;
+
+        byte    type=COORD_ANNOUNCEMENT;
+        Address coord=null;
+
+        public MergeHeader() {
+        } // used for externalization
+
+        public MergeHeader(byte type, Address coord) {
+            this.type=type;
+            this.coord=coord;
+        }
+
+        public String toString() {
+            return "[MERGE2: " + (type == COORD_ANNOUNCEMENT? "COORD_ANNOUNCEMENT" : "<unknown>") + ", coord=" + coord + "]";
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(type);
+            out.writeObject(coord);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            type=in.readByte();
+            coord=(Address)in.readObject();
+        }
+
+        public long size() {
+            return Global.BYTE_SIZE + Util.size(coord);
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            Util.writeAddress(coord, out);
+        }
+
+        public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+            type=in.readByte();
+            coord=Util.readAddress(in);
+        }
+    }
+
 }
@@ -45,6 +45,14 @@ public class MERGE3 extends Protocol {
     /** Use a new thread to send the MERGE event up the stack */
     boolean use_separate_thread=false;
 
+    /** Time at which the pending merge was started (0 if none), and the coordinators involved */
+    private long   merge_start=0;
+    private Vector merge_coords=null;
+
+    private int    num_merge_events=0, num_merges_completed=0;
+    private long   last_merge_duration=0, total_merge_duration=0;
+    private Vector last_merge_coords=null;
+
 
 
 
@@ -52,6 +60,49 @@ public class MERGE3 extends Protocol {
         return "MERGE3";
     }
 
+    public int getNumberOfMergeEvents() {
+        return num_merge_events;
+    }
+
+    public int getNumberOfMergesCompleted() {
+        return num_merges_completed;
+    }
+
+    /** Time (ms) between sending up the last MERGE event and the installation of the merged view */
+    public long getLastMergeDuration() {
+        return last_merge_duration;
+    }
+
+    public double getAverageMergeDuration() {
+        return num_merges_completed > 0? total_merge_duration / (double)num_merges_completed : 0.0;
+    }
+
+    /** Returns the coordinators of the subgroups involved in the last merge */
+    public synchronized String getLastMergeCoordinators() {
+        return last_merge_coords != null? last_merge_coords.toString() : "n/a";
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_merge_events=num_merges_completed=0;
+        last_merge_duration=total_merge_duration=0;
+        synchronized(this) {
+            last_merge_coords=null;
+        }
+    }
+
+    public Map dumpStats() {
+        Map m=super.dumpStats();
+        if(m == null)
+            m=new HashMap();
+        m.put("num_merge_events", new Integer(num_merge_events));
+        m.put("num_merges_completed", new Integer(num_merges_completed));
+        m.put("last_merge_duration", new Long(last_merge_duration));
+        m.put("avg_merge_duration", new Double(getAverageMergeDuration()));
+        m.put("last_merge_coords", getLastMergeCoordinators());
+        return m;
+    }
+
 
     public boolean setProperties(Properties props) {
         String str;
@@ -164,6 +215,7 @@ public class MERGE3 extends Protocol {
                 tmp=((View)evt.getArg()).getMembers();
                 mbrs.clear();
                 mbrs.addAll(tmp);
+                checkMergeCompleted(tmp);
                 coord=(Address)mbrs.elementAt(0);
                 if(coord.equals(local_addr)) {
                     if(is_coord == false) {
@@ -224,10 +276,30 @@ public class MERGE3 extends Protocol {
         passDown(new Event(Event.MSG, coord_announcement));
     }
 
+    /** If the view contains all coordinators of the pending merge, the merge has completed */
+    synchronized void checkMergeCompleted(Vector view_mbrs) {
+        if(merge_start > 0 && merge_coords != null && view_mbrs.containsAll(merge_coords)) {
+            last_merge_duration=System.currentTimeMillis() - merge_start;
+            total_merge_duration+=last_merge_duration;
+            num_merges_completed++;
+            last_merge_coords=merge_coords;
+            if(log.isDebugEnabled())
+                log.debug("merge of " + merge_coords.size() + " subgroups " + merge_coords + " completed in " +
+                          last_merge_duration + " ms");
+            merge_start=0;
+            merge_coords=null;
+        }
+    }
+
     void processAnnouncements() {
         if(announcements.size() > 1) {
             Vector coords=new Vector(announcements);  // create a clone
             if(coords.size() > 1) {
+                synchronized(this) {
+                    merge_start=System.currentTimeMillis();
+                    merge_coords=new Vector(coords);
+                    num_merge_events++;
+                }
                 if(log.isDebugEnabled())
                     log.debug("passing up MERGE event, coords=" + coords);
                 final Event evt=new Event(Event.MERGE, coords);
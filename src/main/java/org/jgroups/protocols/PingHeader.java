@@ -8,15 +8,23 @@ import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import java.io.*;
+import java.util.Vector;
 
 
 public class PingHeader extends Header implements Streamable {
     public static final byte GET_MBRS_REQ=1;   // arg = null
     public static final byte GET_MBRS_RSP=2;   // arg = PingRsp(local_addr, coord_addr)
+    /** Same as GET_MBRS_REQ, but always answered, regardless of Discovery.responders */
+    public static final byte GET_MBRS_REQ_DIRECT=3;  // arg = null
+    /** Same as GET_MBRS_RSP, but mbrs contains the members of the responder's view */
+    public static final byte GET_MBRS_RSP_VIEW=4;    // arg = PingRsp(local_addr, coord_addr)
 
     public byte type=0;
     public PingRsp arg=null;
 
+    /** Vector<Address>. Only used (and marshalled) by GET_MBRS_RSP_VIEW */
+    public Vector mbrs=null;
+
     public PingHeader() {
     } // for externalization
 
@@ -25,16 +33,23 @@ public class PingHeader extends Header implements Streamable {
         this.arg=arg;
     }
 
+    public PingHeader(byte type, PingRsp arg, Vector mbrs) {
+        this(type, arg);
+        this.mbrs=mbrs;
+    }
+
     public long size() {
         long retval=Global.BYTE_SIZE *2; // type and presence
         if(arg != null) {
             retval+=arg.size();
         }
+        if(type == GET_MBRS_RSP_VIEW)
+            retval+=Util.size(mbrs);
         return retval;
     }
 
     public String toString() {
-        return "[PING: type=" + type2Str(type) + ", arg=" + arg + ']';
+        return "[PING: type=" + type2Str(type) + ", arg=" + arg + (mbrs != null? ", mbrs=" + mbrs : "") + ']';
     }
 
     String type2Str(byte t) {
@@ -43,6 +58,10 @@ public class PingHeader extends Header implements Streamable {
                 return "GET_MBRS_REQ";
             case GET_MBRS_RSP:
                 return "GET_MBRS_RSP";
+            case GET_MBRS_REQ_DIRECT:
+                return "GET_MBRS_REQ_DIRECT";
+            case GET_MBRS_RSP_VIEW:
+                return "GET_MBRS_RSP_VIEW";
             default:
                 return "<unkown type (" + t + ")>";
         }
@@ -52,21 +71,29 @@ public class PingHeader extends Header implements Streamable {
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeByte(type);
         out.writeObject(arg);
+        if(type == GET_MBRS_RSP_VIEW)
+            out.writeObject(mbrs);
     }
 
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         type=in.readByte();
         arg=(PingRsp)in.readObject();
+        if(type == GET_MBRS_RSP_VIEW)
+            mbrs=(Vector)in.readObject();
     }
 
     public void writeTo(DataOutputStream outstream) throws IOException {
         outstream.writeByte(type);
         Util.writeStreamable(arg, outstream);
+        if(type == GET_MBRS_RSP_VIEW)
+            Util.writeAddresses(mbrs, outstream);
     }
 
     public void readFrom(DataInputStream instream) throws IOException, IllegalAccessException, InstantiationException {
         type=instream.readByte();
         arg=(PingRsp)Util.readStreamable(PingRsp.class, instream);
+        if(type == GET_MBRS_RSP_VIEW)
+            mbrs=(Vector)Util.readAddresses(instream, Vector.class);
     }
 }
@@ -57,6 +57,7 @@ public class PingSender implements Runnable {
             if(log.isTraceEnabled())
                 log.trace("sending GET_MBRS_REQ");
             discovery_prot.sendGetMembersRequest();
+            discovery_prot.sendGetMembersRequestToCachedMembers();
             Util.sleep((long)interval);
         }
     }
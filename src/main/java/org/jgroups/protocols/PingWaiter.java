@@ -5,6 +5,7 @@ import org.jgroups.Event;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Vector;
@@ -21,6 +22,8 @@ public class PingWaiter implements Runnable {
     int                 num_rsps=3;
     Protocol            parent=null;
     PingSender          ping_sender;
+    /** Return as soon as a response from the coordinator has been received, even if we have less than num_rsps */
+    boolean             break_on_coord_rsp=false;
     protected final Log log=LogFactory.getLog(this.getClass());
     private boolean     trace=log.isTraceEnabled();
 
@@ -41,6 +44,10 @@ public class PingWaiter implements Runnable {
         this.num_rsps=num;
     }
 
+    void setBreakOnCoordResponse(boolean flag) {
+        this.break_on_coord_rsp=flag;
+    }
+
 
 
     public synchronized void start() {
@@ -119,7 +126,8 @@ public class PingWaiter implements Runnable {
             time_to_wait=timeout;
 
             try {
-                while(rsps.size() < num_rsps && time_to_wait > 0 && thread != null && Thread.currentThread().equals(thread)) {
+                while(rsps.size() < num_rsps && time_to_wait > 0 && thread != null && Thread.currentThread().equals(thread)
+                        && !(break_on_coord_rsp && containsCoordResponse())) {
                     if(log.isTraceEnabled()) // +++ remove
                         log.trace(new StringBuffer("waiting for initial members: time_to_wait=").append(time_to_wait)
                                   .append(", got ").append(rsps.size()).append(" rsps"));
@@ -145,4 +153,13 @@ public class PingWaiter implements Runnable {
         }
     }
 
+    /** Needs to be called with the lock on rsps held */
+    private boolean containsCoordResponse() {
+        for(Iterator it=rsps.iterator(); it.hasNext();) {
+            if(((PingRsp)it.next()).isCoord())
+                return true;
+        }
+        return false;
+    }
+
 }
@@ -4,7 +4,9 @@ package org.jgroups.protocols;
 import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
 import org.jgroups.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.ExposedByteArrayOutputStream;
 import org.jgroups.util.Streamable;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -12,7 +14,14 @@ import java.util.*;
 
 
 /**
- * Implementation of total order protocol using a sequencer. Consult doc/design/SEQUENCER.txt for details
+ * Implementation of total order protocol using a sequencer. Consult doc/design/SEQUENCER.txt for details.<p/>
+ * If max_batch_size is greater than 1, the sequencer (coordinator) doesn't re-broadcast each forwarded message
+ * individually, but queues it and broadcasts the queued messages as a single batch, whose position in the total
+ * order is the position of the batch. A batch is sent when it contains max_batch_size messages or max_batch_bytes
+ * bytes, or when its first message has been queued for batch_delay ms. Receivers unpack a batch and deliver its
+ * messages in order.<p/>
+ * When the sequencer changes, all messages which were forwarded to the old sequencer, but not yet received as
+ * broadcast, are resent to the new one (or broadcast directly if we are the new sequencer).
  * @author Bela Ban
  * @version $Id: SEQUENCER.java,v 1.11.2.1 2007/04/27 08:03:52 belaban Exp $
  */
@@ -23,15 +32,45 @@ public class SEQUENCER extends Protocol {
     private long              seqno=0;
 
     /** Map<seqno, Message>: maintains messages forwarded to the coord which which no ack has been received yet */
-    private final Map               forward_table=new TreeMap();
+    private final TreeMap           forward_table=new TreeMap();
+
+    /**
+     * Incremented (under the forward_table lock) when the coordinator changes. While the messages in forward_table
+     * are resent, new messages are only added to forward_table and sent by the resending thread, so they cannot
+     * overtake the resent ones
+     */
+    private int                     resend_round=0;
+    private boolean                 resending=false;
 
     /** Map<Address, seqno>: maintains the highest seqnos seen for a given member */
     private final ConcurrentHashMap received_table=new ConcurrentHashMap();
 
+    /** Max number of messages bundled into a single broadcast by the sequencer. 1 disables batching */
+    private int  max_batch_size=1;
+
+    /** Max number of bytes bundled into a single broadcast by the sequencer */
+    private long max_batch_bytes=50000;
+
+    /** Max time (ms) a message is queued by the sequencer before its batch is broadcast */
+    private long batch_delay=5;
+
+    /** List<Message> of messages to be broadcast in the next batch */
+    private final List        batch_queue=new LinkedList();
+    private long              batch_queue_bytes=0;
+
+    /** Ensures batches are passed down in the order in which they were taken from the queue */
+    private final Object      send_lock=new Object();
+    private BatchFlusher      flusher=null;
+    private TimeScheduler     timer=null;
+
     private long forwarded_msgs=0;
     private long bcast_msgs=0;
     private long received_forwards=0;
     private long received_bcasts=0;
+    private long batches_sent=0;
+    private long msgs_in_batches=0;
+    private long received_batches=0;
+    private long resent_forwards=0;
 
     public boolean isCoordinator() {return is_coord;}
     public Address getCoordinator() {return coord;}
@@ -41,9 +80,24 @@ public class SEQUENCER extends Protocol {
     public long getBroadcast() {return bcast_msgs;}
     public long getReceivedForwards() {return received_forwards;}
     public long getReceivedBroadcasts() {return received_bcasts;}
+    public long getBatchesSent() {return batches_sent;}
+    public long getReceivedBatches() {return received_batches;}
+    public long getResentForwards() {return resent_forwards;}
+    public int getMaxBatchSize() {return max_batch_size;}
+    public void setMaxBatchSize(int size) {max_batch_size=size;}
+    public long getBatchDelay() {return batch_delay;}
+    public void setBatchDelay(long delay) {batch_delay=delay;}
+    public double getAverageBatchSize() {return batches_sent > 0? msgs_in_batches / (double)batches_sent : 0.0;}
+
+    public int getForwardTableSize() {
+        synchronized(forward_table) {
+            return forward_table.size();
+        }
+    }
 
     public void resetStats() {
         forwarded_msgs=bcast_msgs=received_forwards=received_bcasts=0L;
+        batches_sent=msgs_in_batches=received_batches=resent_forwards=0L;
     }
 
     public Map dumpStats() {
@@ -54,6 +108,11 @@ public class SEQUENCER extends Protocol {
         m.put("broadcast", new Long(bcast_msgs));
         m.put("received_forwards", new Long(received_forwards));
         m.put("received_bcasts", new Long(received_bcasts));
+        m.put("batches_sent", new Long(batches_sent));
+        m.put("avg_batch_size", new Double(getAverageBatchSize()));
+        m.put("received_batches", new Long(received_batches));
+        m.put("resent_forwards", new Long(resent_forwards));
+        m.put("forward_table", new Integer(getForwardTableSize()));
         return m;
     }
 
@@ -63,8 +122,32 @@ public class SEQUENCER extends Protocol {
 
 
     public boolean setProperties(Properties props) {
+        String str;
         super.setProperties(props);
 
+        str=props.getProperty("max_batch_size");
+        if(str != null) {
+            max_batch_size=Integer.parseInt(str);
+            props.remove("max_batch_size");
+        }
+
+        str=props.getProperty("max_batch_bytes");
+        if(str != null) {
+            max_batch_bytes=Long.parseLong(str);
+            props.remove("max_batch_bytes");
+        }
+
+        str=props.getProperty("batch_delay");
+        if(str != null) {
+            batch_delay=Long.parseLong(str);
+            props.remove("batch_delay");
+        }
+
+        if(max_batch_size > 1 && batch_delay <= 0) {
+            log.error("batch_delay has to be > 0 if batching is enabled (max_batch_size > 1)");
+            return false;
+        }
+
         if(props.size() > 0) {
             log.error("the following properties are not recognized: " + props);
             return false;
@@ -72,6 +155,16 @@ public class SEQUENCER extends Protocol {
         return true;
     }
 
+    public void init() throws Exception {
+        timer=stack != null? stack.timer : null;
+        if(timer == null && max_batch_size > 1)
+            throw new Exception("SEQUENCER.init(): timer cannot be retrieved from protocol stack");
+    }
+
+    public void stop() {
+        flushBatch();
+    }
+
     private final long nextSeqno() {
         synchronized(this) {
             return seqno++;
@@ -85,15 +178,25 @@ public class SEQUENCER extends Protocol {
                 Message msg=(Message)evt.getArg();
                 Address dest=msg.getDest();
                 if(dest == null || dest.isMulticastAddress()) { // only handle multicasts
-                    long next_seqno=nextSeqno();
-                    SequencerHeader hdr=new SequencerHeader(SequencerHeader.FORWARD, local_addr, next_seqno);
-                    msg.putHeader(name, hdr);
-                    if(!is_coord) {
-                        forwardToCoord(msg, next_seqno);
+                    // the lock is only held to assign the seqno, never while sending: the sender may block (e.g.
+                    // in FC), and deliver() needs the lock on the receiver thread
+                    boolean bcast;
+                    synchronized(forward_table) {
+                        long next_seqno=nextSeqno();
+                        SequencerHeader hdr=new SequencerHeader(SequencerHeader.FORWARD, local_addr, next_seqno);
+                        msg.putHeader(name, hdr);
+                        bcast=is_coord;
+                        if(!is_coord || resending) {
+                            msg.setDest(coord); // we change the message dest from multicast to unicast (to coord)
+                            forward_table.put(new Long(next_seqno), msg);
+                        }
+                        if(resending)
+                            return; // sent by the thread resending forward_table, after the older messages
                     }
-                    else {
+                    if(bcast)
                         broadcast(msg);
-                    }
+                    else
+                        forwardToCoord(msg);
                     return; // don't pass down
                 }
                 break;
@@ -136,9 +239,13 @@ public class SEQUENCER extends Protocol {
                         received_forwards++;
                         return;
                     case SequencerHeader.BCAST:
-                        deliver(msg, hdr);  // deliver a copy and return (discard the original msg)
+                        deliver(msg, hdr, true);  // deliver a copy and return (discard the original msg)
                         received_bcasts++;
                         return;
+                    case SequencerHeader.BCAST_BATCH:
+                        deliverBatch(msg);
+                        received_batches++;
+                        return;
                 }
                 break;
 
@@ -158,14 +265,23 @@ public class SEQUENCER extends Protocol {
         Vector members=v.getMembers();
         if(members.size() == 0) return;
 
-        Address prev_coord=coord;
-        coord=(Address)members.firstElement();
-        is_coord=local_addr != null && local_addr.equals(coord);
+        // messages queued while we were the sequencer are still broadcast by us, before anything else happens
+        flushBatch();
 
-        boolean coord_changed=prev_coord != null && !prev_coord.equals(coord);
-        if(coord_changed) {
-            resendMessagesInForwardTable(); // maybe optimize in the future: broadcast directly if coord
+        int round=-1;
+        synchronized(forward_table) {
+            Address prev_coord=coord;
+            coord=(Address)members.firstElement();
+            is_coord=local_addr != null && local_addr.equals(coord);
+
+            boolean coord_changed=prev_coord != null && !prev_coord.equals(coord);
+            if(coord_changed) {
+                resending=true;
+                round=++resend_round;
+            }
         }
+        if(round >= 0)
+            resendMessagesInForwardTable(round);
         // remove left members from received_table
         int size=received_table.size();
         Set keys=received_table.keySet();
@@ -180,26 +296,53 @@ public class SEQUENCER extends Protocol {
      * Sends all messages currently in forward_table to the new coordinator (changing the dest field).
      * This needs to be done, so the underlying reliable unicast protocol (e.g. UNICAST) adds these messages
      * to its retransmission mechanism<br/>
-     * Note that we need to resend the messages in order of their seqnos ! We also need to prevent other message
-     * from being inserted until we're done, that's why there's synchronization.
+     * Note that we need to resend the messages in order of their seqnos ! Messages sent while we're resending are
+     * added to forward_table by down() and resent here as well, so they cannot overtake the older ones. The lock on
+     * forward_table is only held to pick the next message, not while sending it. If the coordinator changes again,
+     * the resending thread of the new round takes over and starts from the lowest seqno.<br/>
+     * If we are the new coordinator, we broadcast the messages directly rather than sending them to ourself.
      */
-    private void resendMessagesInForwardTable() {
-        Message   msg;
-        synchronized(forward_table) {
-            for(Iterator it=forward_table.values().iterator(); it.hasNext();) {
-                msg=(Message)it.next();
-                msg.setDest(coord);
-                passDown(new Event(Event.MSG, msg));
+    private void resendMessagesInForwardTable(int round) {
+        Message   msg, copy;
+        SequencerHeader hdr;
+        boolean   bcast;
+        Address   dest;
+        long      next=Long.MIN_VALUE;
+        boolean   first=true;
+        for(;;) {
+            synchronized(forward_table) {
+                if(round != resend_round)
+                    return;
+                SortedMap tail=forward_table.tailMap(new Long(next));
+                if(tail.isEmpty()) {
+                    resending=false;
+                    return;
+                }
+                Long seqno=(Long)tail.firstKey();
+                msg=(Message)tail.get(seqno);
+                next=seqno.longValue() + 1;
+                if(first && log.isTraceEnabled())
+                    log.trace("resending " + forward_table.size() + " messages to new coordinator " + coord);
+                first=false;
+                bcast=is_coord;
+                dest=coord;
+            }
+            // a copy, as the message may still be passed down by the thread which sent it to the previous coord
+            hdr=(SequencerHeader)msg.getHeader(name);
+            copy=msg.copy(true);
+            copy.putHeader(name, new SequencerHeader(SequencerHeader.FORWARD, hdr.getOriginalSender(), hdr.getSeqno()));
+            if(bcast)
+                broadcast(copy);
+            else {
+                copy.setDest(dest);
+                passDown(new Event(Event.MSG, copy));
             }
+            resent_forwards++;
         }
     }
 
 
-    private void forwardToCoord(Message msg, long seqno) {
-        msg.setDest(coord);  // we change the message dest from multicast to unicast (to coord)
-        synchronized(forward_table) {
-            forward_table.put(new Long(seqno), msg);
-        }
+    private void forwardToCoord(Message msg) {
         passDown(new Event(Event.MSG, msg));
         forwarded_msgs++;
     }
@@ -209,17 +352,123 @@ public class SEQUENCER extends Protocol {
         hdr.type=SequencerHeader.BCAST; // we change the type of header, but leave the tag intact
         msg.setDest(null); // mcast
         msg.setSrc(local_addr); // the coord is sending it - this will be replaced with sender in deliver()
+        if(max_batch_size > 1) {
+            addToBatch(msg);
+            return;
+        }
         passDown(new Event(Event.MSG, msg));
         bcast_msgs++;
     }
 
+
+    /**
+     * Adds a message to the batch queue. Sends the batch if it is full, otherwise makes sure that a flush is
+     * scheduled in batch_delay ms
+     */
+    private void addToBatch(Message msg) {
+        boolean full;
+        synchronized(batch_queue) {
+            batch_queue.add(msg);
+            batch_queue_bytes+=msg.size();
+            full=batch_queue.size() >= max_batch_size || batch_queue_bytes >= max_batch_bytes;
+            if(!full && flusher == null) {
+                flusher=new BatchFlusher();
+                timer.add(flusher, true);
+            }
+        }
+        if(full)
+            flushBatch();
+    }
+
+
+    /** Broadcasts all queued messages. Batches are passed down in the order in which they were removed */
+    private void flushBatch() {
+        List batch;
+        synchronized(send_lock) {
+            synchronized(batch_queue) {
+                if(batch_queue.size() == 0)
+                    return;
+                batch=new ArrayList(batch_queue);
+                batch_queue.clear();
+                batch_queue_bytes=0;
+            }
+            sendBatch(batch);
+        }
+    }
+
+
+    private void sendBatch(List batch) {
+        if(batch.size() == 1) {  // no need to wrap a single message
+            passDown(new Event(Event.MSG, batch.get(0)));
+            bcast_msgs++;
+            return;
+        }
+        long size=Global.INT_SIZE;
+        for(Iterator it=batch.iterator(); it.hasNext();)
+            size+=((Message)it.next()).size();
+        try {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)Math.min(size + 64, Integer.MAX_VALUE));
+            DataOutputStream out=new DataOutputStream(out_stream);
+            out.writeInt(batch.size());
+            for(Iterator it=batch.iterator(); it.hasNext();) {
+                ((Message)it.next()).writeTo(out);
+            }
+            out.flush();
+            Message batch_msg=new Message(null, local_addr, out_stream.getRawBuffer(), 0, out_stream.size());
+            batch_msg.putHeader(name, new SequencerHeader(SequencerHeader.BCAST_BATCH));
+            passDown(new Event(Event.MSG, batch_msg));
+            batches_sent++;
+            msgs_in_batches+=batch.size();
+            bcast_msgs+=batch.size();
+        }
+        catch(IOException ex) {
+            if(log.isErrorEnabled())
+                log.error("failed marshalling batch of " + batch.size() + " messages, sending them individually", ex);
+            for(Iterator it=batch.iterator(); it.hasNext();) {
+                passDown(new Event(Event.MSG, it.next()));
+                bcast_msgs++;
+            }
+        }
+    }
+
+
+    /** Unmarshals all messages of a batch and delivers them in order */
+    private void deliverBatch(Message batch_msg) {
+        Message msg;
+        SequencerHeader hdr;
+        int num;
+        try {
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(batch_msg.getRawBuffer(),
+                                                                             batch_msg.getOffset(),
+                                                                             batch_msg.getLength()));
+            num=in.readInt();
+            for(int i=0; i < num; i++) {
+                msg=new Message(false); // don't create headers, readFrom() will do this
+                msg.readFrom(in);
+                hdr=(SequencerHeader)msg.getHeader(name);
+                if(hdr == null) {
+                    if(log.isErrorEnabled())
+                        log.error("message in batch from " + batch_msg.getSrc() + " has no header, discarding it");
+                    continue;
+                }
+                deliver(msg, hdr, false);
+                received_bcasts++;
+            }
+        }
+        catch(Exception ex) {
+            if(log.isErrorEnabled())
+                log.error("failed unmarshalling batch from " + batch_msg.getSrc(), ex);
+        }
+    }
+
     /**
      * We copy the message in order to change the sender's address. If we did this on the original message,
      * retransmission would likely run into problems, and possibly also stability (STABLE) of messages
      * @param msg
      * @param hdr
+     * @param copy Whether to pass up a copy of msg. Not needed if msg was unmarshalled from a batch
      */
-    private void deliver(Message msg, SequencerHeader hdr) {
+    private void deliver(Message msg, SequencerHeader hdr, boolean copy) {
         Address original_sender=hdr.getOriginalSender();
         if(original_sender == null) {
             if(log.isErrorEnabled())
@@ -249,7 +498,7 @@ public class SEQUENCER extends Protocol {
         received_table.put(original_sender, new Long(msg_seqno));
 
         // pass a copy of the message up the stack
-        Message tmp=msg.copy(true);
+        Message tmp=copy? msg.copy(true) : msg;
         tmp.setSrc(original_sender);
         passUp(new Event(Event.MSG, tmp));
     }
@@ -257,12 +506,35 @@ public class SEQUENCER extends Protocol {
     /* ----------------------------- End of Private Methods -------------------------------- */
 
 
+    /** Broadcasts the current batch when its first message has been queued for batch_delay ms */
+    private class BatchFlusher implements TimeScheduler.Task {
+        boolean cancelled=false;
+
+        public boolean cancelled() {
+            return cancelled;
+        }
+
+        public long nextInterval() {
+            return batch_delay;
+        }
+
+        public void run() {
+            cancelled=true; // run only once; the next message added to the queue schedules a new flusher
+            synchronized(batch_queue) {
+                flusher=null;
+            }
+            flushBatch();
+        }
+    }
+
+
 
 
 
     public static class SequencerHeader extends Header implements Streamable {
-        static final byte FORWARD = 1;
-        static final byte BCAST   = 2;
+        static final byte FORWARD     = 1;
+        static final byte BCAST       = 2;
+        static final byte BCAST_BATCH = 3;
 
         byte    type=-1;
         /** the original sender's address and a seqno */
@@ -272,6 +544,10 @@ public class SEQUENCER extends Protocol {
         public SequencerHeader() {
         }
 
+        public SequencerHeader(byte type) {
+            this.type=type;
+        }
+
         public SequencerHeader(byte type, Address original_sender, long seqno) {
             this.type=type;
             this.tag=new ViewId(original_sender, seqno);
@@ -297,6 +573,7 @@ public class SEQUENCER extends Protocol {
             switch(type) {
                 case FORWARD: return "FORWARD";
                 case BCAST:   return "BCAST";
+                case BCAST_BATCH: return "BCAST_BATCH";
                 default:      return "n/a";
             }
         }
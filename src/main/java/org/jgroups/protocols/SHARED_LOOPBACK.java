@@ -0,0 +1,338 @@
+package org.jgroups.protocols;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArrayList;
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Message;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport which connects all members in the same VM without any network I/O. Every member has an inbound queue;
+ * sending a datagram adds it to the queue of the destination (or to the queues of all members of the group for a
+ * multicast), from where the member's receiver thread passes it to {@link TP#receive(Address,Address,byte[],int,int)}.
+ * Messages are marshalled and unmarshalled exactly as with UDP (including bundling, compression and encryption
+ * of datagrams), so the only difference to a real transport is that packets are never lost or reordered (unless
+ * max_queue_size is exceeded). This makes it a deterministic baseline for tests and performance measurements of
+ * the protocols above the transport, and a fast transport for members which are co-located in one VM.<p/>
+ * The queues are non-blocking: senders never wait for a lock, and a receiver thread only parks when its queue is
+ * empty. Because the receiver thread already decouples the sender from the processing of a datagram,
+ * use_incoming_packet_handler can be set to false.<p/>
+ * The following properties are read:
+ * <ul>
+ * <li>max_queue_size - the max number of datagrams in the inbound queue of a member. Datagrams to a member whose
+ * queue is full are dropped (and retransmitted by the protocols above). 0 (default) means unbounded
+ * </ul>
+ * @version $Id$
+ */
+public class SHARED_LOOPBACK extends TP {
+    /** Map<Address,SHARED_LOOPBACK>: all started members of this VM */
+    private static final Map addresses=new ConcurrentReaderHashMap();
+
+    /** Map<String,List<SHARED_LOOPBACK>>: the connected members of each group */
+    private static final Map groups=new ConcurrentReaderHashMap();
+
+    /** Used to create unique local addresses */
+    private static final AtomicInteger next_port=new AtomicInteger(0);
+
+    private static final int MAX_PORT=65535;
+
+    int max_queue_size=0;
+
+    /** Queue<Packet>: the datagrams sent to this member */
+    private final ConcurrentLinkedQueue inbound=new ConcurrentLinkedQueue();
+    private final AtomicInteger inbound_size=new AtomicInteger(0);
+    private volatile Receiver receiver=null;
+
+    /** List<String>: the groups this member is connected to. More than one if the transport is shared */
+    private final List joined=new CopyOnWriteArrayList();
+
+    /** Updated by senders and the receiver thread of other members, too */
+    private final AtomicLong num_packets_sent=new AtomicLong(0);
+    private final AtomicLong num_packets_received=new AtomicLong(0);
+    private final AtomicLong num_packets_dropped=new AtomicLong(0);
+
+
+    public SHARED_LOOPBACK() {
+    }
+
+
+    public String getName() {
+        return "SHARED_LOOPBACK";
+    }
+
+    public String toString() {
+        return "SHARED_LOOPBACK(local address: " + local_addr + ')';
+    }
+
+    public int getMaxQueueSize() {return max_queue_size;}
+    public void setMaxQueueSize(int size) {max_queue_size=size;}
+    public int getInboundQueueSize() {return inbound_size.get();}
+    public long getNumPacketsSent() {return num_packets_sent.get();}
+    public long getNumPacketsReceived() {return num_packets_received.get();}
+    public long getNumPacketsDropped() {return num_packets_dropped.get();}
+
+    public void resetStats() {
+        super.resetStats();
+        num_packets_sent.set(0);
+        num_packets_received.set(0);
+        num_packets_dropped.set(0);
+    }
+
+
+    public boolean setProperties(Properties props) {
+        String str;
+
+        super.setProperties(props);
+        str=props.getProperty("max_queue_size");
+        if(str != null) {
+            max_queue_size=Integer.parseInt(str);
+            props.remove("max_queue_size");
+        }
+
+        if(!props.isEmpty()) {
+            log.error("the following properties are not recognized: " + props);
+            return false;
+        }
+        return true;
+    }
+
+
+    public String getInfo() {
+        return "groups=" + joined + ", inbound queue=" + inbound_size.get() + ", dropped=" + num_packets_dropped.get() + "\n";
+    }
+
+
+    public void sendToAllMembers(byte[] data, int offset, int length) throws Exception {
+        Packet packet=null;
+        Set sent_to=joined.size() > 1? new HashSet() : null; // a shared transport may share members between groups
+        for(Iterator it=joined.iterator(); it.hasNext();) {
+            List mbrs=(List)groups.get(it.next());
+            if(mbrs == null)
+                continue;
+            for(Iterator it2=mbrs.iterator(); it2.hasNext();) {
+                SHARED_LOOPBACK mbr=(SHARED_LOOPBACK)it2.next();
+                if(mbr == this && loopback) // TP has already looped back the message, and would discard the datagram
+                    continue;
+                if(sent_to != null && !sent_to.add(mbr))
+                    continue;
+                if(packet == null) // data is reused by the caller, but all receivers can share the copy
+                    packet=new Packet(local_addr, null, copy(data, offset, length));
+                if(mbr.enqueue(packet))
+                    num_packets_sent.incrementAndGet();
+            }
+        }
+    }
+
+    public void sendToSingleMember(Address dest, byte[] data, int offset, int length) throws Exception {
+        SHARED_LOOPBACK mbr=(SHARED_LOOPBACK)addresses.get(dest);
+        if(mbr == null) {
+            if(log.isTraceEnabled()) log.trace("destination " + dest + " not found, discarding datagram");
+            return;
+        }
+        if(mbr.enqueue(new Packet(local_addr, dest, copy(data, offset, length))))
+            num_packets_sent.incrementAndGet();
+    }
+
+
+    public void postUnmarshalling(Message msg, Address dest, Address src, boolean multicast) {
+        msg.setDest(dest);
+    }
+
+    public void postUnmarshallingList(Message msg, Address dest, boolean multicast) {
+        msg.setDest(dest);
+    }
+
+
+    public void start() throws Exception {
+        local_addr=createLocalAddress();
+        receiver=new Receiver();
+        receiver.start();
+        super.start();
+    }
+
+    public void stop() {
+        if(local_addr != null)
+            addresses.remove(local_addr);
+        leaveGroups();
+        Receiver tmp=receiver;
+        receiver=null;
+        if(tmp != null)
+            tmp.stop();
+        inbound.clear();
+        inbound_size.set(0);
+        super.stop();
+    }
+
+
+    protected void handleDownEvent(Event evt) {
+        super.handleDownEvent(evt);
+        switch(evt.getType()) {
+            case Event.CONNECT:
+                joinGroup((String)evt.getArg());
+                break;
+            case Event.DISCONNECT:
+                leaveGroups();
+                break;
+        }
+    }
+
+    void connectShared(String cluster_name, ProtocolAdapter adapter) {
+        super.connectShared(cluster_name, adapter);
+        joinGroup(cluster_name);
+    }
+
+    void disconnectShared(String cluster_name, ProtocolAdapter adapter) {
+        super.disconnectShared(cluster_name, adapter);
+        leaveGroup(cluster_name);
+    }
+
+
+    /** Adds a datagram to the inbound queue, called by the senders. Returns false if the datagram was dropped */
+    boolean enqueue(Packet packet) {
+        Receiver tmp=receiver;
+        if(tmp == null)
+            return false;
+        if(max_queue_size > 0 && inbound_size.get() >= max_queue_size) {
+            num_packets_dropped.incrementAndGet();
+            if(log.isTraceEnabled()) log.trace("inbound queue of " + local_addr + " is full, dropping datagram");
+            return false;
+        }
+        inbound_size.incrementAndGet();
+        inbound.offer(packet);
+        if(tmp.parked)
+            LockSupport.unpark(tmp.thread);
+        return true;
+    }
+
+
+    private void joinGroup(String group_name) {
+        if(group_name == null)
+            return;
+        synchronized(groups) {
+            if(joined.contains(group_name))
+                return;
+            List mbrs=(List)groups.get(group_name);
+            if(mbrs == null) {
+                mbrs=new CopyOnWriteArrayList();
+                groups.put(group_name, mbrs);
+            }
+            mbrs.add(this);
+            joined.add(group_name);
+        }
+    }
+
+    private void leaveGroup(String group_name) {
+        if(group_name == null)
+            return;
+        synchronized(groups) {
+            if(!joined.remove(group_name))
+                return;
+            List mbrs=(List)groups.get(group_name);
+            if(mbrs != null) {
+                mbrs.remove(this);
+                if(mbrs.isEmpty())
+                    groups.remove(group_name);
+            }
+        }
+    }
+
+    private void leaveGroups() {
+        for(Iterator it=joined.iterator(); it.hasNext();)
+            leaveGroup((String)it.next());
+    }
+
+
+    /** Creates an address (on the loopback interface) which is unique in this VM, and registers it */
+    private IpAddress createLocalAddress() throws Exception {
+        InetAddress loopback_addr=InetAddress.getByName("127.0.0.1");
+        for(int i=0; i < MAX_PORT; i++) {
+            int port=next_port.incrementAndGet() % MAX_PORT + 1;
+            IpAddress addr=new IpAddress(loopback_addr, port);
+            if(additional_data != null)
+                addr.setAdditionalData(additional_data);
+            synchronized(addresses) {
+                if(!addresses.containsKey(addr)) {
+                    addresses.put(addr, this);
+                    return addr;
+                }
+            }
+        }
+        throw new Exception("no free address left, " + addresses.size() + " members are running");
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        byte[] retval=new byte[length];
+        System.arraycopy(data, offset, retval, 0, length);
+        return retval;
+    }
+
+
+    private static class Packet {
+        final Address sender;
+        final Address dest; // null for a multicast
+        final byte[]  data;
+
+        Packet(Address sender, Address dest, byte[] data) {
+            this.sender=sender;
+            this.dest=dest;
+            this.data=data;
+        }
+    }
+
+
+    /** Takes datagrams from the inbound queue and passes them up, parks while the queue is empty */
+    private class Receiver implements Runnable {
+        Thread thread=null;
+        volatile boolean running=true;
+
+        /** Set while the thread is (about to be) parked, so senders only unpark it if needed */
+        volatile boolean parked=false;
+
+        void start() {
+            thread=new Thread(Util.getGlobalThreadGroup(), this, "SHARED_LOOPBACK receiver (" + local_addr + ")");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running=false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(500);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            while(running) {
+                Packet packet=(Packet)inbound.poll();
+                if(packet == null) {
+                    parked=true;
+                    if(inbound.isEmpty() && running) // re-check: a sender may have missed parked=true
+                        LockSupport.park(this);
+                    parked=false;
+                    continue;
+                }
+                inbound_size.decrementAndGet();
+                num_packets_received.incrementAndGet();
+                receive(packet.dest, packet.sender, packet.data, 0, packet.data.length);
+            }
+        }
+    }
+}
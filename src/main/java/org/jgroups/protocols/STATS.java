@@ -1,15 +1,19 @@
 package org.jgroups.protocols;
 
 import org.jgroups.stack.Protocol;
-import org.jgroups.Event;
-import org.jgroups.Message;
-import org.jgroups.Address;
-import org.jgroups.View;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.Streamable;
+import org.jgroups.*;
 
+import java.io.*;
 import java.util.*;
 
 /**
- * Provides various stats
+ * Provides various stats. If record_latency is true, every message sent is tagged with a timestamp header, and the
+ * STATS protocol of the receiver records the time between sending and delivery in a histogram. To measure the
+ * end-to-end latency, STATS has to be placed at the top of the stack. The timestamps are taken from the wall clock
+ * (with nanosecond resolution), so the latencies of messages from other hosts are only as accurate as the clocks
+ * are synchronized.
  * @author Bela Ban
  * @version $Id: STATS.java,v 1.4 2006/11/17 13:39:19 belaban Exp $
  */
@@ -26,15 +30,29 @@ public class STATS extends Protocol {
     static final short UP=1;
     static final short DOWN=2;
 
+    static final String name="STATS";
+
+    /** Tag sent messages with a timestamp, so receivers can record their latency */
+    boolean record_latency=false;
+
+    /** Latencies of the received messages which carried a timestamp */
+    final Histogram latency=new Histogram();
+
 
     public String getName() {
-        return "STATS";
+        return name;
     }
 
     public boolean setProperties(Properties props) {
         super.setProperties(props);
         up_thread=false;   // never use an up thread
 
+        String str=props.getProperty("record_latency");
+        if(str != null) {
+            record_latency=Boolean.valueOf(str).booleanValue();
+            props.remove("record_latency");
+        }
+
         if(props.size() > 0) {
             log.error("the following properties are not recognized: " + props);
             return false;
@@ -47,8 +65,13 @@ public class STATS extends Protocol {
         received_msgs=received_bytes=sent_ucast_bytes=sent_mcast_bytes=received_ucast_bytes=received_mcast_bytes=0;
         sent.clear();
         received.clear();
+        latency.reset();
     }
 
+    public boolean isRecordLatency() {return record_latency;}
+    public void setRecordLatency(boolean flag) {record_latency=flag;}
+    public Histogram getLatency() {return latency;}
+
 
     public long getSentMessages() {return sent_msgs;}
     public long getSentBytes() {return sent_bytes;}
@@ -69,6 +92,9 @@ public class STATS extends Protocol {
         if(evt.getType() == Event.MSG) {
             Message msg=(Message)evt.getArg();
             updateStats(msg, UP);
+            TimestampHeader hdr=(TimestampHeader)msg.removeHeader(name);
+            if(hdr != null)
+                latency.record(TimestampHeader.currentTime() - hdr.timestamp);
         }
         else if(evt.getType() == Event.VIEW_CHANGE) {
             handleViewChange((View)evt.getArg());
@@ -82,6 +108,8 @@ public class STATS extends Protocol {
         if(evt.getType() == Event.MSG) {
             Message msg=(Message)evt.getArg();
             updateStats(msg, DOWN);
+            if(record_latency)
+                msg.putHeader(name, new TimestampHeader(TimestampHeader.currentTime()));
         }
         else if(evt.getType() == Event.VIEW_CHANGE) {
             handleViewChange((View)evt.getArg());
@@ -109,6 +137,8 @@ public class STATS extends Protocol {
             val=entry.getValue();
             sb.append(key).append(": ").append(val).append("\n");
         }
+        if(latency.getCount() > 0)
+            sb.append("\nlatency: ").append(latency).append("\n");
 
         return sb.toString();
     }
@@ -180,6 +210,50 @@ public class STATS extends Protocol {
 
 
 
+    /** The time a message was sent, in nanoseconds since the epoch */
+    public static class TimestampHeader extends Header implements Streamable {
+        static final long base_millis=System.currentTimeMillis();
+        static final long base_nanos=System.nanoTime();
+
+        long timestamp;
+
+        public TimestampHeader() {} // used for externalization
+
+        public TimestampHeader(long timestamp) {
+            this.timestamp=timestamp;
+        }
+
+        /** The wall clock time in nanoseconds: System.currentTimeMillis() with the resolution of System.nanoTime() */
+        static long currentTime() {
+            return base_millis * 1000000L + (System.nanoTime() - base_nanos);
+        }
+
+        public String toString() {
+            return "[STATS: timestamp=" + timestamp + ']';
+        }
+
+        public long size() {
+            return Global.LONG_SIZE;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeLong(timestamp);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            timestamp=in.readLong();
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(timestamp);
+        }
+
+        public void readFrom(DataInputStream in) throws IOException, IllegalAccessException, InstantiationException {
+            timestamp=in.readLong();
+        }
+    }
+
+
     static class Entry {
         long msgs, bytes, ucasts, mcasts, ucast_bytes, mcast_bytes;
 
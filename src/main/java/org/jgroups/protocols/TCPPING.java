@@ -96,8 +96,7 @@ public class TCPPING extends Discovery {
             // if(tmpMbrs.contains(addr)) {
                // ; // continue; // changed as suggested by Mark Kopec
             // }
-            msg=new Message(addr, null, null);
-            msg.putHeader(name, new PingHeader(PingHeader.GET_MBRS_REQ, null));
+            msg=createDirectGetMembersRequest(addr); // initial_hosts may not contain the coordinator
 
             if(log.isTraceEnabled()) log.trace("[FIND_INITIAL_MBRS] sending PING request to " + msg.getDest());
             passDown(new Event(Event.MSG, msg));
@@ -2,18 +2,25 @@ package org.jgroups.protocols;
 
 
 import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArrayList;
 import org.jgroups.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.ProtocolStack;
 import org.jgroups.util.*;
 import org.jgroups.util.List;
 import org.jgroups.util.Queue;
 
+import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.security.GeneralSecurityException;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 
 
@@ -24,8 +31,12 @@ import java.util.*;
  * <li>version checking
  * <li>marshalling and unmarshalling
  * <li>message bundling (handling single messages, and message lists)
+ * <li>writing the sender of a message as an index into the current view (see use_member_indices)
+ * <li>optional compression of whole datagrams (see the compress_datagrams property)
+ * <li>optional encryption of whole datagrams (see the encrypt_* properties)
  * <li>incoming packet handler
  * <li>loopback
+ * <li>sharing of one transport by multiple channels in the same VM (see singleton_name)
  * </ul>
  * A subclass has to override
  * <ul>
@@ -91,6 +102,25 @@ public abstract class TP extends Protocol {
     /** The members of this group (updated when a member joins or leaves) */
     final protected Vector    members=new Vector(11);
 
+    /** If set, the stacks of all channels in this VM with the same singleton_name share one instance of this
+     * transport (sockets, threads, bundler and timer), each stack connecting to its own cluster */
+    String          singleton_name=null;
+
+    /** Map<String,TP>: the shared transports of this VM, keyed by singleton_name */
+    private static final Map singleton_transports=new HashMap();
+
+    /** The stacks on top of a shared transport (List<ProtocolAdapter>) */
+    final java.util.List adapters=new CopyOnWriteArrayList();
+
+    /** Map<String,ProtocolAdapter>: the stacks on top of a shared transport, keyed by the cluster they joined */
+    final Map       up_prots=new ConcurrentReaderHashMap();
+
+    /** Timer shared by all stacks on top of a shared transport */
+    private TimeScheduler shared_timer=null;
+
+    private boolean initialized=false;
+    private int     num_starts=0;
+
     protected View            view=null;
 
     /** Pre-allocated byte stream. Used for marshalling messages. Will grow as needed */
@@ -166,6 +196,57 @@ public abstract class TP extends Protocol {
 
     protected TimeScheduler      timer=null;
 
+    /** Keystore holding the secret key used to encrypt whole datagrams. Datagrams are not encrypted if null */
+    String encrypt_key_store_name=null;
+    String encrypt_store_password="changeit";
+    String encrypt_key_password=null;
+    String encrypt_alias="mykey";
+
+    /** Cipher transformation used to encrypt datagrams, e.g. "AES/GCM/NoPadding". Defaults to the key's algorithm */
+    String encrypt_algorithm=null;
+
+    /** Max number of idle ciphers kept for encryption and decryption of datagrams */
+    int encrypt_pool_size=8;
+
+    /** Encrypts datagrams after bundling and decrypts them before unmarshalling, null if encryption is disabled */
+    CipherPool datagram_ciphers=null;
+
+    /** Max number of bytes added to a datagram by encryption (IV, authentication tag and padding) */
+    int encryption_overhead=0;
+
+    /** Compresses datagrams (after bundling, so a bundle is compressed as a whole) before they are sent */
+    boolean compress_datagrams=false;
+
+    /** The algorithm used to compress datagrams, needs to implement org.jgroups.util.Codec */
+    String datagram_codec=DeflateCodec.class.getName();
+
+    int datagram_compression_level=Deflater.BEST_SPEED;
+
+    /** Datagrams smaller than this are never compressed */
+    int datagram_compression_min_size=1000;
+
+    /** A datagram is only sent compressed if the compressed size is less than this times the original size */
+    double datagram_compression_skip_ratio=0.9;
+
+    /** While datagrams don't compress, only every datagram_compression_sample_interval-th one is compressed */
+    int datagram_compression_sample_interval=16;
+
+    /**
+     * Write the sender of a message as an index into the current view rather than as an address, where possible.
+     * Disabled by default: all members need to run a version which understands member indices
+     */
+    boolean use_member_indices=false;
+
+    /** The members of the current view, used to write and resolve senders. Null until the first view is installed */
+    volatile AddressTable addr_table=null;
+
+    /** The members of the previous view, to resolve senders which haven't installed the current view yet */
+    volatile AddressTable prev_addr_table=null;
+
+    /** Uncompresses datagrams (always, so compressed datagrams from other members can be received), and compresses
+     * them if compress_datagrams is true */
+    CodecPool datagram_codecs=null;
+
     private DiagnosticsHandler diag_handler=null;
     boolean enable_diagnostics=true;
     String diagnostics_addr="224.0.0.75";
@@ -185,6 +266,9 @@ public abstract class TP extends Protocol {
 
     static final byte LIST      = 1;  // we have a list of messages rather than a single message when set
     static final byte MULTICAST = 2;  // message is a multicast (versus a unicast) message when set
+    static final byte COMPRESSED= 4;  // the datagram after the flags is compressed (preceded by its original size)
+    static final byte VIEW_TAG  = 8;  // the flags are followed by the fingerprint (long) of the sender's view
+    static final byte SRC_INDEXED=16; // the sender of a message list is written as member index
 
     long num_msgs_sent=0, num_msgs_received=0, num_bytes_sent=0, num_bytes_received=0;
 
@@ -219,6 +303,11 @@ public abstract class TP extends Protocol {
     public long getNumMessagesReceived() {return num_msgs_received;}
     public long getNumBytesSent()        {return num_bytes_sent;}
     public long getNumBytesReceived()    {return num_bytes_received;}
+    public boolean isCompressDatagrams() {return compress_datagrams;}
+    public void setCompressDatagrams(boolean flag) {compress_datagrams=flag;}
+    /** Returns the average size of compressed datagrams relative to their original size */
+    public double getDatagramCompressionRatio() {return datagram_codecs != null? datagram_codecs.getCompressionRatio() : 1.0;}
+    public long getNumCompressedDatagrams() {return datagram_codecs != null? datagram_codecs.getNumCompressed() : 0;}
     public String getBindAddress() {return bind_addr != null? bind_addr.toString() : "null";}
     public void setBindAddress(String bind_addr) throws UnknownHostException {
         this.bind_addr=InetAddress.getByName(bind_addr);
@@ -243,6 +332,8 @@ public abstract class TP extends Protocol {
     public int getIncomingQueueSize() {return incoming_packet_queue != null? incoming_packet_queue.size() : 0;}
     public Address getLocalAddress() {return local_addr;}
     public String getChannelName() {return channel_name;}
+    public String getSingletonName() {return singleton_name;}
+    public boolean isShared() {return singleton_name != null;}
     public boolean isLoopback() {return loopback;}
     public void setLoopback(boolean b) {loopback=b;}
     public boolean isUseIncomingPacketHandler() {return use_incoming_packet_handler;}
@@ -336,6 +427,15 @@ public abstract class TP extends Protocol {
                     String p=stack.printProtocolSpecAsXML();
                     info.append("\nprops:\n").append(p);
                 }
+                if(l.contains("instrument-on"))
+                    stack.setInstrumented(true);
+                if(l.contains("instrument-off"))
+                    stack.setInstrumented(false);
+                if(l.contains("instrumentation")) {
+                    info.append("\ninstrumentation:\n").append(stack.printInstrumentation());
+                    if(l.contains("reset"))
+                        stack.resetInstrumentation();
+                }
             }
 
 
@@ -364,6 +464,19 @@ public abstract class TP extends Protocol {
 
     public void init() throws Exception {
         super.init();
+        if(encrypt_key_store_name != null) {
+            SecretKey key=CipherPool.loadSecretKey(encrypt_key_store_name, encrypt_store_password,
+                                                   encrypt_key_password != null? encrypt_key_password : encrypt_store_password,
+                                                   encrypt_alias);
+            datagram_ciphers=new CipherPool(encrypt_algorithm != null? encrypt_algorithm : key.getAlgorithm(),
+                                            key, encrypt_pool_size);
+            encryption_overhead=datagram_ciphers.getOverhead() + 16; // 16: max padding of a block cipher
+            if(log.isInfoEnabled()) log.info("datagrams are encrypted with " + datagram_ciphers.getTransformation());
+        }
+        // without compression, codecs are only needed for the (rare) compressed datagrams of other members
+        datagram_codecs=new CodecPool(Util.loadClass(datagram_codec, this.getClass()), datagram_compression_level,
+                                      compress_datagrams? Runtime.getRuntime().availableProcessors() : 1,
+                                      datagram_compression_skip_ratio, datagram_compression_sample_interval);
         if(bind_addr != null) {
             Map m=new HashMap(1);
             m.put("bind_addr", bind_addr);
@@ -375,7 +488,7 @@ public abstract class TP extends Protocol {
      * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
      */
     public void start() throws Exception {
-        timer=stack.timer;
+        timer=isShared()? getSharedTimer() : stack.timer;
         if(timer == null)
             throw new Exception("timer is null");
 
@@ -410,7 +523,15 @@ public abstract class TP extends Protocol {
     }
 
 
+    public void destroy() {
+        super.destroy();
+        if(datagram_codecs != null)
+            datagram_codecs.destroy();
+    }
+
+
     public void stop() {
+        setAddressTable(null);
         if(diag_handler != null) {
             diag_handler.stop();
             diag_handler=null;
@@ -617,6 +738,94 @@ public abstract class TP extends Protocol {
             props.remove("diagnostics_port");
         }
 
+        str=props.getProperty("encrypt_key_store_name");
+        if(str != null) {
+            encrypt_key_store_name=str;
+            props.remove("encrypt_key_store_name");
+        }
+
+        str=props.getProperty("encrypt_store_password");
+        if(str != null) {
+            encrypt_store_password=str;
+            props.remove("encrypt_store_password");
+        }
+
+        str=props.getProperty("encrypt_key_password");
+        if(str != null) {
+            encrypt_key_password=str;
+            props.remove("encrypt_key_password");
+        }
+
+        str=props.getProperty("encrypt_alias");
+        if(str != null) {
+            encrypt_alias=str;
+            props.remove("encrypt_alias");
+        }
+
+        str=props.getProperty("encrypt_algorithm");
+        if(str != null) {
+            encrypt_algorithm=str;
+            props.remove("encrypt_algorithm");
+        }
+
+        str=props.getProperty("encrypt_pool_size");
+        if(str != null) {
+            encrypt_pool_size=Integer.parseInt(str);
+            props.remove("encrypt_pool_size");
+        }
+
+        str=props.getProperty("singleton_name");
+        if(str != null) {
+            singleton_name=str;
+            props.remove("singleton_name");
+        }
+
+        str=props.getProperty("use_member_indices");
+        if(str != null) {
+            use_member_indices=Boolean.valueOf(str).booleanValue();
+            props.remove("use_member_indices");
+        }
+
+        str=props.getProperty("compress_datagrams");
+        if(str != null) {
+            compress_datagrams=Boolean.valueOf(str).booleanValue();
+            props.remove("compress_datagrams");
+        }
+
+        str=props.getProperty("datagram_codec");
+        if(str != null) {
+            datagram_codec=str;
+            props.remove("datagram_codec");
+        }
+
+        str=props.getProperty("datagram_compression_level");
+        if(str != null) {
+            datagram_compression_level=Integer.parseInt(str);
+            props.remove("datagram_compression_level");
+        }
+
+        str=props.getProperty("datagram_compression_min_size");
+        if(str != null) {
+            datagram_compression_min_size=Integer.parseInt(str);
+            props.remove("datagram_compression_min_size");
+        }
+
+        str=props.getProperty("datagram_compression_skip_ratio");
+        if(str != null) {
+            datagram_compression_skip_ratio=Double.parseDouble(str);
+            if(datagram_compression_skip_ratio <= 0 || datagram_compression_skip_ratio > 1) {
+                log.warn("datagram_compression_skip_ratio must be > 0 and <= 1, setting it to 1");
+                datagram_compression_skip_ratio=1;
+            }
+            props.remove("datagram_compression_skip_ratio");
+        }
+
+        str=props.getProperty("datagram_compression_sample_interval");
+        if(str != null) {
+            datagram_compression_sample_interval=Integer.parseInt(str);
+            props.remove("datagram_compression_sample_interval");
+        }
+
         if(enable_bundling) {
             //if (use_outgoing_packet_handler == false)
               //  if(log.isWarnEnabled()) log.warn("enable_bundling is true; setting use_outgoing_packet_handler=true");
@@ -771,8 +980,40 @@ public abstract class TP extends Protocol {
             log.trace(sb.toString());
         }
 
+        boolean copied=false;
+        if(datagram_ciphers != null) {
+            try {
+                data=datagram_ciphers.decrypt(data, offset, length);
+                offset=0;
+                length=data.length;
+                copied=true;
+            }
+            catch(GeneralSecurityException ex) {
+                if(log.isWarnEnabled())
+                    log.warn(new StringBuffer("discarded datagram from ").append(sender).append(": ").append(ex));
+                return;
+            }
+        }
+
+        if(length > Global.SHORT_SIZE && (data[offset + Global.SHORT_SIZE] & COMPRESSED) == COMPRESSED) {
+            try {
+                data=uncompressDatagram(data, offset, length);
+                offset=0;
+                length=data.length;
+                copied=true;
+            }
+            catch(Exception ex) {
+                if(log.isWarnEnabled())
+                    log.warn(new StringBuffer("discarded compressed datagram from ").append(sender).append(": ").append(ex));
+                return;
+            }
+        }
+
         try {
-            if(use_incoming_packet_handler) {
+            if(use_incoming_packet_handler && copied) {
+                incoming_packet_queue.add(new IncomingQueueEntry(dest, sender, data, offset, length));
+            }
+            else if(use_incoming_packet_handler) {
                 byte[] tmp=new byte[length];
                 System.arraycopy(data, offset, tmp, 0, length);
                 incoming_packet_queue.add(new IncomingQueueEntry(dest, sender, tmp, 0, length));
@@ -823,11 +1064,48 @@ public abstract class TP extends Protocol {
                 flags=dis.readByte();
                 is_message_list=(flags & LIST) == LIST;
                 multicast=(flags & MULTICAST) == MULTICAST;
+                AddressTable table=null, current=addr_table;
+                boolean src_indexed=false;
+                if((flags & VIEW_TAG) == VIEW_TAG) {
+                    table=findAddressTable(dis.readLong());
+                    if(is_message_list)
+                        src_indexed=(flags & SRC_INDEXED) == SRC_INDEXED;
+                    else if(table != null) {
+                        dis.mark(1); // peek at the leading byte of the message
+                        src_indexed=Message.isSrcIndexed(dis.readByte());
+                        dis.reset();
+                    }
+                }
 
-                if(is_message_list)
-                    l=bufferToList(dis, dest, multicast);
-                else
-                    msg=bufferToMessage(dis, dest, sender, multicast);
+                try {
+                    if(is_message_list)
+                        l=bufferToList(dis, dest, multicast, (flags & SRC_INDEXED) == SRC_INDEXED, table);
+                    else
+                        msg=bufferToMessage(dis, dest, sender, multicast, table);
+                }
+                catch(IOException ex) {
+                    // the sender may use member indices of a view we don't have (e.g. we're not a member)
+                    if((flags & VIEW_TAG) == VIEW_TAG && table == null) {
+                        if(log.isTraceEnabled())
+                            log.trace(new StringBuffer("discarded datagram from ").append(sender).append(" (view unknown): ").append(ex));
+                        return;
+                    }
+                    throw ex;
+                }
+
+                Address resolved=is_message_list? (l.size() > 0? ((Message)l.peekAtHead()).getSrc() : null) : msg.getSrc();
+                if(src_indexed && !matchesSender(resolved, sender)) {
+                    // a different view with the same fingerprint, or a corrupt datagram: don't trust the index
+                    if(log.isWarnEnabled())
+                        log.warn("discarded datagram from " + sender + ": sender was resolved to member " + resolved +
+                                " of " + table);
+                    return;
+                }
+
+                // the sender installed our view, so from now on it can resolve member indices sent to it. This is the
+                // member which sent the datagram, not necessarily the sender of the message (e.g. a retransmission)
+                if(table != null && table == current && !current.isConfirmedByAll())
+                    current.confirm(current.lookupSender(sender));
             }
 
             LinkedList msgs=new LinkedList();
@@ -906,6 +1184,18 @@ public abstract class TP extends Protocol {
                           append(", headers are ").append(msg.getHeaders()).append(", will be discarded"));
             return;
         }
+
+        if(isShared()) {
+            ProtocolAdapter adapter=hdr.channel_name != null? (ProtocolAdapter)up_prots.get(hdr.channel_name) : null;
+            if(adapter == null) {
+                if(log.isTraceEnabled())
+                    log.trace(new StringBuffer("discarded message from group \"").append(hdr.channel_name).
+                            append("\": no channel on shared transport ").append(singleton_name).append(" is connected to it"));
+                return;
+            }
+            adapter.passUp(evt);
+            return;
+        }
         passUp(evt);
     }
 
@@ -923,7 +1213,7 @@ public abstract class TP extends Protocol {
         // because only *one* of them is enabled
         Buffer   buf;
         synchronized(out_stream) {
-            buf=messageToBuffer(msg, multicast);
+            buf=messageToBuffer(msg, dest, multicast);
             doSend(buf, dest, multicast);
         }
     }
@@ -934,6 +1224,12 @@ public abstract class TP extends Protocol {
             num_msgs_sent++;
             num_bytes_sent+=buf.getLength();
         }
+        if(compress_datagrams && buf.getLength() >= datagram_compression_min_size)
+            buf=compressDatagram(buf);
+        if(datagram_ciphers != null) {
+            byte[] encrypted=datagram_ciphers.encrypt(buf.getBuf(), buf.getOffset(), buf.getLength());
+            buf=new Buffer(encrypted, 0, encrypted.length);
+        }
         if(multicast) {
             sendToAllMembers(buf.getBuf(), buf.getOffset(), buf.getLength());
         }
@@ -944,15 +1240,260 @@ public abstract class TP extends Protocol {
 
 
 
+    /**
+     * Events other than messages are passed up to all stacks if this transport is shared
+     */
+    public void passUp(Event evt) {
+        if(!isShared()) {
+            super.passUp(evt);
+            return;
+        }
+        for(Iterator it=adapters.iterator(); it.hasNext();)
+            ((ProtocolAdapter)it.next()).passUp(evt);
+    }
+
+
+    /* -------------------------------- Shared transport ---------------------------------- */
+
+    /**
+     * Returns the adapter through which stack uses the shared transport named by transport's singleton_name.
+     * The first stack with a given singleton_name registers its own transport, later stacks discard theirs and use
+     * the registered one
+     */
+    public static ProtocolAdapter getSharedTransport(TP transport, ProtocolStack stack) {
+        synchronized(singleton_transports) {
+            TP shared=(TP)singleton_transports.get(transport.singleton_name);
+            if(shared == null) {
+                shared=transport;
+                singleton_transports.put(shared.singleton_name, shared);
+                shared.setUpProtocol(null); // events are passed up to the adapters
+            }
+            ProtocolAdapter adapter=new ProtocolAdapter(shared, stack);
+            shared.adapters.add(adapter);
+            return adapter;
+        }
+    }
+
+    /** Returns the timer shared by all stacks on top of this transport */
+    public synchronized TimeScheduler getSharedTimer() {
+        if(shared_timer == null)
+            shared_timer=new TimeScheduler();
+        return shared_timer;
+    }
+
+    synchronized void initShared(ProtocolAdapter adapter) throws Exception {
+        if(!initialized) {
+            init();
+            initialized=true;
+        }
+        else if(bind_addr != null) { // replay the CONFIG event sent by init()
+            Map m=new HashMap(1);
+            m.put("bind_addr", bind_addr);
+            adapter.passUp(new Event(Event.CONFIG, m));
+        }
+    }
+
+    synchronized void startShared(ProtocolAdapter adapter) throws Exception {
+        if(num_starts == 0)
+            start();
+        else
+            adapter.passUp(new Event(Event.SET_LOCAL_ADDRESS, local_addr));
+        num_starts++;
+    }
+
+    synchronized void stopShared(ProtocolAdapter adapter) {
+        if(--num_starts == 0)
+            stop();
+    }
+
+    void destroyShared(ProtocolAdapter adapter) {
+        boolean last=false;
+        synchronized(singleton_transports) {
+            adapters.remove(adapter);
+            if(adapters.isEmpty()) {
+                singleton_transports.remove(singleton_name);
+                last=true;
+            }
+        }
+        handleSharedViewChange();
+        if(last) {
+            destroy();
+            synchronized(this) {
+                if(shared_timer != null) {
+                    shared_timer.cancel();
+                    shared_timer=null;
+                }
+                initialized=false;
+            }
+        }
+    }
+
+    void connectShared(String cluster_name, ProtocolAdapter adapter) {
+        synchronized(up_prots) {
+            ProtocolAdapter other=(ProtocolAdapter)up_prots.get(cluster_name);
+            if(other != null && other != adapter)
+                throw new IllegalStateException("another channel on shared transport " + singleton_name +
+                        " is already connected to " + cluster_name);
+            up_prots.put(cluster_name, adapter);
+        }
+    }
+
+    void disconnectShared(String cluster_name, ProtocolAdapter adapter) {
+        synchronized(up_prots) {
+            if(cluster_name != null && up_prots.get(cluster_name) == adapter)
+                up_prots.remove(cluster_name);
+        }
+    }
+
+    /** The members of a shared transport are the union of the members of the views of all stacks. The union is
+     * computed and installed under the same lock, so that concurrent view changes of different stacks cannot
+     * install an outdated union last */
+    void handleSharedViewChange() {
+        synchronized(members) {
+            Vector mbrs=new Vector();
+            for(Iterator it=adapters.iterator(); it.hasNext();) {
+                View tmp=((ProtocolAdapter)it.next()).view;
+                if(tmp == null)
+                    continue;
+                for(Iterator it2=tmp.getMembers().iterator(); it2.hasNext();) {
+                    Object mbr=it2.next();
+                    if(!mbrs.contains(mbr))
+                        mbrs.add(mbr);
+                }
+            }
+            handleDownEvent(new Event(Event.VIEW_CHANGE, new View(local_addr, 0, mbrs)));
+        }
+    }
+
+    /* ----------------------------- End of shared transport ------------------------------ */
+
+
+    /**
+     * Returns true if the receiver(s) installed the view of table, so the sender can be written as member index
+     */
+    private boolean canUseMemberIndices(AddressTable table, Address dest, boolean multicast) {
+        if(table == null)
+            return false;
+        return multicast? table.isConfirmedByAll() && canIndexMulticasts() : table.isConfirmed(dest);
+    }
+
+    /**
+     * Returns true if we're the sender of msg. Only our own messages are written with member indices, as receivers
+     * check that the member resolved from an index sent the datagram. Messages sent on behalf of another member
+     * (e.g. retransmissions, or forwarded by HTOTAL) are written with their full sender address
+     */
+    private boolean isLocal(Message msg) {
+        Address src=msg.getSrc();
+        return src != null && src.equals(local_addr);
+    }
+
+    /**
+     * Returns false if multicasts are sent from more than one address (e.g. on all interfaces), so receivers can't
+     * check senders written as member indices against the sender of the datagram
+     */
+    protected boolean canIndexMulticasts() {
+        return true;
+    }
+
+    /**
+     * Returns true if the member resolved from a member index has the IP address of the sender of the datagram.
+     * Ports are not compared, as e.g. UDP sends multicasts from a different port than the member's. Members and
+     * senders which are not IP addresses are not checked
+     */
+    private static boolean matchesSender(Address mbr, Address sender) {
+        if(!(mbr instanceof IpAddress) || !(sender instanceof IpAddress))
+            return true;
+        InetAddress mbr_addr=((IpAddress)mbr).getIpAddress(), sender_addr=((IpAddress)sender).getIpAddress();
+        return mbr_addr == null || sender_addr == null || mbr_addr.equals(sender_addr);
+    }
+
+    /** Returns the table of the current or previous view with the given fingerprint, or null */
+    private AddressTable findAddressTable(long fingerprint) {
+        AddressTable table=addr_table;
+        if(table != null && table.getFingerprint() == fingerprint)
+            return table;
+        table=prev_addr_table;
+        if(table != null && table.getFingerprint() == fingerprint)
+            return table;
+        return null;
+    }
+
+    /**
+     * Installs the member table of a new view (null to remove all tables) and reclaims the one before the previous.
+     * A view which is installed again (the coordinator gets its views twice) is ignored, or the previous table
+     * would be replaced, and members which haven't installed the new view yet couldn't be resolved any longer
+     */
+    private void setAddressTable(AddressTable table) {
+        synchronized(members) {
+            if(table != null && addr_table != null && table.getFingerprint() == addr_table.getFingerprint())
+                return;
+            AddressTable prev=prev_addr_table;
+            if(prev != null)
+                AddressTable.unregister(prev);
+            prev_addr_table=table != null? addr_table : null;
+            if(table == null && addr_table != null)
+                AddressTable.unregister(addr_table);
+            addr_table=table;
+            if(table != null)
+                AddressTable.register(table);
+        }
+    }
+
+
+    /**
+     * Compresses everything after the version and flags, and sets the COMPRESSED flag. The compressed data is
+     * preceded by its original size. Returns buf unchanged if it doesn't compress well
+     */
+    private Buffer compressDatagram(Buffer buf) throws Exception {
+        final int hdr_size=Global.SHORT_SIZE + Global.BYTE_SIZE; // version and flags
+        byte[] data=buf.getBuf();
+        int offset=buf.getOffset();
+        byte[] compressed=datagram_codecs.compress(data, offset + hdr_size, buf.getLength() - hdr_size);
+        if(compressed == null)
+            return buf;
+        byte[] tmp=new byte[hdr_size + Global.INT_SIZE + compressed.length];
+        System.arraycopy(data, offset, tmp, 0, hdr_size);
+        tmp[Global.SHORT_SIZE]|=COMPRESSED;
+        int original_size=buf.getLength() - hdr_size;
+        tmp[hdr_size]=(byte)(original_size >>> 24);
+        tmp[hdr_size + 1]=(byte)(original_size >>> 16);
+        tmp[hdr_size + 2]=(byte)(original_size >>> 8);
+        tmp[hdr_size + 3]=(byte)original_size;
+        System.arraycopy(compressed, 0, tmp, hdr_size + Global.INT_SIZE, compressed.length);
+        return new Buffer(tmp, 0, tmp.length);
+    }
+
+    /** Reverses {@link #compressDatagram(Buffer)}: returns the version, the flags without COMPRESSED, and the
+     * uncompressed data */
+    private byte[] uncompressDatagram(byte[] data, int offset, int length) throws Exception {
+        final int hdr_size=Global.SHORT_SIZE + Global.BYTE_SIZE;
+        if(length < hdr_size + Global.INT_SIZE)
+            throw new DataFormatException("compressed datagram is too short (" + length + " bytes)");
+        int index=offset + hdr_size;
+        int original_size=((data[index] & 0xff) << 24) | ((data[index + 1] & 0xff) << 16) |
+                ((data[index + 2] & 0xff) << 8) | (data[index + 3] & 0xff);
+        if(original_size < 0 || original_size > 1024 * 1024 * 16) // no datagram gets this big
+            throw new DataFormatException("invalid original size " + original_size);
+        byte[] uncompressed=datagram_codecs.uncompress(data, index + Global.INT_SIZE,
+                                                       length - hdr_size - Global.INT_SIZE, original_size);
+        byte[] retval=new byte[hdr_size + original_size];
+        System.arraycopy(data, offset, retval, 0, hdr_size);
+        retval[Global.SHORT_SIZE]&=~COMPRESSED;
+        System.arraycopy(uncompressed, 0, retval, hdr_size, original_size);
+        return retval;
+    }
+
+
     /**
      * This method needs to be synchronized on out_stream when it is called
      * @param msg
      * @return
      * @throws java.io.IOException
      */
-    private Buffer messageToBuffer(Message msg, boolean multicast) throws Exception {
+    private Buffer messageToBuffer(Message msg, Address dest, boolean multicast) throws Exception {
         Buffer retval;
         byte flags=0;
+        AddressTable table=use_member_indices? addr_table : null;
 
         out_stream.reset();
         buf_out_stream.reset(out_stream.getCapacity());
@@ -960,31 +1501,40 @@ public abstract class TP extends Protocol {
         dos.writeShort(Version.version); // write the version
         if(multicast)
             flags+=MULTICAST;
+        if(table != null)
+            flags+=VIEW_TAG;
         dos.writeByte(flags);
+        if(table != null)
+            dos.writeLong(table.getFingerprint());
         // preMarshalling(msg, dest, src);  // allows for optimization by subclass
-        msg.writeTo(dos);
+        msg.writeTo(dos, canUseMemberIndices(table, dest, multicast) && isLocal(msg)? table : null);
         // postMarshalling(msg, dest, src); // allows for optimization by subclass
         dos.flush();
         retval=new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
         return retval;
     }
 
-    private Message bufferToMessage(DataInputStream instream, Address dest, Address sender, boolean multicast) throws Exception {
+    private Message bufferToMessage(DataInputStream instream, Address dest, Address sender, boolean multicast,
+                                    AddressTable table) throws Exception {
         Message msg=new Message(false); // don't create headers, readFrom() will do this
-        msg.readFrom(instream);
+        msg.readFrom(instream, table);
         postUnmarshalling(msg, dest, sender, multicast); // allows for optimization by subclass
         return msg;
     }
 
 
 
-    private Buffer listToBuffer(List l, boolean multicast) throws Exception {
+    private Buffer listToBuffer(List l, Address dest, boolean multicast) throws Exception {
         Buffer retval;
         Address src;
         Message msg;
         byte flags=0;
         int len=l != null? l.size() : 0;
         boolean src_written=false;
+        AddressTable table=use_member_indices? addr_table : null;
+        AddressTable indices=canUseMemberIndices(table, dest, multicast)? table : null;
+        int src_index=indices != null && len > 0 && isLocal((Message)l.peekAtHead())?
+                indices.indexOf(((Message)l.peekAtHead()).getSrc()) : -1;
         out_stream.reset();
         buf_out_stream.reset(out_stream.getCapacity());
         dos.reset();
@@ -992,17 +1542,26 @@ public abstract class TP extends Protocol {
         flags+=LIST;
         if(multicast)
             flags+=MULTICAST;
+        if(table != null)
+            flags+=VIEW_TAG;
+        if(src_index >= 0 && src_index <= Short.MAX_VALUE)
+            flags+=SRC_INDEXED;
         dos.writeByte(flags);
+        if(table != null)
+            dos.writeLong(table.getFingerprint());
         dos.writeInt(len);
         for(Enumeration en=l.elements(); en.hasMoreElements();) {
             msg=(Message)en.nextElement();
             src=msg.getSrc();
             if(!src_written) {
-                Util.writeAddress(src, dos);
+                if((flags & SRC_INDEXED) == SRC_INDEXED)
+                    dos.writeShort(src_index);
+                else
+                    Util.writeAddress(src, dos);
                 src_written=true;
             }
             // msg.setSrc(null);
-            msg.writeTo(dos);
+            msg.writeTo(dos, isLocal(msg)? indices : null);
             // msg.setSrc(src);
         }
         dos.flush();
@@ -1010,7 +1569,8 @@ public abstract class TP extends Protocol {
         return retval;
     }
 
-    private List bufferToList(DataInputStream instream, Address dest, boolean multicast) throws Exception {
+    private List bufferToList(DataInputStream instream, Address dest, boolean multicast, boolean src_indexed,
+                              AddressTable table) throws Exception {
         List                    l=new List();
         DataInputStream         in=null;
         int                     len;
@@ -1019,12 +1579,25 @@ public abstract class TP extends Protocol {
 
         try {
             len=instream.readInt();
-            src=Util.readAddress(instream);
+            if(src_indexed) {
+                int index=instream.readShort();
+                src=table != null? table.get(index) : null;
+                if(src == null)
+                    throw new IOException("sender is member #" + index + ", but the member table " + table +
+                            " doesn't have this member");
+            }
+            else {
+                src=Util.readAddress(instream);
+                Address mbr=table != null? table.lookup(src) : null;
+                if(mbr != null)
+                    src=mbr;
+            }
             for(int i=0; i < len; i++) {
                 msg=new Message(false); // don't create headers, readFrom() will do this
-                msg.readFrom(instream);
+                msg.readFrom(instream, table);
                 postUnmarshallingList(msg, dest, multicast);
-                msg.setSrc(src);
+                if(msg.getSrc() != src) // already resolved if read with member indices
+                    msg.setSrc(src);
                 l.add(msg);
             }
             return l;
@@ -1101,6 +1674,8 @@ public abstract class TP extends Protocol {
                 members.clear();
                 Vector tmpvec=view.getMembers();
                 members.addAll(tmpvec);
+                if(!isShared()) // the senders of a shared transport's messages are members of different views
+                    setAddressTable(new AddressTable(view, local_addr));
             }
             break;
 
@@ -1584,7 +2159,7 @@ public abstract class TP extends Protocol {
 
             if(start == 0)
                 start=System.currentTimeMillis();
-            if(count + length >= max_bundle_size) {
+            if(count + length >= max_bundle_size - encryption_overhead) {
                 bundleAndSend();  // clears msgs and resets num_msgs
             }
 
@@ -1649,7 +2224,7 @@ public abstract class TP extends Protocol {
                     multicast=dst == null || dst.isMulticastAddress();
                     synchronized(out_stream) {
                         try {
-                            buffer=listToBuffer(l, multicast);
+                            buffer=listToBuffer(l, dst, multicast);
                             doSend(buffer, dst, multicast);
                         }
                         catch(Throwable e) {
@@ -1761,4 +2336,96 @@ public abstract class TP extends Protocol {
     }
 
 
+
+    /**
+     * The bottom protocol of a stack whose transport is shared with other stacks (see singleton_name). It keeps
+     * what is specific to the stack: the cluster it is connected to (added as TpHeader to all of its messages) and
+     * its view. Everything else is passed down to the shared transport. Starting and stopping the stack starts and
+     * stops the shared transport only if no other stack uses it.
+     */
+    public static class ProtocolAdapter extends Protocol {
+        final TP transport;
+        String   cluster_name=null;
+        TpHeader header=null;
+        volatile View view=null;
+        boolean  started=false;
+
+        public ProtocolAdapter(TP transport, ProtocolStack stack) {
+            this.transport=transport;
+            this.stack=stack;
+            up_thread=down_thread=false;
+        }
+
+        public String getName() {
+            return "TP.ProtocolAdapter";
+        }
+
+        public TP getTransport() {
+            return transport;
+        }
+
+        public String getClusterName() {
+            return cluster_name;
+        }
+
+        public void init() throws Exception {
+            transport.initShared(this);
+        }
+
+        public void start() throws Exception {
+            transport.startShared(this);
+            started=true;
+        }
+
+        public void stop() {
+            if(started) {
+                started=false;
+                transport.stopShared(this);
+            }
+        }
+
+        public void destroy() {
+            transport.destroyShared(this);
+        }
+
+        public void down(Event evt) {
+            switch(evt.getType()) {
+                case Event.MSG:
+                    if(header != null)
+                        ((Message)evt.getArg()).putHeader(transport.name, header);
+                    break;
+
+                case Event.TMP_VIEW:
+                case Event.VIEW_CHANGE:
+                    view=(View)evt.getArg();
+                    transport.handleSharedViewChange();
+                    return;
+
+                case Event.GET_LOCAL_ADDRESS:
+                    passUp(new Event(Event.SET_LOCAL_ADDRESS, transport.getLocalAddress()));
+                    return;
+
+                case Event.CONNECT:
+                    transport.connectShared((String)evt.getArg(), this);
+                    cluster_name=(String)evt.getArg();
+                    header=new TpHeader(cluster_name);
+                    passUp(new Event(Event.CONNECT_OK));
+                    return;
+
+                case Event.DISCONNECT:
+                    transport.disconnectShared(cluster_name, this);
+                    cluster_name=null;
+                    header=null;
+                    view=null;
+                    transport.handleSharedViewChange();
+                    passUp(new Event(Event.DISCONNECT_OK));
+                    return;
+            }
+            transport.down(evt);
+        }
+
+        public String toString() {
+            return getName() + " (cluster=" + cluster_name + ", transport=" + transport.singleton_name + ")";
+        }
+    }
 }
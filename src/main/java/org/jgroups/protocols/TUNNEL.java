@@ -5,6 +5,7 @@ package org.jgroups.protocols;
 
 
 import org.jgroups.*;
+import org.jgroups.stack.GossipRouter;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.RouterStub;
@@ -29,6 +30,12 @@ import java.net.UnknownHostException;
  * to the outside world, however, they do not permit outside hosts to initiate a TCP connection to a host
  * inside the firewall. Therefore, the connection created by the inside host is reused by Router to
  * send traffic from an outside host to a host inside the firewall.
+ * <p>If enable_bundling is true, messages are queued and sent to the Router by a separate thread, bundled per
+ * destination (see {@link RouterStub#setBundling(boolean)}); messages queued while the connection to the Router is
+ * down are sent after reconnecting.
+ * <p>Instead of router_host and router_port, a list of routers can be given with <code>router_hosts</code>, e.g.
+ * "host1[12001],host2[12001]" (a cluster of GossipRouters started with -peers). The router with the lowest latency
+ * is used; when the connection to it fails, we immediately reconnect to one of the other routers.
  * @author Bela Ban
  */
 public class TUNNEL extends Protocol implements Runnable {
@@ -37,6 +44,8 @@ public class TUNNEL extends Protocol implements Runnable {
     final Vector members=new Vector();
     String router_host=null;
     int router_port=0;
+    /** Vector<IpAddress> of routers, set by router_hosts */
+    Vector router_hosts=null;
     Address local_addr=null;  // sock's local addr and local port
     Thread receiver=null;
     RouterStub stub=new RouterStub();
@@ -59,6 +68,9 @@ public class TUNNEL extends Protocol implements Runnable {
     /** time to wait in ms between reconnect attempts */
     long            reconnect_interval=5000;
 
+    /** Queue messages and send them to the router in bundles (requires a router supporting CONNECT_BUNDLED) */
+    boolean         enable_bundling=false;
+
 
 
 
@@ -132,13 +144,27 @@ public class TUNNEL extends Protocol implements Runnable {
             props.remove("router_port");
         }
 
+        str=props.getProperty("router_hosts");
+        if(str != null) {
+            props.remove("router_hosts");
+            try {
+                router_hosts=new Vector(GossipRouter.parsePeers(str));
+            }
+            catch(Exception ex) { // unknown host, or malformed list
+                if(log.isErrorEnabled())
+                    log.error("failed parsing router_hosts " + str, ex);
+                return false;
+            }
+            stub.setRouters(router_hosts);
+        }
+
         if(log.isDebugEnabled()) {
-            log.debug("router_host=" + router_host + ";router_port=" + router_port);
+            log.debug("router_host=" + router_host + ";router_port=" + router_port + ";router_hosts=" + router_hosts);
         }
 
-        if(router_host == null || router_port == 0) {
+        if(router_hosts == null && (router_host == null || router_port == 0)) {
             if(log.isErrorEnabled()) {
-                log.error("both router_host and router_port have to be set !");
+                log.error("either router_hosts or both router_host and router_port have to be set !");
                 return false;
             }
         }
@@ -149,6 +175,25 @@ public class TUNNEL extends Protocol implements Runnable {
             props.remove("reconnect_interval");
         }
 
+        str=props.getProperty("enable_bundling");
+        if(str != null) {
+            enable_bundling=Boolean.valueOf(str).booleanValue();
+            stub.setBundling(enable_bundling);
+            props.remove("enable_bundling");
+        }
+
+        str=props.getProperty("max_bundle_size");
+        if(str != null) {
+            stub.setMaxBundleSize(Integer.parseInt(str));
+            props.remove("max_bundle_size");
+        }
+
+        str=props.getProperty("send_queue_size");
+        if(str != null) {
+            stub.setSendQueueSize(Integer.parseInt(str));
+            props.remove("send_queue_size");
+        }
+
         str=props.getProperty("loopback");
         if(str != null) {
             loopback=Boolean.valueOf(str).booleanValue();
@@ -231,24 +276,26 @@ public class TUNNEL extends Protocol implements Runnable {
 
 
 
-        if(!stub.isConnected()) {
-            startReconnector();
-        }
-        else {
-            if(stub.send(msg, channel_name) == false) {
-                startReconnector();
-            }
+        boolean connected=stub.isConnected();
+        if(connected || enable_bundling) { // with bundling, messages are queued until we're reconnected
+            if(stub.send(msg, channel_name) == false)
+                connected=false;
         }
+        if(!connected)
+            startReconnector();
     }
 
 
     /** Creates a TCP connection to the router */
     void createTunnel() throws Exception {
-        if(router_host == null || router_port == 0)
+        if(router_hosts == null && (router_host == null || router_port == 0))
             throw new Exception("router_host and/or router_port not set correctly; tunnel cannot be created");
 
         synchronized(stub_mutex) {
-            stub.connect(channel_name, router_host, router_port);
+            if(router_hosts != null)
+                stub.connect(channel_name);
+            else
+                stub.connect(channel_name, router_host, router_port);
             if(additional_data != null && local_addr instanceof IpAddress)
                 ((IpAddress)local_addr).setAdditionalData(additional_data);
         }
@@ -278,7 +325,7 @@ public class TUNNEL extends Protocol implements Runnable {
                     if(log.isTraceEnabled()) log.trace("received a null message. Trying to reconnect to router");
                     if(!stub.isConnected())
                         startReconnector();
-                    Util.sleep(5000);
+                    Util.sleep(router_hosts != null? 200 : 5000); // failover to a different router is immediate
                     continue;
                 }
                 handleIncomingMessage(msg);
@@ -289,6 +336,10 @@ public class TUNNEL extends Protocol implements Runnable {
                 else {
                     if(log.isTraceEnabled())
                         log.trace("exception in receiver thread", e);
+                    if(!stub.isConnected()) { // don't wait until the next message is sent to detect the failure
+                        startReconnector();
+                        Util.sleep(100);
+                    }
                 }
             }
         }
@@ -368,7 +419,8 @@ public class TUNNEL extends Protocol implements Runnable {
                 }
                 catch(Exception e) {
                     if(log.isErrorEnabled())
-                        log.error("failed connecting to GossipRouter at " + router_host + ":" + router_port);
+                        log.error("failed connecting to GossipRouter at " +
+                                  (router_hosts != null? router_hosts.toString() : router_host + ":" + router_port));
                     break;
                 }
             }
@@ -281,6 +281,11 @@ public class UDP extends TP implements Runnable {
         return sb.toString();
     }
 
+    /** Multicasts sent on multiple interfaces arrive from different addresses */
+    protected boolean canIndexMulticasts() {
+        return mcast_send_sockets == null;
+    }
+
     public void sendToAllMembers(byte[] data, int offset, int length) throws Exception {
         if(ip_mcast && mcast_addr != null) {
             _send(mcast_addr.getIpAddress(), mcast_addr.getPort(), true, data, offset, length);
@@ -3,11 +3,13 @@
 package org.jgroups.protocols.pbcast;
 
 import org.jgroups.*;
+import org.jgroups.stack.MessageSpillStore;
 import org.jgroups.stack.NakReceiverWindow;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.Retransmitter;
 import org.jgroups.util.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -65,6 +67,20 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
      */
     private int max_xmit_buf_size=0;
 
+    /**
+     * If value is > 0, the messages kept for retransmission (sent_msgs and the delivered messages of each
+     * NakReceiverWindow) are bounded to max_xmit_buf_bytes bytes per buffer. The oldest messages exceeding the
+     * budget are spilled to memory-mapped segment files in spill_dir, and read back when an XMIT_REQ asks for them.
+     * A value <= 0 means unbounded buffers
+     */
+    private long max_xmit_buf_bytes=0;
+
+    /** The directory for the spill segment files. If null, java.io.tmpdir is used */
+    private String spill_dir=null;
+
+    /** The size (in bytes) of a single spill segment file */
+    private int spill_segment_size=MessageSpillStore.DEFAULT_SEGMENT_SIZE;
+
 
     /**
      * Hashtable<Address,NakReceiverWindow>. Stores received messages (keyed by sender). Note that this is no long term
@@ -75,6 +91,16 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
     /** TreeMap<Long,Message>. Map of messages sent by me (keyed and sorted on sequence number) */
     private final TreeMap sent_msgs=new TreeMap();
 
+    /** The number of bytes (as computed by Message.size()) of all messages in sent_msgs */
+    private long sent_msgs_bytes=0;
+
+    /** TreeMap<Long,Integer>. The sizes the messages in sent_msgs had when they were sent (only used if
+     * max_xmit_buf_bytes > 0), so sent_msgs_bytes can be updated exactly when messages are removed */
+    private final TreeMap sent_sizes=new TreeMap();
+
+    /** Overflow store for sent_msgs, created when max_xmit_buf_bytes > 0 */
+    private MessageSpillStore sent_spill_store=null;
+
     private boolean leaving=false;
     private boolean started=false;
     private TimeScheduler timer=null;
@@ -211,6 +237,37 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
         return max_xmit_size;
     }
 
+    public long getMaxXmitBufBytes() {
+        return max_xmit_buf_bytes;
+    }
+
+    public void setMaxXmitBufBytes(long max_xmit_buf_bytes) {
+        this.max_xmit_buf_bytes=max_xmit_buf_bytes;
+    }
+
+    public long getSentTableBytes() {
+        synchronized(sent_msgs) {
+            return sent_msgs_bytes;
+        }
+    }
+
+    public long getNumSpilledMessages() {
+        long num=0;
+        MessageSpillStore store;
+        synchronized(sent_msgs) {
+            if(sent_spill_store != null)
+                num+=sent_spill_store.size();
+        }
+        synchronized(received_msgs) {
+            for(Iterator it=received_msgs.values().iterator(); it.hasNext();) {
+                store=((NakReceiverWindow)it.next()).getSpillStore();
+                if(store != null)
+                    num+=store.size();
+            }
+        }
+        return num;
+    }
+
     public void setMaxXmitSize(long max_xmit_size) {
         this.max_xmit_size=max_xmit_size;
     }
@@ -268,6 +325,24 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
             props.remove("max_xmit_buf_size");
         }
 
+        str=props.getProperty("max_xmit_buf_bytes");
+        if(str != null) {
+            max_xmit_buf_bytes=Long.parseLong(str);
+            props.remove("max_xmit_buf_bytes");
+        }
+
+        str=props.getProperty("spill_dir");
+        if(str != null) {
+            spill_dir=str;
+            props.remove("spill_dir");
+        }
+
+        str=props.getProperty("spill_segment_size");
+        if(str != null) {
+            spill_segment_size=Integer.parseInt(str);
+            props.remove("spill_segment_size");
+        }
+
         str=props.getProperty("stats_list_size");
         if(str != null) {
             stats_list_size=Integer.parseInt(str);
@@ -299,6 +374,10 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
         retval.put("xmit_rsps_received", new Long(xmit_rsps_received));
         retval.put("xmit_rsps_sent", new Long(xmit_rsps_sent));
         retval.put("missing_msgs_received", new Long(missing_msgs_received));
+        if(max_xmit_buf_bytes > 0) {
+            retval.put("sent_msgs_bytes", new Long(getSentTableBytes()));
+            retval.put("spilled_msgs", new Long(getNumSpilledMessages()));
+        }
 
         retval.put("sent_msgs", printSentMsgs());
 
@@ -604,6 +683,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
                     sent_msgs.put(new Long(msg_id), msg);
                 }
                 seqno=msg_id;
+                if(max_xmit_buf_bytes > 0) {
+                    long size=msg.size();
+                    sent_sizes.put(new Long(msg_id), new Integer((int)size));
+                    sent_msgs_bytes+=size;
+                    if(sent_msgs_bytes > max_xmit_buf_bytes)
+                        spillSentMessages();
+                }
             }
             catch(Throwable t) {
                 if(t instanceof Error)
@@ -733,6 +819,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
         for(long i=first_seqno; i <= last_seqno; i++) {
             if(amISender) {
                 m=(Message)sent_msgs.get(new Long(i)); // no need to synchronize
+                if(m == null && sent_spill_store != null)
+                    m=sent_spill_store.get(i); // spilled msgs are added to the store before removal from sent_msgs
             }
             else {
                 m=win != null? win.get(i) : null;
@@ -1044,6 +1132,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
         win.setRetransmitTimeouts(retransmit_timeout);
         win.setDiscardDeliveredMessages(discard_delivered_msgs);
         win.setMaxXmitBufSize(this.max_xmit_buf_size);
+        if(max_xmit_buf_bytes > 0)
+            win.setMaxXmitBufBytes(max_xmit_buf_bytes, createSpillStore("recv-" + sender));
         if(stats)
             win.setListener(this);
         return win;
@@ -1192,6 +1282,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
                     if(stable_keys != null) {
                         stable_keys.clear(); // this will modify sent_msgs directly
                     }
+                    // subtract the sizes recorded at send time: headers may have been added to the msgs since
+                    SortedMap stable_sizes=sent_sizes.headMap(new Long(high_seqno_delivered));
+                    for(Iterator it2=stable_sizes.values().iterator(); it2.hasNext();)
+                        sent_msgs_bytes-=((Integer)it2.next()).intValue();
+                    stable_sizes.clear();
+                    if(sent_spill_store != null)
+                        sent_spill_store.removeUpTo(high_seqno_delivered -1); // same range as headMap() above
                 }
             }
 
@@ -1278,6 +1375,10 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
 
         synchronized(sent_msgs) {
             sent_msgs.clear();
+            sent_sizes.clear();
+            sent_msgs_bytes=0;
+            if(sent_spill_store != null)
+                sent_spill_store.clear();
             seqno=-1;
         }
 
@@ -1319,10 +1420,46 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
             max_seqno=sent_msgs.size() > 0 ? (Long)sent_msgs.lastKey() : new Long(0);
         }
         sb.append('[').append(min_seqno).append(" - ").append(max_seqno).append("] (").append(sent_msgs.size()).append(")");
+        if(sent_spill_store != null && sent_spill_store.size() > 0)
+            sb.append(", spilled: ").append(sent_spill_store);
         return sb.toString();
     }
 
 
+    /**
+     * Moves the oldest messages of sent_msgs to the spill store until sent_msgs_bytes is within max_xmit_buf_bytes.
+     * Messages which cannot be spilled stay in memory. Needs to be called with the sent_msgs lock held
+     */
+    private void spillSentMessages() {
+        Long key;
+        Message msg;
+        Integer size;
+
+        if(sent_spill_store == null)
+            sent_spill_store=createSpillStore("sent-" + local_addr);
+        while(sent_msgs_bytes > max_xmit_buf_bytes && sent_msgs.size() > 1) {
+            key=(Long)sent_msgs.firstKey();
+            msg=(Message)sent_msgs.get(key);
+            try {
+                sent_spill_store.put(key.longValue(), msg);
+            }
+            catch(IOException ex) {
+                if(log.isErrorEnabled())
+                    log.error("failed spilling sent message #" + key + "; keeping it in memory", ex);
+                break;
+            }
+            sent_msgs.remove(key);
+            size=(Integer)sent_sizes.remove(key);
+            if(size != null)
+                sent_msgs_bytes-=size.intValue();
+        }
+    }
+
+    private MessageSpillStore createSpillStore(String store_name) {
+        return new MessageSpillStore(spill_dir != null? new File(spill_dir) : null, store_name, spill_segment_size);
+    }
+
+
     private void handleConfigEvent(HashMap map) {
         if(map == null) {
             return;
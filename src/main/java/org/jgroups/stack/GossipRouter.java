@@ -2,20 +2,26 @@
 
 package org.jgroups.stack;
 
+import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
 import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.util.ExposedByteArrayOutputStream;
 import org.jgroups.util.Util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Router for TCP based group comunication (using layer TCP instead of UDP).
@@ -34,6 +40,27 @@ import java.util.*;
  * in applets as of 1.2), is to use point-to-point UDP communication via the
  * gossip server. However, then the appplet has to be signed which involves
  * additional administrative effort on the part of the user.<p>
+ * The router doesn't use a thread per client: connections are accepted by a single thread and then handed
+ * (round robin) to one of a small, fixed number of I/O threads (io_threads), each of which multiplexes its
+ * connections with a {@link Selector}. A message to be routed is encoded once into a buffer which is shared by all
+ * receivers; it is added to the (bounded) write queue of each receiver and written by the receiver's I/O thread, so
+ * a slow or stalled client never blocks the routing of messages to other clients. When the write queue of a client
+ * is full (max_queue_size messages), the message is either dropped for that client (queue_policy="drop") or the
+ * client is disconnected (queue_policy="disconnect").<p>
+ * Clients which connect with CONNECT_BUNDLED send the group name only once (in the CONNECT_BUNDLED request);
+ * afterwards they send frames, each of which contains a bundle of messages for the same destination (see
+ * {@link RouterStub#setBundling(boolean)}). All messages of a bundle are encoded into one buffer, so they're queued
+ * and written as one unit.<p>
+ * A number of routers can be run as a cluster: every router is given the addresses of all other routers (peers), and
+ * maintains a connection to each of them (PEER_CONNECT). Registrations of local clients (CONNECT, CONNECT_BUNDLED and
+ * REGISTER) and their removal are replicated to all peers, so every router knows all members of a group and the
+ * router they're attached to. When a (re)started router connects to a peer, it is sent the peer's local registrations,
+ * so the routing table doesn't have to be rebuilt by the clients. A message from a local client to a member attached
+ * to a different router is forwarded to that router, a multicast is forwarded to every router which has members of
+ * the group. Messages received from a peer are only delivered to local clients, so the peers have to form a full
+ * mesh. A client is attached to only one router at a time: a registration of a connected client by a peer replaces
+ * a local entry for the same address (the client has failed over to the peer). Clients use a list of routers (see
+ * {@link RouterStub#setRouters(List)}) to fail over to a different router.<p>
  * @author Bela Ban
  * @author Ovidiu Feodorov <ovidiuf@users.sourceforge.net>
  * @since 2.1.1
@@ -48,12 +75,39 @@ public class GossipRouter {
     public static final byte UNREGISTER=7; // UNREGISTER(group, addr)
     public static final byte DUMP=8; // DUMP
     public static final byte SHUTDOWN=9;
+    public static final byte CONNECT_BUNDLED=10; // CONNECT_BUNDLED(group, addr), followed by frames
+    public static final byte PEER_CONNECT=11; // PEER_CONNECT(null, router addr), followed by peer frames
+
+    /** Frame sent on a CONNECT_BUNDLED connection: FRAME_MSGS, dest, number of msgs, (length, msg)* */
+    public static final byte FRAME_MSGS=1;
+    /** Frame sent on a CONNECT_BUNDLED connection to disconnect the client */
+    public static final byte FRAME_DISCONNECT=2;
+
+    /** Peer frame: FRAME_PEER_REGISTER, group, addr, connected (boolean) */
+    public static final byte FRAME_PEER_REGISTER=3;
+    /** Peer frame: FRAME_PEER_UNREGISTER, group, addr */
+    public static final byte FRAME_PEER_UNREGISTER=4;
+    /** Peer frame: FRAME_PEER_MSGS, group, dest, number of msgs, (length, msg)* */
+    public static final byte FRAME_PEER_MSGS=5;
 
     public static final int PORT=8980;
     public static final long EXPIRY_TIME=30000;
     public static final long GOSSIP_REQUEST_TIMEOUT=1000;
     public static final long ROUTING_CLIENT_REPLY_TIMEOUT=120000;
 
+    /** Drop messages for a client whose write queue is full */
+    public static final String QUEUE_POLICY_DROP="drop";
+    /** Close the connection of a client whose write queue is full */
+    public static final String QUEUE_POLICY_DISCONNECT="disconnect";
+
+    public static final int IO_THREADS=2;
+    public static final int MAX_QUEUE_SIZE=5000;
+    public static final long PEER_RECONNECT_INTERVAL=2000;
+    public static final int MAX_MSG_SIZE=1024 * 1024;
+
+    /** Room for the group name and addresses which precede a message or frame */
+    static final int MAX_HEADER_SIZE=64 * 1024;
+
     private int port;
     private String bindAddressString;
 
@@ -75,10 +129,40 @@ public class GossipRouter {
     // names, values = maps of logical address / AddressEntry associations
     private final Map routingTable=new ConcurrentHashMap();
 
-    private ServerSocket srvSock=null;
+    private ServerSocketChannel srvChannel=null;
     private InetAddress bindAddress=null;
 
-    private boolean up=true;
+    private volatile boolean up=true;
+
+    /** Number of threads which read from and write to client connections */
+    private int io_threads=IO_THREADS;
+
+    /** Max number of messages queued for a client. What happens when this is exceeded depends on queue_policy */
+    private int max_queue_size=MAX_QUEUE_SIZE;
+
+    private String queue_policy=QUEUE_POLICY_DROP;
+
+    /**
+     * Max size (in bytes) of a message, or of a bundle of messages, sent by a client or peer. A connection announcing
+     * a larger (or negative) size is closed, so a client cannot make the router allocate unbounded buffers
+     */
+    private int max_msg_size=MAX_MSG_SIZE;
+
+    private IOThread[] io_handlers=null;
+    private int next_handler=0;
+
+    /** Updated concurrently by the I/O threads */
+    private final AtomicLong num_msgs_routed=new AtomicLong(0), num_msgs_dropped=new AtomicLong(0),
+            num_clients_disconnected=new AtomicLong(0), num_msgs_forwarded=new AtomicLong(0);
+
+    /** List<IpAddress> of the other routers of the cluster. Our own address may be contained, it is skipped */
+    private List peers=null;
+
+    /** Map<IpAddress,PeerLink>: connections to the peers, used to send replication and forwarded messages */
+    private final Map peer_links=new ConcurrentHashMap();
+
+    /** Time (in ms) to wait between attempts to connect to a peer */
+    private long peer_reconnect_interval=PEER_RECONNECT_INTERVAL;
 
     /** whether to discard message sent to self */
     private boolean discard_loopbacks=false;
@@ -167,7 +251,106 @@ public class GossipRouter {
     }
 
     public boolean isStarted() {
-        return srvSock != null;
+        return srvChannel != null;
+    }
+
+    public int getIOThreads() {
+        return io_threads;
+    }
+
+    /** Sets the number of I/O threads. Takes effect on the next start() */
+    public void setIOThreads(int io_threads) {
+        this.io_threads=io_threads;
+    }
+
+    public int getMaxQueueSize() {
+        return max_queue_size;
+    }
+
+    public void setMaxQueueSize(int max_queue_size) {
+        this.max_queue_size=max_queue_size;
+    }
+
+    public int getMaxMessageSize() {
+        return max_msg_size;
+    }
+
+    public void setMaxMessageSize(int max_msg_size) {
+        if(max_msg_size <= 0)
+            throw new IllegalArgumentException("max_msg_size has to be positive");
+        this.max_msg_size=max_msg_size;
+    }
+
+    public String getQueuePolicy() {
+        return queue_policy;
+    }
+
+    public void setQueuePolicy(String queue_policy) {
+        if(!QUEUE_POLICY_DROP.equals(queue_policy) && !QUEUE_POLICY_DISCONNECT.equals(queue_policy))
+            throw new IllegalArgumentException("queue_policy has to be \"" + QUEUE_POLICY_DROP + "\" or \"" +
+                                               QUEUE_POLICY_DISCONNECT + "\"");
+        this.queue_policy=queue_policy;
+    }
+
+    public long getNumberOfRoutedMessages() {
+        return num_msgs_routed.get();
+    }
+
+    /** Number of messages dropped because the write queue of a client was full */
+    public long getNumberOfDroppedMessages() {
+        return num_msgs_dropped.get();
+    }
+
+    /** Number of clients disconnected because their write queue was full */
+    public long getNumberOfDisconnectedClients() {
+        return num_clients_disconnected.get();
+    }
+
+    public int getNumberOfConnections() {
+        int retval=0;
+        IOThread[] tmp=io_handlers;
+        if(tmp != null) {
+            for(int i=0; i < tmp.length; i++)
+                retval+=tmp[i].getNumberOfConnections();
+        }
+        return retval;
+    }
+
+    /** Number of messages forwarded to peers */
+    public long getNumberOfForwardedMessages() {
+        return num_msgs_forwarded.get();
+    }
+
+    public List getPeers() {
+        return peers;
+    }
+
+    /** Sets the addresses (List<IpAddress>) of the other routers. Takes effect on the next start() */
+    public void setPeers(List peers) {
+        this.peers=peers;
+    }
+
+    /** Sets the addresses of the other routers, e.g. "host1[12001],host2[12001]". Takes effect on the next start() */
+    public void setPeers(String peers) throws UnknownHostException {
+        this.peers=parsePeers(peers);
+    }
+
+    public long getPeerReconnectInterval() {
+        return peer_reconnect_interval;
+    }
+
+    public void setPeerReconnectInterval(long peer_reconnect_interval) {
+        this.peer_reconnect_interval=peer_reconnect_interval;
+    }
+
+    /** Returns the number of peers we're currently connected to */
+    public int getNumberOfConnectedPeers() {
+        int retval=0;
+        for(Iterator it=peer_links.values().iterator(); it.hasNext();) {
+            if(((PeerLink)it.next()).isConnected())
+                retval++;
+        }
+        return retval;
     }
 
     public boolean isDiscardLoopbacks() {
@@ -199,6 +382,10 @@ public class GossipRouter {
                 return "DUMP";
             case SHUTDOWN:
                 return "SHUTDOWN";
+            case CONNECT_BUNDLED:
+                return "CONNECT_BUNDLED";
+            case PEER_CONNECT:
+                return "PEER_CONNECT";
             default:
                 return "unknown";
         }
@@ -222,21 +409,35 @@ public class GossipRouter {
      * Brings the Router in fully functional state.
      */
     public void start() throws Exception {
-        if(srvSock != null) {
+        if(srvChannel != null) {
             throw new Exception("Router already started.");
         }
 
-        if(bindAddressString != null) {
-            bindAddress=InetAddress.getByName(bindAddressString);
-            srvSock=new ServerSocket(port, 50, bindAddress);
+        srvChannel=ServerSocketChannel.open();
+        try {
+            if(bindAddressString != null) {
+                bindAddress=InetAddress.getByName(bindAddressString);
+                srvChannel.socket().bind(new InetSocketAddress(bindAddress, port), 50);
+            }
+            else {
+                srvChannel.socket().bind(new InetSocketAddress(port), 50);
+            }
         }
-        else {
-            srvSock=new ServerSocket(port, 50);
+        catch(IOException ex) {
+            srvChannel.close();
+            srvChannel=null;
+            throw ex;
         }
 
         up=true;
 
-        // start the main server thread
+        io_handlers=new IOThread[Math.max(1, io_threads)];
+        for(int i=0; i < io_handlers.length; i++) {
+            io_handlers[i]=new IOThread(i);
+            io_handlers[i].start();
+        }
+
+        // start the main server thread (accepts connections)
         new Thread(new Runnable() {
             public void run() {
                 mainLoop();
@@ -244,6 +445,8 @@ public class GossipRouter {
             }
         }, "GossipRouter").start();
 
+        startPeerLinks();
+
         // starts the cache sweeper as daemon thread, so we won't block on it
         // upon termination
         timer=new Timer(true);
@@ -261,21 +464,21 @@ public class GossipRouter {
     public void stop() {
         up=false;
 
-        if(srvSock == null) {
+        if(srvChannel == null) {
             if(log.isWarnEnabled()) log.warn("router already stopped");
             return;
         }
 
         timer.cancel();
-        shutdown();
+        stopPeerLinks();
         try {
-            srvSock.close();
+            srvChannel.close(); // terminates the main loop
         }
         catch(Exception e) {
             if(log.isErrorEnabled()) log.error("Failed to close server socket: " + e);
         }
         // exiting the mainLoop will clean the tables
-        srvSock=null;
+        srvChannel=null;
         if(log.isInfoEnabled()) log.info("router stopped");
     }
 
@@ -321,171 +524,164 @@ public class GossipRouter {
                 }
             }
         }
+        if(!peer_links.isEmpty())
+            sb.append("PEERS: ").append(peer_links.values()).append('\n');
         return sb.toString();
     }
 
 
     /**
-     * The main server loop. Runs on the JGroups Router Main Thread.
+     * The main server loop. Runs on the JGroups Router Main Thread. Accepts connections and hands them to
+     * the I/O threads (round robin).
      */
     private void mainLoop() {
-        Socket sock=null;
-        DataInputStream input=null;
-        DataOutputStream output=null;
-        Address peer_addr=null, mbr, logical_addr;
+        SocketChannel client;
 
         if(bindAddress == null) {
-            bindAddress=srvSock.getInetAddress();
+            bindAddress=srvChannel.socket().getInetAddress();
         }
         System.out.println("GossipRouter started at " + new Date() +
                 "\nListening on port " + port + " bound on address " + bindAddress + '\n');
 
-        GossipData req;
-        String group;
-
-        while(up && srvSock != null) {
+        while(up && srvChannel != null) {
+            client=null;
             try {
-                sock=srvSock.accept();
+                client=srvChannel.accept();
+                Socket sock=client.socket();
                 sock.setSoLinger(true, 500);
-                input=new DataInputStream(sock.getInputStream());
-                // if(log.isTraceEnabled())
-                   // log.trace("accepted connection from " + sock);
-
-                req=new GossipData();
-                req.readFrom(input);
-
-                switch(req.getType()) {
-                    case GossipRouter.REGISTER:
-                        mbr=req.getAddress();
-                        group=req.getGroup();
-                        if(log.isTraceEnabled())
-                            log.trace("REGISTER(" + group + ", " + mbr + ")");
-                        if(group == null || mbr == null) {
-                            if(log.isErrorEnabled()) log.error("group or member is null, cannot register member");
-                        }
-                        else
-                            addGossipEntry(group, mbr, new AddressEntry(mbr));
-                        Util.close(input);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.UNREGISTER:
-                        mbr=req.getAddress();
-                        group=req.getGroup();
-                        if(log.isTraceEnabled())
-                            log.trace("UNREGISTER(" + group + ", " + mbr + ")");
-                        if(group == null || mbr == null) {
-                            if(log.isErrorEnabled()) log.error("group or member is null, cannot unregister member");
-                        }
-                        else
-                            removeGossipEntry(group, mbr);
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.GOSSIP_GET:
-                        group=req.getGroup();
-                        List mbrs=null;
-                        Map map;
-                        map=(Map)routingTable.get(group);
-                        if(map != null) {
-                            mbrs=new LinkedList(map.keySet());
-                        }
-
-                        if(log.isTraceEnabled())
-                            log.trace("GOSSIP_GET(" + group + ") --> " + mbrs);
-                        output=new DataOutputStream(sock.getOutputStream());
-                        GossipData rsp=new GossipData(GossipRouter.GET_RSP, group, null, mbrs);
-                        rsp.writeTo(output);
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.ROUTER_GET:
-                        group=req.getGroup();
-                        output=new DataOutputStream(sock.getOutputStream());
-
-                        List ret=null;
-                        map=(Map)routingTable.get(group);
-                        if(map != null) {
-                            ret=new LinkedList(map.keySet());
-                        }
-                        else
-                            ret=new LinkedList();
-                        if(log.isTraceEnabled())
-                            log.trace("ROUTER_GET(" + group + ") --> " + ret);
-                        rsp=new GossipData(GossipRouter.GET_RSP, group, null, ret);
-                        rsp.writeTo(output);
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.DUMP:
-                        output=new DataOutputStream(sock.getOutputStream());
-                        output.writeUTF(dumpRoutingTable());
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.CONNECT:
-                        output=new DataOutputStream(sock.getOutputStream());
-                        peer_addr=new IpAddress(sock.getInetAddress(), sock.getPort());
-                        output=new DataOutputStream(sock.getOutputStream());
-                        logical_addr=req.getAddress();
-                        String group_name=req.getGroup();
-
-                        if(log.isTraceEnabled())
-                            log.trace("CONNECT(" + group_name + ", " + logical_addr + ")");
-                        SocketThread st=new SocketThread(sock, input, group_name, logical_addr);
-                        addEntry(group_name, logical_addr, new AddressEntry(logical_addr, peer_addr, sock, st, output));
-                        st.start();
-                        break;
-
-                    case GossipRouter.DISCONNECT:
-                        Address addr=req.getAddress();
-                        group_name=req.getGroup();
-                        removeEntry(group_name, addr);
-                        if(log.isTraceEnabled())
-                            log.trace("DISCONNECT(" + group_name + ", " + addr + ")");
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        break;
-
-                    case GossipRouter.SHUTDOWN:
-                        if(log.isInfoEnabled()) log.info("router shutting down");
-                        Util.close(input);
-                        Util.close(output);
-                        Util.close(sock);
-                        up=false;
-                        break;
-                    default:
-                        if(log.isWarnEnabled())
-                            log.warn("received unkown gossip request (gossip=" + req + ')');
-                        break;
-                }
+                sock.setTcpNoDelay(true);
+                client.configureBlocking(false);
+                IOThread handler=io_handlers[next_handler++ % io_handlers.length];
+                handler.register(new Connection(client, handler));
             }
             catch(Exception e) {
-                if(up)
-                    if(log.isErrorEnabled()) log.error("failure handling a client request", e);
-                Util.close(input);
-                Util.close(output);
-                Util.close(sock);
+                if(up && srvChannel != null)
+                    if(log.isErrorEnabled()) log.error("failure accepting a client connection", e);
+                closeChannel(client);
             }
         }
     }
 
 
+    /**
+     * Handles a GossipData request received on a connection which is not (yet) in routing mode.
+     * @return True if more data can be read from the connection (CONNECT), false otherwise
+     */
+    private boolean handleRequest(Connection conn, GossipData req) throws IOException {
+        Address mbr;
+        String group;
+        GossipData rsp;
+        List mbrs;
+        Map map;
+
+        switch(req.getType()) {
+            case GossipRouter.REGISTER:
+                mbr=req.getAddress();
+                group=req.getGroup();
+                if(log.isTraceEnabled())
+                    log.trace("REGISTER(" + group + ", " + mbr + ")");
+                if(group == null || mbr == null) {
+                    if(log.isErrorEnabled()) log.error("group or member is null, cannot register member");
+                }
+                else {
+                    addGossipEntry(group, mbr, new AddressEntry(mbr));
+                    replicateRegister(group, mbr, false);
+                }
+                conn.close();
+                return false;
+
+            case GossipRouter.UNREGISTER:
+                mbr=req.getAddress();
+                group=req.getGroup();
+                if(log.isTraceEnabled())
+                    log.trace("UNREGISTER(" + group + ", " + mbr + ")");
+                if(group == null || mbr == null) {
+                    if(log.isErrorEnabled()) log.error("group or member is null, cannot unregister member");
+                }
+                else
+                    removeGossipEntry(group, mbr);
+                conn.close();
+                return false;
+
+            case GossipRouter.GOSSIP_GET:
+            case GossipRouter.ROUTER_GET:
+                group=req.getGroup();
+                map=(Map)routingTable.get(group);
+                if(map != null)
+                    mbrs=new LinkedList(map.keySet());
+                else
+                    mbrs=req.getType() == GossipRouter.ROUTER_GET? new LinkedList() : null;
+                if(log.isTraceEnabled())
+                    log.trace(type2String(req.getType()) + "(" + group + ") --> " + mbrs);
+                rsp=new GossipData(GossipRouter.GET_RSP, group, null, mbrs);
+                conn.sendAndClose(rsp);
+                return false;
+
+            case GossipRouter.DUMP:
+                conn.sendAndClose(dumpRoutingTable());
+                return false;
+
+            case GossipRouter.CONNECT:
+            case GossipRouter.CONNECT_BUNDLED:
+                Address logical_addr=req.getAddress();
+                String group_name=req.getGroup();
+                Socket sock=conn.channel.socket();
+                Address peer_addr=new IpAddress(sock.getInetAddress(), sock.getPort());
+                if(log.isTraceEnabled())
+                    log.trace(type2String(req.getType()) + "(" + group_name + ", " + logical_addr + ")");
+                conn.bundled=req.getType() == GossipRouter.CONNECT_BUNDLED;
+                conn.group_name=group_name;
+                conn.logical_addr=logical_addr;
+                addEntry(group_name, logical_addr, new AddressEntry(logical_addr, peer_addr, conn));
+                replicateRegister(group_name, logical_addr, true);
+                return true;
+
+            case GossipRouter.PEER_CONNECT:
+                if(log.isTraceEnabled())
+                    log.trace("PEER_CONNECT(" + req.getAddress() + ")");
+                if(req.getAddress() == null) {
+                    if(log.isErrorEnabled()) log.error("address of peer is null, closing connection");
+                    conn.close();
+                    return false;
+                }
+                conn.peer_router=req.getAddress();
+                return true;
+
+            case GossipRouter.DISCONNECT:
+                Address addr=req.getAddress();
+                group_name=req.getGroup();
+                removeEntry(group_name, addr);
+                if(log.isTraceEnabled())
+                    log.trace("DISCONNECT(" + group_name + ", " + addr + ")");
+                conn.close();
+                return false;
+
+            case GossipRouter.SHUTDOWN:
+                if(log.isInfoEnabled()) log.info("router shutting down");
+                conn.close();
+                stop();
+                return false;
+
+            default:
+                if(log.isWarnEnabled())
+                    log.warn("received unkown gossip request (gossip=" + req + ')');
+                conn.close();
+                return false;
+        }
+    }
+
+
     /**
      * Cleans the routing tables while the Router is going down.
      */
     private void cleanup() {
+        IOThread[] tmp=io_handlers;
+        if(tmp != null) {
+            for(int i=0; i < tmp.length; i++)
+                tmp[i].finish();
+        }
 
-        // shutdown the routing threads and cleanup the tables
+        // close the client connections and cleanup the tables
         Map map;
         for(Iterator i=routingTable.values().iterator(); i.hasNext();) {
             map=(Map)i.next();
@@ -499,32 +695,23 @@ public class GossipRouter {
         routingTable.clear();
     }
 
-    /**
-     * Connects to the ServerSocket and sends the shutdown header.
-     */
-    private void shutdown() {
-        Socket s=null;
-        DataOutputStream dos=null;
-        try {
-            s=new Socket(srvSock.getInetAddress(),srvSock.getLocalPort());
-            dos=new DataOutputStream(s.getOutputStream());
-            dos.writeInt(SHUTDOWN);
-            dos.writeUTF("");
-        }
-        catch(Exception e) {
-            if(log.isErrorEnabled()) log.error("shutdown failed: " + e);
-        }
-        finally {
-            Util.close(s);
-            Util.close(dos);
+
+    private static void closeChannel(Channel ch) {
+        if(ch != null) {
+            try {
+                ch.close();
+            }
+            catch(IOException e) {
+            }
         }
     }
 
 
 
-
     /**
-     * Removes expired gossip entries (entries older than EXPIRY_TIME msec).
+     * Removes expired gossip entries (entries older than EXPIRY_TIME msec). Entries of connected (routing) clients
+     * don't expire; they're removed when the connection is closed (or, for clients attached to a peer, when the peer
+     * unregisters them or the connection from the peer is closed).
      * @since 2.2.1
      */
     private void sweep() {
@@ -544,6 +731,8 @@ public class GossipRouter {
             for(Iterator it2=map.entrySet().iterator(); it2.hasNext();) {
                 entry2=(Map.Entry)it2.next();
                 ae=(GossipRouter.AddressEntry)entry2.getValue();
+                if(ae.conn != null || ae.connected)
+                    continue;
                 diff=currentTime - ae.timestamp;
                 if(diff > expiryTime) {
                     it2.remove();
@@ -561,42 +750,152 @@ public class GossipRouter {
 
 
 
-
-    private void route(Address dest, String dest_group, byte[] msg, Address sender) {
-        //if(log.isTraceEnabled()) {
-          //  int len=msg != null? msg.length : 0;
-            //log.trace("routing request from " + sender + " for " + dest_group + " to " +
-              //      (dest == null? "ALL" : dest.toString()) + ", " + len + " bytes");
-        //}
-
+    /**
+     * Routes a number of messages (all in buf) to the same destination. The messages are encoded (destination,
+     * length, bytes) once into a single buffer, which is shared by all receivers
+     * @param forward True if the messages were sent by a local client and may therefore be forwarded to peers,
+     * false if they were received from a peer (they're only delivered to local clients)
+     */
+    private void route(Address dest, String dest_group, byte[] buf, int[] offsets, int[] lengths, int num,
+                       Address sender, boolean forward) {
         if(dest == null) { // send to all members in group dest.getChannelName()
             if(dest_group == null) {
                 if(log.isErrorEnabled()) log.error("both dest address and group are null");
             }
             else {
-                sendToAllMembersInGroup(dest_group, msg, sender);
+                sendToAllMembersInGroup(dest_group, encode(null, buf, offsets, lengths, num));
+                if(forward)
+                    forwardToPeers(dest_group, buf, offsets, lengths, num);
             }
         }
         else {
             // send to destination address
+            if(discard_loopbacks && dest.equals(sender))
+                return;
             AddressEntry ae=findAddressEntry(dest_group, dest);
             if(ae == null) {
                 if(log.isTraceEnabled())
                     log.trace("cannot find " + dest + " in the routing table, \nrouting table=\n" + dumpRoutingTable());
                 return;
             }
-            if(ae.output == null) {
-                if(log.isErrorEnabled()) log.error(dest + " is associated with a null output stream");
+            if(ae.conn != null)
+                ae.conn.send(encode(dest, buf, offsets, lengths, num));
+            else if(ae.connected && ae.peer != null) {
+                if(!forward) // sent by a peer which thinks dest is attached to us: don't send it back
+                    return;
+                PeerLink link=(PeerLink)peer_links.get(ae.peer.peer_router);
+                byte[] frame=encodePeerMessages(dest_group, dest, buf, offsets, lengths, num);
+                if(link != null)
+                    link.send(frame);
+                else
+                    sendToAllPeers(frame);
+                num_msgs_forwarded.addAndGet(num);
+            }
+            else {
+                if(log.isErrorEnabled()) log.error(dest + " is not connected to the router");
                 return;
             }
-            try {
-                sendToMember(dest, ae.output, msg, sender);
+        }
+        num_msgs_routed.addAndGet(num);
+    }
+
+
+    /** Forwards a multicast to all peers which have connected members of the group */
+    private void forwardToPeers(String group, byte[] buf, int[] offsets, int[] lengths, int num) {
+        if(peer_links.isEmpty())
+            return;
+        Map val=(Map)routingTable.get(group);
+        if(val == null)
+            return;
+        Set routers=new HashSet();
+        AddressEntry entry;
+        for(Iterator it=val.values().iterator(); it.hasNext();) {
+            entry=(AddressEntry)it.next();
+            if(entry.connected && entry.peer != null)
+                routers.add(entry.peer.peer_router);
+        }
+        if(routers.isEmpty())
+            return;
+        byte[] frame=encodePeerMessages(group, null, buf, offsets, lengths, num);
+        PeerLink link;
+        for(Iterator it=routers.iterator(); it.hasNext();) {
+            link=(PeerLink)peer_links.get(it.next());
+            if(link == null) { // the peer registered under a different address than the one we connect to
+                sendToAllPeers(frame);
+                break;
             }
-            catch(Exception e) {
-                if(log.isErrorEnabled()) log.error("failed sending message to " + dest + ": " + e.getMessage());
-                removeEntry(dest_group, dest); // will close socket
+            link.send(frame);
+        }
+        num_msgs_forwarded.addAndGet(num);
+    }
+
+
+    private void sendToAllPeers(byte[] frame) {
+        for(Iterator it=peer_links.values().iterator(); it.hasNext();)
+            ((PeerLink)it.next()).send(frame);
+    }
+
+
+    private static byte[] encodePeerMessages(String group, Address dest, byte[] buf, int[] offsets, int[] lengths, int num) {
+        int size=64 + group.length();
+        for(int i=0; i < num; i++)
+            size+=lengths[i] + 4;
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(size);
+        DataOutputStream out=new DataOutputStream(out_stream);
+        try {
+            out.writeByte(FRAME_PEER_MSGS);
+            out.writeUTF(group);
+            Util.writeAddress(dest, out);
+            out.writeInt(num);
+            for(int i=0; i < num; i++) {
+                out.writeInt(lengths[i]);
+                out.write(buf, offsets[i], lengths[i]);
             }
+            out.flush();
         }
+        catch(IOException e) { // cannot happen with a byte array stream
+            throw new IllegalStateException(e.toString());
+        }
+        return out_stream.toByteArray();
+    }
+
+
+    private static byte[] encodeRegistration(byte type, String group, Address addr, boolean connected) {
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
+        DataOutputStream out=new DataOutputStream(out_stream);
+        try {
+            out.writeByte(type);
+            out.writeUTF(group);
+            Util.writeAddress(addr, out);
+            if(type == FRAME_PEER_REGISTER)
+                out.writeBoolean(connected);
+            out.flush();
+        }
+        catch(IOException e) { // cannot happen with a byte array stream
+            throw new IllegalStateException(e.toString());
+        }
+        return out_stream.toByteArray();
+    }
+
+
+    private static ByteBuffer encode(Address dest, byte[] buf, int[] offsets, int[] lengths, int num) {
+        int size=0;
+        for(int i=0; i < num; i++)
+            size+=lengths[i] + 32;
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(size);
+        DataOutputStream out=new DataOutputStream(out_stream);
+        try {
+            for(int i=0; i < num; i++) {
+                Util.writeAddress(dest, out);
+                out.writeInt(lengths[i]);
+                out.write(buf, offsets[i], lengths[i]);
+            }
+            out.flush();
+        }
+        catch(IOException e) { // cannot happen with a byte array stream
+            throw new IllegalStateException(e.toString());
+        }
+        return ByteBuffer.wrap(out_stream.getRawBuffer(), 0, out_stream.size());
     }
 
 
@@ -639,20 +938,176 @@ public class GossipRouter {
 
 
     private void removeEntry(String groupname, Address logical_addr) {
+        removeEntry(groupname, logical_addr, null);
+    }
+
+
+    /**
+     * Removes and destroys the entry for logical_addr and replicates the removal to the peers. If conn is not null,
+     * the entry is only removed if it is associated with conn (it may have been replaced by a new connection of the
+     * same client, or by a registration of the client with a peer)
+     */
+    private void removeEntry(String groupname, Address logical_addr, Connection conn) {
         Map val;
+        if(groupname == null || logical_addr == null)
+            return;
         val=(Map)routingTable.get(groupname);
+        if(val == null)
+            return;
+        AddressEntry entry;
+        synchronized(val) {
+            entry=(AddressEntry)val.get(logical_addr);
+            if(entry == null || (conn != null && entry.conn != conn))
+                return;
+            val.remove(logical_addr);
+        }
+        entry.destroy();
+        replicateUnregister(groupname, logical_addr);
+    }
+
+
+    /**
+     * Adds or updates an entry registered by a peer. A registration of a connected client replaces a local entry for
+     * the same address: the client is now attached to the peer, so its connection to us is closed
+     */
+    private void addRemoteEntry(String groupname, Address logical_addr, boolean connected, Connection peer) {
+        AddressEntry old=null;
+        synchronized(routingTable) {
+            Map mbrs=(Map)routingTable.get(groupname);
+            if(mbrs == null) {
+                mbrs=new ConcurrentHashMap();
+                routingTable.put(groupname, mbrs);
+            }
+            AddressEntry tmp=(AddressEntry)mbrs.get(logical_addr);
+            if(tmp != null && !connected && !tmp.connected && tmp.conn == null) { // gossip entry: just renew it
+                tmp.update();
+                return;
+            }
+            if(tmp != null && !connected && (tmp.conn != null || tmp.connected))
+                return; // a gossip registration doesn't replace the entry of a connected client
+            mbrs.put(logical_addr, new AddressEntry(logical_addr, null, null, peer, connected));
+            old=tmp;
+        }
+        if(old != null)
+            old.destroy();
+    }
+
+
+    /**
+     * Removes the entry for logical_addr if it was registered by peer. Entries of clients connected to us, or
+     * registered by a different peer (e.g. because the client failed over to it), are left alone
+     */
+    private void removeRemoteEntry(String groupname, Address logical_addr, Connection peer) {
+        Map val=(Map)routingTable.get(groupname);
         if(val == null)
             return;
         synchronized(val) {
             AddressEntry entry=(AddressEntry)val.get(logical_addr);
-            if(entry != null) {
-                entry.destroy();
+            if(entry != null && entry.conn == null && entry.peer == peer)
                 val.remove(logical_addr);
+        }
+    }
+
+
+    /** Removes all entries which were registered by a peer, called when the connection from the peer is closed */
+    private void removePeerEntries(Connection peer) {
+        Map val;
+        AddressEntry entry;
+        int num_removed=0;
+        for(Iterator it=routingTable.values().iterator(); it.hasNext();) {
+            val=(Map)it.next();
+            synchronized(val) {
+                for(Iterator it2=val.values().iterator(); it2.hasNext();) {
+                    entry=(AddressEntry)it2.next();
+                    if(entry.peer == peer) {
+                        it2.remove();
+                        num_removed++;
+                    }
+                }
+            }
+        }
+        if(num_removed > 0 && log.isTraceEnabled())
+            log.trace("removed " + num_removed + " entries registered by peer " + peer.peer_router);
+    }
+
+
+    private void replicateRegister(String groupname, Address logical_addr, boolean connected) {
+        if(!peer_links.isEmpty())
+            sendToAllPeers(encodeRegistration(FRAME_PEER_REGISTER, groupname, logical_addr, connected));
+    }
+
+    private void replicateUnregister(String groupname, Address logical_addr) {
+        if(!peer_links.isEmpty())
+            sendToAllPeers(encodeRegistration(FRAME_PEER_UNREGISTER, groupname, logical_addr, false));
+    }
+
+
+    /** Writes all entries of local clients to a peer, called when we (re)connect to the peer */
+    private void writeLocalEntries(DataOutputStream out) throws IOException {
+        Map.Entry entry;
+        Map val;
+        AddressEntry ae;
+        for(Iterator it=routingTable.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            val=(Map)entry.getValue();
+            for(Iterator it2=val.values().iterator(); it2.hasNext();) {
+                ae=(AddressEntry)it2.next();
+                if(ae.peer == null)
+                    out.write(encodeRegistration(FRAME_PEER_REGISTER, (String)entry.getKey(), ae.logical_addr,
+                                                 ae.conn != null));
             }
         }
     }
 
 
+    private void startPeerLinks() throws IOException {
+        if(peers == null)
+            return;
+        IpAddress addr;
+        for(Iterator it=peers.iterator(); it.hasNext();) {
+            addr=(IpAddress)it.next();
+            if(isSelf(addr) || peer_links.containsKey(addr))
+                continue;
+            PeerLink link=new PeerLink(addr);
+            peer_links.put(addr, link);
+            link.start();
+        }
+    }
+
+    private void stopPeerLinks() {
+        for(Iterator it=peer_links.values().iterator(); it.hasNext();)
+            ((PeerLink)it.next()).stop();
+        peer_links.clear();
+    }
+
+
+    /** Returns true if addr is the address we're listening on, so the same list of peers can be used for all routers */
+    private boolean isSelf(IpAddress addr) throws IOException {
+        if(addr.getPort() != port)
+            return false;
+        InetAddress tmp=addr.getIpAddress();
+        if(bindAddress != null && !bindAddress.isAnyLocalAddress())
+            return bindAddress.equals(tmp);
+        return tmp.isLoopbackAddress() || tmp.isAnyLocalAddress() || NetworkInterface.getByInetAddress(tmp) != null;
+    }
+
+
+    /** Parses a list of routers, e.g. "host1[12001],host2[12001]". Returns a List<IpAddress> */
+    public static List parsePeers(String s) throws UnknownHostException {
+        List retval=new ArrayList();
+        StringTokenizer tok=new StringTokenizer(s, ",");
+        String t, host;
+        int port;
+        while(tok.hasMoreTokens()) {
+            t=tok.nextToken().trim();
+            host=t.substring(0, t.indexOf('['));
+            port=Integer.parseInt(t.substring(t.indexOf('[') + 1, t.indexOf(']')));
+            retval.add(new IpAddress(host, port));
+        }
+        return retval;
+    }
+
+
     /**
      * @return null if not found
      */
@@ -683,91 +1138,60 @@ public class GossipRouter {
 
 
 
-    private void sendToAllMembersInGroup(String groupname, byte[] msg, Address sender) {
+    /** Adds the (shared) buffer to the write queues of all connected members of the group */
+    private void sendToAllMembersInGroup(String groupname, ByteBuffer buf) {
         Map val;
         val=(Map)routingTable.get(groupname);
         if(val == null || val.isEmpty())
             return;
 
-        Map.Entry tmp;
         AddressEntry entry;
-        synchronized(val) {
-            for(Iterator i=val.entrySet().iterator(); i.hasNext();) {
-                tmp=(Map.Entry)i.next();
-                entry=(GossipRouter.AddressEntry)tmp.getValue();
-                DataOutputStream dos=entry.output;
-
-                if(dos != null) {
-                    // send only to 'connected' members
-                    try {
-                        sendToMember(null, dos, msg, sender);
-                    }
-                    catch(Exception e) {
-                        if(log.isWarnEnabled()) log.warn("cannot send to " + entry.logical_addr + ": " + e.getMessage());
-                        entry.destroy(); // this closes the socket
-                        i.remove();
-                    }
-                }
-            }
+        for(Iterator i=val.values().iterator(); i.hasNext();) {
+            entry=(GossipRouter.AddressEntry)i.next();
+            if(entry.conn != null) // send only to 'connected' members
+                entry.conn.send(buf);
         }
     }
 
 
-    /**
-     * @throws IOException
-     */
-    private void sendToMember(Address dest, DataOutputStream out, byte[] msg, Address sender) throws IOException {
-        if(out == null)
-            return;
-
-        if(discard_loopbacks && dest != null && dest.equals(sender)) {
-            return;
-        }
-
-        synchronized(out) {
-            Util.writeAddress(dest, out);
-            out.writeInt(msg.length);
-            out.write(msg, 0, msg.length);
-        }
-    }
-
 
     /**
      * Class used to store Addresses in both routing and gossip tables.
-     * If it is used for routing, sock and output have valid values, otherwise
-     * they're null and only the timestamp counts.
+     * If it is used for routing, conn is the connection to the client, otherwise
+     * it is null and only the timestamp counts. Entries registered by a peer have a null conn, but a non-null peer
+     * (the connection from the peer); connected is true if the client is connected to the peer.
      */
     class AddressEntry {
         Address logical_addr=null, physical_addr=null;
-        Socket sock=null;
-        DataOutputStream output=null;
+        final Connection conn;
+        final Connection peer;
+        final boolean connected;
         long timestamp=0;
-        final SocketThread thread;
 
         /**
          * AddressEntry for a 'gossip' membership.
          */
         public AddressEntry(Address addr) {
-            this(addr, null, null, null, null);
+            this(addr, null, null);
+        }
+
+        public AddressEntry(Address logical_addr, Address physical_addr, Connection conn) {
+            this(logical_addr, physical_addr, conn, null, false);
         }
 
-        public AddressEntry(Address logical_addr, Address physical_addr, Socket sock, SocketThread thread, DataOutputStream output) {
+        public AddressEntry(Address logical_addr, Address physical_addr, Connection conn, Connection peer,
+                            boolean connected) {
             this.logical_addr=logical_addr;
             this.physical_addr=physical_addr;
-            this.sock=sock;
-            this.thread=thread;
-            this.output=output;
+            this.conn=conn;
+            this.peer=peer;
+            this.connected=connected;
             this.timestamp=System.currentTimeMillis();
         }
 
         void destroy() {
-            if(thread != null) {
-                thread.finish();
-            }
-            Util.close(output);
-            output=null;
-            Util.close(sock);
-            sock=null;
+            if(conn != null)
+                conn.close();
             timestamp=0;
         }
 
@@ -782,10 +1206,10 @@ public class GossipRouter {
         public String toString() {
             StringBuffer sb=new StringBuffer("logical addr=");
             sb.append(logical_addr).append(" (").append(physical_addr).append(")");
-            //if(sock != null) {
-              //  sb.append(", sock=");
-                //sb.append(sock);
-            //}
+            if(conn != null)
+                sb.append(", queued=").append(conn.getQueueSize());
+            if(peer != null)
+                sb.append(", via ").append(peer.peer_router).append(connected? " (connected)" : "");
             if(timestamp > 0) {
                 long diff=System.currentTimeMillis() - timestamp;
                 sb.append(", ").append(diff).append(" ms old");
@@ -795,82 +1219,681 @@ public class GossipRouter {
     }
 
 
-    private static int threadCounter=0;
-
 
     /**
-     * A SocketThread manages one connection to a client. Its main task is message routing.
+     * A connection to a client. Reads are done by the I/O thread which owns the connection; writes can be queued by
+     * any thread, but are performed by the I/O thread only.
      */
-    class SocketThread extends Thread {
-        private volatile boolean active=true;
-        Socket sock=null;
-        DataInputStream input=null;
-        Address logical_addr=null;
-        String group_name=null;
-
-
-        public SocketThread(Socket sock, DataInputStream ois, String group_name, Address logical_addr) {
-            super(Util.getGlobalThreadGroup(), "SocketThread " + (threadCounter++));
-            this.sock=sock;
-            input=ois;
-            this.group_name=group_name;
-            this.logical_addr=logical_addr;
+    class Connection {
+        final SocketChannel channel;
+        final IOThread      handler;
+        SelectionKey        key=null;
+
+        /** Heap buffer, accumulates bytes until a complete request or message can be parsed */
+        ByteBuffer          read_buf=ByteBuffer.allocate(8192);
+
+        /** List<ByteBuffer> of buffers to be written. The buffers may be shared with other connections */
+        final LinkedList    write_queue=new LinkedList();
+        boolean             write_scheduled=false;
+        boolean             close_after_write=false;
+        boolean             closed=false;
+
+        /** Set by CONNECT: from then on, the client sends messages to be routed */
+        String              group_name=null;
+        Address             logical_addr=null;
+
+        /** Set by CONNECT_BUNDLED: the client sends frames (see FRAME_MSGS) */
+        boolean             bundled=false;
+
+        /** Set by PEER_CONNECT: the address of the router on the other side, which sends peer frames */
+        Address             peer_router=null;
+
+
+        Connection(SocketChannel channel, IOThread handler) {
+            this.channel=channel;
+            this.handler=handler;
         }
 
-        void closeSocket() {
-            Util.close(input);
-            Util.close(sock);
+        boolean isRouting() {
+            return logical_addr != null;
         }
 
-        void finish() {
-            active=false;
+        synchronized int getQueueSize() {
+            return write_queue.size();
         }
 
 
-        public void run() {
-            byte[] buf;
-            int len;
-            Address dst_addr=null;
-            String gname;
+        /** Queues a (possibly shared) buffer for writing. The buffer's content must not be modified afterwards */
+        void send(ByteBuffer buf) {
+            boolean disconnect=false, schedule=false;
+            synchronized(this) {
+                if(closed || close_after_write)
+                    return;
+                if(write_queue.size() >= max_queue_size) {
+                    if(QUEUE_POLICY_DISCONNECT.equals(queue_policy))
+                        disconnect=true;
+                    else {
+                        num_msgs_dropped.incrementAndGet();
+                        return;
+                    }
+                }
+                else {
+                    write_queue.add(buf.duplicate()); // own position and limit, shared content
+                    if(!write_scheduled) {
+                        write_scheduled=true;
+                        schedule=true;
+                    }
+                }
+            }
+            if(disconnect) {
+                if(log.isWarnEnabled())
+                    log.warn("write queue of " + logical_addr + " is full (" + max_queue_size + " messages), disconnecting it");
+                num_clients_disconnected.incrementAndGet();
+                removeEntry(group_name, logical_addr, this);
+                close();
+                return;
+            }
+            if(schedule)
+                handler.scheduleWrite(this);
+        }
+
+
+        /** Sends a response to a request and closes the connection once it has been written */
+        void sendAndClose(GossipData rsp) throws IOException {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
+            DataOutputStream out=new DataOutputStream(out_stream);
+            rsp.writeTo(out);
+            out.flush();
+            send(ByteBuffer.wrap(out_stream.getRawBuffer(), 0, out_stream.size()));
+            synchronized(this) {
+                close_after_write=true;
+            }
+        }
+
+        void sendAndClose(String rsp) throws IOException {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(rsp.length() + 2);
+            DataOutputStream out=new DataOutputStream(out_stream);
+            out.writeUTF(rsp);
+            out.flush();
+            send(ByteBuffer.wrap(out_stream.getRawBuffer(), 0, out_stream.size()));
+            synchronized(this) {
+                close_after_write=true;
+            }
+        }
+
+
+        /** Called by the I/O thread when the channel is readable */
+        void read() throws IOException {
+            int num=channel.read(read_buf);
+            if(num < 0) {
+                if(log.isTraceEnabled())
+                    log.trace(channel.socket().getRemoteSocketAddress() + " closed connection" +
+                              (isRouting()? "; removing it from routing table" : ""));
+                close();
+                return;
+            }
+            read_buf.flip();
+            boolean more=true;
+            while(more && read_buf.hasRemaining() && !closed) {
+                more=parse();
+            }
+            read_buf.compact();
+            if(!read_buf.hasRemaining()) { // a request or message is larger than the buffer
+                int max_size=max_msg_size + MAX_HEADER_SIZE;
+                if(read_buf.capacity() >= max_size)
+                    throw new IOException(channel.socket().getRemoteSocketAddress() + " sent a request or message " +
+                            "larger than " + max_size + " bytes");
+                ByteBuffer tmp=ByteBuffer.allocate(Math.min(read_buf.capacity() * 2, max_size));
+                read_buf.flip();
+                tmp.put(read_buf);
+                read_buf=tmp;
+            }
+        }
+
+
+        /**
+         * Parses one request or message from read_buf. If it is incomplete, read_buf is left unchanged
+         * @return True if a request or message was consumed and more can be parsed, false otherwise
+         */
+        private boolean parse() throws IOException {
+            byte[] buf=read_buf.array();
+            int offset=read_buf.arrayOffset() + read_buf.position(), length=read_buf.remaining();
+            ByteArrayInputStream in_stream=new ByteArrayInputStream(buf, offset, length);
+            DataInputStream in=new DataInputStream(in_stream);
+            try {
+                if(peer_router != null)
+                    return parsePeerFrame(in, in_stream, offset, length);
+
+                if(!isRouting()) {
+                    GossipData req=new GossipData();
+                    req.readFrom(in);
+                    read_buf.position(read_buf.position() + length - in_stream.available());
+                    return handleRequest(this, req);
+                }
+
+                if(bundled)
+                    return parseFrame(in, in_stream, offset, length);
+
+                // 1. Group name is first
+                String gname=in.readUTF();
+
+                // 2. Second is the destination address
+                Address dst_addr=Util.readAddress(in);
+
+                // 3. Then the length of the byte buffer representing the message
+                int len=in.readInt();
+                checkLength(len, length - in_stream.available(), logical_addr);
+                if(in_stream.available() < len)
+                    return false;
+
+                // 4. Finally the message itself, which is routed directly from the read buffer
+                int msg_offset=offset + length - in_stream.available();
+                read_buf.position(read_buf.position() + length - in_stream.available() + len);
+                if(len == 0) {
+                    if(log.isWarnEnabled()) log.warn("received null message");
+                    return true;
+                }
+                try {
+                    route(dst_addr, gname, buf, new int[]{msg_offset}, new int[]{len}, 1, logical_addr, true);
+                }
+                catch(Exception e) {
+                    if(log.isErrorEnabled()) log.error("failed routing request to " + dst_addr, e);
+                }
+                return true;
+            }
+            catch(EOFException incomplete) {
+                return false;
+            }
+            catch(IOException ex) {
+                throw ex;
+            }
+            catch(Exception ex) {
+                throw new IOException("failed reading request: " + ex);
+            }
+        }
 
-            while(active) {
+
+        /** Parses a frame sent on a CONNECT_BUNDLED connection. If it is incomplete, read_buf is left unchanged */
+        private boolean parseFrame(DataInputStream in, ByteArrayInputStream in_stream, int offset, int length) throws Exception {
+            byte type=in.readByte();
+            if(type == FRAME_DISCONNECT) {
+                if(log.isTraceEnabled())
+                    log.trace("DISCONNECT(" + group_name + ", " + logical_addr + ")");
+                read_buf.position(read_buf.position() + 1);
+                close();
+                return false;
+            }
+            if(type != FRAME_MSGS)
+                throw new IOException("received unknown frame type " + type + " from " + logical_addr);
+
+            Address dst_addr=Util.readAddress(in);
+            int num=in.readInt();
+            if(num < 0 || num > max_msg_size / Global.INT_SIZE)
+                throw new IOException("received invalid number of messages (" + num + ") from " + logical_addr);
+            byte[] buf=read_buf.array();
+            int[] offsets=new int[num], lengths=new int[num];
+            int len;
+            for(int i=0; i < num; i++) {
+                len=in.readInt();
+                checkLength(len, length - in_stream.available(), logical_addr);
+                if(in_stream.available() < len)
+                    return false;
+                offsets[i]=offset + length - in_stream.available();
+                lengths[i]=len;
+                in.skipBytes(len);
+            }
+            read_buf.position(read_buf.position() + length - in_stream.available());
+            if(num > 0) {
                 try {
-                    // 1. Group name is first
-                    gname=input.readUTF();
+                    route(dst_addr, group_name, buf, offsets, lengths, num, logical_addr, true);
+                }
+                catch(Exception e) {
+                    if(log.isErrorEnabled()) log.error("failed routing request to " + dst_addr, e);
+                }
+            }
+            return true;
+        }
 
-                    // 2. Second is the destination address
-                    dst_addr=Util.readAddress(input);
 
-                    // 3. Then the length of the byte buffer representing the message
-                    len=input.readInt();
-                    if(len == 0) {
-                        if(log.isWarnEnabled()) log.warn("received null message");
-                        continue;
+        /**
+         * Throws an exception (closing the connection) if the length of a message is negative, or if the message
+         * (preceded by parsed bytes of its request or frame) wouldn't fit into the largest read buffer
+         */
+        private void checkLength(int len, int parsed, Object sender) throws IOException {
+            if(len < 0 || len > max_msg_size || parsed + (long)len > max_msg_size + MAX_HEADER_SIZE) {
+                if(log.isWarnEnabled())
+                    log.warn("received invalid message length (" + len + ") from " + sender + ", closing connection");
+                throw new IOException("received invalid message length (" + len + ") from " + sender);
+            }
+        }
+
+
+        /** Parses a frame sent by a peer. If it is incomplete, read_buf is left unchanged */
+        private boolean parsePeerFrame(DataInputStream in, ByteArrayInputStream in_stream, int offset, int length) throws Exception {
+            byte type=in.readByte();
+            String group=in.readUTF();
+            Address addr=Util.readAddress(in);
+            switch(type) {
+                case FRAME_PEER_REGISTER:
+                    boolean connected=in.readBoolean();
+                    read_buf.position(read_buf.position() + length - in_stream.available());
+                    if(log.isTraceEnabled())
+                        log.trace("PEER_REGISTER(" + group + ", " + addr + ", connected=" + connected + ") from " + peer_router);
+                    addRemoteEntry(group, addr, connected, this);
+                    return true;
+
+                case FRAME_PEER_UNREGISTER:
+                    read_buf.position(read_buf.position() + length - in_stream.available());
+                    if(log.isTraceEnabled())
+                        log.trace("PEER_UNREGISTER(" + group + ", " + addr + ") from " + peer_router);
+                    removeRemoteEntry(group, addr, this);
+                    return true;
+
+                case FRAME_PEER_MSGS:
+                    int num=in.readInt();
+                    if(num < 0 || num > max_msg_size / Global.INT_SIZE)
+                        throw new IOException("received invalid number of messages (" + num + ") from " + peer_router);
+                    byte[] buf=read_buf.array();
+                    int[] offsets=new int[num], lengths=new int[num];
+                    int len;
+                    for(int i=0; i < num; i++) {
+                        len=in.readInt();
+                        checkLength(len, length - in_stream.available(), peer_router);
+                        if(in_stream.available() < len)
+                            return false;
+                        offsets[i]=offset + length - in_stream.available();
+                        lengths[i]=len;
+                        in.skipBytes(len);
                     }
+                    read_buf.position(read_buf.position() + length - in_stream.available());
+                    if(num > 0) {
+                        try {
+                            route(addr, group, buf, offsets, lengths, num, null, false);
+                        }
+                        catch(Exception e) {
+                            if(log.isErrorEnabled()) log.error("failed routing request to " + addr, e);
+                        }
+                    }
+                    return true;
+
+                default:
+                    throw new IOException("received unknown frame type " + type + " from peer " + peer_router);
+            }
+        }
+
 
-                    // 4. Finally the message itself, as a byte buffer
-                    buf=new byte[len];
-                    input.readFully(buf, 0, buf.length);  // message
+        /**
+         * Called by the I/O thread when the channel is writable. Writes as many queued buffers as possible (gathering
+         * write)
+         * @return True if all queued buffers have been written
+         */
+        boolean write() throws IOException {
+            ByteBuffer[] bufs;
+            boolean close;
+            synchronized(this) {
+                if(write_queue.isEmpty()) {
+                    write_scheduled=false;
+                    close=close_after_write;
                 }
-                catch(Exception io_ex) {
-                    if(log.isTraceEnabled())
-                        log.trace(sock.getInetAddress().getHostName() + ':' + sock.getPort() +
-                                " closed connection; removing it from routing table");
-                    removeEntry(group_name, logical_addr); // will close socket
+                else {
+                    bufs=(ByteBuffer[])write_queue.toArray(new ByteBuffer[write_queue.size()]);
+                    channel.write(bufs);
+                    while(!write_queue.isEmpty() && !((ByteBuffer)write_queue.getFirst()).hasRemaining())
+                        write_queue.removeFirst();
+                    if(!write_queue.isEmpty())
+                        return false;
+                    write_scheduled=false;
+                    close=close_after_write;
+                }
+            }
+            if(close)
+                close();
+            return true;
+        }
+
+
+        void close() {
+            synchronized(this) {
+                if(closed)
                     return;
+                closed=true;
+                write_queue.clear();
+            }
+            if(key != null)
+                key.cancel();
+            closeChannel(channel);
+            handler.connectionClosed(this);
+            if(isRouting())
+                removeEntry(group_name, logical_addr, this);
+            if(peer_router != null)
+                removePeerEntries(this);
+        }
+
+        public String toString() {
+            return channel.socket().getRemoteSocketAddress() + (isRouting()? " (" + logical_addr + ")" :
+                    peer_router != null? " (peer " + peer_router + ")" : "");
+        }
+    }
+
+
+
+    /**
+     * Connection to a peer, used to send registrations and forwarded messages. Frames are queued and written by a
+     * separate thread, which also (re)connects to the peer; whenever the connection is established, all local
+     * entries are sent first. Frames queued while we're not connected are discarded, and if the queue is full, the
+     * connection is closed and re-established (the peer then discards and receives all of our entries again). The
+     * peer never sends anything on this connection, so a reader thread detects when the peer closes it (e.g. because
+     * it was stopped) and we start reconnecting
+     */
+    class PeerLink implements Runnable {
+        final IpAddress          addr;
+        final BoundedLinkedQueue queue=new BoundedLinkedQueue(max_queue_size);
+        volatile Socket          sock=null;
+        DataOutputStream         out=null;  // only accessed by the PeerLink thread
+        volatile boolean         connected=false, resync=false;
+        Thread                   thread=null;
+
+        PeerLink(IpAddress addr) {
+            this.addr=addr;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        synchronized void start() {
+            if(thread == null || !thread.isAlive()) {
+                thread=new Thread(Util.getGlobalThreadGroup(), this, "GossipRouter.PeerLink-" + addr);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null)
+                tmp.interrupt();
+            // only close the socket, which makes a blocked write fail; the PeerLink thread closes the stream on exit
+            connected=false;
+            Util.close(sock);
+        }
+
+        void send(byte[] frame) {
+            if(!connected || resync)
+                return;
+            try {
+                if(!queue.offer(frame, 0)) {
+                    if(log.isWarnEnabled())
+                        log.warn("queue to peer " + addr + " is full (" + max_queue_size +
+                                 " frames), reconnecting to resynchronize");
+                    resync=true;
                 }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
+        public void run() {
+            Object frame;
+            DataOutputStream tmp;
+            while(thread != null && Thread.currentThread().equals(thread)) {
                 try {
-                    route(dst_addr, gname, buf, logical_addr);
+                    if(!connected || resync) {
+                        closeSocket();
+                        if(!connect()) {
+                            Util.sleep(peer_reconnect_interval);
+                            continue;
+                        }
+                    }
+                    frame=queue.poll(1000);
+                    if(frame == null)
+                        continue;
+                    tmp=out;
+                    do {
+                        tmp.write((byte[])frame);
+                        frame=queue.poll(0);
+                    }
+                    while(frame != null);
+                    tmp.flush();
                 }
-                catch(Exception e) {
-                    if(log.isErrorEnabled()) log.error("failed routing request to " + dst_addr, e);
+                catch(InterruptedException e) {
                     break;
                 }
+                catch(IOException e) {
+                    if(log.isWarnEnabled() && thread != null)
+                        log.warn("connection to peer " + addr + " failed: " + e);
+                    connected=false;
+                }
             }
             closeSocket();
         }
 
+        private boolean connect() throws InterruptedException {
+            try {
+                sock=new Socket();
+                if(bindAddress != null && !bindAddress.isAnyLocalAddress())
+                    sock.bind(new InetSocketAddress(bindAddress, 0));
+                sock.connect(new InetSocketAddress(addr.getIpAddress(), addr.getPort()), (int)peer_reconnect_interval);
+                sock.setTcpNoDelay(true);
+                out=new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 65536));
+                startReader(sock);
+                // we're identified by the address we connect from and the port we listen on
+                GossipData req=new GossipData(PEER_CONNECT, null, new IpAddress(sock.getLocalAddress(), port), null);
+                req.writeTo(out);
+                while(queue.poll(0) != null)
+                    ;
+                resync=false;
+                connected=true; // frames queued from now on are sent after our entries
+                writeLocalEntries(out);
+                out.flush();
+                if(log.isInfoEnabled()) log.info("connected to peer " + addr);
+                return true;
+            }
+            catch(IOException e) {
+                if(log.isTraceEnabled()) log.trace("failed connecting to peer " + addr + ": " + e);
+                closeSocket();
+                return false;
+            }
+        }
+
+        private void startReader(final Socket s) {
+            Thread reader=new Thread(Util.getGlobalThreadGroup(), new Runnable() {
+                public void run() {
+                    try {
+                        InputStream in=s.getInputStream();
+                        while(in.read() != -1)
+                            ;
+                    }
+                    catch(IOException e) {
+                    }
+                    synchronized(PeerLink.this) {
+                        if(sock == s && connected) {
+                            if(log.isWarnEnabled() && thread != null)
+                                log.warn("peer " + addr + " closed the connection");
+                            connected=false;
+                        }
+                    }
+                }
+            }, "GossipRouter.PeerLink.Reader-" + addr);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Called by the PeerLink thread only */
+        private void closeSocket() {
+            connected=false;
+            Util.close(out);
+            Util.close(sock);
+            out=null;
+            sock=null;
+        }
+
+        public String toString() {
+            return addr + (connected? " (connected)" : " (not connected)");
+        }
+    }
+
+
+
+    /**
+     * An I/O thread multiplexes a number of client connections using a selector: it reads and routes requests and
+     * messages, and writes the queued buffers to the clients.
+     */
+    class IOThread extends Thread {
+        private final Selector selector;
+        private volatile boolean running=true;
+
+        /** List<Connection>: new connections to be registered with the selector */
+        private final List pending_registrations=new LinkedList();
+
+        /** List<Connection>: connections which have data to be written */
+        private final List pending_writes=new LinkedList();
+
+        private int num_connections=0;
+
+
+        IOThread(int id) throws IOException {
+            super(Util.getGlobalThreadGroup(), "GossipRouter.IOThread-" + id);
+            setDaemon(true);
+            selector=Selector.open();
+        }
+
+        synchronized int getNumberOfConnections() {
+            return num_connections;
+        }
+
+        void register(Connection conn) {
+            synchronized(this) {
+                pending_registrations.add(conn);
+                num_connections++;
+            }
+            selector.wakeup();
+        }
+
+        synchronized void connectionClosed(Connection conn) {
+            num_connections=Math.max(0, num_connections -1);
+        }
+
+        /** Makes sure the connection is selected for writing */
+        void scheduleWrite(Connection conn) {
+            if(Thread.currentThread() == this) {
+                enableWrite(conn);
+                return;
+            }
+            synchronized(this) {
+                pending_writes.add(conn);
+            }
+            selector.wakeup();
+        }
+
+        void finish() {
+            running=false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            SelectionKey key;
+            Connection conn;
+            while(running) {
+                try {
+                    selector.select();
+                    processPendingRequests();
+                    for(Iterator it=selector.selectedKeys().iterator(); it.hasNext();) {
+                        key=(SelectionKey)it.next();
+                        it.remove();
+                        conn=(Connection)key.attachment();
+                        try {
+                            if(key.isValid() && key.isReadable())
+                                conn.read();
+                            if(key.isValid() && key.isWritable()) {
+                                if(conn.write())
+                                    disableWrite(conn);
+                            }
+                        }
+                        catch(CancelledKeyException ex) {
+                            conn.close();
+                        }
+                        catch(IOException ex) {
+                            if(log.isTraceEnabled())
+                                log.trace("closing connection " + conn + ": " + ex);
+                            conn.close();
+                        }
+                    }
+                }
+                catch(ClosedSelectorException ex) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running && log.isErrorEnabled())
+                        log.error("failure in I/O thread", t);
+                }
+            }
+
+            for(Iterator it=selector.keys().iterator(); it.hasNext();) {
+                key=(SelectionKey)it.next();
+                ((Connection)key.attachment()).close();
+            }
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+
+        private void processPendingRequests() {
+            List regs, writes;
+            synchronized(this) {
+                if(pending_registrations.isEmpty() && pending_writes.isEmpty())
+                    return;
+                regs=new ArrayList(pending_registrations);
+                writes=new ArrayList(pending_writes);
+                pending_registrations.clear();
+                pending_writes.clear();
+            }
+            Connection conn;
+            for(Iterator it=regs.iterator(); it.hasNext();) {
+                conn=(Connection)it.next();
+                try {
+                    conn.key=conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                }
+                catch(IOException ex) {
+                    conn.close();
+                }
+            }
+            for(Iterator it=writes.iterator(); it.hasNext();) {
+                enableWrite((Connection)it.next());
+            }
+        }
+
+
+        private void enableWrite(Connection conn) {
+            SelectionKey key=conn.key;
+            if(key == null) { // not yet registered: try again after the registration
+                synchronized(this) {
+                    pending_writes.add(conn);
+                }
+                return;
+            }
+            try {
+                if(key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            catch(CancelledKeyException ex) {
+            }
+        }
+
+        private void disableWrite(Connection conn) {
+            SelectionKey key=conn.key;
+            try {
+                if(key != null && key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            catch(CancelledKeyException ex) {
+            }
+        }
     }
 
 
@@ -882,6 +1905,8 @@ public class GossipRouter {
         long routingTimeout=GossipRouter.ROUTING_CLIENT_REPLY_TIMEOUT;
         GossipRouter router=null;
         String bind_addr=null;
+        int io_threads=IO_THREADS, max_queue_size=MAX_QUEUE_SIZE, max_msg_size=MAX_MSG_SIZE;
+        String queue_policy=QUEUE_POLICY_DROP, peers=null;
 
         for(int i=0; i < args.length; i++) {
             arg=args[i];
@@ -905,6 +1930,26 @@ public class GossipRouter {
                 routingTimeout=Long.parseLong(args[++i]);
                 continue;
             }
+            if("-io_threads".equals(arg)) {
+                io_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-max_queue_size".equals(arg)) {
+                max_queue_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-max_msg_size".equals(arg)) {
+                max_msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-queue_policy".equals(arg)) {
+                queue_policy=args[++i];
+                continue;
+            }
+            if("-peers".equals(arg)) {
+                peers=args[++i];
+                continue;
+            }
             help();
             return;
         }
@@ -913,6 +1958,12 @@ public class GossipRouter {
         try {
             ClassConfigurator.getInstance(true);
             router=new GossipRouter(port, bind_addr, expiry, timeout, routingTimeout);
+            router.setIOThreads(io_threads);
+            router.setMaxQueueSize(max_queue_size);
+            router.setMaxMessageSize(max_msg_size);
+            router.setQueuePolicy(queue_policy);
+            if(peers != null)
+                router.setPeers(peers);
             router.start();
         }
         catch(Exception e) {
@@ -929,6 +1980,12 @@ public class GossipRouter {
         System.out.println("                            a gossip request after connection was established;");
         System.out.println("                            upon expiration, the router initiates the routing");
         System.out.println("                            protocol on the connection.");
+        System.out.println("        -io_threads <num> - Number of threads reading from and writing to clients.");
+        System.out.println("        -max_queue_size <num> - Max number of messages queued for a client.");
+        System.out.println("        -max_msg_size <bytes> - Max size of a message or bundle; larger ones close the connection.");
+        System.out.println("        -queue_policy <drop | disconnect> - What to do when the queue of a client is full.");
+        System.out.println("        -peers <host[port],host[port]...> - The routers of the cluster (our own address");
+        System.out.println("                            is skipped, so all routers can use the same list).");
     }
 
 
@@ -0,0 +1,61 @@
+package org.jgroups.stack;
+
+import org.jgroups.util.Histogram;
+
+/**
+ * Latency histograms of a protocol, recorded for the messages it handles when instrumentation is enabled (property
+ * instrument=true, {@link Protocol#setInstrumented(boolean)} or {@link ProtocolStack#setInstrumented(boolean)}):
+ * <ul>
+ * <li>up time and down time: the time spent in up() and down(). If the protocol passes the message on to the
+ * next protocol on the same thread, the time spent in that protocol is not included if it is instrumented as well,
+ * so the times of all protocols of an instrumented stack add up to the time a message spends in the stack
+ * <li>up queue time and down queue time: the time messages wait in the up and down queue, if the protocol has
+ * an up or down thread
+ * </ul>
+ * @version $Id$
+ */
+public class Instrumentation {
+    final Histogram up_time=new Histogram();
+    final Histogram down_time=new Histogram();
+    final Histogram up_queue_time=new Histogram();
+    final Histogram down_queue_time=new Histogram();
+
+    /** The time spent in nested calls to instrumented protocols by the current thread (see Protocol.callUp()) */
+    private static final ThreadLocal nested=new ThreadLocal() {
+        protected Object initialValue() {
+            return new long[1];
+        }
+    };
+
+
+    public Histogram getUpTime() {return up_time;}
+    public Histogram getDownTime() {return down_time;}
+    public Histogram getUpQueueTime() {return up_queue_time;}
+    public Histogram getDownQueueTime() {return down_queue_time;}
+
+    public void reset() {
+        up_time.reset();
+        down_time.reset();
+        up_queue_time.reset();
+        down_queue_time.reset();
+    }
+
+    /** Prints the histograms which have values */
+    public String toString() {
+        StringBuffer sb=new StringBuffer();
+        print(sb, "up", up_time);
+        print(sb, "up queue", up_queue_time);
+        print(sb, "down", down_time);
+        print(sb, "down queue", down_queue_time);
+        return sb.toString();
+    }
+
+    private static void print(StringBuffer sb, String name, Histogram h) {
+        if(h.getCount() > 0)
+            sb.append(name).append(": ").append(h).append('\n');
+    }
+
+    static long[] nested() {
+        return (long[])nested.get();
+    }
+}
@@ -6,6 +6,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.Address;
 import org.jgroups.Global;
+import org.jgroups.util.AddressTable;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -264,7 +265,44 @@ public class IpAddress implements Address {
             this.ip_addr=InetAddress.getByAddress(a);
         }
         port=in.readInt();
+        readAdditionalData(in);
+    }
+
+    /**
+     * Reads an address written by {@link #writeTo(java.io.DataOutputStream)}. If it is an IPv4 address of a member
+     * of table, the member's instance is returned, and no objects are created
+     * @param table The members to resolve the address against. May be null
+     */
+    public static IpAddress readFrom(DataInputStream in, AddressTable table) throws IOException {
+        IpAddress retval;
+        int len=in.readByte();
+        if(len == 4 && table != null) {
+            int ip=in.readInt(), port=in.readInt();
+            Address mbr=table.lookup(ip, port);
+            if(mbr instanceof IpAddress) {
+                if(in.readBoolean())
+                    in.skipBytes(in.readShort());
+                return (IpAddress)mbr;
+            }
+            retval=new IpAddress();
+            retval.ip_addr=InetAddress.getByAddress(new byte[]{(byte)(ip >>> 24), (byte)(ip >>> 16), (byte)(ip >>> 8), (byte)ip});
+            retval.port=port;
+        }
+        else {
+            retval=new IpAddress();
+            if(len > 0) {
+                byte[] a=new byte[len];
+                in.readFully(a);
+                retval.ip_addr=InetAddress.getByAddress(a);
+            }
+            retval.port=in.readInt();
+        }
+        retval.readAdditionalData(in);
+        return retval;
+    }
 
+    private void readAdditionalData(DataInputStream in) throws IOException {
+        int len;
         if(in.readBoolean() == false)
             return;
         len=in.readShort();
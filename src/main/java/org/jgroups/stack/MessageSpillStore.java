@@ -0,0 +1,306 @@
+// $Id$
+
+package org.jgroups.stack;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jgroups.Message;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Append-only, memory-mapped overflow store for messages which have to be kept for retransmission, but which
+ * exceed the byte budget of a retransmission buffer (NakReceiverWindow.delivered_msgs or NAKACK.sent_msgs).
+ * Messages are marshalled with {@link Message#writeTo(java.io.DataOutputStream)} and appended to fixed-size segment
+ * files; an in-memory index maps seqnos to the location of the record. Segments are deleted as soon as all
+ * messages in them have become stable (see {@link #removeUpTo(long)}).<p/>
+ * Files are created lazily, on the first {@link #put(long, Message)}, so creating an instance is cheap.
+ * Note that the destination address of a message is not written (same as for retransmission).
+ * @version $Id$
+ */
+public class MessageSpillStore {
+    public static final int DEFAULT_SEGMENT_SIZE=8 * 1024 * 1024;
+
+    private final File    dir;
+    private final String  name;
+    private final int     segment_size;
+
+    /** TreeMap<Long,Location>. Location of each spilled message, keyed (and sorted) by seqno */
+    private final TreeMap index=new TreeMap();
+
+    /** LinkedList<Segment>. All segments, the last one is the one we append to */
+    private final LinkedList segments=new LinkedList();
+
+    private int     next_segment_id=0;
+    private long    num_spilled=0, num_bytes_spilled=0, num_reads=0;
+
+    protected static final Log log=LogFactory.getLog(MessageSpillStore.class);
+
+
+    /**
+     * @param dir The directory in which segment files are created. If null, java.io.tmpdir is used
+     * @param name The name used as prefix for the segment files (e.g. the address of the sender). Characters which
+     * are not letters or digits will be replaced with '_'
+     * @param segment_size The size of a segment in bytes. If <= 0, {@link #DEFAULT_SEGMENT_SIZE} is used
+     */
+    public MessageSpillStore(File dir, String name, int segment_size) {
+        this.dir=dir != null? dir : new File(System.getProperty("java.io.tmpdir"));
+        this.name=sanitize(name);
+        this.segment_size=segment_size > 0? segment_size : DEFAULT_SEGMENT_SIZE;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized int getNumberOfSegments() {
+        return segments.size();
+    }
+
+    public synchronized long getNumSpilled() {
+        return num_spilled;
+    }
+
+    public synchronized long getNumBytesSpilled() {
+        return num_bytes_spilled;
+    }
+
+    public synchronized long getNumReads() {
+        return num_reads;
+    }
+
+    /** Returns the lowest seqno in the store, or -1 if the store is empty */
+    public synchronized long getLowest() {
+        return index.size() > 0? ((Long)index.firstKey()).longValue() : -1;
+    }
+
+    /** Returns the highest seqno in the store, or -1 if the store is empty */
+    public synchronized long getHighest() {
+        return index.size() > 0? ((Long)index.lastKey()).longValue() : -1;
+    }
+
+    public synchronized boolean contains(long seqno) {
+        return index.containsKey(new Long(seqno));
+    }
+
+
+    /**
+     * Appends a message to the current segment. If the segment is full, a new one will be created.
+     * @throws IOException If the message could not be written. In this case the store is unchanged
+     */
+    public synchronized void put(long seqno, Message msg) throws IOException {
+        ExposedByteArrayOutputStream output=new ExposedByteArrayOutputStream((int)Math.min(msg.size() + 16, Integer.MAX_VALUE));
+        DataOutputStream out=new DataOutputStream(output);
+        msg.writeTo(out);
+        out.flush();
+        int len=output.size();
+
+        Segment seg=segments.size() > 0? (Segment)segments.getLast() : null;
+        if(seg == null || seg.remaining() < len) {
+            seg=createSegment(Math.max(segment_size, len));
+            segments.add(seg);
+        }
+        int offset=seg.append(output.getRawBuffer(), 0, len);
+        Long key=new Long(seqno);
+        Location old=(Location)index.put(key, new Location(seg, offset, len));
+        if(old != null)
+            old.segment.entries--;
+        seg.entries++;
+        num_spilled++;
+        num_bytes_spilled+=len;
+    }
+
+
+    /** Returns the message with the given seqno (a new instance is unmarshalled), or null if not found */
+    public synchronized Message get(long seqno) {
+        Location loc=(Location)index.get(new Long(seqno));
+        if(loc == null)
+            return null;
+        try {
+            num_reads++;
+            return loc.read();
+        }
+        catch(Exception ex) {
+            if(log.isErrorEnabled())
+                log.error("failed reading spilled message #" + seqno + " from " + loc.segment.file, ex);
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns all messages whose seqnos are in range [from .. to[ (including from, excluding to), sorted by seqno
+     * @return List<Message>
+     */
+    public synchronized java.util.List getRange(long from, long to) {
+        java.util.List retval=new LinkedList();
+        if(from >= to)
+            return retval;
+        Map.Entry entry;
+        Message msg;
+        SortedMap m=index.subMap(new Long(from), new Long(to));
+        for(Iterator it=m.entrySet().iterator(); it.hasNext();) {
+            entry=(Map.Entry)it.next();
+            try {
+                msg=((Location)entry.getValue()).read();
+                num_reads++;
+                retval.add(msg);
+            }
+            catch(Exception ex) {
+                if(log.isErrorEnabled())
+                    log.error("failed reading spilled message #" + entry.getKey(), ex);
+            }
+        }
+        return retval;
+    }
+
+
+    /**
+     * Removes all messages <= seqno. Segments that don't contain any live messages anymore are closed and deleted
+     * @return The highest seqno removed, or -1 if nothing was removed
+     */
+    public synchronized long removeUpTo(long seqno) {
+        long retval=-1;
+        SortedMap m=index.headMap(new Long(seqno +1));
+        if(m.size() > 0) {
+            retval=((Long)m.lastKey()).longValue();
+            for(Iterator it=m.values().iterator(); it.hasNext();) {
+                ((Location)it.next()).segment.entries--;
+            }
+            m.clear();
+        }
+
+        // delete all segments without live entries; if the last one is deleted, put() will simply create a new one
+        Segment seg;
+        for(Iterator it=segments.iterator(); it.hasNext();) {
+            seg=(Segment)it.next();
+            if(seg.entries <= 0) {
+                seg.destroy();
+                it.remove();
+            }
+        }
+        return retval;
+    }
+
+
+    /** Removes all messages and deletes all segment files */
+    public synchronized void clear() {
+        index.clear();
+        for(Iterator it=segments.iterator(); it.hasNext();) {
+            ((Segment)it.next()).destroy();
+        }
+        segments.clear();
+    }
+
+
+    public synchronized String toString() {
+        StringBuffer sb=new StringBuffer();
+        sb.append('[').append(getLowest()).append(" - ").append(getHighest()).append("] (");
+        sb.append(index.size()).append(" msgs in ").append(segments.size()).append(" segments)");
+        return sb.toString();
+    }
+
+
+    private Segment createSegment(int size) throws IOException {
+        if(!dir.exists())
+            dir.mkdirs();
+        File file=new File(dir, name + "-" + System.identityHashCode(this) + "-" + next_segment_id++ + ".spill");
+        Segment seg=new Segment(file, size);
+        if(log.isTraceEnabled())
+            log.trace("created segment " + file + " (" + size + " bytes)");
+        return seg;
+    }
+
+    private static String sanitize(String s) {
+        if(s == null)
+            return "spill";
+        StringBuffer sb=new StringBuffer(s.length());
+        char c;
+        for(int i=0; i < s.length(); i++) {
+            c=s.charAt(i);
+            sb.append(Character.isLetterOrDigit(c)? c : '_');
+        }
+        return sb.toString();
+    }
+
+
+    /** A memory-mapped, append-only segment file */
+    private static class Segment {
+        final File             file;
+        final RandomAccessFile raf;
+        final FileChannel      channel;
+        final MappedByteBuffer buf;
+        int                    entries=0;
+
+        Segment(File file, int size) throws IOException {
+            this.file=file;
+            raf=new RandomAccessFile(file, "rw");
+            try {
+                channel=raf.getChannel();
+                buf=channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            catch(IOException ex) {
+                raf.close();
+                file.delete();
+                throw ex;
+            }
+        }
+
+        int remaining() {
+            return buf.remaining();
+        }
+
+        /** Appends the record and returns its offset */
+        int append(byte[] data, int offset, int length) {
+            int pos=buf.position();
+            buf.put(data, offset, length);
+            return pos;
+        }
+
+        byte[] read(int offset, int length) {
+            byte[] retval=new byte[length];
+            java.nio.ByteBuffer tmp=buf.duplicate();
+            tmp.position(offset);
+            tmp.get(retval, 0, length);
+            return retval;
+        }
+
+        void destroy() {
+            try {
+                channel.close();
+                raf.close();
+            }
+            catch(IOException e) {
+            }
+            if(!file.delete())
+                file.deleteOnExit(); // the mapping may still be alive on some platforms
+        }
+    }
+
+
+    private static class Location {
+        final Segment segment;
+        final int     offset;
+        final int     length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment=segment;
+            this.offset=offset;
+            this.length=length;
+        }
+
+        Message read() throws Exception {
+            byte[] data=segment.read(offset, length);
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(data));
+            Message msg=new Message(false); // don't create headers, readFrom() will do this
+            msg.readFrom(in);
+            return msg;
+        }
+    }
+
+}
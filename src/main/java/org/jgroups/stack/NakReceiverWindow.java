@@ -12,6 +12,7 @@ import org.jgroups.Message;
 import org.jgroups.util.List;
 import org.jgroups.util.TimeScheduler;
 
+import java.io.IOException;
 import java.util.*;
 
 
@@ -90,6 +91,21 @@ public class NakReceiverWindow {
      */
     private int max_xmit_buf_size=0;
 
+    /** If value is > 0, delivered_msgs is bounded to max_xmit_buf_bytes bytes: the oldest delivered messages
+     * exceeding the budget are moved to spill_store, from where they can still be retransmitted. A value <= 0
+     * means that delivered messages are kept on the heap until they become stable */
+    private long max_xmit_buf_bytes=0;
+
+    /** The number of bytes (as computed by Message.size()) currently held in delivered_msgs */
+    private long delivered_bytes=0;
+
+    /** TreeMap<Long,Integer>. The sizes the messages in delivered_msgs had when they were delivered (only used
+     * if max_xmit_buf_bytes > 0), so delivered_bytes can be updated exactly when messages are removed */
+    private final TreeMap delivered_sizes=new TreeMap();
+
+    /** Overflow store for delivered messages, used when max_xmit_buf_bytes is exceeded. May be null */
+    private MessageSpillStore spill_store=null;
+
     /** if not set, no retransmitter thread will be started. Useful if
      * protocols do their own retransmission (e.g PBCAST) */
     private Retransmitter retransmitter=null;
@@ -164,6 +180,23 @@ public class NakReceiverWindow {
         this.max_xmit_buf_size=max_xmit_buf_size;
     }
 
+    public long getMaxXmitBufBytes() {
+        return max_xmit_buf_bytes;
+    }
+
+    /**
+     * Sets the byte budget for delivered messages and the store to which messages exceeding it are spilled.
+     * If store is null, no messages will be spilled
+     */
+    public void setMaxXmitBufBytes(long max_xmit_buf_bytes, MessageSpillStore store) {
+        this.max_xmit_buf_bytes=max_xmit_buf_bytes;
+        this.spill_store=store;
+    }
+
+    public MessageSpillStore getSpillStore() {
+        return spill_store;
+    }
+
     public void setListener(Listener l) {
         this.listener=l;
     }
@@ -292,6 +325,13 @@ public class NakReceiverWindow {
                         received_msgs.remove(key);       // move from received_msgs to ...
                         if(discard_delivered_msgs == false) {
                             delivered_msgs.put(key, retval); // delivered_msgs
+                            if(max_xmit_buf_bytes > 0) {
+                                int size=(int)retval.size();
+                                delivered_sizes.put(key, new Integer(size));
+                                delivered_bytes+=size;
+                                if(delivered_bytes > max_xmit_buf_bytes && spill_store != null)
+                                    spillDeliveredMessages();
+                            }
                         }
                         head++;  // is removed from retransmitter somewhere else (when missing message is received)
                         return retval;
@@ -336,6 +376,19 @@ public class NakReceiverWindow {
                 if(m.size() > 0)
                     lowest_seen=Math.max(lowest_seen, ((Long)m.lastKey()).longValue());
                 m.clear(); // removes entries from delivered_msgs
+
+                // subtract the sizes recorded at delivery: headers may have been removed from the msgs since
+                m=delivered_sizes.headMap(new Long(seqno +1));
+                for(Iterator it=m.values().iterator(); it.hasNext();)
+                    delivered_bytes-=((Integer)it.next()).intValue();
+                m.clear();
+
+                // spilled messages are always older than the ones in delivered_msgs
+                if(spill_store != null) {
+                    long highest_removed=spill_store.removeUpTo(seqno);
+                    if(highest_removed >= 0)
+                        lowest_seen=Math.max(lowest_seen, highest_removed);
+                }
             }
             finally {
                 lock.writeLock().release();
@@ -540,18 +593,27 @@ public class NakReceiverWindow {
         try {
             lock.readLock().acquire();
             try {
-                // check received messages
-                SortedMap m=received_msgs.tailMap(new Long(seqno+1));
-                for(Iterator it=m.values().iterator(); it.hasNext();) {
-                    retval.add((it.next()));
+                // the messages are added in seqno order: spilled messages are older than the ones in
+                // delivered_msgs, which are older than the ones in received_msgs
+
+                // spilled messages are unmarshalled into new instances, so we don't need to copy them
+                if(spill_store != null) {
+                    for(Iterator it=spill_store.getRange(seqno +1, Long.MAX_VALUE).iterator(); it.hasNext();)
+                        retval.add(it.next());
                 }
 
                 // we retrieve all msgs whose seqno is strictly greater than seqno (tailMap() *includes* seqno,
                 // but we need to exclude seqno, that's why we increment it
-                m=delivered_msgs.tailMap(new Long(seqno +1));
+                SortedMap m=delivered_msgs.tailMap(new Long(seqno +1));
                 for(Iterator it=m.values().iterator(); it.hasNext();) {
                     retval.add(((Message)it.next()).copy());
                 }
+
+                // check received messages
+                m=received_msgs.tailMap(new Long(seqno+1));
+                for(Iterator it=m.values().iterator(); it.hasNext();) {
+                    retval.add((it.next()));
+                }
                 return (retval);
 
             }
@@ -577,16 +639,22 @@ public class NakReceiverWindow {
         try {
             lock.readLock().acquire();
             try {
-                // check received messages
-                SortedMap m=received_msgs.subMap(new Long(lower +1), new Long(upper +1));
-                for(Iterator it=m.values().iterator(); it.hasNext();) {
-                    retval.add(it.next());
+                // in seqno order: spilled, delivered, then received messages
+                if(spill_store != null) {
+                    for(Iterator it=spill_store.getRange(lower +1, upper +1).iterator(); it.hasNext();)
+                        retval.add(it.next());
                 }
 
-                m=delivered_msgs.subMap(new Long(lower +1), new Long(upper +1));
+                SortedMap m=delivered_msgs.subMap(new Long(lower +1), new Long(upper +1));
                 for(Iterator it=m.values().iterator(); it.hasNext();) {
                     retval.add(((Message)it.next()).copy());
                 }
+
+                // check received messages
+                m=received_msgs.subMap(new Long(lower +1), new Long(upper +1));
+                for(Iterator it=m.values().iterator(); it.hasNext();) {
+                    retval.add(it.next());
+                }
                 return retval;
 
             }
@@ -626,6 +694,11 @@ public class NakReceiverWindow {
                     msg=(Message)delivered_msgs.get(seqno);
                     if(msg != null)
                         ret.add(msg.copy());
+                    else if(spill_store != null) {
+                        msg=spill_store.get(seqno.longValue());
+                        if(msg != null)
+                            ret.add(msg);
+                    }
                     msg=(Message)received_msgs.get(seqno);
                     if(msg != null)
                         ret.add(msg.copy());
@@ -643,7 +716,8 @@ public class NakReceiverWindow {
     }
 
     /**
-     * Returns the message from received_msgs or delivered_msgs.
+     * Returns the message from received_msgs or delivered_msgs. If a message has been spilled to disk, it will be
+     * read back from the spill store.
      * @param sequence_num
      * @return Message from received_msgs or delivered_msgs.
      */
@@ -659,6 +733,8 @@ public class NakReceiverWindow {
                 msg=(Message)received_msgs.get(seqno);
                 if(msg != null)
                     return msg;
+                if(spill_store != null)
+                    return spill_store.get(sequence_num);
             }
             finally {
                 lock.readLock().release();
@@ -724,6 +800,10 @@ public class NakReceiverWindow {
         sb.append('[').append(min).append(" - ").append(max).append(']');
         if(min != null && max != null)
             sb.append(" (size=").append(max.longValue() - min.longValue()).append(")");
+        if(max_xmit_buf_bytes > 0)
+            sb.append(" (bytes=").append(delivered_bytes).append(")");
+        if(spill_store != null && spill_store.size() > 0)
+            sb.append(", spilled: ").append(spill_store);
         return sb.toString();
     }
 
@@ -778,6 +858,15 @@ public class NakReceiverWindow {
         }
         */
 
+        // Spilled messages are older than all messages in delivered_msgs
+        if(spill_store != null && spill_store.size() > 0) {
+            long lowest=spill_store.getLowest();
+            if(lowest >= 0) {
+                lowest_seen=lowest;
+                return;
+            }
+        }
+
         // The lowest seqno is the first seqno of the delivered messages
         if(delivered_msgs.size() > 0) {
             try {
@@ -853,6 +942,33 @@ public class NakReceiverWindow {
 //    }
 
 
+    /**
+     * Moves the oldest messages from delivered_msgs to the spill store until delivered_bytes is within
+     * max_xmit_buf_bytes. If a message cannot be spilled, it is kept in memory. Requires the write lock.
+     */
+    private void spillDeliveredMessages() {
+        Long key;
+        Message msg;
+
+        while(delivered_bytes > max_xmit_buf_bytes && delivered_msgs.size() > 1) { // never spill the latest msg
+            key=(Long)delivered_msgs.firstKey();
+            msg=(Message)delivered_msgs.get(key);
+            try {
+                spill_store.put(key.longValue(), msg); // add to the store *before* removing it from memory
+            }
+            catch(IOException ex) {
+                if(log.isErrorEnabled())
+                    log.error("failed spilling message #" + key + "; keeping it in memory", ex);
+                break;
+            }
+            delivered_msgs.remove(key);
+            Integer size=(Integer)delivered_sizes.remove(key);
+            if(size != null)
+                delivered_bytes-=size.intValue();
+        }
+    }
+
+
     /**
      * Reset the Nak window. Should be called from within a writeLock() context.
      * <p>
@@ -863,6 +979,10 @@ public class NakReceiverWindow {
     private void _reset() {
         received_msgs.clear();
         delivered_msgs.clear();
+        delivered_sizes.clear();
+        delivered_bytes=0;
+        if(spill_store != null)
+            spill_store.clear();
         head=0;
         tail=0;
         lowest_seen=0;
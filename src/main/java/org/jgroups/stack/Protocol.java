@@ -57,7 +57,7 @@ class UpHandler extends Thread {
                         return;
                     }
                 }
-                handler.up(evt);
+                handler.callUp(evt, true);
             }
             catch(QueueClosedException queue_closed) {
                 break;
@@ -118,7 +118,7 @@ class DownHandler extends Thread {
                     if(handler.handleSpecialDownEvent(evt) == false)
                         continue;
                 }
-                handler.down(evt);
+                handler.callDown(evt, true);
             }
             catch(QueueClosedException queue_closed) {
                 break;
@@ -168,6 +168,7 @@ public abstract class Protocol {
     protected boolean          down_thread=true;  // determines whether the down_handler thread should be started
     protected boolean          up_thread=true;    // determines whether the up_handler thread should be started
     protected boolean          stats=true;  // determines whether to collect statistics (and expose them via JMX)
+    protected volatile Instrumentation instrumentation=null; // latency histograms, null if not instrumented
     protected final Log        log=LogFactory.getLog(this.getClass());
 
 
@@ -220,6 +221,12 @@ public abstract class Protocol {
             props.remove("stats");
         }
 
+        str=props.getProperty("instrument");
+        if(str != null) {
+            setInstrumented(Boolean.valueOf(str).booleanValue());
+            props.remove("instrument");
+        }
+
         return setProperties(props);
     }
 
@@ -257,6 +264,23 @@ public abstract class Protocol {
         return null;
     }
 
+    public boolean isInstrumented() {
+        return instrumentation != null;
+    }
+
+    /** Enables or disables the recording of latency histograms (see {@link Instrumentation}) */
+    public void setInstrumented(boolean flag) {
+        if(flag && instrumentation == null)
+            instrumentation=new Instrumentation();
+        else if(!flag)
+            instrumentation=null;
+    }
+
+    /** Returns the latency histograms, or null if the protocol is not instrumented */
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
 
     public void setObserver(ProtocolObserver observer) {
         this.observer=observer;
@@ -467,10 +491,12 @@ public abstract class Protocol {
                     return;
                 }
             }
-            up(evt);
+            callUp(evt, false);
             return;
         }
         try {
+            if(instrumentation != null && evt.getType() == Event.MSG)
+                evt.setTimestamp(System.nanoTime());
             up_queue.add(evt);
         }
         catch(Exception e) {
@@ -496,10 +522,12 @@ public abstract class Protocol {
                 if(handleSpecialDownEvent(evt) == false)
                     return;
             }
-            down(evt);
+            callDown(evt, false);
             return;
         }
         try {
+            if(instrumentation != null && evt.getType() == Event.MSG)
+                evt.setTimestamp(System.nanoTime());
             down_queue.add(evt);
         }
         catch(Exception e) {
@@ -507,6 +535,60 @@ public abstract class Protocol {
         }
     }
 
+
+    /**
+     * Calls up(). If the protocol is instrumented and evt is a message, the time spent in up() (excluding nested
+     * calls of instrumented protocols) is recorded, as is the time the event spent in the up queue if dequeued is true
+     */
+    final void callUp(Event evt, boolean dequeued) {
+        Instrumentation instr=instrumentation;
+        if(instr == null || evt.getType() != Event.MSG) {
+            up(evt);
+            return;
+        }
+        long start=System.nanoTime();
+        if(dequeued && evt.getTimestamp() != 0) {
+            instr.up_queue_time.record(start - evt.getTimestamp());
+            evt.setTimestamp(0);
+        }
+        long[] nested=Instrumentation.nested();
+        long saved=nested[0];
+        nested[0]=0;
+        try {
+            up(evt);
+        }
+        finally {
+            long time=System.nanoTime() - start;
+            instr.up_time.record(time - nested[0]);
+            nested[0]=saved + time;
+        }
+    }
+
+    /** Calls down(), see {@link #callUp(Event,boolean)} */
+    final void callDown(Event evt, boolean dequeued) {
+        Instrumentation instr=instrumentation;
+        if(instr == null || evt.getType() != Event.MSG) {
+            down(evt);
+            return;
+        }
+        long start=System.nanoTime();
+        if(dequeued && evt.getTimestamp() != 0) {
+            instr.down_queue_time.record(start - evt.getTimestamp());
+            evt.setTimestamp(0);
+        }
+        long[] nested=Instrumentation.nested();
+        long saved=nested[0];
+        nested[0]=0;
+        try {
+            down(evt);
+        }
+        finally {
+            long time=System.nanoTime() - start;
+            instr.down_time.record(time - nested[0]);
+            nested[0]=saved + time;
+        }
+    }
+
     /**
      * Causes the event to be forwarded to the next layer up in the hierarchy. Typically called
      * by the implementation of <code>Up</code> (when done).
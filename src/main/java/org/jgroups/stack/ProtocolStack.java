@@ -4,6 +4,7 @@ package org.jgroups.stack;
 
 import org.jgroups.*;
 import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TP;
 import org.jgroups.util.Promise;
 import org.jgroups.util.TimeScheduler;
 
@@ -30,6 +31,9 @@ public class ProtocolStack extends Protocol implements Transport {
     private boolean                 stopped=true;
     public TimeScheduler            timer=new TimeScheduler();
 
+    /** True if timer belongs to a shared transport, and must therefore not be stopped by this stack */
+    private boolean                 shared_timer=false;
+
     /** Used to sync on START/START_OK events for start()*/
     Promise                         start_promise=null;
 
@@ -91,6 +95,36 @@ public class ProtocolStack extends Protocol implements Transport {
         return retval;
     }
 
+    /**
+     * Enables or disables the instrumentation (see {@link Instrumentation}) of all protocols, and of the stack
+     * itself, which records the time spent delivering messages to the channel
+     */
+    public void setInstrumented(boolean flag) {
+        super.setInstrumented(flag);
+        for(Protocol p=top_prot; p != null; p=p.getDownProtocol())
+            p.setInstrumented(flag);
+    }
+
+    public void resetInstrumentation() {
+        for(Protocol p=this; p != null; p=p == this? top_prot : p.getDownProtocol()) {
+            Instrumentation instr=p.getInstrumentation();
+            if(instr != null)
+                instr.reset();
+        }
+    }
+
+    /** Prints the latency histograms of all instrumented protocols which recorded any values, from top to bottom */
+    public String printInstrumentation() {
+        StringBuffer sb=new StringBuffer();
+        for(Protocol p=this; p != null; p=p == this? top_prot : p.getDownProtocol()) {
+            Instrumentation instr=p.getInstrumentation();
+            String tmp=instr != null? instr.toString() : null;
+            if(tmp != null && tmp.length() > 0)
+                sb.append(p.getName()).append(":\n").append(tmp);
+        }
+        return sb.toString();
+    }
+
     public String dumpTimerQueue() {
         return timer != null ? timer.dumpTaskQueue() : "";
     }
@@ -182,6 +216,8 @@ public class ProtocolStack extends Protocol implements Transport {
                 throw new Exception("couldn't create protocol stack");
             top_prot.setUpProtocol(this);
             bottom_prot=conf.getBottommostProtocol(top_prot);
+            if(bottom_prot instanceof TP && ((TP)bottom_prot).isShared())
+                useSharedTransport((TP)bottom_prot);
             conf.initProtocolStack(bottom_prot);         // calls init() on each protocol, from bottom to top
             conf.startProtocolStack(bottom_prot);        // sets up queues and threads
         }
@@ -190,6 +226,34 @@ public class ProtocolStack extends Protocol implements Transport {
 
 
 
+    /**
+     * Replaces the transport with an adapter to the shared transport of the same name, which is created if this
+     * is the first stack to use it. The stack uses the shared transport's timer
+     */
+    private void useSharedTransport(TP transport) {
+        Protocol above=transport.getUpProtocol();
+        TP.ProtocolAdapter adapter=TP.getSharedTransport(transport, this);
+        adapter.setUpProtocol(above);
+        if(above != null)
+            above.setDownProtocol(adapter);
+        if(top_prot == transport)
+            top_prot=adapter;
+        bottom_prot=adapter;
+
+        if(timer != null && !shared_timer)
+            timer.cancel();
+        timer=adapter.getTransport().getSharedTimer();
+        shared_timer=true;
+    }
+
+    /** Returns the transport, which may be shared with other stacks */
+    public TP getTransport() {
+        if(bottom_prot instanceof TP.ProtocolAdapter)
+            return ((TP.ProtocolAdapter)bottom_prot).getTransport();
+        return bottom_prot instanceof TP? (TP)bottom_prot : null;
+    }
+
+
     /**
      * Creates a new protocol given the protocol specification.
      * @param prot_spec The specification of the protocol. Same convention as for specifying a protocol stack.
@@ -256,8 +320,10 @@ public class ProtocolStack extends Protocol implements Transport {
     public void destroy() {
         if(timer != null) {
             try {
-                timer.stop();
-                timer.cancel();
+                if(!shared_timer) {
+                    timer.stop();
+                    timer.cancel();
+                }
                 timer=null;
             }
             catch(Exception ex) {
@@ -395,7 +461,7 @@ public class ProtocolStack extends Protocol implements Transport {
 
 
     protected void receiveUpEvent(Event evt) {
-        up(evt);
+        callUp(evt, false);
     }
 
 
@@ -2,6 +2,8 @@
 package org.jgroups.stack;
 
 
+import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.Mutex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jgroups.Address;
@@ -11,18 +13,26 @@ import org.jgroups.util.Buffer;
 import org.jgroups.util.ExposedByteArrayOutputStream;
 import org.jgroups.util.Util;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.*;
 import java.net.Socket;
 import java.net.InetAddress;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.util.*;
 
 
 /**
- * Client stub that talks to a remote GossipRouter
+ * Client stub that talks to a remote GossipRouter.<p/>
+ * If bundling is enabled, {@link #send(Message, String)} only marshals the message and adds it to a bounded queue.
+ * A writer thread removes as many messages as are available (up to max_bundle_size bytes) and sends them as one
+ * frame per destination. The group name is sent only once, when connecting (CONNECT_BUNDLED). When the connection
+ * to the router fails, the messages which couldn't be written, and the ones still queued, are sent after
+ * the connection has been re-established (see {@link #reconnect()}).<p/>
+ * Instead of a single router, a list of routers (e.g. a cluster of GossipRouters replicating their registrations,
+ * see {@link #setRouters(List)}) can be used. When connecting, the time to establish a TCP connection to each router
+ * is measured and the routers are tried in order of increasing latency. When the connection to the router fails,
+ * {@link #reconnect()} immediately tries the other routers (in the same order) before trying the failed router again.
  * @author Bela Ban
  * @version $Id: RouterStub.java,v 1.22 2006/10/25 08:23:58 belaban Exp $
  */
@@ -36,6 +46,7 @@ public class RouterStub {
     DatagramSocket my_sock=null;    // needed to generate an ID that's unqique across this host
     Address local_addr=null;        // addr of group mbr. Once assigned, remains the same
     static final long RECONNECT_TIMEOUT=5000; // msecs to wait until next connection retry attempt
+    static final long DISCONNECT_TIMEOUT=1000; // msecs to wait for a writer before closing without notifying the router
     private volatile boolean connected=false;
     private volatile boolean reconnect=false;   // controls reconnect() loop
     protected static final Log log=LogFactory.getLog(RouterStub.class);
@@ -43,6 +54,40 @@ public class RouterStub {
     private String groupname=null;
     private InetAddress bind_addr=null;
 
+    /**
+     * Serializes writes to output. A writer may block while holding it (e.g. when the router stalls), so a connection
+     * is closed by closing the socket first, which makes the writer fail, and only then acquiring write_lock
+     */
+    private final Mutex write_lock=new Mutex();
+
+    /** If true, messages are queued and sent by the writer thread, bundled per destination */
+    private boolean bundling=false;
+
+    /** Max number of bytes sent in one bundle */
+    private int max_bundle_size=64000;
+
+    /** Max number of messages in the send queue */
+    private int send_queue_size=1000;
+
+    /** Queue of PendingMessages to be sent by the writer thread */
+    private BoundedLinkedQueue send_queue=null;
+    private Writer writer=null;
+
+    /** List<IpAddress> of routers. If set, router_host and router_port are those of the router we're connected to */
+    private List routers=null;
+
+    /** List<IpAddress>: the routers sorted by latency. Null if the routers have to be ranked (again) */
+    private List ranked_routers=null;
+
+    /** Map<IpAddress,Long>: the latencies (in ms) measured by the last ranking, Long.MAX_VALUE if not reachable */
+    private Map router_latencies=new HashMap();
+
+    /** The router we're connected to (or were connected to last) */
+    private IpAddress current_router=null;
+
+    /** Max time (in ms) to wait for a connection to a router when measuring its latency */
+    private int probe_timeout=1000;
+
 
 
 
@@ -94,6 +139,66 @@ public class RouterStub {
         return connected;
     }
 
+    public List getRouters() {
+        return routers;
+    }
+
+    /** Sets the list (List<IpAddress>) of routers. Takes effect on the next {@link #connect(String)} */
+    public synchronized void setRouters(List routers) {
+        this.routers=routers != null? new ArrayList(routers) : null;
+        ranked_routers=null;
+    }
+
+    /** Returns the router we're connected to (or were connected to last), or null if no list of routers is used */
+    public IpAddress getCurrentRouter() {
+        return current_router;
+    }
+
+    /** Returns the latency (in ms) of each router (Map<IpAddress,Long>), measured when the routers were ranked */
+    public synchronized Map getRouterLatencies() {
+        return new HashMap(router_latencies);
+    }
+
+    public int getProbeTimeout() {
+        return probe_timeout;
+    }
+
+    public void setProbeTimeout(int probe_timeout) {
+        this.probe_timeout=probe_timeout;
+    }
+
+    public boolean isBundling() {
+        return bundling;
+    }
+
+    /** Enables or disables bundling. Has to be set before {@link #connect(String)} is called */
+    public void setBundling(boolean bundling) {
+        this.bundling=bundling;
+    }
+
+    public int getMaxBundleSize() {
+        return max_bundle_size;
+    }
+
+    public void setMaxBundleSize(int max_bundle_size) {
+        this.max_bundle_size=max_bundle_size;
+    }
+
+    public int getSendQueueSize() {
+        return send_queue_size;
+    }
+
+    /** Sets the capacity of the send queue. Has to be set before {@link #connect(String)} is called */
+    public void setSendQueueSize(int send_queue_size) {
+        this.send_queue_size=send_queue_size;
+    }
+
+    /** Returns the number of messages waiting to be sent (bundling only) */
+    public int getNumberOfQueuedMessages() {
+        BoundedLinkedQueue tmp=send_queue;
+        return tmp != null? tmp.size() : 0;
+    }
+
     public void setConnectionListener(ConnectionListener conn_listener) {
         this.conn_listener=conn_listener;
     }
@@ -123,7 +228,8 @@ public class RouterStub {
 //    }
 
     /**
-     Register this process with the router under <code>groupname</code>.
+     Register this process with the router under <code>groupname</code>. If a list of routers is used, the routers
+     are tried in order of their latency, and the first one we can connect to is used.
      @param groupname The name of the group under which to register
      */
     public synchronized void connect(String groupname) throws Exception {
@@ -135,15 +241,53 @@ public class RouterStub {
         if(local_addr == null)
             local_addr=generateLocalAddress();
 
+        if(routers == null || routers.isEmpty()) {
+            connectToRouter();
+            return;
+        }
+
+        List candidates=ranked_routers != null? getFailoverOrder() : rankRouters();
+        IpAddress router;
+        Exception ex=null;
+        for(Iterator it=candidates.iterator(); it.hasNext();) {
+            router=(IpAddress)it.next();
+            router_host=router.getIpAddress().getHostAddress();
+            router_port=router.getPort();
+            try {
+                connectToRouter();
+                current_router=router;
+                if(log.isDebugEnabled()) log.debug("connected to router " + router);
+                return;
+            }
+            catch(Exception e) {
+                ex=e;
+            }
+        }
+        ranked_routers=null; // none of the routers is reachable: measure the latencies again on the next attempt
+        throw ex;
+    }
+
+
+    private void connectToRouter() throws Exception {
         try {
             sock=new Socket(router_host, router_port, bind_addr, 0);
             sock.setSoLinger(true, 500);
-            output=new DataOutputStream(sock.getOutputStream());
-            GossipData req=new GossipData(GossipRouter.CONNECT, groupname, local_addr, null);
+            if(bundling) {
+                sock.setTcpNoDelay(true); // we do our own bundling
+                output=new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), max_bundle_size + 512));
+            }
+            else
+                output=new DataOutputStream(sock.getOutputStream());
+            GossipData req=new GossipData(bundling? GossipRouter.CONNECT_BUNDLED : GossipRouter.CONNECT,
+                                          groupname, local_addr, null);
             req.writeTo(output);
             output.flush();
-            input=new DataInputStream(sock.getInputStream()); // retrieve our own address by reading it from the socket
+            // retrieve our own address by reading it from the socket
+            input=new DataInputStream(new BufferedInputStream(sock.getInputStream()));
             setConnected(true);
+            if(bundling)
+                startWriter();
+            notifyAll(); // wakes up the writer thread
         }
         catch(Exception e) {
             if(log.isWarnEnabled())
@@ -170,6 +314,8 @@ public class RouterStub {
 
 
     public synchronized void disconnect(boolean is_reconnect) {
+        stopWriter(); // queued messages are discarded
+        boolean notified=false;
         try {
             if(sock == null || output == null || input == null) {
                 setConnected(false);
@@ -186,17 +332,33 @@ public class RouterStub {
                 return;
             }
 
-            GossipData req=new GossipData(GossipRouter.DISCONNECT, groupname, local_addr, null);
-            req.writeTo(output);
+            // notify the router, unless a writer is blocked (e.g. the router stalled): the router also removes us
+            // when the connection is closed
+            if(write_lock.attempt(DISCONNECT_TIMEOUT)) {
+                try {
+                    if(bundling)
+                        output.writeByte(GossipRouter.FRAME_DISCONNECT);
+                    else {
+                        GossipData req=new GossipData(GossipRouter.DISCONNECT, groupname, local_addr, null);
+                        req.writeTo(output);
+                    }
+                    output.flush();
+                    notified=true;
+                }
+                finally {
+                    write_lock.release();
+                }
+            }
+            else if(log.isWarnEnabled())
+                log.warn("writing to router " + router_host + ":" + router_port + " is blocked, closing the " +
+                         "connection without notifying the router");
             setConnected(false);
         }
         catch(Exception e) {
             // if(log.isErrorEnabled()) log.error("failed unregistering " + local_addr, e);
         }
         finally {
-            Util.close(output);
-            Util.close(input);
-            Util.close(sock); sock=null;
+            closeSocket(!notified);
             setConnected(false);
             // stop the TUNNEL receiver thread
             reconnect=false;
@@ -218,15 +380,32 @@ public class RouterStub {
      for the entire time, but create/delete it on demand.
      */
     public List get(String groupname) {
-        List ret=null;
-        Socket tmpsock=null;
-        DataOutputStream tmpOutput=null;
-        DataInputStream tmpInput=null;
-
         if(groupname == null || groupname.length() == 0) {
             if(log.isErrorEnabled()) log.error("groupname is null");
             return null;
         }
+        List tmp;
+        synchronized(this) {
+            tmp=routers == null || routers.isEmpty()? null : ranked_routers != null? ranked_routers : routers;
+        }
+        if(tmp == null)
+            return get(groupname, router_host, router_port);
+
+        List ret=null;
+        IpAddress router;
+        for(Iterator it=tmp.iterator(); it.hasNext() && ret == null;) {
+            router=(IpAddress)it.next();
+            ret=get(groupname, router.getIpAddress().getHostAddress(), router.getPort());
+        }
+        return ret;
+    }
+
+
+    private List get(String groupname, String router_host, int router_port) {
+        List ret=null;
+        Socket tmpsock=null;
+        DataOutputStream tmpOutput=null;
+        DataInputStream tmpInput=null;
 
         try {
             tmpsock=new Socket(router_host, router_port);
@@ -254,9 +433,110 @@ public class RouterStub {
     }
 
 
+    /**
+     * Closes the connection to the router without notifying the router, e.g. because the connection failed.
+     * Queued messages and the writer thread are retained (bundling only)
+     */
+    private synchronized void closeConnection() {
+        closeSocket(true);
+        setConnected(false);
+    }
+
+    /**
+     * Closes the socket, which unblocks a writer blocked in a write (it gets an IOException), then closes the streams
+     * under write_lock, so they're not closed while being written to
+     * @param abort Resets the connection rather than lingering until unsent data has been written, which would block
+     * if the router stalled
+     */
+    private synchronized void closeSocket(boolean abort) {
+        Socket tmp=sock;
+        if(abort && tmp != null) {
+            try {
+                tmp.setSoLinger(true, 0);
+            }
+            catch(SocketException e) {
+            }
+        }
+        Util.close(tmp);
+        boolean interrupted=false;
+        for(;;) {
+            try {
+                write_lock.acquire();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted=true;
+            }
+        }
+        try {
+            Util.close(output);
+            Util.close(input);
+            sock=null;
+        }
+        finally {
+            write_lock.release();
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
     /** Sends a message to the router. Returns false if message cannot be sent (e.g. no connection to
-     router, true otherwise. */
+     router, true otherwise.<p/>
+     If bundling is enabled, the message is queued (also while we're not connected) and false is only returned if
+     the queue is full and we're not connected; if we're connected and the queue is full, the caller blocks */
     public boolean send(Message msg, String groupname) {
+        if(bundling)
+            return enqueue(msg);
+        try {
+            write_lock.acquire();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            return _send(msg, groupname);
+        }
+        finally {
+            write_lock.release();
+        }
+    }
+
+
+    private boolean enqueue(Message msg) {
+        BoundedLinkedQueue queue=send_queue;
+        if(queue == null) {
+            if(log.isErrorEnabled()) log.error("no connection to router (groupname=" + groupname + ')');
+            return false;
+        }
+        if(msg == null) {
+            if(log.isErrorEnabled()) log.error("message is null");
+            return false;
+        }
+        try {
+            ExposedByteArrayOutputStream tmp_stream=new ExposedByteArrayOutputStream((int)msg.size() + 16);
+            DataOutputStream tmp=new DataOutputStream(tmp_stream);
+            msg.writeTo(tmp);
+            tmp.close();
+            PendingMessage pending=new PendingMessage(msg.getDest(), tmp_stream.getRawBuffer(), tmp_stream.size());
+            if(connected) {
+                queue.put(pending);
+                return true;
+            }
+            return queue.offer(pending, 0);
+        }
+        catch(InterruptedException e) {
+            return false;
+        }
+        catch(Exception e) {
+            if(log.isErrorEnabled()) log.error("failed marshalling message to " + msg.getDest(), e);
+            return false;
+        }
+    }
+
+
+    private boolean _send(Message msg, String groupname) {
         Address dst_addr=null;
 
         if(sock == null || output == null || input == null) {
@@ -350,7 +630,10 @@ public class RouterStub {
         int num_atttempts=0;
 
         if(connected) return;
-        disconnect();
+        if(bundling)
+            closeConnection(); // retains the queued messages
+        else
+            disconnect();
         reconnect=true;
         while(reconnect && (num_atttempts++ < max_attempts || max_attempts == -1)) {
             try {
@@ -374,6 +657,82 @@ public class RouterStub {
     }
 
 
+    /**
+     * Measures the time it takes to establish a TCP connection to each router and returns the routers sorted by
+     * that time. Routers which cannot be reached are at the end of the list
+     */
+    private List rankRouters() {
+        final Map latencies=new HashMap();
+        IpAddress router;
+        for(Iterator it=routers.iterator(); it.hasNext();) {
+            router=(IpAddress)it.next();
+            latencies.put(router, new Long(measureLatency(router)));
+        }
+        List retval=new ArrayList(routers);
+        Collections.sort(retval, new Comparator() { // stable: routers with the same latency keep their order
+            public int compare(Object o1, Object o2) {
+                return ((Long)latencies.get(o1)).compareTo((Long)latencies.get(o2));
+            }
+        });
+        router_latencies=latencies;
+        ranked_routers=retval;
+        if(log.isDebugEnabled()) log.debug("router latencies: " + latencies + ", ranking: " + retval);
+        return retval;
+    }
+
+
+    private long measureLatency(IpAddress router) {
+        Socket tmp=new Socket();
+        long start=System.currentTimeMillis();
+        try {
+            if(bind_addr != null)
+                tmp.bind(new InetSocketAddress(bind_addr, 0));
+            tmp.connect(new InetSocketAddress(router.getIpAddress(), router.getPort()), probe_timeout);
+            return System.currentTimeMillis() - start;
+        }
+        catch(IOException e) {
+            return Long.MAX_VALUE;
+        }
+        finally {
+            Util.close(tmp);
+        }
+    }
+
+
+    /** Returns the ranked routers, with the router we were connected to last at the end: it has just failed */
+    private List getFailoverOrder() {
+        List retval=new ArrayList(ranked_routers);
+        if(current_router != null && retval.remove(current_router))
+            retval.add(current_router);
+        return retval;
+    }
+
+
+    private synchronized void startWriter() {
+        if(writer == null) {
+            send_queue=new BoundedLinkedQueue(send_queue_size);
+            writer=new Writer();
+            writer.start();
+        }
+    }
+
+    private synchronized void stopWriter() {
+        if(writer != null) {
+            writer.stop();
+            writer=null;
+            send_queue=null;
+            notifyAll();
+        }
+    }
+
+    /** Blocks until we're connected. Returns false if the writer was stopped in the meantime */
+    private synchronized boolean waitUntilConnected(Writer w) throws InterruptedException {
+        while(!connected && writer == w)
+            wait(1000);
+        return writer == w;
+    }
+
+
     private void notifyConnectionListener(boolean connected) {
         if(conn_listener != null) {
             conn_listener.connectionStatusChange(connected);
@@ -393,6 +752,127 @@ public class RouterStub {
         }
     }
 
+    /** A marshalled message */
+    private static class PendingMessage {
+        final Address dest;
+        final byte[]  buf;
+        final int     length;
+
+        PendingMessage(Address dest, byte[] buf, int length) {
+            this.dest=dest;
+            this.buf=buf;
+            this.length=length;
+        }
+    }
+
+
+    /**
+     * Removes messages from send_queue and sends them to the router in bundles, one per destination. If writing
+     * fails, the bundles are resent after the connection has been re-established
+     */
+    private class Writer implements Runnable {
+        Thread thread=null;
+
+        void start() {
+            thread=new Thread(Util.getGlobalThreadGroup(), this, "RouterStub.Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null)
+                tmp.interrupt();
+        }
+
+        public void run() {
+            BoundedLinkedQueue queue=send_queue;
+            Map bundles=null; // messages which were removed from the queue, but not yet sent
+            while(thread != null && Thread.currentThread().equals(thread)) {
+                try {
+                    if(bundles == null)
+                        bundles=removeMessages(queue);
+                    if(bundles == null)
+                        continue;
+                    if(!waitUntilConnected(this))
+                        break;
+                    writeBundles(bundles);
+                    bundles=null;
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+                catch(IOException e) {
+                    if(thread == null)
+                        break;
+                    if(log.isWarnEnabled())
+                        log.warn("failed sending messages to router " + router_host + ":" + router_port +
+                                 ", will resend them when reconnected: " + e);
+                    closeConnection();
+                }
+            }
+        }
+
+
+        /**
+         * Blocks until a message is available, then removes as many messages as available (up to max_bundle_size
+         * bytes). Returns a map of destination (null for multicasts) and list of PendingMessages, or null if no
+         * message was available within 1 second
+         */
+        private Map removeMessages(BoundedLinkedQueue queue) throws InterruptedException {
+            PendingMessage msg=(PendingMessage)queue.poll(1000);
+            if(msg == null)
+                return null;
+            Map bundles=new LinkedHashMap(); // preserves the order of the destinations
+            long size=0;
+            List list;
+            do {
+                list=(List)bundles.get(msg.dest);
+                if(list == null) {
+                    list=new ArrayList();
+                    bundles.put(msg.dest, list);
+                }
+                list.add(msg);
+                size+=msg.length;
+                if(size >= max_bundle_size)
+                    break;
+                msg=(PendingMessage)queue.poll(0);
+            }
+            while(msg != null);
+            return bundles;
+        }
+
+
+        private void writeBundles(Map bundles) throws IOException, InterruptedException {
+            Map.Entry entry;
+            List list;
+            PendingMessage msg;
+            write_lock.acquire();
+            try {
+                if(output == null)
+                    throw new IOException("not connected");
+                for(Iterator it=bundles.entrySet().iterator(); it.hasNext();) {
+                    entry=(Map.Entry)it.next();
+                    list=(List)entry.getValue();
+                    output.writeByte(GossipRouter.FRAME_MSGS);
+                    Util.writeAddress((Address)entry.getKey(), output);
+                    output.writeInt(list.size());
+                    for(int i=0; i < list.size(); i++) {
+                        msg=(PendingMessage)list.get(i);
+                        output.writeInt(msg.length);
+                        output.write(msg.buf, 0, msg.length);
+                    }
+                }
+                output.flush();
+            }
+            finally {
+                write_lock.release();
+            }
+        }
+    }
+
+
     public static void main(String[] args) {
         if(args.length != 2) {
             System.out.println("RouterStub <host> <port>");
@@ -0,0 +1,262 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.View;
+import org.jgroups.ViewId;
+import org.jgroups.stack.IpAddress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * The members of a view, indexed by their position in the view. A transport uses it to write the sender of a
+ * message as a short member index rather than as a full address, and to resolve addresses read from the network to
+ * the member's (canonical) instance without creating an address. The table is immutable and replaced on every view
+ * change, so the addresses of members which left are reclaimed with the old table.<p/>
+ * Sender and receiver need to agree on the view before indices can be used: the fingerprint of the view is sent with
+ * every datagram, and a member is <em>confirmed</em> when a datagram with the fingerprint of this view was received
+ * from it. Indices are only sent to confirmed members.<p/>
+ * The tables of all transports in the VM are registered, so addresses created elsewhere (e.g. by
+ * {@link org.jgroups.Message#setSrc(Address)}) can be canonicalized as well ({@link #canonicalAddress(Address)}).
+ * @version $Id$
+ */
+public class AddressTable {
+    final ViewId    view_id;
+    final long      fingerprint;
+    final Address[] members;
+
+    /** Map<Address,Integer>: index of a member in members */
+    final Map       indices;
+
+    /** Open addressing hash table of the IPv4 members, keyed by IP address and port */
+    final long[]    ipv4_keys;
+    final Address[] ipv4_members;
+    final int       mask;
+
+    final boolean[] confirmed;
+    int             num_confirmed=0;
+    volatile boolean all_confirmed=false;
+
+    /** The tables of all transports in this VM, replaced on every change (copy-on-write) */
+    private static volatile AddressTable[] registered=new AddressTable[0];
+
+
+    /**
+     * @param view The view
+     * @param local_addr The local member, which is confirmed right away. May be null
+     */
+    public AddressTable(View view, Address local_addr) {
+        view_id=view.getVid();
+        Vector mbrs=view.getMembers();
+        fingerprint=computeFingerprint(view_id, mbrs);
+        members=new Address[mbrs.size()];
+        indices=new HashMap(mbrs.size() * 2);
+        confirmed=new boolean[members.length];
+
+        int capacity=4;
+        while(capacity < members.length * 2)
+            capacity<<=1;
+        ipv4_keys=new long[capacity];
+        ipv4_members=new Address[capacity];
+        mask=capacity - 1;
+
+        for(int i=0; i < members.length; i++) {
+            Address mbr=(Address)mbrs.elementAt(i);
+            members[i]=mbr;
+            indices.put(mbr, new Integer(i));
+            if(mbr instanceof IpAddress) {
+                IpAddress addr=(IpAddress)mbr;
+                byte[] ip=addr.getIpAddress() != null? addr.getIpAddress().getAddress() : null;
+                if(ip != null && ip.length == 4) {
+                    long key=key(((ip[0] & 0xff) << 24) | ((ip[1] & 0xff) << 16) | ((ip[2] & 0xff) << 8) | (ip[3] & 0xff),
+                                 addr.getPort());
+                    int slot=hash(key) & mask;
+                    while(ipv4_members[slot] != null)
+                        slot=(slot + 1) & mask;
+                    ipv4_keys[slot]=key;
+                    ipv4_members[slot]=mbr;
+                }
+            }
+        }
+        if(local_addr != null)
+            confirm(local_addr);
+    }
+
+
+    public ViewId getViewId() {
+        return view_id;
+    }
+
+    /** Returns a hash of the view ID and the members, which is the same at all members which installed the view */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /** Returns the index of a member, or -1 if addr is not a member */
+    public int indexOf(Address addr) {
+        if(addr == null)
+            return -1;
+        Integer index=(Integer)indices.get(addr);
+        return index != null? index.intValue() : -1;
+    }
+
+    /** Returns the member at index, or null if the index is out of range */
+    public Address get(int index) {
+        return index >= 0 && index < members.length? members[index] : null;
+    }
+
+    /** Returns the canonical instance of a member, or null if addr is not a member */
+    public Address lookup(Address addr) {
+        int index=indexOf(addr);
+        return index >= 0? members[index] : null;
+    }
+
+    /**
+     * Returns the member with the given IPv4 address (in network byte order) and port, or null if there is none.
+     * Doesn't create any objects
+     */
+    public Address lookup(int ipv4_addr, int port) {
+        long key=key(ipv4_addr, port);
+        for(int slot=hash(key) & mask; ipv4_members[slot] != null; slot=(slot + 1) & mask) {
+            if(ipv4_keys[slot] == key)
+                return ipv4_members[slot];
+        }
+        return null;
+    }
+
+
+    /**
+     * Returns the member which sent a datagram from the given (transport) address: the member with this address, or
+     * else the only member on the sender's host, as e.g. UDP sends multicasts from a different port than the member's.
+     * Returns null if there is no such member, or if the host has more than one member
+     */
+    public Address lookupSender(Address sender) {
+        Address retval=lookup(sender);
+        if(retval != null || !(sender instanceof IpAddress))
+            return retval;
+        InetAddress host=((IpAddress)sender).getIpAddress();
+        if(host == null)
+            return null;
+        for(int i=0; i < members.length; i++) {
+            if(members[i] instanceof IpAddress && host.equals(((IpAddress)members[i]).getIpAddress())) {
+                if(retval != null)
+                    return null;
+                retval=members[i];
+            }
+        }
+        return retval;
+    }
+
+    /** Marks a member as having installed this view. No-op if addr is not a member */
+    public void confirm(Address addr) {
+        int index=indexOf(addr);
+        if(index < 0 || confirmed[index])
+            return;
+        synchronized(this) {
+            if(!confirmed[index]) {
+                confirmed[index]=true;
+                if(++num_confirmed == members.length)
+                    all_confirmed=true;
+            }
+        }
+    }
+
+    /** Returns true if addr is a member and installed this view, so it can resolve member indices */
+    public boolean isConfirmed(Address addr) {
+        int index=indexOf(addr);
+        return index >= 0 && confirmed[index];
+    }
+
+    /** Returns true if all members installed this view */
+    public boolean isConfirmedByAll() {
+        return all_confirmed;
+    }
+
+
+    public String toString() {
+        return view_id + " (fingerprint=" + fingerprint + ", " + num_confirmed + " of " + members.length + " members confirmed)";
+    }
+
+
+    /** Registers a table, so that its members are returned by {@link #canonicalAddress(Address)} */
+    public static void register(AddressTable table) {
+        synchronized(AddressTable.class) {
+            AddressTable[] tmp=new AddressTable[registered.length + 1];
+            System.arraycopy(registered, 0, tmp, 0, registered.length);
+            tmp[registered.length]=table;
+            registered=tmp;
+        }
+    }
+
+    public static void unregister(AddressTable table) {
+        synchronized(AddressTable.class) {
+            for(int i=0; i < registered.length; i++) {
+                if(registered[i] == table) {
+                    AddressTable[] tmp=new AddressTable[registered.length - 1];
+                    System.arraycopy(registered, 0, tmp, 0, i);
+                    System.arraycopy(registered, i + 1, tmp, i, tmp.length - i);
+                    registered=tmp;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the instance of addr held by a registered table, or addr itself if it is not a member of any view
+     * of this VM. Nothing is added to the tables, so non-members don't accumulate
+     */
+    public static Address canonicalAddress(Address addr) {
+        if(addr == null)
+            return null;
+        AddressTable[] tables=registered;
+        for(int i=0; i < tables.length; i++) {
+            Address retval=tables[i].lookup(addr);
+            if(retval != null)
+                return retval;
+        }
+        return addr;
+    }
+
+
+    /**
+     * Computes a 64 bit FNV-1a hash of the serialized view ID and member list, so views which differ only in their
+     * members (e.g. two views with the same ID created by different partitions) have different fingerprints
+     */
+    static long computeFingerprint(ViewId vid, Vector mbrs) {
+        ByteArrayOutputStream out=new ByteArrayOutputStream(64 + mbrs.size() * 16);
+        DataOutputStream dos=new DataOutputStream(out);
+        try {
+            vid.writeTo(dos);
+            Util.writeAddresses(mbrs, dos);
+            dos.flush();
+        }
+        catch(IOException e) { // cannot happen with a ByteArrayOutputStream, but don't lose the hash of what was written
+        }
+        byte[] buf=out.toByteArray();
+        long retval=0xcbf29ce484222325L;
+        for(int i=0; i < buf.length; i++) {
+            retval^=buf[i] & 0xff;
+            retval*=0x100000001b3L;
+        }
+        return retval;
+    }
+
+    private static long key(int ipv4_addr, int port) {
+        return ((long)ipv4_addr << 32) | (port & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h=key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,205 @@
+package org.jgroups.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.LinkedList;
+
+/**
+ * Encrypts and decrypts buffers with a symmetric key, and can be used by any number of threads concurrently.
+ * {@link Cipher} instances are not thread-safe, so every operation takes a cipher from a pool (or creates one if
+ * the pool is empty) and returns it when done. At most max_size idle ciphers are kept per direction.<p/>
+ * Transformations with an IV (e.g. "AES/CBC/PKCS5Padding" or "AES/CTR/NoPadding") get a fresh random IV for every
+ * buffer, which is prepended to the ciphertext. AEAD transformations ("AES/GCM/NoPadding") also append an
+ * authentication tag, so tampered or truncated ciphertexts fail decryption instead of producing garbage; they need
+ * no separate digest. Transformations without an IV ("Blowfish", i.e. ECB) are initialized once per cipher.
+ * @version $Id$
+ */
+public class CipherPool {
+    /** Length of the GCM authentication tag, in bits */
+    static final int GCM_TAG_BITS=128;
+
+    final String    transformation;
+    final SecretKey key;
+    final int       max_size;
+
+    /** Length of the IV prepended to every ciphertext, 0 if the transformation uses no IV */
+    final int       iv_length;
+    final boolean   aead;
+
+    private final LinkedList encoders=new LinkedList();
+    private final LinkedList decoders=new LinkedList();
+    private final SecureRandom random;
+
+
+    /**
+     * @param transformation The cipher transformation, e.g. "AES/GCM/NoPadding". If it is only an algorithm name,
+     *                       the provider's default mode is used
+     * @param key The secret key
+     * @param max_size The max number of idle ciphers kept per direction
+     */
+    public CipherPool(String transformation, SecretKey key, int max_size) throws GeneralSecurityException {
+        this.transformation=transformation;
+        this.key=key;
+        this.max_size=max_size;
+        this.aead=transformation.toUpperCase().indexOf("/GCM/") >= 0;
+
+        Cipher cipher=Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] iv=cipher.getIV();
+        iv_length=iv != null? iv.length : 0;
+        random=iv_length > 0? new SecureRandom() : null;
+        if(iv_length == 0)
+            release(encoders, cipher);
+    }
+
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /** Returns true if the transformation authenticates the ciphertext (AEAD) */
+    public boolean isAuthenticated() {
+        return aead;
+    }
+
+    /** Returns the number of bytes encrypt() adds to a buffer, not counting the padding of block ciphers */
+    public int getOverhead() {
+        return iv_length + (aead? GCM_TAG_BITS / 8 : 0);
+    }
+
+
+    public byte[] encrypt(byte[] buf) throws GeneralSecurityException {
+        return encrypt(buf, 0, buf.length);
+    }
+
+    public byte[] encrypt(byte[] buf, int offset, int length) throws GeneralSecurityException {
+        Cipher cipher=acquire(encoders, Cipher.ENCRYPT_MODE);
+        boolean reuse=false;
+        try {
+            byte[] retval;
+            if(iv_length == 0) {
+                retval=cipher.doFinal(buf, offset, length);
+            }
+            else {
+                byte[] iv=new byte[iv_length];
+                random.nextBytes(iv);
+                cipher.init(Cipher.ENCRYPT_MODE, key, createParameters(iv, 0));
+                retval=new byte[iv_length + cipher.getOutputSize(length)];
+                System.arraycopy(iv, 0, retval, 0, iv_length);
+                int len=cipher.doFinal(buf, offset, length, retval, iv_length);
+                if(iv_length + len != retval.length) {
+                    byte[] tmp=new byte[iv_length + len];
+                    System.arraycopy(retval, 0, tmp, 0, tmp.length);
+                    retval=tmp;
+                }
+            }
+            reuse=true;
+            return retval;
+        }
+        finally {
+            if(reuse)
+                release(encoders, cipher);
+        }
+    }
+
+
+    public byte[] decrypt(byte[] buf) throws GeneralSecurityException {
+        return decrypt(buf, 0, buf.length);
+    }
+
+    /**
+     * Decrypts a buffer created by encrypt()
+     * @throws GeneralSecurityException Thrown if the buffer cannot be decrypted, e.g. because it was encrypted with
+     * a different key, or (with an AEAD transformation) because it was modified
+     */
+    public byte[] decrypt(byte[] buf, int offset, int length) throws GeneralSecurityException {
+        if(length < iv_length)
+            throw new GeneralSecurityException("ciphertext (" + length + " bytes) is shorter than the IV");
+        Cipher cipher=acquire(decoders, Cipher.DECRYPT_MODE);
+        boolean reuse=false;
+        try {
+            byte[] retval;
+            if(iv_length == 0) {
+                retval=cipher.doFinal(buf, offset, length);
+            }
+            else {
+                cipher.init(Cipher.DECRYPT_MODE, key, createParameters(buf, offset));
+                retval=cipher.doFinal(buf, offset + iv_length, length - iv_length);
+            }
+            reuse=true;
+            return retval;
+        }
+        finally {
+            // a cipher whose doFinal() failed may be left in an undefined state, so it is dropped
+            if(reuse)
+                release(decoders, cipher);
+        }
+    }
+
+
+    public String toString() {
+        synchronized(this) {
+            return transformation + " (idle encoders=" + encoders.size() + ", idle decoders=" + decoders.size() +
+                    ", max=" + max_size + ")";
+        }
+    }
+
+
+    /**
+     * Loads a secret key from a JCEKS keystore found on the classpath (the default keystore type cannot hold
+     * secret keys)
+     */
+    public static SecretKey loadSecretKey(String key_store_name, String store_password, String key_password,
+                                          String alias) throws Exception {
+        InputStream in=Thread.currentThread().getContextClassLoader().getResourceAsStream(key_store_name);
+        if(in == null)
+            throw new Exception("Unable to load keystore " + key_store_name + " ensure file is on classpath");
+        try {
+            KeyStore store=KeyStore.getInstance("JCEKS");
+            store.load(in, store_password.toCharArray());
+            SecretKey key=(SecretKey)store.getKey(alias, key_password.toCharArray());
+            if(key == null)
+                throw new Exception("Unable to retrieve key '" + alias + "' from keystore " + key_store_name);
+            return key;
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+
+    private AlgorithmParameterSpec createParameters(byte[] iv, int offset) {
+        if(aead)
+            return new GCMParameterSpec(GCM_TAG_BITS, iv, offset, iv_length);
+        return new IvParameterSpec(iv, offset, iv_length);
+    }
+
+    private Cipher acquire(LinkedList pool, int mode) throws GeneralSecurityException {
+        synchronized(this) {
+            if(!pool.isEmpty())
+                return (Cipher)pool.removeFirst();
+        }
+        Cipher cipher=Cipher.getInstance(transformation);
+        if(iv_length == 0)
+            cipher.init(mode, key);
+        return cipher;
+    }
+
+    private void release(LinkedList pool, Cipher cipher) {
+        synchronized(this) {
+            if(pool.size() < max_size)
+                pool.addFirst(cipher);
+        }
+    }
+}
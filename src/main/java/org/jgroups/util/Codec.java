@@ -0,0 +1,26 @@
+package org.jgroups.util;
+
+/**
+ * A compression algorithm, used by {@link CodecPool}. Instances are used by one thread at a time, so they may keep
+ * state (e.g. a Deflater) between calls. Implementations need a public constructor taking the compression level
+ * (an int), or a public no-arg constructor.
+ * @version $Id$
+ */
+public interface Codec {
+
+    /**
+     * Compresses length bytes of in, starting at offset, into out
+     * @return The number of bytes written to out, or -1 if the compressed data does not fit into out
+     */
+    int compress(byte[] in, int offset, int length, byte[] out);
+
+    /**
+     * Uncompresses length bytes of in, starting at offset, into out. The length of out is the size of the
+     * uncompressed data
+     * @throws Exception Thrown if in is not valid compressed data, or does not uncompress to out.length bytes
+     */
+    void uncompress(byte[] in, int offset, int length, byte[] out) throws Exception;
+
+    /** Releases the resources (e.g. native memory) held by this codec */
+    void destroy();
+}
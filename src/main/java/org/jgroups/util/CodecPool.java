@@ -0,0 +1,201 @@
+package org.jgroups.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compresses and uncompresses buffers with a {@link Codec}, and can be used by any number of threads concurrently.
+ * Idle codecs are kept in a fixed number of slots which are taken and returned with atomic operations, so threads
+ * never block on each other. A thread finding no idle codec creates a new one; a codec returned to a full pool is
+ * destroyed. Every codec comes with a scratch buffer that compressed data is written to, so a compression
+ * allocates only the (exactly sized) result.<p/>
+ * Compression is adaptive: a result which is not smaller than max_ratio times the original size is discarded,
+ * and the caller sends the original data. After a few such results in a row (e.g. while the application sends
+ * already compressed data), only every sample_interval-th buffer is compressed, until one compresses well again.
+ * @version $Id$
+ */
+public class CodecPool {
+    /** Number of incompressible buffers in a row after which compression is only sampled */
+    static final int MAX_INCOMPRESSIBLE=3;
+
+    /** Scratch buffers larger than this are not kept with their codec */
+    static final int MAX_SCRATCH_SIZE=128 * 1024;
+
+    final Constructor ctor;
+    final Object[]    ctor_args;
+    final double      max_ratio;
+    final int         sample_interval;
+
+    private final AtomicReferenceArray slots;
+    private volatile boolean           destroyed=false;
+
+    /** Number of incompressible buffers in a row */
+    private volatile int               incompressible=0;
+    private final AtomicInteger        attempts=new AtomicInteger(0);
+
+    /* Statistics: they are updated without synchronization, so they are approximations */
+    long num_compressed=0, num_incompressible=0, num_skipped=0, num_bytes_in=0, num_bytes_out=0;
+
+    protected static final Log log=LogFactory.getLog(CodecPool.class);
+
+
+    /**
+     * @param codec_class The codec, needs a public constructor taking the level (int) or a public no-arg constructor
+     * @param level The compression level passed to the codec's constructor
+     * @param size The number of slots for idle codecs. Usually the number of cores
+     * @param max_ratio A compressed buffer is only used if its size is less than max_ratio times the original size
+     * @param sample_interval Compress only every sample_interval-th buffer while buffers don't compress well
+     */
+    public CodecPool(Class codec_class, int level, int size, double max_ratio, int sample_interval) throws Exception {
+        if(!Codec.class.isAssignableFrom(codec_class))
+            throw new IllegalArgumentException(codec_class.getName() + " does not implement " + Codec.class.getName());
+        Constructor tmp;
+        Object[] args;
+        try {
+            tmp=codec_class.getConstructor(new Class[]{int.class});
+            args=new Object[]{new Integer(level)};
+        }
+        catch(NoSuchMethodException e) {
+            tmp=codec_class.getConstructor(new Class[0]);
+            args=new Object[0];
+        }
+        ctor=tmp;
+        ctor_args=args;
+        this.max_ratio=max_ratio;
+        this.sample_interval=Math.max(1, sample_interval);
+        slots=new AtomicReferenceArray(Math.max(1, size));
+    }
+
+
+    public long getNumCompressed()    {return num_compressed;}
+    public long getNumIncompressible() {return num_incompressible;}
+    public long getNumSkipped()       {return num_skipped;}
+    public long getNumBytesIn()       {return num_bytes_in;}
+    public long getNumBytesOut()      {return num_bytes_out;}
+
+    /** Returns the average size of the compressed buffers relative to their original size */
+    public double getCompressionRatio() {
+        return num_bytes_in > 0? (double)num_bytes_out / num_bytes_in : 1.0;
+    }
+
+    public void resetStats() {
+        num_compressed=num_incompressible=num_skipped=num_bytes_in=num_bytes_out=0;
+    }
+
+
+    /**
+     * Compresses length bytes of buf, starting at offset
+     * @return The compressed data, or null if the data was not compressed (because it doesn't compress well, or
+     * because compression is currently being skipped)
+     */
+    public byte[] compress(byte[] buf, int offset, int length) throws Exception {
+        if(incompressible >= MAX_INCOMPRESSIBLE && attempts.incrementAndGet() % sample_interval != 0) {
+            num_skipped++;
+            return null;
+        }
+
+        int max_size=(int)(length * max_ratio);
+        if(max_size <= 0)
+            return null;
+
+        Entry entry=acquire();
+        try {
+            byte[] out=entry.scratch.length >= max_size? entry.scratch : new byte[max_size];
+            if(out != entry.scratch && max_size <= MAX_SCRATCH_SIZE)
+                entry.scratch=out;
+            int size=entry.codec.compress(buf, offset, length, out);
+            if(size < 0 || size >= max_size) {
+                num_incompressible++;
+                incompressible++;
+                return null;
+            }
+            incompressible=0;
+            num_compressed++;
+            num_bytes_in+=length;
+            num_bytes_out+=size;
+            byte[] retval=new byte[size];
+            System.arraycopy(out, 0, retval, 0, size);
+            return retval;
+        }
+        finally {
+            release(entry);
+        }
+    }
+
+
+    /**
+     * Uncompresses length bytes of buf, starting at offset
+     * @param original_size The size of the uncompressed data
+     */
+    public byte[] uncompress(byte[] buf, int offset, int length, int original_size) throws Exception {
+        byte[] retval=new byte[original_size];
+        Entry entry=acquire();
+        try {
+            entry.codec.uncompress(buf, offset, length, retval);
+            return retval;
+        }
+        finally {
+            release(entry);
+        }
+    }
+
+
+    /** Destroys all idle codecs. Codecs in use are destroyed when they are returned */
+    public void destroy() {
+        destroyed=true;
+        for(int i=0; i < slots.length(); i++) {
+            Entry entry=(Entry)slots.getAndSet(i, null);
+            if(entry != null)
+                entry.codec.destroy();
+        }
+    }
+
+
+    public String toString() {
+        return ctor.getDeclaringClass().getName() + ": compressed=" + num_compressed + ", incompressible=" +
+                num_incompressible + ", skipped=" + num_skipped + ", ratio=" + getCompressionRatio();
+    }
+
+
+    private Entry acquire() throws Exception {
+        int num=slots.length();
+        int start=(int)(Thread.currentThread().getId() % num);
+        for(int i=0; i < num; i++) {
+            int index=(start + i) % num;
+            if(slots.get(index) != null) {
+                Entry entry=(Entry)slots.getAndSet(index, null);
+                if(entry != null)
+                    return entry;
+            }
+        }
+        if(log.isTraceEnabled())
+            log.trace("no idle codec, creating a new one");
+        return new Entry((Codec)ctor.newInstance(ctor_args));
+    }
+
+    private void release(Entry entry) {
+        if(!destroyed) {
+            int num=slots.length();
+            int start=(int)(Thread.currentThread().getId() % num);
+            for(int i=0; i < num; i++) {
+                if(slots.compareAndSet((start + i) % num, null, entry))
+                    return;
+            }
+        }
+        entry.codec.destroy();
+    }
+
+
+    private static class Entry {
+        final Codec codec;
+        byte[] scratch=new byte[0];
+
+        Entry(Codec codec) {
+            this.codec=codec;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jgroups.util;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Codec} based on java.util.zip. Level 1 ({@link Deflater#BEST_SPEED}) is several times faster than level 9
+ * ({@link Deflater#BEST_COMPRESSION}), and compresses typical messages almost as well.
+ * @version $Id$
+ */
+public class DeflateCodec implements Codec {
+    final int level;
+
+    /** Created on first use, as codecs which only uncompress (e.g. of a transport which doesn't compress datagrams
+     * but receives compressed ones) don't need its (considerable) native memory */
+    private Deflater deflater=null;
+    private Inflater inflater=null;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public DeflateCodec(int level) {
+        this.level=level;
+    }
+
+    public int compress(byte[] in, int offset, int length, byte[] out) {
+        if(deflater == null)
+            deflater=new Deflater(level);
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        int size=deflater.deflate(out);
+        // if the output buffer filled up before all input was consumed, the data doesn't fit
+        return deflater.finished()? size : -1;
+    }
+
+    public void uncompress(byte[] in, int offset, int length, byte[] out) throws DataFormatException {
+        if(inflater == null)
+            inflater=new Inflater();
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        int size=inflater.inflate(out);
+        if(size != out.length || !inflater.finished())
+            throw new DataFormatException("uncompressed " + size + " bytes, expected " + out.length);
+    }
+
+    public void destroy() {
+        if(deflater != null)
+            deflater.end();
+        if(inflater != null)
+            inflater.end();
+    }
+}
@@ -0,0 +1,125 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies (in nanoseconds) with a bounded relative error, in the style of HdrHistogram: values are
+ * counted in buckets whose width grows with the value, so every power of two is split into 32 buckets (an error of
+ * at most ~3%), and values up to an hour need about 1200 buckets. Recording a value is lock-free (a few atomic
+ * increments) and doesn't allocate, so any number of threads can record concurrently. Reading percentiles while
+ * values are being recorded returns approximations, which is fine for monitoring.
+ * @version $Id$
+ */
+public class Histogram {
+    static final int  SUB_BUCKET_BITS=5;
+    static final int  SUB_BUCKETS=1 << SUB_BUCKET_BITS;
+
+    /** Values are capped at 2^MAX_BITS - 1 ns (~73 minutes) */
+    static final int  MAX_BITS=42;
+    static final long MAX_VALUE=(1L << MAX_BITS) - 1;
+
+    private final AtomicLongArray counts=new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong      count=new AtomicLong(0);
+    private final AtomicLong      sum=new AtomicLong(0);
+    private final AtomicLong      max=new AtomicLong(0);
+
+
+    /** Records a value in nanoseconds. Negative values (e.g. caused by clock skew) are recorded as 0 */
+    public void record(long value) {
+        if(value < 0)
+            value=0;
+        else if(value > MAX_VALUE)
+            value=MAX_VALUE;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while(value > (current=max.get())) {
+            if(max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long num=count.get();
+        return num > 0? (double)sum.get() / num : 0;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall, e.g. getPercentile(99.9)
+     * @return The highest value of the bucket containing the percentile, or 0 if no values have been recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot=new long[counts.length()];
+        long total=0;
+        for(int i=0; i < snapshot.length; i++) {
+            snapshot[i]=counts.get(i);
+            total+=snapshot[i];
+        }
+        if(total == 0)
+            return 0;
+        long threshold=Math.max(1, (long)Math.ceil(percentile / 100.0 * total));
+        long cumulative=0;
+        for(int i=0; i < snapshot.length; i++) {
+            cumulative+=snapshot[i];
+            if(cumulative >= threshold)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i=0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    /** Prints the count, mean, percentiles and max, in microseconds */
+    public String toString() {
+        StringBuffer sb=new StringBuffer();
+        sb.append("count=").append(getCount()).append(", mean=").append(micros((long)getMean())).
+                append(" us, p50=").append(micros(getPercentile(50))).
+                append(" us, p90=").append(micros(getPercentile(90))).
+                append(" us, p99=").append(micros(getPercentile(99))).
+                append(" us, p99.9=").append(micros(getPercentile(99.9))).
+                append(" us, max=").append(micros(getMax())).append(" us");
+        return sb.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.valueOf(Math.round(nanos / 100.0) / 10.0);
+    }
+
+
+    /**
+     * Values below 2 * SUB_BUCKETS have a bucket each. Above, the values between 2^n and 2^(n+1) are split into
+     * SUB_BUCKETS buckets of width 2^(n - SUB_BUCKET_BITS)
+     */
+    static int index(long value) {
+        if(value < (SUB_BUCKETS << 1))
+            return (int)value;
+        int shift=63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+    }
+
+    /** Returns the highest value counted in bucket index */
+    static long highestValue(int index) {
+        if(index < (SUB_BUCKETS << 1))
+            return index;
+        int shift=(index >>> SUB_BUCKET_BITS) - 1;
+        long low=(long)(index - (shift << SUB_BUCKET_BITS)) << shift;
+        return low + (1L << shift) - 1;
+    }
+}